@@ -45,24 +45,38 @@ public class NGSEPcore {
 			return;
 		}
 		
-		Command command = descriptor.getCommand(args[0]);
+		int cmdIdx;
+		try {
+			cmdIdx = descriptor.loadGlobalOptions(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println("ERROR: "+e.getMessage());
+			descriptor.printUsage();
+			System.exit(1);
+			return;
+		}
+		if(cmdIdx == args.length) {
+			descriptor.printUsage();
+			return;
+		}
+		String commandId = args[cmdIdx];
+		Command command = descriptor.getCommand(commandId);
 		if(command == null) {
-			String currentCommandId = descriptor.getCurrentCommandId(args[0]);
+			String currentCommandId = descriptor.getCurrentCommandId(commandId);
 			if(currentCommandId!=null) {
 				System.err.println();
-				System.err.println("ERROR: Command "+args[0]+" was replaced by command "+currentCommandId+ ". See new usage below.");
+				System.err.println("ERROR: Command "+commandId+" was replaced by command "+currentCommandId+ ". See new usage below.");
 				System.err.println();
 				command = descriptor.getCommand(currentCommandId);
 				descriptor.printHelp(command);
 			} else {
-				System.err.println("ERROR: Unrecognized command "+args[0]);
+				System.err.println("ERROR: Unrecognized command "+commandId);
 			}
 			System.exit(1);
 		}
 		Class<?> program = command.getProgram();
 	    Class<?>[] argTypes = new Class[] { String[].class };
 	    Method main = program.getDeclaredMethod("main", argTypes);
-  	    String[] mainArgs = Arrays.copyOfRange(args, 1, args.length);
+  	    String[] mainArgs = Arrays.copyOfRange(args, cmdIdx+1, args.length);
 	    main.invoke(null, (Object)mainArgs);
 	}
 
@@ -23,14 +23,22 @@ import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.alignments.io.ReadAlignmentFileReader;
+import ngsep.alignments.io.ReadAlignmentsConsumer;
 import ngsep.genome.ReferenceGenome;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
@@ -44,10 +52,13 @@ import ngsep.sequences.DNASequence;
  * end
  * @author Jorge Duitama
  */
-public class BasePairQualityStatisticsCalculator {
+public class BasePairQualityStatisticsCalculator implements ReadAlignmentsConsumer {
 	
 	// Constants for default values
 	public static final int DEF_MIN_MQ_UNIQUE_ALIGNMENT = ReadAlignment.DEF_MIN_MQ_UNIQUE_ALIGNMENT;
+	public static final int DEF_NUM_THREADS = 1;
+	//Number of alignments processed by each task
+	private static final int ALIGNMENTS_BATCH = 10000;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(BasePairQualityStatisticsCalculator.class.getName());
@@ -58,16 +69,10 @@ public class BasePairQualityStatisticsCalculator {
 	private ReferenceGenome genome = null;
 	private String outputFile;
 	private int minMQ = DEF_MIN_MQ_UNIQUE_ALIGNMENT;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	// Model attributes
-	private List<Long> mismatches=new ArrayList<Long>();
-	private List<Long> alnsByLength=new ArrayList<Long>();
-	private long totalAlignments = 0;
-	private long totalBases = 0;
-	private List<Long> mismatchesReadsUniqueMapping=new ArrayList<Long>();
-	private List<Long> readsUniqueMappingByLength=new ArrayList<Long>();
-	private long readsUniqueMapping = 0;
-	private long basesUniqueMapping = 0;
+	private QualityCounts counts = new QualityCounts();
 	
 	// Get and set methods
 	public Logger getLog() {
@@ -118,20 +123,30 @@ public class BasePairQualityStatisticsCalculator {
 		this.setMinMQ((int)OptionValuesDecoder.decode(value, Integer.class));
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		this.setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	public long getTotalAlignments() {
-		return totalAlignments;
+		return counts.totalAlignments;
 	}
 
 	public long getTotalBases() {
-		return totalBases;
+		return counts.totalBases;
 	}
 
 	public long getReadsUniqueMapping() {
-		return readsUniqueMapping;
+		return counts.readsUniqueMapping;
 	}
 
 	public long getBasesUniqueMapping() {
-		return basesUniqueMapping;
+		return counts.basesUniqueMapping;
 	}
 	
 	public static void main(String[] args) throws Exception {
@@ -146,9 +161,13 @@ public class BasePairQualityStatisticsCalculator {
 	public void run() throws IOException {
 		if (genome == null) throw new IOException("The file with the reference genome is a required parameter");
 		init();
-		for(String alnsFile:inputFiles) {
-			log.info("Processing alignments file "+alnsFile);
-			processFile(alnsFile);
+		if(numThreads>1 && inputFiles.size()>1) {
+			processFiles(inputFiles);
+		} else {
+			for(String alnsFile:inputFiles) {
+				log.info("Processing alignments file "+alnsFile);
+				processFile(alnsFile);
+			}
 		}
 		if(outputFile==null) printStatistics(System.out);
 		else {
@@ -160,85 +179,126 @@ public class BasePairQualityStatisticsCalculator {
 	}
 	
 	public void init() {
-		mismatches.clear();
-		mismatchesReadsUniqueMapping.clear();
-		alnsByLength.clear();
-		readsUniqueMappingByLength.clear();
-		totalAlignments=0;
-		totalBases=0;
-		readsUniqueMapping=0;
-		basesUniqueMapping=0;
+		counts = new QualityCounts();
 	}
 	/**
-	 * Updates the counts of reads, alignments and mismatches processing the alignments within the given file
+	 * Updates the counts of reads, alignments and mismatches processing the alignments within the given file.
+	 * If more than one thread is available, batches of alignments are processed in parallel
 	 * @param filename SAM/BAM file with alignments
 	 * @throws IOException If the file can not be read
 	 */
 	public void processFile(String filename) throws IOException {
-		try (ReadAlignmentFileReader reader = new ReadAlignmentFileReader(filename,genome)) {
-			int filterFlags = ReadAlignment.FLAG_READ_UNMAPPED;
-			reader.setFilterFlags(filterFlags);
+		ExecutorService pool = null;
+		if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			processAlignments(filename, counts, pool, true);
+		} finally {
+			if(pool!=null) pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Updates the counts processing the given files concurrently. Each file is read and processed by one thread
+	 * @param filenames SAM/BAM files with alignments
+	 * @throws IOException If a file can not be read
+	 */
+	public void processFiles(List<String> filenames) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<QualityCounts>> tasks = new ArrayList<>();
+		try {
+			for(String filename:filenames) {
+				tasks.add(pool.submit(()-> {
+					log.info("Processing alignments file "+filename);
+					QualityCounts fileCounts = new QualityCounts();
+					processAlignments(filename, fileCounts, null, false);
+					log.info("Finished alignments file "+filename);
+					return fileCounts;
+				}));
+			}
+			for(int i=0;i<tasks.size();i++) {
+				counts.add(getCounts(tasks.get(i)));
+				if (progressNotifier!=null && !progressNotifier.keepRunning(i+1)) {
+					log.warning("Cancelled process");
+					return;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	private boolean processAlignments(String filename, QualityCounts fileCounts, ExecutorService pool, boolean notifyProgress) throws IOException {
+		try (ReadAlignmentFileReader reader = new ReadAlignmentFileReader(filename, genome)) {
+			reader.setLog(log);
+			reader.setLoadMode(getAlignmentsLoadMode());
+			reader.setFilterFlags(getAlignmentsFilterFlags());
 			reader.setMinMQ(minMQ);
 			Iterator<ReadAlignment> it = reader.iterator();
-			while (it.hasNext()) {
+			Deque<Future<QualityCounts>> pendingBatches = new ArrayDeque<>();
+			List<ReadAlignment> batch = new ArrayList<>(ALIGNMENTS_BATCH);
+			long processedAlignments = 0;
+			while(it.hasNext()) {
 				ReadAlignment aln = it.next();
-				//if(i%100==0)System.out.println("Number of alignments: "+i+ "last: "+aln);
-				CharSequence read = aln.getReadCharacters();
-				boolean reverse = aln.isNegativeStrand();
-				
-				boolean uniqueAln = aln.isUnique();
-				int basesInRegion = 0;
-				int readLength = read.length();
-				while(readLength>mismatches.size()) {
-					long z = 0;
-					mismatches.add(z);
-					mismatchesReadsUniqueMapping.add(z);
-					alnsByLength.add(z);
-					readsUniqueMappingByLength.add(z);
-				}
-				for (int j = 0; j < read.length(); j++) {
-					char baseRead = Character.toUpperCase(read.charAt(j));
-					if (DNASequence.isInAlphabeth(baseRead)) {
-						int pos = aln.getReferencePositionAlignedRead(j);
-						if (pos > 0) {
-							char baseRef = Character.toUpperCase(genome.getReferenceBase(aln.getSequenceName(),pos));
-							if (baseRef != 0 && DNASequence.isInAlphabeth(baseRef)) {
-								basesInRegion++;
-								if (baseRead != baseRef) {
-									int posStats = j;
-									if (reverse) posStats = read.length() - 1 - j;
-									addOne(mismatches,posStats);
-									
-									if (uniqueAln) addOne(mismatchesReadsUniqueMapping,posStats);
-								}
-							}
-						}
+				if(pool==null) fileCounts.process(aln);
+				else {
+					batch.add(aln);
+					if(batch.size()==ALIGNMENTS_BATCH) {
+						List<ReadAlignment> nextBatch = batch;
+						pendingBatches.addLast(pool.submit(()->processBatch(nextBatch)));
+						if(pendingBatches.size()>=2*numThreads) fileCounts.add(getCounts(pendingBatches.removeFirst()));
+						batch = new ArrayList<>(ALIGNMENTS_BATCH);
 					}
 				}
-				if (basesInRegion > 0) {
-					
-					totalAlignments++;
-					totalBases += basesInRegion;
-					addOne(alnsByLength,readLength-1);
-					if (uniqueAln) {
-						readsUniqueMapping++;
-						basesUniqueMapping += basesInRegion;
-						addOne(readsUniqueMappingByLength,readLength-1);
+				processedAlignments++;
+				if(processedAlignments%1000000 == 0) log.info("Processed "+processedAlignments+" alignments of file "+filename);
+				if (notifyProgress && progressNotifier!=null && processedAlignments%10000==0) {
+					int progress = (int) (processedAlignments/10000);
+					if (!progressNotifier.keepRunning(progress)) {
+						log.warning("Cancelled process");
+						return false;
 					}
 				}
-				
-				if (progressNotifier!=null && totalAlignments%10000==0) {
-					log.info("Processed "+totalAlignments+" alignments");
-					int progrees = (int) (totalAlignments/10000);
-					if (!progressNotifier.keepRunning(progrees)) break;
-				}
 			}
+			if(batch.size()>0) fileCounts.add(processBatch(batch));
+			while(!pendingBatches.isEmpty()) fileCounts.add(getCounts(pendingBatches.removeFirst()));
 		}
+		return true;
 	}
 	
-	private void addOne(List<Long> list, int i) {
-		long value = list.get(i);
-		list.set(i, value+1);
+	private QualityCounts processBatch(List<ReadAlignment> alignments) {
+		QualityCounts batchCounts = new QualityCounts();
+		for(ReadAlignment aln:alignments) batchCounts.process(aln);
+		return batchCounts;
+	}
+	
+	private QualityCounts getCounts(Future<QualityCounts> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while calculating base pair quality statistics");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException)cause;
+			throw new IOException("Error calculating base pair quality statistics", cause);
+		}
+	}
+	
+	@Override
+	public int getAlignmentsLoadMode() {
+		return ReadAlignmentFileReader.LOAD_MODE_ALIGNMENT_SEQUENCE;
+	}
+	@Override
+	public int getAlignmentsFilterFlags() {
+		return ReadAlignment.FLAG_READ_UNMAPPED;
+	}
+	@Override
+	public void processAlignment(ReadAlignment aln) {
+		counts.process(aln);
+	}
+	@Override
+	public void onAlignmentsEnd() {
+		
 	}
 
 	/**
@@ -246,15 +306,15 @@ public class BasePairQualityStatisticsCalculator {
 	 * @param out Stream to print the statistics
 	 */
 	public void printStatistics(PrintStream out) {
-		int n = mismatches.size();
-		long  [] cumulativeAlnsByLength = BasePairQualityStatisticsCalculator.makeCumulative(alnsByLength);
-		long  [] cumulativeRUM = BasePairQualityStatisticsCalculator.makeCumulative(readsUniqueMappingByLength);
+		int n = counts.maxReadLength;
+		long  [] cumulativeAlnsByLength = BasePairQualityStatisticsCalculator.makeCumulative(counts.alnsByLength, n);
+		long  [] cumulativeRUM = BasePairQualityStatisticsCalculator.makeCumulative(counts.readsUniqueMappingByLength, n);
 		for (int i = 0; i < n; i++) {
-			out.println("" + (i + 1) + "\t" + mismatches.get(i) + "\t"+ mismatchesReadsUniqueMapping.get(i)+ "\t" + cumulativeAlnsByLength[i] + "\t"+ cumulativeRUM[i]);
+			out.println("" + (i + 1) + "\t" + counts.mismatches[i] + "\t"+ counts.mismatchesReadsUniqueMapping[i]+ "\t" + cumulativeAlnsByLength[i] + "\t"+ cumulativeRUM[i]);
 		}
 		out.println();
-		out.println("Alignments\t" + totalAlignments + "\t"+ readsUniqueMapping);
-		out.println("Bases\t" + totalBases + "\t"+ basesUniqueMapping);
+		out.println("Alignments\t" + counts.totalAlignments + "\t"+ counts.readsUniqueMapping);
+		out.println("Bases\t" + counts.totalBases + "\t"+ counts.basesUniqueMapping);
 	}
 	
 	/**
@@ -264,14 +324,14 @@ public class BasePairQualityStatisticsCalculator {
 	 * 
 	 */
 	public double [] calculatePercentages(boolean uniqueAlignments) {
-		int n = mismatches.size();
+		int n = counts.maxReadLength;
 		double [] percentages = new double [n];
 		long  [] cumulative;
-		if(uniqueAlignments) cumulative = BasePairQualityStatisticsCalculator.makeCumulative(readsUniqueMappingByLength); 
-		else cumulative = BasePairQualityStatisticsCalculator.makeCumulative(alnsByLength); 
+		if(uniqueAlignments) cumulative = BasePairQualityStatisticsCalculator.makeCumulative(counts.readsUniqueMappingByLength, n); 
+		else cumulative = BasePairQualityStatisticsCalculator.makeCumulative(counts.alnsByLength, n); 
 		for (int i = 0; i < n; i++) {
-			if(uniqueAlignments) percentages[i]= 100.0*mismatchesReadsUniqueMapping.get(i);
-			else percentages[i]= 100.0*mismatches.get(i);
+			if(uniqueAlignments) percentages[i]= 100.0*counts.mismatchesReadsUniqueMapping[i];
+			else percentages[i]= 100.0*counts.mismatches[i];
 			percentages[i]/=(double)cumulative[i];
 		}
 		return percentages;
@@ -319,16 +379,114 @@ public class BasePairQualityStatisticsCalculator {
 		return answer;
 	}
 
-	private static long[] makeCumulative(List<Long> data) {
-		int n = data.size();
+	private static long[] makeCumulative(long [] data, int n) {
 		long [] answer = new long[n];
-		Arrays.fill(answer, 0);
-		for(int i=0;i<n;i++) {
-			for(int j=i;j<n;j++) {
-				answer[i]+=data.get(j);
-			}
+		for(int i=n-1;i>=0;i--) {
+			answer[i] = data[i];
+			if(i+1<n) answer[i]+=answer[i+1];
 		}
 		return answer;
 	}
+	
+	/**
+	 * Counts of alignments and mismatches per read position. Each task fills its own counts, which are added at the end
+	 */
+	private class QualityCounts {
+		private long [] mismatches = new long[0];
+		private long [] mismatchesReadsUniqueMapping = new long[0];
+		private long [] alnsByLength = new long[0];
+		private long [] readsUniqueMappingByLength = new long[0];
+		//Number of positions with counts. Given by the longest processed read
+		private int maxReadLength = 0;
+		private long totalAlignments = 0;
+		private long totalBases = 0;
+		private long readsUniqueMapping = 0;
+		private long basesUniqueMapping = 0;
+		
+		private void ensureLength(int readLength) {
+			if(readLength<=maxReadLength) return;
+			maxReadLength = readLength;
+			if(readLength<=mismatches.length) return;
+			int capacity = Math.max(readLength, 2*mismatches.length);
+			mismatches = Arrays.copyOf(mismatches, capacity);
+			mismatchesReadsUniqueMapping = Arrays.copyOf(mismatchesReadsUniqueMapping, capacity);
+			alnsByLength = Arrays.copyOf(alnsByLength, capacity);
+			readsUniqueMappingByLength = Arrays.copyOf(readsUniqueMappingByLength, capacity);
+		}
+		
+		/**
+		 * Compares the read bases of the given alignment with the reference walking once over the CIGAR
+		 * @param aln Alignment to process
+		 */
+		public void process(ReadAlignment aln) {
+			CharSequence read = aln.getReadCharacters();
+			int readLength = read.length();
+			ensureLength(readLength);
+			CharSequence reference = genome.getSequenceCharacters(aln.getSequenceName());
+			int refLength = reference!=null?reference.length():0;
+			boolean reverse = aln.isNegativeStrand();
+			boolean uniqueAln = aln.isUnique();
+			int basesInRegion = 0;
+			int readPos = 0;
+			int refPos = aln.getFirst();
+			int numItems = aln.getNumCigarItems();
+			for(int i=0;i<numItems && readPos<readLength;i++) {
+				int length = aln.getCigarItemLength(i);
+				//Operators keep the bits of the encoded CIGAR items telling which sequences are consumed
+				int operator = aln.getCigarItemOperator(i);
+				boolean cRead = ReadAlignment.consumesReadBases(operator);
+				boolean cRef = ReadAlignment.consumesReferenceBases(operator);
+				if(cRead && cRef) {
+					int end = Math.min(length, readLength-readPos);
+					for(int k=0;k<end;k++) {
+						int pos = refPos+k;
+						if(pos<1 || pos>refLength) continue;
+						int j = readPos+k;
+						char baseRead = Character.toUpperCase(read.charAt(j));
+						if (!DNASequence.isInAlphabeth(baseRead)) continue;
+						char baseRef = Character.toUpperCase(reference.charAt(pos-1));
+						if (!DNASequence.isInAlphabeth(baseRef)) continue;
+						basesInRegion++;
+						if (baseRead != baseRef) {
+							int posStats = j;
+							if (reverse) posStats = readLength - 1 - j;
+							mismatches[posStats]++;
+							if (uniqueAln) mismatchesReadsUniqueMapping[posStats]++;
+						}
+					}
+				}
+				if(cRef) refPos+=length;
+				if(cRead) readPos+=length;
+			}
+			if (basesInRegion > 0) {
+				totalAlignments++;
+				totalBases += basesInRegion;
+				alnsByLength[readLength-1]++;
+				if (uniqueAln) {
+					readsUniqueMapping++;
+					basesUniqueMapping += basesInRegion;
+					readsUniqueMappingByLength[readLength-1]++;
+				}
+			}
+		}
+		
+		/**
+		 * Adds the given counts to these counts
+		 * @param other Counts to add
+		 */
+		public void add(QualityCounts other) {
+			ensureLength(other.maxReadLength);
+			for(int i=0;i<other.maxReadLength;i++) {
+				mismatches[i]+=other.mismatches[i];
+				mismatchesReadsUniqueMapping[i]+=other.mismatchesReadsUniqueMapping[i];
+				alnsByLength[i]+=other.alnsByLength[i];
+				readsUniqueMappingByLength[i]+=other.readsUniqueMappingByLength[i];
+			}
+			totalAlignments+=other.totalAlignments;
+			totalBases+=other.totalBases;
+			readsUniqueMapping+=other.readsUniqueMapping;
+			basesUniqueMapping+=other.basesUniqueMapping;
+		}
+	}
 
 }
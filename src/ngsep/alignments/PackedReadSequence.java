@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.alignments;
+
+/**
+ * Read sequence stored with four bits per base using the base codes of the BAM format.
+ * Lower case bases are stored in upper case and characters not included in the codes are stored as N
+ * @author Jorge Duitama
+ */
+public class PackedReadSequence implements CharSequence {
+	public static final String CODES = "=ACMGRSVTWYHKDBN";
+	private static final char [] CHARS_BY_CODE = CODES.toCharArray();
+	private static final byte [] CODES_BY_CHAR = new byte [128];
+	private static final String [] SINGLE_BASES = new String [CODES.length()];
+	static {
+		byte codeN = (byte)CODES.indexOf('N');
+		for(int i=0;i<CODES_BY_CHAR.length;i++) CODES_BY_CHAR[i] = codeN;
+		for(byte i=0;i<CHARS_BY_CODE.length;i++) {
+			char c = CHARS_BY_CODE[i];
+			CODES_BY_CHAR[c] = i;
+			CODES_BY_CHAR[Character.toLowerCase(c)] = i;
+			SINGLE_BASES[i] = String.valueOf(c);
+		}
+	}
+
+	private byte [] packedBases;
+	private int length;
+
+	/**
+	 * Creates a sequence from the given bases
+	 * @param bases ASCII codes of the bases. Usually obtained from the BAM record
+	 */
+	public PackedReadSequence (byte [] bases) {
+		length = bases.length;
+		packedBases = new byte [(length+1)/2];
+		for(int i=0;i<length;i++) setCode(i, getCode((char)(bases[i] & 0xFF)));
+	}
+	/**
+	 * Creates a sequence from the given characters
+	 * @param sequence Characters of the bases
+	 */
+	public PackedReadSequence (CharSequence sequence) {
+		length = sequence.length();
+		packedBases = new byte [(length+1)/2];
+		for(int i=0;i<length;i++) setCode(i, getCode(sequence.charAt(i)));
+	}
+	private static byte getCode(char c) {
+		if(c>=CODES_BY_CHAR.length) return CODES_BY_CHAR['N'];
+		return CODES_BY_CHAR[c];
+	}
+	private void setCode(int i, byte code) {
+		int idx = i>>1;
+		if((i & 1) == 0) packedBases[idx] |= code<<4;
+		else packedBases[idx] |= code;
+	}
+	private int getCode(int i) {
+		int b = packedBases[i>>1];
+		if((i & 1) == 0) return (b>>4) & 0x0F;
+		return b & 0x0F;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+	@Override
+	public char charAt(int index) {
+		if(index<0 || index>=length) throw new StringIndexOutOfBoundsException(index);
+		return CHARS_BY_CODE[getCode(index)];
+	}
+	/**
+	 * Returns the bases between the given positions
+	 * @param start Zero based first position. Inclusive
+	 * @param end Zero based last position. Exclusive
+	 * @return String with the bases. Single bases are shared String objects
+	 */
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if(start<0 || end>length || start>end) throw new StringIndexOutOfBoundsException("Invalid range "+start+"-"+end+" for sequence of length "+length);
+		if(end-start == 1) return SINGLE_BASES[getCode(start)];
+		char [] answer = new char[end-start];
+		for(int i=start;i<end;i++) answer[i-start] = CHARS_BY_CODE[getCode(i)];
+		return new String(answer);
+	}
+	@Override
+	public String toString() {
+		return subSequence(0, length).toString();
+	}
+}
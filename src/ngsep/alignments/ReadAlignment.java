@@ -19,6 +19,7 @@
  *******************************************************************************/
 package ngsep.alignments;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -72,6 +73,12 @@ public class ReadAlignment implements GenomicRegion {
 	
 	public static final String DEF_READ_GROUP = "";
 	
+	//Single character allele calls shared by all alignments
+	private static final String [] SINGLE_CHARACTER_CALLS = new String [128];
+	static {
+		for(char c=0;c<SINGLE_CHARACTER_CALLS.length;c++) SINGLE_CHARACTER_CALLS[c] = String.valueOf(c);
+	}
+	
 	public enum Platform {
 		ILLUMINA,
 		IONTORRENT,
@@ -99,14 +106,20 @@ public class ReadAlignment implements GenomicRegion {
     private int [] alignment;
     private int readLength = 0; //Read length provided in the constructor or consistent with the alignment
     
-    //Quick retrieval data
+    //Quick retrieval data. Calculated on demand from the alignment
     private short [] alleleCallLength; //Length of the allele call at each read position. 0 for skipped bases
-    private Map<Integer,GenomicVariant> indelCalls; //Indel calls indexed by the last reference position before the event. Null for alignments without indels
-    private Map<Integer,Integer> indelStartsByReadPos; //Indel starts indexed by read position
+    //Indel calls sorted by the last reference position before the event. Null for alignments without indels
+    private int numIndelCalls = 0;
+    private int [] indelCallsFirst; //Last reference position before each event
+    private int [] indelCallsLast; //First reference position after each event
+    private int [] indelCallsLength; //Length of each event
+    private int [] indelCallsReadPos; //Read position aligned to the last reference position before each event
+    private GenomicVariant [] indelCallsVariants; //Indel calls. Objects are created when they are requested
+    private Map<Integer,GenomicVariant> indelCallsMap; //Indel calls indexed by the last reference position before the event
     private boolean alleleCallsUpdated = false;
 	
 	//Read information loaded on demand 
-	private char [] readName=null;
+	private byte [] readName=null;
 	private CharSequence readCharacters=null;
 	private byte [] qualityScores=null;
 	private int readNumber;
@@ -518,7 +531,7 @@ public class ReadAlignment implements GenomicRegion {
 	 */
 	public String getReadName() {
 		if(readName == null) return null;
-		return new String (readName);
+		return new String (readName, StandardCharsets.ISO_8859_1);
 	}
 
 	/**
@@ -527,7 +540,7 @@ public class ReadAlignment implements GenomicRegion {
 	 */
 	public void setReadName(String readName) {
 		if(readName == null) this.readName = null;
-		this.readName = readName.toCharArray();
+		else this.readName = readName.getBytes(StandardCharsets.ISO_8859_1);
 	}
 
 	/**
@@ -563,11 +576,7 @@ public class ReadAlignment implements GenomicRegion {
 	 */
 	public String getQualityScores() {
 		if(qualityScores == null) return null;
-		char [] qs = new char[qualityScores.length];
-		for(int i=0;i<qs.length;i++) {
-			qs[i] = (char)qualityScores[i];
-		}
-		return new String(qs);
+		return new String(qualityScores, StandardCharsets.ISO_8859_1);
 	}
 
 	/**
@@ -718,20 +727,17 @@ public class ReadAlignment implements GenomicRegion {
 
 	private void updateAlleleCallsInfo() {
 		if(alleleCallsUpdated) return;
+		clearIndelCalls();
 		if(alignment == null) {
 			alleleCallLength = null;
-			indelCalls = null;
-			indelStartsByReadPos = null;
 			alleleCallsUpdated = true;
 			return;
 		}
 		int currentRefPos = first;
 		int currentReadPos = 0;
 		//Reset quick retrieval info
-		alleleCallLength = new short [readLength];
-		Arrays.fill(alleleCallLength, (short)0);
-		indelCalls = null;
-		indelStartsByReadPos = null;
+		if(alleleCallLength == null || alleleCallLength.length!=readLength) alleleCallLength = new short [readLength];
+		else Arrays.fill(alleleCallLength, (short)0);
 		boolean previousIsIndel=false;
 		for(int i=0;i<alignment.length;i++) {
 			int length = getOperationLength(alignment[i]);
@@ -777,14 +783,7 @@ public class ReadAlignment implements GenomicRegion {
 									alleleCallLength[currentReadPos] = (short)2;
 									refLast += nextOpLen;
 								}
-								if(indelCalls==null) {
-									indelCalls = new TreeMap<Integer,GenomicVariant>();
-									indelStartsByReadPos = new TreeMap<Integer, Integer>();
-								}
-								GenomicVariantImpl indel = new GenomicVariantImpl(sequenceName, currentRefPos, refLast, GenomicVariant.TYPE_INDEL);
-								indel.setLength(nextOpLen);
-								indelCalls.put(currentRefPos, indel);
-								indelStartsByReadPos.put(currentReadPos, currentRefPos);
+								addIndelCall(currentRefPos, refLast, nextOpLen, currentReadPos);
 							} else {
 								//Process match or mismatch call
 								alleleCallLength[currentReadPos] = (short)1;
@@ -804,6 +803,50 @@ public class ReadAlignment implements GenomicRegion {
 		alleleCallsUpdated = true;
 		//throw new RuntimeException("Called method to update allele calls");
 	}
+	private void clearIndelCalls() {
+		numIndelCalls = 0;
+		indelCallsFirst = null;
+		indelCallsLast = null;
+		indelCallsLength = null;
+		indelCallsReadPos = null;
+		indelCallsVariants = null;
+		indelCallsMap = null;
+	}
+	private void addIndelCall(int refFirst, int refLast, int length, int readPos) {
+		if(indelCallsFirst == null) {
+			indelCallsFirst = new int [2];
+			indelCallsLast = new int [2];
+			indelCallsLength = new int [2];
+			indelCallsReadPos = new int [2];
+		} else if (numIndelCalls == indelCallsFirst.length) {
+			int capacity = 2*numIndelCalls;
+			indelCallsFirst = Arrays.copyOf(indelCallsFirst, capacity);
+			indelCallsLast = Arrays.copyOf(indelCallsLast, capacity);
+			indelCallsLength = Arrays.copyOf(indelCallsLength, capacity);
+			indelCallsReadPos = Arrays.copyOf(indelCallsReadPos, capacity);
+		}
+		indelCallsFirst[numIndelCalls] = refFirst;
+		indelCallsLast[numIndelCalls] = refLast;
+		indelCallsLength[numIndelCalls] = length;
+		indelCallsReadPos[numIndelCalls] = readPos;
+		numIndelCalls++;
+	}
+	/**
+	 * Returns the indel call with the given index creating the object if needed
+	 * PRE: Allele calls information is updated
+	 * @param i Index of the indel call
+	 * @return GenomicVariant Indel call
+	 */
+	private GenomicVariant getIndelCallByIndex(int i) {
+		if(indelCallsVariants==null) indelCallsVariants = new GenomicVariant[numIndelCalls];
+		GenomicVariant answer = indelCallsVariants[i];
+		if(answer==null) {
+			GenomicVariantImpl indel = new GenomicVariantImpl(sequenceName, indelCallsFirst[i], indelCallsLast[i], GenomicVariant.TYPE_INDEL);
+			indel.setLength(indelCallsLength[i]);
+			indelCallsVariants[i] = answer = indel;
+		}
+		return answer;
+	}
 
 	/**
 	 * Returns the read position that corresponds to the given reference coordinate
@@ -882,7 +925,7 @@ public class ReadAlignment implements GenomicRegion {
 
 	private void failIfReadUnmappedOrInconsistentAlignment() {
 		if(this.isReadUnmapped()) throw new RuntimeException("Operation not allowed on an unmapped read");
-		if(alignment==null) throw new RuntimeException("Inconsistent null alignment for an unmapped read. Read name: "+new String(readName));
+		if(alignment==null) throw new RuntimeException("Inconsistent null alignment for an unmapped read. Read name: "+getReadName());
 	}
 	/**
 	 * Returns the reference position that corresponds to the given read position
@@ -967,9 +1010,42 @@ public class ReadAlignment implements GenomicRegion {
 		//if(readPos>=alleleCallLength.length) System.err.println("Alignment: "+alignment[0]+" "+alignment[1]+" "+alignment[2]);
 		int length = alleleCallLength[readPos];
 		if(length == 0) return null;
+		if(length == 1) return getSingleCharacterCall(readCharacters.charAt(readPos));
 		//if(referencePos==-1) System.out.println("ReadAlignment. Read id: "+getReadName()+". Sequence: "+readCharacters.toString()+". readpos: "+readPos+". end: "+(readPos+length)+" subseq: "+readCharacters.subSequence(readPos, readPos+length)+". length subseq: "+readCharacters.subSequence(readPos, readPos+length).length());
 		return readCharacters.subSequence(readPos, readPos+length);
 	}
+	/**
+	 * Provides the read position of the allele call at the given reference position if the call is a single base pair.
+	 * Allows to count base calls at SNV sites without building allele call objects
+	 * @param referencePos Position to consider in the reference sequence to which this read aligned
+	 * @return int 0-based read position of the call. -1 if the read does not have a call of exactly one base pair at the given position
+	 */
+	public int getSingleBaseCallReadPosition (int referencePos) {
+		if(readCharacters ==null) return -1;
+		int readPos = getAlignedReadPosition(referencePos);
+		if(readPos<0) return -1;
+		updateAlleleCallsInfo();
+		if(alleleCallLength[readPos]!=1) return -1;
+		return readPos;
+	}
+	/**
+	 * Returns the base quality score in phred+33 format at the given read position
+	 * @param readPos 0-based position in the read
+	 * @return char base quality score
+	 */
+	public char getBaseQualityScoreReadPosition (int readPos) {
+		if(qualityScores == null) return '+';
+		return (char) qualityScores[readPos];
+	}
+	/**
+	 * Returns a shared String object for allele calls of a single character
+	 * @param c Character of the call
+	 * @return String with the given character
+	 */
+	private static String getSingleCharacterCall(char c) {
+		if(c<SINGLE_CHARACTER_CALLS.length) return SINGLE_CHARACTER_CALLS[c];
+		return String.valueOf(c);
+	}
 	/**
 	 * Provides the allele call (if any) at the given reference coordinates taking into account possible
 	 * base pairs to ignore
@@ -1009,7 +1085,7 @@ public class ReadAlignment implements GenomicRegion {
 		if(readFirst<0 || readLast<0  || readLast < readFirst) return null;
 		if(withinIgnoreRegions(readFirst, readLast)) return null;
 		if(qualityScores == null) return RawRead.generateFixedQSString('+', readLast-readFirst+1);
-		return getQualityScores().substring(readFirst,readLast+1);
+		return new String(qualityScores, readFirst, readLast-readFirst+1, StandardCharsets.ISO_8859_1);
 	}
 	private boolean withinIgnoreRegions (int readFirst, int readLast) {
 		return readFirst<basesToIgnoreStart || readLength - readLast <= basesToIgnoreEnd;
@@ -1022,7 +1098,12 @@ public class ReadAlignment implements GenomicRegion {
 	public Map<Integer,GenomicVariant> getIndelCalls () {
 		failIfReadUnmappedOrInconsistentAlignment();
 		updateAlleleCallsInfo();
-		return indelCalls;
+		if(numIndelCalls==0) return null;
+		if(indelCallsMap==null) {
+			indelCallsMap = new TreeMap<Integer, GenomicVariant>();
+			for(int i=0;i<numIndelCalls;i++) indelCallsMap.put(indelCallsFirst[i], getIndelCallByIndex(i));
+		}
+		return indelCallsMap;
 	}
 	/**
 	 * Returns start sites in this alignment for indel events indexed and sorted by aligned read position
@@ -1032,13 +1113,9 @@ public class ReadAlignment implements GenomicRegion {
 	public Map<Integer,GenomicVariant> getIndelCallsByAlignedReadPos () {
 		failIfReadUnmappedOrInconsistentAlignment();
 		updateAlleleCallsInfo();
-		 
-		if(indelStartsByReadPos==null) return null;
+		if(numIndelCalls==0) return null;
 		Map<Integer,GenomicVariant> answer = new TreeMap<Integer, GenomicVariant>();
-		for(Map.Entry<Integer, Integer> entry:indelStartsByReadPos.entrySet()) {
-			GenomicVariant indelCall = indelCalls.get(entry.getValue());
-			if(indelCall!=null) answer.put(entry.getKey(), indelCall);
-		}
+		for(int i=0;i<numIndelCalls;i++) answer.put(indelCallsReadPos[i], getIndelCallByIndex(i));
 		return answer;
 	}
 	/**
@@ -1048,8 +1125,7 @@ public class ReadAlignment implements GenomicRegion {
 	public int getCountIndelCalls () {
 		failIfReadUnmappedOrInconsistentAlignment();
 		updateAlleleCallsInfo();
-		if (indelCalls==null) return 0;
-		return indelCalls.size();
+		return numIndelCalls;
 	}
 	/**
 	 * Calculates the total number of base pairs in indel events
@@ -1058,10 +1134,9 @@ public class ReadAlignment implements GenomicRegion {
 	public int getTotalLengthIndelCalls () {
 		failIfReadUnmappedOrInconsistentAlignment();
 		updateAlleleCallsInfo();
-		if (indelCalls==null) return 0;
 		int total = 0;
-		for(GenomicVariant indel:indelCalls.values()) {
-			total+=indel.length();
+		for(int i=0;i<numIndelCalls;i++) {
+			total+=indelCallsLength[i];
 		}
 		return total;
 	}
@@ -1073,8 +1148,10 @@ public class ReadAlignment implements GenomicRegion {
 	public GenomicVariant getIndelCall(int referencePos) {
 		failIfReadUnmappedOrInconsistentAlignment();
 		updateAlleleCallsInfo();
-		if(indelCalls == null) return null;
-		return indelCalls.get(referencePos);
+		if(numIndelCalls == 0) return null;
+		int i = Arrays.binarySearch(indelCallsFirst, 0, numIndelCalls, referencePos);
+		if(i<0) return null;
+		return getIndelCallByIndex(i);
 	}
 	
 	/**
@@ -1525,7 +1602,7 @@ public class ReadAlignment implements GenomicRegion {
 	
 	public String toString () {
 		String answer = sequenceName+" "+first+" "+last+" "+flags+" "+alignmentQuality+" "+getCigarString();
-		if(readName!=null) answer = new String(readName)+" "+answer;
+		if(readName!=null) answer = getReadName()+" "+answer;
 		return answer;
 	}
 }
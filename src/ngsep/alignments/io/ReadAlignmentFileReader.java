@@ -41,6 +41,7 @@ import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SAMTag;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
+import ngsep.alignments.PackedReadSequence;
 import ngsep.alignments.ReadAlignment;
 import ngsep.genome.ReferenceGenome;
 import ngsep.sequences.QualifiedSequence;
@@ -241,7 +242,10 @@ public class ReadAlignmentFileReader implements Iterable<ReadAlignment>,Closeabl
 		Integer mismatches = alnRecord.getIntegerAttribute(SAMTag.NM.toString());
 		if (mismatches!=null) answer.setNumMismatches((short) Math.min(mismatches,32000));
 		if (loadMode >= LOAD_MODE_ALIGNMENT_SEQUENCE) {
-			answer.setReadCharacters(alnRecord.getReadString());
+			byte [] bases = alnRecord.getReadBases();
+			//Bases are packed to reduce the memory used by each alignment
+			if(bases.length>0) answer.setReadCharacters(new PackedReadSequence(bases));
+			else answer.setReadCharacters(alnRecord.getReadString());
 			String qs = alnRecord.getBaseQualityString();
 			if(qs!=null && !SAMRecord.NULL_QUALS_STRING.equals(qs)) {
 				answer.setQualityScores(qs);
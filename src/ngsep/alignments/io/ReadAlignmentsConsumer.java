@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.alignments.io;
+
+import java.io.IOException;
+
+import ngsep.alignments.ReadAlignment;
+
+/**
+ * Analysis that can be fed by a ReadAlignmentsScanner. Alignments given to a consumer
+ * can be shared with other consumers running in different threads. Hence, they must not be modified
+ * @author Jorge Duitama
+ */
+public interface ReadAlignmentsConsumer {
+	/**
+	 * @return int Load mode of ReadAlignmentFileReader with the information required by this consumer
+	 */
+	public int getAlignmentsLoadMode();
+	/**
+	 * @return int Flags of the alignments that should not be passed to this consumer
+	 */
+	public int getAlignmentsFilterFlags();
+	/**
+	 * Processes the next alignment. Alignments are received in the same order of the file
+	 * @param aln Alignment to process
+	 */
+	public void processAlignment(ReadAlignment aln);
+	/**
+	 * Called once after the last alignment of the file was processed
+	 * @throws IOException If the information collected from the alignments is not valid
+	 */
+	public void onAlignmentsEnd() throws IOException;
+}
@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.alignments.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+
+import ngsep.alignments.ReadAlignment;
+import ngsep.genome.ReferenceGenome;
+import ngsep.main.ProgressNotifier;
+
+/**
+ * Reads an alignments file once and passes the alignments to several consumers.
+ * Each consumer runs in its own thread and receives batches of alignments through a bounded queue
+ * @author Jorge Duitama
+ */
+public class ReadAlignmentsScanner {
+
+	public static final int DEF_BATCH_SIZE = 10000;
+	public static final int DEF_QUEUE_CAPACITY = 8;
+
+	private static final List<ReadAlignment> END_OF_ALIGNMENTS = Collections.emptyList();
+
+	private Logger log = Logger.getLogger(ReadAlignmentsScanner.class.getName());
+	private ProgressNotifier progressNotifier = null;
+
+	//Required to process CRAM files
+	private ReferenceGenome genome;
+	private int minMQ = ReadAlignment.DEF_MIN_MQ_UNIQUE_ALIGNMENT;
+	private int batchSize = DEF_BATCH_SIZE;
+	private int queueCapacity = DEF_QUEUE_CAPACITY;
+	private List<ReadAlignmentsConsumer> consumers = new ArrayList<>();
+	private long processedAlignments = 0;
+
+	public ReadAlignmentsScanner(ReferenceGenome genome) {
+		this.genome = genome;
+	}
+
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+	public ProgressNotifier getProgressNotifier() {
+		return progressNotifier;
+	}
+	public void setProgressNotifier(ProgressNotifier progressNotifier) {
+		this.progressNotifier = progressNotifier;
+	}
+	public int getMinMQ() {
+		return minMQ;
+	}
+	/**
+	 * @param minMQ Minimum mapping quality to consider an alignment unique. Shared by all consumers
+	 */
+	public void setMinMQ(int minMQ) {
+		this.minMQ = minMQ;
+	}
+	public int getBatchSize() {
+		return batchSize;
+	}
+	public void setBatchSize(int batchSize) {
+		if(batchSize<1) throw new IllegalArgumentException("Batch size must be positive. Given: "+batchSize);
+		this.batchSize = batchSize;
+	}
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+	public void setQueueCapacity(int queueCapacity) {
+		if(queueCapacity<1) throw new IllegalArgumentException("Queue capacity must be positive. Given: "+queueCapacity);
+		this.queueCapacity = queueCapacity;
+	}
+	public long getProcessedAlignments() {
+		return processedAlignments;
+	}
+	public void addConsumer(ReadAlignmentsConsumer consumer) {
+		consumers.add(consumer);
+	}
+	public List<ReadAlignmentsConsumer> getConsumers() {
+		return Collections.unmodifiableList(consumers);
+	}
+
+	/**
+	 * Reads the given file and passes the alignments to the registered consumers.
+	 * If only one consumer is registered, alignments are processed in the calling thread
+	 * @param filename SAM/BAM/CRAM file with alignments
+	 * @return boolean true if the whole file was processed, false if the process was cancelled
+	 * @throws IOException If the file can not be read or if a consumer fails
+	 */
+	public boolean scan(String filename) throws IOException {
+		if(consumers.size()==0) return true;
+		processedAlignments = 0;
+		int loadMode = 0;
+		//Only alignments filtered by every consumer are filtered by the reader
+		int filterFlags = -1;
+		for(ReadAlignmentsConsumer consumer:consumers) {
+			loadMode = mergeLoadModes(loadMode, consumer.getAlignmentsLoadMode());
+			filterFlags &= consumer.getAlignmentsFilterFlags();
+		}
+		try (ReadAlignmentFileReader reader = new ReadAlignmentFileReader(filename, genome)) {
+			reader.setLog(log);
+			reader.setLoadMode(loadMode);
+			reader.setFilterFlags(filterFlags);
+			reader.setMinMQ(minMQ);
+			Iterator<ReadAlignment> it = reader.iterator();
+			if(consumers.size()==1) return scanSingleConsumer(it, consumers.get(0));
+			return scanMultipleConsumers(it);
+		}
+	}
+
+	private static int mergeLoadModes(int mode1, int mode2) {
+		int min = Math.min(mode1, mode2);
+		int max = Math.max(mode1, mode2);
+		//Read names and read sequences are only loaded together in the full mode
+		if(min == ReadAlignmentFileReader.LOAD_MODE_ALIGNMENT_NAME && max == ReadAlignmentFileReader.LOAD_MODE_ALIGNMENT_SEQUENCE) return ReadAlignmentFileReader.LOAD_MODE_FULL;
+		return max;
+	}
+
+	private boolean scanSingleConsumer(Iterator<ReadAlignment> it, ReadAlignmentsConsumer consumer) throws IOException {
+		int filterFlags = consumer.getAlignmentsFilterFlags();
+		while(it.hasNext()) {
+			ReadAlignment aln = it.next();
+			if((aln.getFlags() & filterFlags)==0) consumer.processAlignment(aln);
+			if(!updateProgress()) return false;
+		}
+		consumer.onAlignmentsEnd();
+		return true;
+	}
+
+	private boolean scanMultipleConsumers(Iterator<ReadAlignment> it) throws IOException {
+		List<ConsumerThread> threads = new ArrayList<>();
+		for(ReadAlignmentsConsumer consumer:consumers) {
+			ConsumerThread thread = new ConsumerThread(consumer, queueCapacity);
+			threads.add(thread);
+			thread.start();
+		}
+		boolean completed = false;
+		try {
+			boolean cancelled = false;
+			List<ReadAlignment> batch = new ArrayList<>(batchSize);
+			while(it.hasNext()) {
+				batch.add(it.next());
+				if(batch.size()==batchSize) {
+					dispatch(threads, batch);
+					batch = new ArrayList<>(batchSize);
+				}
+				if(!updateProgress() || hasFailedConsumer(threads)) {
+					cancelled = true;
+					break;
+				}
+			}
+			if(!cancelled) {
+				if(batch.size()>0) dispatch(threads, batch);
+				completed = true;
+			}
+		} finally {
+			//Consumers are finished even if reading fails, to release the threads
+			for(ConsumerThread thread:threads) thread.finish(completed);
+			for(ConsumerThread thread:threads) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for alignment consumers",e);
+				}
+			}
+		}
+		for(ConsumerThread thread:threads) {
+			Throwable error = thread.getError();
+			if(error instanceof IOException) throw (IOException)error;
+			if(error!=null) throw new IOException("Error processing alignments in "+thread.getConsumer().getClass().getSimpleName(),error);
+		}
+		return completed;
+	}
+
+	private boolean updateProgress() {
+		processedAlignments++;
+		if(processedAlignments%1000000 == 0) log.info("Processed "+processedAlignments+" alignments");
+		if (progressNotifier!=null && processedAlignments%10000==0) {
+			int progress = (int) (processedAlignments/10000);
+			if (!progressNotifier.keepRunning(progress)) {
+				log.warning("Cancelled process");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void dispatch(List<ConsumerThread> threads, List<ReadAlignment> batch) throws IOException {
+		for(ConsumerThread thread:threads) thread.put(batch);
+	}
+
+	private boolean hasFailedConsumer(List<ConsumerThread> threads) {
+		for(ConsumerThread thread:threads) {
+			if(thread.getError()!=null) return true;
+		}
+		return false;
+	}
+
+	private static class ConsumerThread extends Thread {
+		private ReadAlignmentsConsumer consumer;
+		private BlockingQueue<List<ReadAlignment>> queue;
+		private int filterFlags;
+		private volatile boolean completed = false;
+		private volatile Throwable error = null;
+
+		public ConsumerThread(ReadAlignmentsConsumer consumer, int queueCapacity) {
+			super("ReadAlignmentsConsumer-"+consumer.getClass().getSimpleName());
+			this.consumer = consumer;
+			this.queue = new ArrayBlockingQueue<>(queueCapacity);
+			this.filterFlags = consumer.getAlignmentsFilterFlags();
+			setDaemon(true);
+		}
+		public ReadAlignmentsConsumer getConsumer() {
+			return consumer;
+		}
+		public Throwable getError() {
+			return error;
+		}
+		public void put(List<ReadAlignment> batch) throws IOException {
+			//Failed consumers discard batches
+			if(error!=null) return;
+			try {
+				queue.put(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while passing alignments to "+consumer.getClass().getSimpleName(),e);
+			}
+		}
+		/**
+		 * Tells the thread that there are no more alignments
+		 * @param completed tells if the whole file was read
+		 * @throws IOException If the thread is interrupted
+		 */
+		public void finish(boolean completed) throws IOException {
+			this.completed = completed;
+			try {
+				queue.put(END_OF_ALIGNMENTS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while finishing "+consumer.getClass().getSimpleName(),e);
+			}
+		}
+		@Override
+		public void run() {
+			boolean endReceived = false;
+			try {
+				while(true) {
+					List<ReadAlignment> batch = queue.take();
+					if(batch == END_OF_ALIGNMENTS) {
+						endReceived = true;
+						break;
+					}
+					for(ReadAlignment aln:batch) {
+						if((aln.getFlags() & filterFlags)==0) consumer.processAlignment(aln);
+					}
+				}
+				if(completed) consumer.onAlignmentsEnd();
+			} catch (InterruptedException e) {
+				error = e;
+			} catch (Throwable e) {
+				error = e;
+				//Keeps taking batches until the end mark arrives, so the reader is never blocked
+				if(!endReceived) drain();
+			}
+		}
+		private void drain() {
+			try {
+				while(queue.take()!=END_OF_ALIGNMENTS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -18,21 +18,28 @@
  *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
  *******************************************************************************/
 package ngsep.benchmark;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.genome.GenomicRegion;
-import ngsep.genome.GenomicRegionImpl;
 import ngsep.genome.ReferenceGenome;
 import ngsep.genome.io.SimpleGenomicRegionFileHandler;
 import ngsep.main.CommandsDescriptor;
@@ -61,6 +68,7 @@ public class VCFGoldStandardComparator {
 	// Constants for default values
 	public static final int DEF_MIN_CLUSTER_DISTANCE = 5;
 	public static final int DEF_MAX_CLUSTER_DISTANCE = 30;
+	public static final int DEF_NUM_THREADS = 1;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(VCFGoldStandardComparator.class.getName());
@@ -71,9 +79,10 @@ public class VCFGoldStandardComparator {
 	private String gsFile = null;
 	private ReferenceGenome genome;
 	private String outputFile = null;
-	private Map<String, List<GenomicRegion>> complexRegions;
-	private Map<String, List<GenomicRegion>> confidenceRegions;
+	private Map<String, SequenceIntervalsIndex> complexRegions;
+	private Map<String, SequenceIntervalsIndex> confidenceRegions;
 	private boolean genomicVCF = false;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	// Model attributes
 	private int mode = 0;
@@ -83,6 +92,7 @@ public class VCFGoldStandardComparator {
 	private Distribution distClusterSizeGS = new Distribution(0, 10, 1);
 	private Distribution distClusterTestHet = new Distribution(0, 10, 1);
 	private Distribution distClusterSpan = new Distribution(0, 1000, 100);
+	private int countProcessedClusters = 0;
 	VCFFileWriter writer = new VCFFileWriter();
 	
 	// Get and set methods
@@ -145,28 +155,48 @@ public class VCFGoldStandardComparator {
 		this.setGenomicVCF(genomicVCF.booleanValue());
 	}
 	
-	public List<GenomicRegion> getComplexRegions(String sequenceName) {
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		this.setNumThreads((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public SequenceIntervalsIndex getComplexRegions(String sequenceName) {
 		return complexRegions.get(sequenceName);
 	}
 	public void setComplexRegions(String complexRegionsFile) throws IOException {
-		SimpleGenomicRegionFileHandler handler = new SimpleGenomicRegionFileHandler();
-		this.complexRegions = handler.loadRegionsAsMap(complexRegionsFile);
+		this.complexRegions = loadRegionsIndex(complexRegionsFile);
 	}
 
-	public List<GenomicRegion> getConfidenceRegions(String sequenceName) {
+	public SequenceIntervalsIndex getConfidenceRegions(String sequenceName) {
 		return confidenceRegions.get(sequenceName);
 	}
 	public void setConfidenceRegions(String regionsFile) throws IOException {
-		SimpleGenomicRegionFileHandler handler = new SimpleGenomicRegionFileHandler();
-		this.confidenceRegions = handler.loadRegionsAsMap(regionsFile);
+		this.confidenceRegions = loadRegionsIndex(regionsFile);
 		confidenceRegionsLength = 0;
-		for(List<GenomicRegion> regions: confidenceRegions.values()) {
-			for(GenomicRegion g:regions) {
-				confidenceRegionsLength+=g.length();
-			}
+		for(SequenceIntervalsIndex regions: confidenceRegions.values()) {
+			confidenceRegionsLength+=regions.getTotalLength();
 		}
 	}
 	
+	private Map<String, SequenceIntervalsIndex> loadRegionsIndex(String regionsFile) throws IOException {
+		SimpleGenomicRegionFileHandler handler = new SimpleGenomicRegionFileHandler();
+		Map<String, List<GenomicRegion>> regionsMap = handler.loadRegionsAsMap(regionsFile);
+		Map<String, SequenceIntervalsIndex> answer = new HashMap<>();
+		for(Map.Entry<String, List<GenomicRegion>> entry:regionsMap.entrySet()) {
+			List<GenomicRegion> regions = entry.getValue();
+			SequenceIntervalsIndex index = new SequenceIntervalsIndex(regions.size());
+			for(GenomicRegion r:regions) index.add(r.getFirst(), r.getLast());
+			index.prepare();
+			answer.put(entry.getKey(), index);
+		}
+		return answer;
+	}
+	
 	public static void main(String[] args) throws Exception {
 		VCFGoldStandardComparator instance = new VCFGoldStandardComparator();
 		int i = CommandsDescriptor.getInstance().loadOptions(instance, args);
@@ -190,6 +220,13 @@ public class VCFGoldStandardComparator {
 		}
 	}
 
+	/**
+	 * Compares the given files. Calls of each sequence are loaded while the files are read and each sequence is compared
+	 * in a separate task. Counts of each sequence are added to the total counts following the order of the sequences
+	 * @param vcfGS Gold standard VCF file
+	 * @param vcfTest VCF file with test calls
+	 * @throws IOException If the files can not be read
+	 */
 	public void compareFiles(String vcfGS, String vcfTest) throws IOException {
 		log.info("Comparing gold standard variant file "+vcfGS+ " with test file "+vcfTest);
 		QualifiedSequenceList sequenceNames = genome.getSequencesMetadata();
@@ -205,109 +242,94 @@ public class VCFGoldStandardComparator {
 			countNonGSAsFP = true;
 		}
 		initCounts(countNonGSAsFP);
+		countProcessedClusters = 0;
+		ExecutorService pool = null;
+		if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<SequenceComparison>> pendingSequences = new ArrayDeque<>();
 		try (VCFFileReader inGS = new VCFFileReader(vcfGS);
 			 VCFFileReader inTest = new VCFFileReader(vcfTest)) {
 			inGS.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
 			inGS.setSequences(sequenceNames);
 			inTest.setSequences(sequenceNames);
-			LinkedList<GenomicRegion> confidenceRegionsSeq=new LinkedList<>();
-			List<GenomicRegion> complexRegionsSeq=null;
-			int pIdx = 0;
-			List<CalledGenomicVariant> gsCalls = new ArrayList<>();
-			
-			int sequenceIdx = -1;
-			int seqLen = 0;
-			int clusterFirst = 0;
-			int clusterLast = 0;
-			byte clusterType = GenomicVariant.TYPE_UNDETERMINED;
-			
-			
+			//The global option -t sets the threads of the readers if this command runs with one thread
+			if(numThreads>1) {
+				inGS.setNumThreads(numThreads);
+				inTest.setNumThreads(numThreads);
+			}
 			Iterator<VCFRecord> itGS = inGS.iterator();
 			VCFRecord recordGS = loadNextRecord(itGS, false);
-			//System.out.println("First GS record: "+recordGS.getFirst());
-			
 			Iterator<VCFRecord> itTest = inTest.iterator();
-			LinkedList<CalledGenomicVariant> testCallsSequence = new LinkedList<>();
-			VCFRecord firstRecordNextSequence = loadNextRecord(itTest, false);
-			
-			int countProcessedClusters = 0;
+			VCFRecord recordTest = loadNextRecord(itTest, false);
+			int sequenceIdx = -1;
 			while(recordGS!=null) {
 				int nextSeqIdxGS = sequenceNames.indexOf(recordGS.getSequenceName());
-				if(nextSeqIdxGS>sequenceIdx) {
-					if(sequenceIdx>=0) processClusterCalls (gsCalls, clusterFirst, clusterLast, clusterType, testCallsSequence, confidenceRegionsSeq, seqLen);
-					countProcessedClusters++;
-					sequenceIdx = nextSeqIdxGS;
-					QualifiedSequence seqObj = sequenceNames.get(sequenceIdx); 
-					String sequenceName = seqObj.getName();
-					seqLen = seqObj.getLength();
-					log.info("Starting sequence "+sequenceName);
-					
-					testCallsSequence.clear();
-					if(firstRecordNextSequence!=null && firstRecordNextSequence.getSequenceName().equals(sequenceName)) {
-						CalledGenomicVariant callTest = firstRecordNextSequence.getCalls().get(0);
-						testCallsSequence.add(callTest);
-						firstRecordNextSequence = loadTestCallsSequence(itTest, sequenceName, testCallsSequence);
-					}
-					
-					if(confidenceRegions!=null) {
-						confidenceRegionsSeq.clear(); 
-						List<GenomicRegion> crsl = confidenceRegions.get(sequenceName);
-						if(crsl!=null) confidenceRegionsSeq.addAll(crsl);
-					}
-					if(complexRegions!=null) complexRegionsSeq = complexRegions.get(sequenceName);
-					pIdx = 0;
-					gsCalls.clear();
-					clusterFirst=clusterLast=0;
-					clusterType = GenomicVariant.TYPE_UNDETERMINED;
-				} else if (nextSeqIdxGS<sequenceIdx) {
-					log.severe("Disorder detected in gold standard after sequence name: "+sequenceNames.get(sequenceIdx).getName());
+				if(nextSeqIdxGS<=sequenceIdx) {
+					log.severe("Disorder detected in gold standard at sequence name: "+recordGS.getSequenceName());
 					break;
 				}
-				if(complexRegionsSeq!=null) {
-					for(;pIdx<complexRegionsSeq.size();pIdx++) {
-						GenomicRegion region = complexRegionsSeq.get(pIdx);
-						if(clusterLast+DEF_MIN_CLUSTER_DISTANCE<=region.getFirst()) break;
-						if(clusterFirst<region.getLast()+DEF_MIN_CLUSTER_DISTANCE) {
-							clusterType = GenomicVariant.TYPE_STR;
-							clusterLast = Math.max(clusterLast, region.getLast());
-							clusterFirst = Math.min(clusterFirst, region.getFirst());
-						}
-					}
+				sequenceIdx = nextSeqIdxGS;
+				QualifiedSequence seqObj = sequenceNames.get(sequenceIdx);
+				String sequenceName = seqObj.getName();
+				log.info("Starting sequence "+sequenceName);
+				List<CalledGenomicVariant> gsCallsSequence = new ArrayList<>();
+				while(recordGS!=null && recordGS.getSequenceName().equals(sequenceName)) {
+					gsCallsSequence.add(recordGS.getCalls().get(0));
+					recordGS = loadNextRecord(itGS, false);
 				}
-				int nextClusterFirst = clusterLast+Math.max(DEF_MIN_CLUSTER_DISTANCE, clusterLast-clusterFirst+1);
-				nextClusterFirst = Math.min(nextClusterFirst, clusterLast+DEF_MAX_CLUSTER_DISTANCE);
-				
-				boolean gsClose = nextClusterFirst>recordGS.getFirst();
-				if (!gsClose) {
-					processClusterCalls (gsCalls, clusterFirst, clusterLast, clusterType, testCallsSequence, confidenceRegionsSeq, seqLen);
-					countProcessedClusters++;
-					gsCalls.clear();
-					clusterFirst = clusterLast = 0;
-					clusterType = GenomicVariant.TYPE_UNDETERMINED;
+				//Test calls in sequences without gold standard calls are not compared
+				while(recordTest!=null && sequenceNames.indexOf(recordTest.getSequenceName())<sequenceIdx) {
+					recordTest = loadNextRecord(itTest, false);
 				}
-				CalledGenomicVariant callGS = recordGS.getCalls().get(0);
-				gsCalls.add(callGS);
-				if(clusterType==GenomicVariant.TYPE_UNDETERMINED) clusterType = loadType(callGS);
-				//Default type for cluster calls
-				if(gsCalls.size()>1) clusterType= GenomicVariant.TYPE_STR;
-				
-				if(clusterFirst == 0 ) clusterFirst = recordGS.getFirst();
-				else clusterFirst = Math.min(clusterFirst, recordGS.getFirst());
-				clusterLast = Math.max(clusterLast, recordGS.getLast());
-				recordGS = loadNextRecord(itGS, false);
-				if(countProcessedClusters%10000==0) log.info("Processed "+countProcessedClusters+" clusters. Current cluster coordinates "+sequenceNames.get(sequenceIdx).getName()+": "+clusterFirst+"-"+clusterLast);
-				if (progressNotifier!=null && countProcessedClusters%1000==0) {
-					int progress = countProcessedClusters/1000;
-					if (!progressNotifier.keepRunning(progress)) {
-						log.info("Process canceled");
-						return;
-					}
+				List<CalledGenomicVariant> testCallsSequence = new ArrayList<>();
+				while(recordTest!=null && recordTest.getSequenceName().equals(sequenceName)) {
+					testCallsSequence.add(recordTest.getCalls().get(0));
+					recordTest = loadNextRecord(itTest, false);
+				}
+				SequenceComparison comparison = new SequenceComparison(seqObj, gsCallsSequence, testCallsSequence);
+				if(pool==null) {
+					addSequenceComparison(comparison.compare());
+				} else {
+					pendingSequences.addLast(pool.submit(()->comparison.compare()));
+					if(pendingSequences.size()>=2*numThreads) addSequenceComparison(nextSequenceComparison(pendingSequences));
+				}
+				if (progressNotifier!=null && !progressNotifier.keepRunning(countProcessedClusters/1000)) {
+					log.info("Process canceled");
+					return;
 				}
 			}
-			processClusterCalls (gsCalls, clusterFirst, sequenceNames.get(sequenceIdx).getLength(), clusterType, testCallsSequence, confidenceRegionsSeq, seqLen );
+			while(!pendingSequences.isEmpty()) addSequenceComparison(nextSequenceComparison(pendingSequences));
+		} finally {
+			if(pool!=null) pool.shutdownNow();
 		}
 	}
 	
+	private SequenceComparison nextSequenceComparison(Deque<Future<SequenceComparison>> pendingSequences) throws IOException {
+		Future<SequenceComparison> next = pendingSequences.removeFirst();
+		try {
+			return next.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while comparing sequences");
+		} catch (ExecutionException e) {
+			throw new IOException("Error comparing sequences", e.getCause());
+		}
+	}
+	
+	private void addSequenceComparison(SequenceComparison comparison) {
+		for(Map.Entry<Byte, GoldStandardComparisonCounts> entry:countsPerType.entrySet()) {
+			entry.getValue().add(comparison.countsPerType.get(entry.getKey()));
+		}
+		int [] data = comparison.clustersData;
+		for(int i=0;i<3*comparison.numClusters;i+=3) {
+			distClusterSizeGS.processDatapoint(data[i]);
+			distClusterTestHet.processDatapoint(data[i+1]);
+			distClusterSpan.processDatapoint(data[i+2]);
+		}
+		countProcessedClusters+=comparison.numProcessedClusters;
+		if(mode>0) System.out.print(comparison.report.toString());
+		log.info("Compared sequence "+comparison.sequenceName+". Processed clusters: "+comparison.numProcessedClusters+". Total: "+countProcessedClusters);
+	}
+	
 	private void loadConfidenceRegionsFromVCF(String filename, QualifiedSequenceList sequenceNames) throws IOException {
 		confidenceRegions = new HashMap<>();
 		confidenceRegionsLength = 0;
@@ -315,52 +337,44 @@ public class VCFGoldStandardComparator {
 			in.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
 			in.setSequences(sequenceNames);
 			String sequenceName = null;
-			List<GenomicRegion> regionsSeq = null;
-			GenomicRegionImpl r = null;
+			SequenceIntervalsIndex regionsSeq = null;
+			int first = 0;
+			int last = 0;
 			Iterator<VCFRecord> it = in.iterator();
 			while(it.hasNext()) {
 				VCFRecord record = it.next();
 				CalledGenomicVariant call = record.getCalls().get(0); 
 				if(call.isUndecided()) continue;
 				if(sequenceName==null || !sequenceName.equals(call.getSequenceName())) {
-					if(r!=null) {
-						regionsSeq.add(r);
-						confidenceRegionsLength+=r.length();
+					if(regionsSeq!=null) {
+						regionsSeq.add(first, last);
+						regionsSeq.prepare();
+						confidenceRegionsLength+=regionsSeq.getTotalLength();
 					}
 					sequenceName = call.getSequenceName();
-					regionsSeq =  new ArrayList<>();
+					regionsSeq = new SequenceIntervalsIndex(10);
 					confidenceRegions.put(sequenceName, regionsSeq);
-					r = new GenomicRegionImpl(sequenceName, record.getFirst(), record.getLast());
-				} else if( r.getLast()<record.getFirst()-1) {
-					regionsSeq.add(r);
-					confidenceRegionsLength+=r.length();
-					r = new GenomicRegionImpl(sequenceName, record.getFirst(), record.getLast());
+					first = record.getFirst();
+					last = record.getLast();
+				} else if(last<record.getFirst()-1) {
+					regionsSeq.add(first, last);
+					first = record.getFirst();
+					last = record.getLast();
 				} else {
-					r.setLast(Math.max(r.getLast(), record.getLast()));
+					last = Math.max(last, record.getLast());
 				}
 			}
-			if(r!=null) {
-				regionsSeq.add(r);
-				confidenceRegionsLength+=r.length();
+			if(regionsSeq!=null) {
+				regionsSeq.add(first, last);
+				regionsSeq.prepare();
+				confidenceRegionsLength+=regionsSeq.getTotalLength();
 			}
 		}
 		
 	}
 
-	private VCFRecord loadTestCallsSequence(Iterator<VCFRecord> itTest, String seqName, LinkedList<CalledGenomicVariant> testCallsSequence) {
-		VCFRecord answer = loadNextRecord(itTest, false);
-		while(answer!=null && answer.getSequenceName().equals(seqName)) {
-			CalledGenomicVariant call = answer.getCalls().get(0);
-			testCallsSequence.add(call);
-			answer = loadNextRecord(itTest, false);
-		}
-		return answer;
-	}
-
 	private void initCounts(boolean countNonGSAsFP) {
-		countsPerType.put(GenomicVariant.TYPE_BIALLELIC_SNV, new GoldStandardComparisonCounts());
-		countsPerType.put(GenomicVariant.TYPE_INDEL, new GoldStandardComparisonCounts());
-		countsPerType.put(GenomicVariant.TYPE_STR, new GoldStandardComparisonCounts());
+		countsPerType = createCountsPerType();
 		double confidentMbp = (double)confidenceRegionsLength/1000000.0;
 		log.info("Confident MBP: "+confidentMbp);
 		for(GoldStandardComparisonCounts counts:countsPerType.values()) {
@@ -369,6 +383,13 @@ public class VCFGoldStandardComparator {
 		}
 	}
 	
+	private Map<Byte, GoldStandardComparisonCounts> createCountsPerType() {
+		Map<Byte, GoldStandardComparisonCounts> answer = new HashMap<>();
+		answer.put(GenomicVariant.TYPE_BIALLELIC_SNV, new GoldStandardComparisonCounts());
+		answer.put(GenomicVariant.TYPE_INDEL, new GoldStandardComparisonCounts());
+		answer.put(GenomicVariant.TYPE_STR, new GoldStandardComparisonCounts());
+		return answer;
+	}
 	
 	
 
@@ -384,151 +405,215 @@ public class VCFGoldStandardComparator {
 		}
 		return record;
 	}
-
-	private void processClusterCalls(List<CalledGenomicVariant> gsCalls, int clusterFirst, int clusterLast, byte clusterGSType, LinkedList<CalledGenomicVariant> testCallsSeq, LinkedList<GenomicRegion> confidenceRegionsSeq, int sequenceLength) {	
-		int lastRowCounts = GoldStandardComparisonCounts.NUM_ROWS_COUNTS-1;
-		if(gsCalls.size()==0) return;
-		List<CalledGenomicVariant> testCallsCluster = new ArrayList<>();
-		int heterozygous=0;
-		int regionFirst = clusterFirst-DEF_MIN_CLUSTER_DISTANCE;
-		int regionLast = clusterLast+DEF_MIN_CLUSTER_DISTANCE;
-		// Process individually potential false positives
-		while(testCallsSeq.size()>0) {
-			CalledGenomicVariant testCall = testCallsSeq.peek();
-			if(clusterFirst == 567239) log.info("Cluster limits: "+clusterFirst+"-"+clusterLast+" GS size: "+gsCalls.size()+ " cluster type: "+clusterGSType+" test call: "+testCall.getFirst()+"-"+testCall.getLast());
-			if(testCall.getLast()+DEF_MIN_CLUSTER_DISTANCE<=clusterFirst) {
-				processPossibleFalsePositive(testCall, confidenceRegionsSeq, lastRowCounts);
-				testCallsSeq.removeFirst();
-				continue;
-			} else if(testCall.getFirst()>=clusterLast+DEF_MIN_CLUSTER_DISTANCE) break;
-			testCallsCluster.add(testCall);
-			regionFirst = Math.min(regionFirst, testCall.getFirst());
-			regionLast = Math.max(regionLast, testCall.getLast());
-			if(testCall.isHeterozygous()) heterozygous++;
-			testCallsSeq.removeFirst();
+	
+	/**
+	 * Comparison of the gold standard and the test calls of one sequence. Counts are kept in objects of this comparison
+	 * and the output of the verbose modes is kept in memory to avoid mixing the output of different sequences
+	 */
+	private class SequenceComparison {
+		private String sequenceName;
+		private int sequenceLength;
+		private List<CalledGenomicVariant> gsCalls;
+		private List<CalledGenomicVariant> testCalls;
+		//Next test call to process
+		private int testIdx = 0;
+		private SequenceIntervalsIndex complexRegionsSeq = null;
+		private SequenceIntervalsIndex.Cursor confidenceCursor = null;
+		private Map<Byte, GoldStandardComparisonCounts> countsPerType = createCountsPerType();
+		//Number of gold standard calls, number of heterozygous test calls and span of each cluster in a confidence region
+		private int [] clustersData = new int[300];
+		private int numClusters = 0;
+		private int numProcessedClusters = 0;
+		private ByteArrayOutputStream report = new ByteArrayOutputStream();
+		private PrintStream out = new PrintStream(report);
+		
+		public SequenceComparison(QualifiedSequence sequence, List<CalledGenomicVariant> gsCalls, List<CalledGenomicVariant> testCalls) {
+			this.sequenceName = sequence.getName();
+			this.sequenceLength = sequence.getLength();
+			this.gsCalls = gsCalls;
+			this.testCalls = testCalls;
+			if(complexRegions!=null) complexRegionsSeq = complexRegions.get(sequenceName);
+			if(confidenceRegions!=null) {
+				SequenceIntervalsIndex confidenceRegionsSeq = confidenceRegions.get(sequenceName);
+				if(confidenceRegionsSeq!=null) confidenceCursor = confidenceRegionsSeq.createCursor();
+			}
 		}
-			
 		
-		//if(gsCalls.size()>0 && testCalls.size()>0) System.out.println("GS Calls: "+gsCalls.size()+" test calls: "+testCalls.size()+" first: "+clusterFirst+" first gs call: "+gsCalls.get(0).getFirst()+" first test call: "+testCalls.get(0).getFirst());
-		while(confidenceRegionsSeq.size()>0) {
-			GenomicRegion nextConfident = confidenceRegionsSeq.peek();
-			if(nextConfident.getLast()<clusterFirst) confidenceRegionsSeq.removeFirst();
-			else break;
+		public SequenceComparison compare() {
+			List<CalledGenomicVariant> gsCallsCluster = new ArrayList<>();
+			int pIdx = 0;
+			int clusterFirst = 0;
+			int clusterLast = 0;
+			byte clusterType = GenomicVariant.TYPE_UNDETERMINED;
+			for(CalledGenomicVariant callGS:gsCalls) {
+				if(complexRegionsSeq!=null) {
+					for(;pIdx<complexRegionsSeq.size();pIdx++) {
+						int regionFirst = complexRegionsSeq.getFirst(pIdx);
+						int regionLast = complexRegionsSeq.getLast(pIdx);
+						if(clusterLast+DEF_MIN_CLUSTER_DISTANCE<=regionFirst) break;
+						if(clusterFirst<regionLast+DEF_MIN_CLUSTER_DISTANCE) {
+							clusterType = GenomicVariant.TYPE_STR;
+							clusterLast = Math.max(clusterLast, regionLast);
+							clusterFirst = Math.min(clusterFirst, regionFirst);
+						}
+					}
+				}
+				int nextClusterFirst = clusterLast+Math.max(DEF_MIN_CLUSTER_DISTANCE, clusterLast-clusterFirst+1);
+				nextClusterFirst = Math.min(nextClusterFirst, clusterLast+DEF_MAX_CLUSTER_DISTANCE);
+				
+				boolean gsClose = nextClusterFirst>callGS.getFirst();
+				if (!gsClose) {
+					processClusterCalls (gsCallsCluster, clusterFirst, clusterLast, clusterType);
+					gsCallsCluster.clear();
+					clusterFirst = clusterLast = 0;
+					clusterType = GenomicVariant.TYPE_UNDETERMINED;
+				}
+				gsCallsCluster.add(callGS);
+				if(clusterType==GenomicVariant.TYPE_UNDETERMINED) clusterType = loadType(callGS);
+				//Default type for cluster calls
+				if(gsCallsCluster.size()>1) clusterType= GenomicVariant.TYPE_STR;
+				
+				if(clusterFirst == 0 ) clusterFirst = callGS.getFirst();
+				else clusterFirst = Math.min(clusterFirst, callGS.getFirst());
+				clusterLast = Math.max(clusterLast, callGS.getLast());
+			}
+			processClusterCalls (gsCallsCluster, clusterFirst, clusterLast, clusterType);
+			out.flush();
+			gsCalls = null;
+			testCalls = null;
+			return this;
 		}
-		boolean clusterInConfidenceRegion = false;
-		for(GenomicRegion r:confidenceRegionsSeq) {
-			if(r.getFirst()<=clusterFirst && r.getLast()>=clusterLast) clusterInConfidenceRegion = true;
-			else if (r.getFirst()>clusterFirst) break;
+		
+		private boolean isInConfidenceRegion(int first, int last) {
+			return confidenceCursor!=null && confidenceCursor.contains(first, last);
 		}
-		if (confidenceRegions!=null && !clusterInConfidenceRegion) return;
-		distClusterSizeGS.processDatapoint(gsCalls.size());
-		distClusterTestHet.processDatapoint(heterozygous);
-		distClusterSpan.processDatapoint(clusterLast-clusterFirst+1);
-		if(testCallsCluster.size()==0) {
-			processFalseNegativeCluster(gsCalls, clusterGSType, lastRowCounts);
-		} else  {
-			CalledGenomicVariant firstGS = gsCalls.get(0);
-			CalledGenomicVariant firstTest = testCallsCluster.get(0);
-			int genotypeFirstGS = getGenotypeNumber(firstGS);
-			int genotypeFirstTest = getGenotypeNumber(firstTest);
-			short qualFirstTest = loadGenotypeQuality(firstTest);
-			GoldStandardComparisonCounts counts = countsPerType.get(clusterGSType);
-			if(clusterGSType == GenomicVariant.TYPE_BIALLELIC_SNV) {
-				//Process SNVs
-				if(firstGS.getFirst()==firstTest.getFirst() && firstGS.getAlleles()[1].equals(firstTest.getAlleles()[1])) {
-					// Match between gold standard and test SNV
-					int k = 3*genotypeFirstGS+genotypeFirstTest;
-					int row = Math.min(qualFirstTest/10, lastRowCounts); 
-					counts.update(0,row,k);
-					counts.update(row+1,lastRowCounts,9+genotypeFirstGS);
-					if(mode == 3 && genotypeFirstGS!=genotypeFirstTest &&  qualFirstTest>=minQuality) {
-						System.out.println("Variant "+firstGS.getSequenceName()+": "+firstGS.getFirst()+"genotypeGS: "+genotypeFirstGS+" genotypeTest: "+genotypeFirstTest+" alternativeGS: "+firstGS.getAlleles()[1]+" alternative Test: "+firstTest.getAlleles()[1]);
+
+		private void processClusterCalls(List<CalledGenomicVariant> gsCalls, int clusterFirst, int clusterLast, byte clusterGSType) {	
+			int lastRowCounts = GoldStandardComparisonCounts.NUM_ROWS_COUNTS-1;
+			if(gsCalls.size()==0) return;
+			numProcessedClusters++;
+			if(numProcessedClusters%10000==0) log.info("Processed "+numProcessedClusters+" clusters of sequence "+sequenceName+". Current cluster coordinates: "+clusterFirst+"-"+clusterLast);
+			List<CalledGenomicVariant> testCallsCluster = new ArrayList<>();
+			int heterozygous=0;
+			int regionFirst = clusterFirst-DEF_MIN_CLUSTER_DISTANCE;
+			int regionLast = clusterLast+DEF_MIN_CLUSTER_DISTANCE;
+			// Process individually potential false positives
+			for(;testIdx<testCalls.size();testIdx++) {
+				CalledGenomicVariant testCall = testCalls.get(testIdx);
+				if(testCall.getLast()+DEF_MIN_CLUSTER_DISTANCE<=clusterFirst) {
+					processPossibleFalsePositive(testCall, lastRowCounts);
+					continue;
+				} else if(testCall.getFirst()>=clusterLast+DEF_MIN_CLUSTER_DISTANCE) break;
+				testCallsCluster.add(testCall);
+				regionFirst = Math.min(regionFirst, testCall.getFirst());
+				regionLast = Math.max(regionLast, testCall.getLast());
+				if(testCall.isHeterozygous()) heterozygous++;
+			}
+			if (confidenceRegions!=null && !isInConfidenceRegion(clusterFirst, clusterLast)) return;
+			if(3*numClusters==clustersData.length) clustersData = Arrays.copyOf(clustersData, 2*clustersData.length);
+			clustersData[3*numClusters] = gsCalls.size();
+			clustersData[3*numClusters+1] = heterozygous;
+			clustersData[3*numClusters+2] = clusterLast-clusterFirst+1;
+			numClusters++;
+			if(testCallsCluster.size()==0) {
+				processFalseNegativeCluster(gsCalls, clusterGSType, lastRowCounts);
+			} else  {
+				CalledGenomicVariant firstGS = gsCalls.get(0);
+				CalledGenomicVariant firstTest = testCallsCluster.get(0);
+				int genotypeFirstGS = getGenotypeNumber(firstGS);
+				int genotypeFirstTest = getGenotypeNumber(firstTest);
+				short qualFirstTest = loadGenotypeQuality(firstTest);
+				GoldStandardComparisonCounts counts = countsPerType.get(clusterGSType);
+				if(clusterGSType == GenomicVariant.TYPE_BIALLELIC_SNV) {
+					//Process SNVs
+					if(firstGS.getFirst()==firstTest.getFirst() && firstGS.getAlleles()[1].equals(firstTest.getAlleles()[1])) {
+						// Match between gold standard and test SNV
+						int k = 3*genotypeFirstGS+genotypeFirstTest;
+						int row = Math.min(qualFirstTest/10, lastRowCounts); 
+						counts.update(0,row,k);
+						counts.update(row+1,lastRowCounts,9+genotypeFirstGS);
+						if(mode == 3 && genotypeFirstGS!=genotypeFirstTest &&  qualFirstTest>=minQuality) {
+							out.println("Variant "+firstGS.getSequenceName()+": "+firstGS.getFirst()+"genotypeGS: "+genotypeFirstGS+" genotypeTest: "+genotypeFirstTest+" alternativeGS: "+firstGS.getAlleles()[1]+" alternative Test: "+firstTest.getAlleles()[1]);
+						}
+					} else {
+						//Isolated SNV calls in different close positions or with different alternative alleles
+						processPossibleFalsePositive(firstTest, lastRowCounts);
+						processFalseNegativeCluster(gsCalls, clusterGSType, lastRowCounts);
 					}
 				} else {
-					//Isolated SNV calls in different close positions or with different alternative alleles
-					processPossibleFalsePositive(firstTest, confidenceRegionsSeq, lastRowCounts);
-					processFalseNegativeCluster(gsCalls, clusterGSType, lastRowCounts);
-				}
-			} else {
-				regionFirst = Math.max(1, regionFirst);
-				regionLast = Math.min(sequenceLength, regionLast);
-				CharSequence refS = genome.getReference(firstGS.getSequenceName(), regionFirst, regionLast);
-				if(refS==null) {
-					System.err.println("WARN: Null reference sequence at "+firstGS.getSequenceName()+": "+regionFirst+"-"+regionLast+" cluster coordinates: "+clusterFirst+"-"+clusterLast+"cluster type: "+clusterGSType+" cluster size: "+gsCalls.size());
-					return;
-				}
-				String reference = refS.toString().toUpperCase();
-				GoldStandardHaplotypeReconstruction gsHaps = new GoldStandardHaplotypeReconstruction(reference, gsCalls, regionFirst);
-				String [] gsHaplotypes = gsHaps.getPhasedAlleles();
-				int genotypeGS = gsHaps.getGenotypeNumber();
-				String [] matchingHaplotypes = gsHaps.buildMatchingHaplotypes(testCallsCluster);
-				int genotypeTest = CalledGenomicVariant.GENOTYPE_HOMOALT;
-				if(!matchingHaplotypes[0].equals(matchingHaplotypes[1])) genotypeTest = CalledGenomicVariant.GENOTYPE_HETERO;
-				boolean sequenceMismatch = false;
-				if(genotypeGS==genotypeTest) {
-					//Record genotype errors if haplotype sequences do not match even if the genotypes match 
-					if(genotypeGS==CalledGenomicVariant.GENOTYPE_HOMOALT && !gsHaplotypes[0].equals(matchingHaplotypes[0])) {
-						genotypeTest = CalledGenomicVariant.GENOTYPE_HETERO;
-						sequenceMismatch = true;
-						//System.out.println("Changing genotype test to heterozygous due to error in sequence. GS hap: "+gsHaplotypes[0]+" test hap: "+matchingHaplotypes[0]);
-					} else if (genotypeGS==CalledGenomicVariant.GENOTYPE_HETERO && (!gsHaplotypes[0].equals(matchingHaplotypes[0]) || (!gsHaplotypes[1].equals(matchingHaplotypes[1])))) {
-						genotypeTest = CalledGenomicVariant.GENOTYPE_HOMOALT;
-						sequenceMismatch = true;
+					regionFirst = Math.max(1, regionFirst);
+					regionLast = Math.min(sequenceLength, regionLast);
+					CharSequence refS = genome.getReference(firstGS.getSequenceName(), regionFirst, regionLast);
+					if(refS==null) {
+						System.err.println("WARN: Null reference sequence at "+firstGS.getSequenceName()+": "+regionFirst+"-"+regionLast+" cluster coordinates: "+clusterFirst+"-"+clusterLast+"cluster type: "+clusterGSType+" cluster size: "+gsCalls.size());
+						return;
+					}
+					String reference = refS.toString().toUpperCase();
+					GoldStandardHaplotypeReconstruction gsHaps = new GoldStandardHaplotypeReconstruction(reference, gsCalls, regionFirst);
+					String [] gsHaplotypes = gsHaps.getPhasedAlleles();
+					int genotypeGS = gsHaps.getGenotypeNumber();
+					String [] matchingHaplotypes = gsHaps.buildMatchingHaplotypes(testCallsCluster);
+					int genotypeTest = CalledGenomicVariant.GENOTYPE_HOMOALT;
+					if(!matchingHaplotypes[0].equals(matchingHaplotypes[1])) genotypeTest = CalledGenomicVariant.GENOTYPE_HETERO;
+					boolean sequenceMismatch = false;
+					if(genotypeGS==genotypeTest) {
+						//Record genotype errors if haplotype sequences do not match even if the genotypes match 
+						if(genotypeGS==CalledGenomicVariant.GENOTYPE_HOMOALT && !gsHaplotypes[0].equals(matchingHaplotypes[0])) {
+							genotypeTest = CalledGenomicVariant.GENOTYPE_HETERO;
+							sequenceMismatch = true;
+							//System.out.println("Changing genotype test to heterozygous due to error in sequence. GS hap: "+gsHaplotypes[0]+" test hap: "+matchingHaplotypes[0]);
+						} else if (genotypeGS==CalledGenomicVariant.GENOTYPE_HETERO && (!gsHaplotypes[0].equals(matchingHaplotypes[0]) || (!gsHaplotypes[1].equals(matchingHaplotypes[1])))) {
+							genotypeTest = CalledGenomicVariant.GENOTYPE_HOMOALT;
+							sequenceMismatch = true;
+						}
+					}
+					short qualTest = calculateQuality(testCallsCluster);
+					int k = 3*genotypeGS+genotypeTest;
+					int row = Math.min(qualTest/10, lastRowCounts); 
+					counts.update(0,row,k);
+					counts.update(row+1,lastRowCounts,9+genotypeGS);
+					if(mode == 3 && genotypeGS!=genotypeTest &&  qualTest>=minQuality) {
+						out.println("Variant "+gsCalls.get(0).getSequenceName()+": "+gsHaps.getFirst()+" type: "+clusterGSType+" genotypeGS: "+genotypeGS+" genotypeTest: "+genotypeTest+" sequenceMismatch: "+sequenceMismatch);
+						out.println(gsHaplotypes[0]);
+						out.println(gsHaplotypes[1]);
+						out.println(matchingHaplotypes[0]);
+						out.println(matchingHaplotypes[1]);
 					}
-				}
-				short qualTest = calculateQuality(testCallsCluster);
-				int k = 3*genotypeGS+genotypeTest;
-				int row = Math.min(qualTest/10, lastRowCounts); 
-				counts.update(0,row,k);
-				counts.update(row+1,lastRowCounts,9+genotypeGS);
-				if(mode == 3 && genotypeGS!=genotypeTest &&  qualTest>=minQuality) {
-					System.out.println("Variant "+gsCalls.get(0).getSequenceName()+": "+gsHaps.getFirst()+" type: "+clusterGSType+" genotypeGS: "+genotypeGS+" genotypeTest: "+genotypeTest+" sequenceMismatch: "+sequenceMismatch);
-					System.out.println(gsHaplotypes[0]);
-					System.out.println(gsHaplotypes[1]);
-					System.out.println(matchingHaplotypes[0]);
-					System.out.println(matchingHaplotypes[1]);
 				}
 			}
 		}
-	}
 
-	
-
-	private void processPossibleFalsePositive(CalledGenomicVariant call, LinkedList<GenomicRegion> confidenceRegionsSeq, int lastRowCounts) {
-		boolean clusterInConfidenceRegion = false;
-		for(GenomicRegion r:confidenceRegionsSeq) {
-			if(r.getFirst()<=call.getFirst() && r.getLast()>=call.getLast()) clusterInConfidenceRegion = true;
-			else if (r.getFirst()>call.getLast()) break;
-		}
-		int n = 0;
-		if (confidenceRegions!=null && !clusterInConfidenceRegion) n=12;
-		int genotypeTest = getGenotypeNumber(call);
-		short qualTest = loadGenotypeQuality(call);
-		byte typeTest = loadType(call); 
-		
-		countsPerType.get(typeTest).update(0,Math.min(qualTest/10, lastRowCounts),n+genotypeTest);
-		if(mode == 2 && n==0 && qualTest>=minQuality) {
-			System.out.println("Variant "+call.getSequenceName()+": "+call.getFirst()+" genotype: "+genotypeTest+" GQ: "+qualTest+" type: "+typeTest);
-		}
-	}
-
-	private void processFalseNegativeCluster(List<CalledGenomicVariant> gsCalls, byte clusterType, int lastRowCounts) {
-		int clusterGenotype = CalledGenomicVariant.GENOTYPE_HOMOALT;
-		for(CalledGenomicVariant call:gsCalls) {
-			int genotypeGS = getGenotypeNumber(call);
-			if(genotypeGS==CalledGenomicVariant.GENOTYPE_HETERO) {
-				clusterGenotype = genotypeGS;
-				break;
+		private void processPossibleFalsePositive(CalledGenomicVariant call, int lastRowCounts) {
+			int n = 0;
+			if (confidenceRegions!=null && !isInConfidenceRegion(call.getFirst(), call.getLast())) n=12;
+			int genotypeTest = getGenotypeNumber(call);
+			short qualTest = loadGenotypeQuality(call);
+			byte typeTest = loadType(call); 
+			
+			countsPerType.get(typeTest).update(0,Math.min(qualTest/10, lastRowCounts),n+genotypeTest);
+			if(mode == 2 && n==0 && qualTest>=minQuality) {
+				out.println("Variant "+call.getSequenceName()+": "+call.getFirst()+" genotype: "+genotypeTest+" GQ: "+qualTest+" type: "+typeTest);
 			}
 		}
-		countsPerType.get(clusterType).update(0,lastRowCounts,9+clusterGenotype);
-		if(mode == 1) {
-			System.out.println("False negative cluster with "+gsCalls.size()+" gold standard calls");
+
+		private void processFalseNegativeCluster(List<CalledGenomicVariant> gsCalls, byte clusterType, int lastRowCounts) {
+			int clusterGenotype = CalledGenomicVariant.GENOTYPE_HOMOALT;
 			for(CalledGenomicVariant call:gsCalls) {
-				System.out.println("Variant "+call.getSequenceName()+": "+call.getFirst()+" genotype: "+getGenotypeNumber(call)+" type: "+loadType(call)+" alt allele: "+call.getAlleles()[1]);
+				int genotypeGS = getGenotypeNumber(call);
+				if(genotypeGS==CalledGenomicVariant.GENOTYPE_HETERO) {
+					clusterGenotype = genotypeGS;
+					break;
+				}
+			}
+			countsPerType.get(clusterType).update(0,lastRowCounts,9+clusterGenotype);
+			if(mode == 1) {
+				out.println("False negative cluster with "+gsCalls.size()+" gold standard calls");
+				for(CalledGenomicVariant call:gsCalls) {
+					out.println("Variant "+call.getSequenceName()+": "+call.getFirst()+" genotype: "+getGenotypeNumber(call)+" type: "+loadType(call)+" alt allele: "+call.getAlleles()[1]);
+				}
 			}
+			
 		}
-		
 	}
 	
 	public void printStatistics(PrintStream out) {
@@ -646,6 +731,18 @@ class GoldStandardComparisonCounts {
 		}	
 	}
 	
+	/**
+	 * Adds the counts of the given object to the counts of this object
+	 * @param other Counts to add
+	 */
+	public void add(GoldStandardComparisonCounts other) {
+		for(int i=0;i<counts.length;i++) {
+			for(int j=0;j<counts[i].length;j++) {
+				counts[i][j]+=other.counts[i][j];
+			}
+		}
+	}
+	
 	public void print(PrintStream out) {
 		for (int i=0;i<counts.length; i++) {
 			out.print(""+(i*10));
@@ -1241,3 +1338,105 @@ class GoldStandardHaplotypeReconstruction implements CalledGenomicVariant {
 	}
 	
 }
+/**
+ * Intervals of one sequence sorted by first position and stored in primitive arrays.
+ * Containment queries are answered through cursors that move forward over the intervals
+ */
+class SequenceIntervalsIndex {
+	private int [] firsts;
+	private int [] lasts;
+	//Maximum last position of the intervals up to each index
+	private int [] maxLasts;
+	private int size = 0;
+	
+	public SequenceIntervalsIndex(int initialCapacity) {
+		firsts = new int[Math.max(1, initialCapacity)];
+		lasts = new int[firsts.length];
+	}
+	
+	/**
+	 * Adds a new interval. Intervals must be added sorted by first position
+	 * @param first First position of the interval
+	 * @param last Last position of the interval
+	 */
+	public void add(int first, int last) {
+		if(size>0 && first<firsts[size-1]) throw new IllegalArgumentException("Interval "+first+"-"+last+" added after interval "+firsts[size-1]+"-"+lasts[size-1]);
+		if(size==firsts.length) {
+			firsts = Arrays.copyOf(firsts, 2*size);
+			lasts = Arrays.copyOf(lasts, 2*size);
+		}
+		firsts[size] = first;
+		lasts[size] = last;
+		size++;
+	}
+	
+	/**
+	 * Prepares the index for queries after all intervals are added
+	 */
+	public void prepare() {
+		firsts = Arrays.copyOf(firsts, size);
+		lasts = Arrays.copyOf(lasts, size);
+		maxLasts = new int[size];
+		for(int i=0;i<size;i++) {
+			maxLasts[i] = lasts[i];
+			if(i>0) maxLasts[i] = Math.max(maxLasts[i], maxLasts[i-1]);
+		}
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int getFirst(int i) {
+		return firsts[i];
+	}
+	
+	public int getLast(int i) {
+		return lasts[i];
+	}
+	
+	/**
+	 * @return long Sum of the lengths of the intervals
+	 */
+	public long getTotalLength() {
+		long answer = 0;
+		for(int i=0;i<size;i++) answer+=lasts[i]-firsts[i]+1;
+		return answer;
+	}
+	
+	/**
+	 * @return Cursor New cursor located at the beginning of the sequence
+	 */
+	public Cursor createCursor() {
+		return new Cursor();
+	}
+	
+	/**
+	 * Cursor to answer queries in increasing order of coordinates. Queries going backwards are answered by binary search
+	 */
+	public class Cursor {
+		//Number of intervals with first position smaller or equal than the first position of the last query
+		private int next = 0;
+		
+		/**
+		 * Determines if the given region is contained in at least one interval
+		 * @param first First position of the region
+		 * @param last Last position of the region
+		 * @return boolean True if an interval contains the given region
+		 */
+		public boolean contains(int first, int last) {
+			if(next>0 && firsts[next-1]>first) {
+				int lo = 0;
+				int hi = next-1;
+				while(lo<hi) {
+					int mid = (lo+hi)/2;
+					if(firsts[mid]>first) hi = mid;
+					else lo = mid+1;
+				}
+				next = lo;
+			}
+			while(next<size && firsts[next]<=first) next++;
+			return next>0 && maxLasts[next-1]>=last;
+		}
+	}
+}
@@ -18,6 +18,7 @@ public class DistanceClusteringService {
     // Constants for command options
     private static final int NJ = 0;
     private static final int FASTNJ = 1;
+    public static final int DEF_NUM_THREADS = 1;
     private static final Set<Integer> ALG_OPTIONS = Set.of(
             NJ,
             FASTNJ
@@ -31,6 +32,7 @@ public class DistanceClusteringService {
     private String inputFile = null;
     private String outputFile = null;
     private int algorithm = 0;
+    private int numThreads = DEF_NUM_THREADS;
 
     // Get and set methods
     public Logger getLog() {
@@ -68,6 +70,13 @@ public class DistanceClusteringService {
         this.algorithm = algorithm;
     }
 
+    public int getNumThreads () {
+        return numThreads;
+    }
+    public void setNumThreads (Integer numThreads) {
+        this.numThreads = numThreads;
+    }
+
 
     // Constructor
     public DistanceClusteringService () {
@@ -94,9 +103,15 @@ public class DistanceClusteringService {
         if (!ALG_OPTIONS.contains(algorithm)) {
             throw new Exception("You must provide with a valid option for the algorithm to be used");
         }
-        DistanceMatrixClustering method = new NeighborJoining();
+        DistanceMatrixClustering method;
         if (algorithm == FASTNJ) {
-            method = new FastNJ();
+            FastNJ fastNJ = new FastNJ();
+            fastNJ.setNumThreads(numThreads);
+            method = fastNJ;
+        } else {
+            NeighborJoining nj = new NeighborJoining();
+            nj.setNumThreads(numThreads);
+            method = nj;
         }
 
         Dendrogram tree = method.buildDendrogram(matrix);
@@ -0,0 +1,222 @@
+package ngsep.clustering;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+/**
+ * Symmetric distance matrix updated in place by agglomerative clustering algorithms.
+ * Distances are stored in a single array with the packed lower triangle of the matrix.
+ * Each node of the matrix has a fixed slot and the active nodes are kept in an ordered list of slots.
+ * Clustering algorithms join two or more active nodes, store the new node in the slot of one of the joined nodes
+ * and remove the other nodes from the active list. Hence, no new matrices are created during the process
+ * @author Jorge Duitama
+ */
+public class PackedDistanceMatrix {
+	//Minimum number of active nodes to distribute scans of the matrix among threads
+	private static final int MIN_NODES_PARALLEL = 200;
+
+	private double [] distances;
+	private int [] activeSlots;
+	private int numActive;
+
+	private int numThreads = 1;
+	private ExecutorService pool = null;
+
+	/**
+	 * Score of a pair of active nodes
+	 */
+	public interface PairScore {
+		/**
+		 * @param slot1 Slot of the first node
+		 * @param slot2 Slot of the second node
+		 * @param distance Current distance between the two nodes
+		 * @return double Score of the pair
+		 */
+		public double score(int slot1, int slot2, double distance);
+	}
+
+	/**
+	 * Creates a packed copy of the given matrix. All nodes are active and slots follow the order of the matrix
+	 * @param matrix Square symmetric matrix of distances
+	 */
+	public PackedDistanceMatrix(DistanceMatrix matrix) {
+		double [][] D = matrix.getDistances();
+		int n = D.length;
+		long size = (long)n*(n-1)/2;
+		if(size>Integer.MAX_VALUE-8) throw new IllegalArgumentException("Distance matrices with "+n+" samples are not supported");
+		distances = new double[(int)size];
+		for(int i=1;i<n;i++) {
+			int start = getIndex(i, 0);
+			for(int j=0;j<i;j++) distances[start+j] = D[j][i];
+		}
+		activeSlots = new int[n];
+		for(int i=0;i<n;i++) activeSlots[i] = i;
+		numActive = n;
+	}
+
+	private static int getIndex(int slot1, int slot2) {
+		return (int)((long)slot1*(slot1-1)/2)+slot2;
+	}
+
+	/**
+	 * @return int Number of active nodes
+	 */
+	public int getNumActive() {
+		return numActive;
+	}
+
+	/**
+	 * @param position Position in the list of active nodes
+	 * @return int Slot of the active node at the given position
+	 */
+	public int getSlot(int position) {
+		return activeSlots[position];
+	}
+
+	/**
+	 * @param slot1 Slot of the first node
+	 * @param slot2 Slot of the second node
+	 * @return double Distance between the two nodes. Zero if the two slots are the same
+	 */
+	public double getDistance(int slot1, int slot2) {
+		if(slot1>slot2) return distances[getIndex(slot1, slot2)];
+		if(slot2>slot1) return distances[getIndex(slot2, slot1)];
+		return 0;
+	}
+
+	/**
+	 * Changes the distance between two different nodes
+	 * @param slot1 Slot of the first node
+	 * @param slot2 Slot of the second node
+	 * @param distance New distance
+	 */
+	public void setDistance(int slot1, int slot2, double distance) {
+		if(slot1>slot2) distances[getIndex(slot1, slot2)] = distance;
+		else if(slot2>slot1) distances[getIndex(slot2, slot1)] = distance;
+		else throw new IllegalArgumentException("Distance of slot "+slot1+" to itself can not be changed");
+	}
+
+	/**
+	 * Removes from the list of active nodes the nodes in the given positions
+	 * @param removed Tells for each position if the node should be removed. The length should be at least the number of active nodes
+	 */
+	public void removeActive(boolean [] removed) {
+		int k = 0;
+		for(int i=0;i<numActive;i++) {
+			if(!removed[i]) activeSlots[k++] = activeSlots[i];
+		}
+		numActive = k;
+	}
+
+	/**
+	 * Adds the given slot at the end of the list of active nodes
+	 * @param slot Slot of a node that is not active
+	 */
+	public void addActive(int slot) {
+		activeSlots[numActive] = slot;
+		numActive++;
+	}
+
+	/**
+	 * @param numThreads Number of threads used to run tasks over the positions of the active nodes
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Releases the threads used to run tasks
+	 */
+	public void close() {
+		if(pool!=null) pool.shutdownNow();
+		pool = null;
+	}
+
+	/**
+	 * Runs the given task for the positions of the active nodes. If more than one thread is available
+	 * and the matrix is large, positions are distributed among the threads.
+	 * The task for each position should only modify data associated with that position
+	 * @param task Task to run receiving a position in the list of active nodes
+	 */
+	public void runByPositions(IntConsumer task) {
+		int n = numActive;
+		if(numThreads<=1 || n<MIN_NODES_PARALLEL) {
+			for(int i=0;i<n;i++) task.accept(i);
+			return;
+		}
+		if(pool==null) pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<?>> tasks = new ArrayList<>(numThreads);
+		for(int t=0;t<numThreads;t++) {
+			int first = t;
+			//Positions are interleaved to balance scans of triangular regions
+			tasks.add(pool.submit(()-> {
+				for(int i=first;i<n;i+=numThreads) task.accept(i);
+			}));
+		}
+		try {
+			for(Future<?> f:tasks) f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while scanning distance matrix",e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error scanning distance matrix",e.getCause());
+		}
+	}
+
+	/**
+	 * Finds the pair of active nodes with minimum score. Ties are broken by position in the list of active nodes
+	 * @param score Score to calculate for each pair
+	 * @return int [] Positions in the active list of the two nodes with minimum score. The first position is smaller than the second
+	 */
+	public int [] findMinimumPair(PairScore score) {
+		int n = numActive;
+		double [] rowMinScores = new double[n];
+		int [] rowMinPositions = new int[n];
+		runByPositions((i)-> {
+			int slot1 = activeSlots[i];
+			double min = Double.MAX_VALUE;
+			int minPos = -1;
+			for(int j=i+1;j<n;j++) {
+				int slot2 = activeSlots[j];
+				double s = score.score(slot1, slot2, getDistance(slot1, slot2));
+				if(s<min) {
+					min = s;
+					minPos = j;
+				}
+			}
+			rowMinScores[i] = min;
+			rowMinPositions[i] = minPos;
+		});
+		int [] answer = {0, 0};
+		double min = Double.MAX_VALUE;
+		for(int i=0;i<n;i++) {
+			if(rowMinPositions[i]>=0 && rowMinScores[i]<min) {
+				min = rowMinScores[i];
+				answer[0] = i;
+				answer[1] = rowMinPositions[i];
+			}
+		}
+		return answer;
+	}
+
+	/**
+	 * Calculates the sum of the distances from each active node to the other active nodes
+	 * @return double [] Sums indexed by position in the active list
+	 */
+	public double [] calculateRowSums() {
+		int n = numActive;
+		double [] sums = new double[n];
+		runByPositions((i)-> {
+			int slot1 = activeSlots[i];
+			double sum = 0;
+			for(int j=0;j<n;j++) sum+=getDistance(slot1, activeSlots[j]);
+			sums[i] = sum;
+		});
+		return sums;
+	}
+}
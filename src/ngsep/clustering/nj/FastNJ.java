@@ -2,161 +2,134 @@ package ngsep.clustering.nj;
 
 import ngsep.clustering.DistanceMatrix;
 import ngsep.clustering.DistanceMatrixClustering;
+import ngsep.clustering.PackedDistanceMatrix;
 import ngsep.clustering.Pair;
 import ngsep.clustering.dendrogram.Dendrogram;
 
 import java.util.*;
-import java.util.function.BiFunction;
 
 public class FastNJ implements DistanceMatrixClustering {
 
+    // Tolerance to compare estimators of sums of branch lengths
+    private static final double EPS = 1e-9;
+
+    private int numThreads = 1;
+
     // Empty constructor
     public FastNJ () {
 
     }
 
-    // List helpers
-
     /**
-     *
-     * @param xs - A list of elements
-     * @param indices - A set of indices of elements to delete
-     * @param <A> - Type of the list of elements
-     * @return A new list without the elements indexed by the given set
+     * @return Number of threads used to scan the distance matrix
      */
-    private <A> List<A> deleteFromList (List<A> xs, Set<Integer> indices) {
-        int n = xs.size();
-        ArrayList<A> ys = new ArrayList<>(n);
-        for (int i = 0; i < n; i++) {
-            if (!indices.contains(i)) ys.add(xs.get(i));
-        }
-        return ys;
+    public int getNumThreads () {
+        return numThreads;
     }
 
     /**
-     *
-     * @param xs - A list of elements
-     * @param ys - A list of elements
-     * @param <A> - Type of both of the given list
-     * @return A new list that concatenates the elements on
-     * the first list with the elements of the second list
+     * @param numThreads - Number of threads used to scan the distance matrix
      */
-    private <A> List<A> concat (List<A> xs, List<A> ys) {
-        List<A> zs = new ArrayList<>();
-        zs.addAll(xs);
-        zs.addAll(ys);
-        return zs;
+    public void setNumThreads (int numThreads) {
+        this.numThreads = numThreads;
     }
 
     /**
-     * @param D - Distance Matrix
-     * @return A vector from a distance matrix D of size n x n, defined as:
-     * rowSumVector_i = 1 / (n - 2) * \sum_{j=1}^n D_{i j} for all 1<= i <= n
+     *
+     * @param D - Distance matrix
+     * @param rowSumVector - Vector rowSumVector_i = 1 / (n - 2) * \sum_{j=1}^n D_{i j} indexed by slot
+     * @param i - Slot of the first node
+     * @param j - Slot of the second node
+     * @return The estimator of the total distance between nodes i and j within the tree:
+     * S_{i j} = D_{i j} - rowSumVector_i - rowSumVector_j
      */
-    private double[] rowSums (double[][] D) {
-        int n = D.length;
-        double[] a = new double[n];
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < n; j++) {
-                a[i] += D[i][j];
-            }
-            a[i] /= (n - 2.0);
-        }
-        return a;
+    private double branchLengthSum (
+            PackedDistanceMatrix D,
+            double[] rowSumVector,
+            int i,
+            int j
+    ) {
+        return D.getDistance(i, j) - rowSumVector[i] - rowSumVector[j];
     }
 
     /**
      *
      * @param D - Distance matrix
-     * @return An array that contains the minimum of each row of D:
-     * rowMinimums(D)_i = \min D_i
+     * @param rowSumVector - Vector rowSumVector_i = 1 / (n - 2) * \sum_{j=1}^n D_{i j} indexed by slot
+     * @return An array indexed by position that contains the minimum of each row of the matrix S
+     * with the estimators of the sum of branch lengths, excluding the diagonal
      */
-    private double[] rowMinimums (double[][] D) {
-        int n = D.length;
+    private double[] rowMinimums (
+            PackedDistanceMatrix D,
+            double[] rowSumVector
+    ) {
+        int n = D.getNumActive();
         double[] min = new double[n];
-        Arrays.fill(min, Double.MAX_VALUE);
-        for (int i = 0; i < n; i++) {
+        D.runByPositions((i) -> {
+            int u = D.getSlot(i);
+            double rowMin = Double.MAX_VALUE;
             for (int j = 0; j < n; j++) {
-                min[i] = Math.min(
-                        min[i],
-                        i != j ? D[i][j] : Double.MAX_VALUE
-                );
+                if (i != j) rowMin = Math.min(rowMin, branchLengthSum(D, rowSumVector, u, D.getSlot(j)));
             }
-        }
+            min[i] = rowMin;
+        });
         return min;
     }
 
     /**
      *
      * @param D - Distance matrix
-     * @param x - A new node that joins a pair of subtrees
-     * @param y - A new node that joins a pair of subtrees
-     * @return The distance between nodes x and y. Both nodes
-     * are new nodes generated by an iteration of FastNJ, defined
-     * by the method findNeighbors
-     */
-    private double distanceBetweenNewNodes (
-            double[][] D,
-            Pair<Integer, Integer> x,
-            Pair<Integer, Integer> y
-    ) {
-        int u = x.first;
-        int v = x.second;
-        int p = y.first;
-        int q = y.second;
-        return 0.5 * (0.5 * (D[u][p] + D[v][p] + D[u][q] + D[v][q]) - D[u][v] - D[p][q]);
-    }
-
-    /**
-     *
-     * @param D - Distance matrix
-     * @param rowSumVector - A vector defined as rowSumVector_i = 1 / (n - 2) * \sum_{j=1}^n D_{i j} for all 1<= i <= n
-     * @return A matrix S with the estimator of the sum of branch lengths between all leaves (sequences).
-     * S_{i j} corresponds to the estimator of the total distance between node i and j within the tree
+     * @param rowSumVector - Vector rowSumVector_i = 1 / (n - 2) * \sum_{j=1}^n D_{i j} indexed by slot
+     * @param rowMin - Minimum of each row of the matrix S indexed by position
+     * @param i - Position of the first node
+     * @param first - First position to look for the second node
+     * @return The first position j >= first and j > i such that S_{i j} is the minimum of rows i and j,
+     * or -1 if such a position does not exist
      */
-    private double[][] branchLengthSums (
-            double[][] D,
-            double[] rowSumVector
+    private int nextNeighbor (
+            PackedDistanceMatrix D,
+            double[] rowSumVector,
+            double[] rowMin,
+            int i,
+            int first
     ) {
-        int n = D.length;
-        double[][] S = new double[n][n];
-        for (int i = 0; i < n; i++) {
-            for (int j = i + 1; j < n; j++) {
-                S[i][j] = D[i][j] - rowSumVector[i] - rowSumVector[j];
-                S[j][i] = S[i][j];
-            }
+        int n = D.getNumActive();
+        int u = D.getSlot(i);
+        for (int j = Math.max(first, i + 1); j < n; j++) {
+            double S = branchLengthSum(D, rowSumVector, u, D.getSlot(j));
+            if (S - rowMin[i] < EPS && (S < rowMin[j] || S - rowMin[j] < EPS)) return j;
         }
-        return S;
+        return -1;
     }
 
     /**
      *
      * @param D - Distance matrix
-     * @param rowSumVector - A vector defined as rowSumVector_i = 1 / (n - 2) * \sum_{j=1}^n D_{i j} for all 1<= i <= n
-     * @return A list of pairs of nodes to be joined. The criterion to select a pair of nodes (u, v) is that:
+     * @param rowSumVector - Vector rowSumVector_i = 1 / (n - 2) * \sum_{j=1}^n D_{i j} indexed by slot
+     * @return A list of pairs of positions of nodes to be joined. The criterion to select a pair of nodes (u, v) is that:
      * S_{u v} \leq S_{u j} and S_{u v} \leq S_{v j} for all u and v different from j, where S is the matrix
-     * with the estimators of the sum of the branch lengths
+     * with the estimators of the sum of the branch lengths. Pairs are selected greedily by position
      */
     private List<Pair<Integer, Integer>> findNeighbors (
-            double[][] D,
+            PackedDistanceMatrix D,
             double[] rowSumVector
     ) {
-        int n = D.length;
-        double[][] S = branchLengthSums(D, rowSumVector);
-        double[] rowMin = rowMinimums(S);
+        int n = D.getNumActive();
+        double[] rowMin = rowMinimums(D, rowSumVector);
+        // The first candidate of each row is calculated in parallel. Other candidates are only needed
+        // if the first candidate was already taken by a previous pair
+        int[] firstCandidates = new int[n];
+        D.runByPositions((i) -> firstCandidates[i] = nextNeighbor(D, rowSumVector, rowMin, i, i + 1));
         boolean[] taken = new boolean[n];
-        double eps = 1e-9;
-        BiFunction<Double, Double, Boolean> eq = (x, y) -> x - y < eps;
         List<Pair<Integer, Integer>> neighbors = new ArrayList<>();
         for (int i = 0; i < n; i++) {
-            for (int j = i + 1; j < n; j++) {
-                if (!taken[i] && !taken[j] &&
-                        eq.apply(S[i][j], rowMin[i]) &&
-                        (S[i][j] < rowMin[j] || eq.apply(S[i][j], rowMin[j]))) {
-                    neighbors.add(new Pair<>(i, j));
-                    taken[i] = true;
-                    taken[j] = true;
-                }
+            if (taken[i]) continue;
+            int j = firstCandidates[i];
+            while (j >= 0 && taken[j]) j = nextNeighbor(D, rowSumVector, rowMin, i, j + 1);
+            if (j >= 0) {
+                neighbors.add(new Pair<>(i, j));
+                taken[i] = true;
+                taken[j] = true;
             }
         }
         return neighbors;
@@ -165,132 +138,98 @@ public class FastNJ implements DistanceMatrixClustering {
     /**
      *
      * @param D - Distance matrix
-     * @param neighbors - A list of pairs with the nodes to be joined
-     * @param indexSet - A flattened version of neighbors in the form of a set. Contains the indices of the neighbors in no particular order
-     * @return A new distance matrix D' of size n - m where m = |neighbors| = 1/2*|indexSet| and n * n = |D|.
-     * All pair of nodes within the neighbors collection are joined with a node, and these new nodes are added at the end
-     * of the matrix as rows and columns in the same order as the neighbors list. Afterwards the distances between new and old nodes
-     * is calculated, as well as the distance between new nodes using the distanceBetweenNewNodes method
+     * @param x - A new node that joins a pair of subtrees given as slots
+     * @param y - A new node that joins a pair of subtrees given as slots
+     * @return The distance between nodes x and y. Both nodes
+     * are new nodes generated by an iteration of FastNJ, defined
+     * by the method findNeighbors
      */
-    private double[][] recalculateDistances (
-            double[][] D,
-            List<Pair<Integer, Integer>> neighbors,
-            Set<Integer> indexSet
+    private double distanceBetweenNewNodes (
+            PackedDistanceMatrix D,
+            Pair<Integer, Integer> x,
+            Pair<Integer, Integer> y
     ) {
-        int n = D.length;
-        int m = neighbors.size();
-        double[][] newD = new double[n - m][n - m];
-
-        int x = 0;
-        int y = 0;
-        for (int i = 0; i < n; i++) {
-            if (!indexSet.contains(i)) {
-                for (int j = 0; j < n; j++) {
-                    if (!indexSet.contains(j)) {
-                        newD[x][y] = D[i][j];
-                        y++;
-                    }
-                }
-                y = 0;
-                x++;
-            }
-        }
+        int u = x.first;
+        int v = x.second;
+        int p = y.first;
+        int q = y.second;
+        return 0.5 * (0.5 * (D.getDistance(u, p) + D.getDistance(v, p) + D.getDistance(u, q) + D.getDistance(v, q)) - D.getDistance(u, v) - D.getDistance(p, q));
+    }
 
-        for (int j = n - 2 * m; j < n - m; j++) {
-            x = 0;
-            for (int i = 0; i < n; i++) {
-                if (!indexSet.contains(i)) {
-                    newD[x][j] = NJDistances.distanceBetweenNewAndOldNode(
-                            D,
-                            neighbors.get(j - (n - 2 * m)),
-                            i
-                    );
-                    newD[j][x] = newD[x][j];
-                    x++;
-                }
+    /**
+     * Updates in place the distance matrix. The new node of each pair (u, v) is stored in the slot of u.
+     * First, the distances between new nodes are calculated using the distanceBetweenNewNodes method.
+     * Then, the joined nodes are removed and the distances between new and old nodes are calculated.
+     * Finally, new nodes are added at the end of the active nodes in the same order as the given list
+     * @param D - Distance matrix
+     * @param joined - A list of pairs with the slots of the nodes to be joined
+     * @param removed - Tells for each position if the node is joined in this iteration
+     */
+    private void recalculateDistances (
+            PackedDistanceMatrix D,
+            List<Pair<Integer, Integer>> joined,
+            boolean[] removed
+    ) {
+        int m = joined.size();
+        for (int t = 0; t < m; t++) {
+            for (int s = t + 1; s < m; s++) {
+                D.setDistance(joined.get(t).first, joined.get(s).first, distanceBetweenNewNodes(D, joined.get(t), joined.get(s)));
             }
         }
-
-        for (int i = n - 2 * m; i < n - m; i++) {
-            for (int j = i + 1; j < n - m; j++) {
-                newD[i][j] = distanceBetweenNewNodes(
-                        D,
-                        neighbors.get(i - (n - 2 * m)),
-                        neighbors.get(j - (n - 2 * m))
-                );
-                newD[j][i] = newD[i][j];
+        D.removeActive(removed);
+        D.runByPositions((i) -> {
+            int k = D.getSlot(i);
+            for (Pair<Integer, Integer> x : joined) {
+                int u = x.first;
+                int v = x.second;
+                D.setDistance(u, k, NJDistances.distanceBetweenNewAndOldNode(D.getDistance(u, k), D.getDistance(v, k), D.getDistance(u, v)));
             }
-        }
-
-        return newD;
+        });
+        for (Pair<Integer, Integer> x : joined) D.addActive(x.first);
     }
 
     /**
-     * Receives a list of nodes (trees) and the distance matrix that specifies the pairwise distance
-     * between each node.
      * Runs an iteration of the neighbor joining algorithm, described by the following steps:
      * 1. Calculate a vector rowSumVector_i = 1 / (n - 2) * \sum_{j=1}^n D_{i j} for all 1<= i <= n to use
      * when finding neighbors and calculating their distances.
      * 2. Find a list of neighbors (pairs) to be joined using the criteria specified by the findNeighbors
      * method.
      * 3. Join all the found neighbors generating new subtrees with their respective distances.
-     * 4. Recalculate the labels of the trees and the distance matrix taking into account the new
-     * generated nodes.
-     * @param matrix - Distance matrix
-     * @param subtrees - List of node (trees) characterized by the distance matrix
-     * @return A pair with the new distance matrix and the new list of trees
+     * 4. Recalculate the distance matrix taking into account the new generated nodes.
+     * @param D - Distance matrix
+     * @param subtrees - Node (trees) characterized by the distance matrix indexed by slot
      */
-    private Pair<DistanceMatrix, List<Dendrogram>> runNeighborJoining (
-            DistanceMatrix matrix,
-            List<Dendrogram> subtrees
+    private void runNeighborJoining (
+            PackedDistanceMatrix D,
+            Dendrogram[] subtrees
     ) {
-        double[][] D = matrix.getDistances();
-        int n = D.length;
-        List<String> names = matrix.getIds();
-        double[] rowSumVector = n == 2 ? new double[]{0, 0} :  rowSums(D);
+        int n = D.getNumActive();
+        double[] rowSumVector = new double[subtrees.length];
+        if (n > 2) {
+            double[] sums = D.calculateRowSums();
+            for (int i = 0; i < n; i++) rowSumVector[D.getSlot(i)] = sums[i] / (n - 2.0);
+        } else {
+            for (int i = 0; i < n; i++) rowSumVector[D.getSlot(i)] = 0;
+        }
         List<Pair<Integer, Integer>> neighbors = findNeighbors(D, rowSumVector);
 
-        List<String> newNodeNames = new ArrayList<>();
+        boolean[] removed = new boolean[n];
+        List<Pair<Integer, Integer>> joined = new ArrayList<>(neighbors.size());
         for (Pair<Integer, Integer> x : neighbors) {
-            int u = x.first;
-            int v = x.second;
-            newNodeNames.add(names.get(u) + "!" + names.get(v));
-        }
-
-        List<Dendrogram> newNodes = new ArrayList<>();
-        for (int i = 0; i < neighbors.size(); i++) {
-            Pair<Integer, Integer> x = neighbors.get(i);
-            int u = x.first;
-            int v = x.second;
-            String name = newNodeNames.get(i);
+            removed[x.first] = true;
+            removed[x.second] = true;
+            int u = D.getSlot(x.first);
+            int v = D.getSlot(x.second);
+            double duv = D.getDistance(u, v);
             Pair<Double, Double> distances = n == 2 ?
-                    new Pair<>(0.5 * D[u][v], 0.5 * D[u][v]) :
-                    NJDistances.distanceBetweenNeighbors(D, rowSumVector, x);
-            newNodes.add(Dendrogram.join2(name, distances, new Pair<>(
-                    subtrees.get(u),
-                    subtrees.get(v)
-            )));
+                    new Pair<>(0.5 * duv, 0.5 * duv) :
+                    NJDistances.distanceBetweenNeighbors(duv, rowSumVector[u], rowSumVector[v]);
+            // Internal nodes are not labeled in the Newick output
+            subtrees[u] = Dendrogram.join2("", distances, new Pair<>(subtrees[u], subtrees[v]));
+            subtrees[v] = null;
+            joined.add(new Pair<>(u, v));
         }
-
-        Set<Integer> indices = new HashSet<>();
-        for (Pair<Integer, Integer> x : neighbors) {
-            indices.add(x.first);
-            indices.add(x.second);
-        }
-
-        List<String> newNames = concat(
-                deleteFromList(names, indices),
-                newNodeNames
-        );
-        List<Dendrogram> newSubtrees = concat(
-                deleteFromList(subtrees, indices),
-                newNodes
-        );
-        double[][] newD = recalculateDistances(D, neighbors, indices);
-        return new Pair<>(
-                new DistanceMatrix(newNames, newD),
-                newSubtrees
-        );
+        recalculateDistances(D, joined, removed);
     }
 
     /**
@@ -299,28 +238,29 @@ public class FastNJ implements DistanceMatrixClustering {
      * @return The initial set of trees, each one containing only one node
      * labeled by the taxa to be clustered
      */
-    private List<Dendrogram> initializeSubtrees (List<String> names) {
-        List<Dendrogram> subtrees = new ArrayList<>(names.size());
-        for (String name : names) subtrees.add(new Dendrogram(name));
+    private Dendrogram[] initializeSubtrees (List<String> names) {
+        Dendrogram[] subtrees = new Dendrogram[names.size()];
+        for (int i = 0; i < subtrees.length; i++) subtrees[i] = new Dendrogram(names.get(i));
         return subtrees;
     }
 
     /**
      * Clusters a given set of sequences characterized by a pairwise distance
      * matrix. Runs the runNeighborJoining function until the resulting list
-     * of trees is reduced to only one tree.
+     * of trees is reduced to only one tree. The distance matrix is updated in place
      * @param distances - Initial distance matrix
      * @return - A binary tree (dendrogram) that clusters the given sequences.
      */
     @Override
     public Dendrogram buildDendrogram(DistanceMatrix distances) {
-        List<Dendrogram> subtrees = initializeSubtrees(distances.getIds());
-        DistanceMatrix matrix = distances;
-        while (subtrees.size() > 1) {
-            Pair<DistanceMatrix, List<Dendrogram>> njResult = runNeighborJoining(matrix, subtrees);
-            matrix = njResult.first;
-            subtrees = njResult.second;
+        Dendrogram[] subtrees = initializeSubtrees(distances.getIds());
+        PackedDistanceMatrix D = new PackedDistanceMatrix(distances);
+        D.setNumThreads(numThreads);
+        try {
+            while (D.getNumActive() > 1) runNeighborJoining(D, subtrees);
+        } finally {
+            D.close();
         }
-        return subtrees.get(0);
+        return subtrees[D.getSlot(0)];
     }
 }
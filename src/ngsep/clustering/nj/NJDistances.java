@@ -17,38 +17,34 @@ public final class NJDistances {
      * Given a pair of neighbors nodes (u, v), calculates the distance of each
      * one to a new node x. Returns a pair (dux, dvx) with the distance between u
      * and x, and the distance between v and x respectively
-     * @param D - Distance matrix
-     * @param rowSumVector - A vector defined as rowSumVector_i = 1 / (n - 2) * \sum_{j=1}^n D_{i j} for all 1<= i <= n
-     * @param neighbors - The pair of neighbors (u, v) to be joined
+     * @param duv - Distance between u and v
+     * @param rowSumU - Value of the vector rowSumVector_i = 1 / (n - 2) * \sum_{j=1}^n D_{i j} for u
+     * @param rowSumV - Value of the vector rowSumVector_i = 1 / (n - 2) * \sum_{j=1}^n D_{i j} for v
      * @return A pair (dux, dvx) with the distance between u and x, and the distance between v and x respectively
      */
     public static Pair<Double, Double> distanceBetweenNeighbors (
-            double[][] D,
-            double[] rowSumVector,
-            Pair<Integer, Integer> neighbors
+            double duv,
+            double rowSumU,
+            double rowSumV
     ) {
-        int u = neighbors.first;
-        int v = neighbors.second;
-        double dux = 0.5 * (D[u][v] + rowSumVector[u] - rowSumVector[v]);
-        double dvx = D[u][v] - dux;
+        double dux = 0.5 * (duv + rowSumU - rowSumV);
+        double dvx = duv - dux;
         return new Pair<>(dux, dvx);
     }
 
     /**
      * Given a new node x that joins the pair of existing nodes (u, v), calculates the distance
-     * from x to any old node (present in the distance matrix).
-     * @param D - Distance matrix
-     * @param newNode - Node x characterized by the pair of neighbors (u, v)
-     * @param oldNode - Index of an old node present in the distance matrix
-     * @return the distance from x to any old node (present in the distance matrix)
+     * from x to any old node k.
+     * @param duk - Distance between u and the old node k
+     * @param dvk - Distance between v and the old node k
+     * @param duv - Distance between u and v
+     * @return the distance from x to the old node k
      */
     public static double distanceBetweenNewAndOldNode (
-            double[][] D,
-            Pair<Integer, Integer> newNode,
-            int oldNode
+            double duk,
+            double dvk,
+            double duv
     ) {
-        int u = newNode.first;
-        int v = newNode.second;
-        return 0.5 * (D[u][oldNode] + D[v][oldNode] - D[u][v]);
+        return 0.5 * (duk + dvk - duv);
     }
 }
@@ -2,21 +2,23 @@ package ngsep.clustering.nj;
 
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 
 import ngsep.clustering.DistanceMatrix;
 import ngsep.clustering.DistanceMatrixClustering;
+import ngsep.clustering.PackedDistanceMatrix;
 import ngsep.clustering.Pair;
 import ngsep.clustering.dendrogram.Dendrogram;
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
 
 
 public class NeighborJoining implements DistanceMatrixClustering {
 
 	// Constants for default values
+	public static final int DEF_NUM_THREADS = 1;
 
 	// Logging and progress
 	private Logger log = Logger.getLogger(NeighborJoining.class.getName());
@@ -25,6 +27,7 @@ public class NeighborJoining implements DistanceMatrixClustering {
 	//Parameters
 	private String inputFile = null;
 	private String outputFile = null;
+	private int numThreads = DEF_NUM_THREADS;
 
 	// Get and set methods
 	public Logger getLog() {
@@ -55,6 +58,16 @@ public class NeighborJoining implements DistanceMatrixClustering {
 		this.outputFile = outputFile;
 	}
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+
  	public static void main (String [ ] args) throws Exception {
 		NeighborJoining instance = new NeighborJoining();
 		CommandsDescriptor.getInstance().loadOptions(instance, args);
@@ -85,196 +98,84 @@ public class NeighborJoining implements DistanceMatrixClustering {
 
 	}
 
-	// List helpers
-
-	/**
-	 * Returns a new List without the elements specified by the pair
-	 * of indices in the given list
-	 * @param xs - List of elements
-	 * @param neighbors - Pair of indices to remove
-	 * @param <A> - Parameterized type of the list
-	 * @return A new list without the elements specified by the pair of indices
-	 */
-	private <A> List<A> deleteFromList (List<A> xs, Pair<Integer, Integer> neighbors) {
-		int n = xs.size();
-		int u = neighbors.first;
-		int v = neighbors.second;
-		ArrayList<A> ys = new ArrayList<>(n);
-		for (int i = 0; i < n; i++) {
-			if (i != u && i != v) ys.add(xs.get(i));
-		}
-		return ys;
-	}
-
-	// Distance calculations
-
-	/**
-	 * @param D - Distance Matrix
-	 * @return A vector from a distance matrix D of size n x n, defined as:
-	 * rowSumVector_i = 1 / (n - 2) * \sum_{j=1}^n D_{i j} for all 1<= i <= n
-	 */
-	private double[] rowSums (double[][] D) {
-		int n = D.length;
-		double[] a = new double[n];
-		for (int i = 0; i < n; i++) {
-			for (int j = 0; j < n; j++) {
-				a[i] += D[i][j];
-			}
-			a[i] /= (n - 2.0);
-		}
-		return a;
-	}
-
-	// Neighbor operations
-
-	/**
-	 * @param D - Distance matrix
-	 * @param rowSumVector - A vector defined as rowSumVector_i = 1 / (n - 2) * \sum_{j=1}^n D_{i j} for all 1<= i <= n
-	 * @return a pair of nodes (u, v) = argmin_{(i, j)} D_{i j} - rowSumVector_i - rowSumVector_j
-	 */
-	private Pair<Integer, Integer> findNeighbors (
-			double[][] D,
-			double[] rowSumVector
-	) {
-		int n = D.length;
-		int u = 0;
-		int v = 0;
-		double minS = Double.MAX_VALUE;
-		for (int i = 0; i < n; i++) {
-			for (int j = i + 1; j < n; j++) {
-				double S = D[i][j] - rowSumVector[i] - rowSumVector[j];
-				if (S < minS) {
-					minS = S;
-					u = i;
-					v = j;
-				}
-			}
-		}
-		return new Pair<>(u, v);
-	}
-
-	/**
-	 *
-	 * @param D - Distance matrix of size n
-	 * @param neighbors - The pair of neighbors (u, v) joined by x
-	 * @return A new distance matrix D' of size n - 1, in which the nodes/indices
-	 * (u, v) are replaced are merged into a new node x, and is represented as
-	 * the last row (and column) in D'. Distances from x to the other nodes is calculated
-	 * using distanceBetweenNewAndOldNode.
-	 */
-	private double[][] recalculateDistances (
-			double[][] D,
-			Pair<Integer, Integer> neighbors
-	) {
-		int n = D.length;
-		int u = neighbors.first;
-		int v = neighbors.second;
-		double[][] newD = new double[n - 1][n - 1];
-
-		int x = 0;
-		int y = 0;
-		for (int i = 0; i < n; i++) {
-			if (i != u && i != v) {
-				for (int j = 0; j < n; j++) {
-					if (j != u && j != v) {
-						newD[x][y] = D[i][j];
-						y++;
-					}
-				}
-				y = 0;
-				x++;
-			}
-		}
-
-		x = 0;
-		for (int i = 0; i < n; i++) {
-			if (i != u && i != v){
-				newD[x][n - 2] = NJDistances
-						.distanceBetweenNewAndOldNode(D, neighbors, i);
-				newD[n - 2][x] = newD[x][n - 2];
-				x++;
-			}
-		}
-
-		return newD;
-	}
-
 	// Neighbor joining algorithm
 
-	/**
-	 * Receives a list of nodes (trees) and the distance matrix that specifies the pairwise distance
-	 * between each node.
-	 * Runs an iteration of the neighbor joining algorithm, described by the following steps:
-	 * 1. Calculates a vector rowSumVector_i = 1 / (n - 2) * \sum_{j=1}^n D_{i j} for all 1<= i <= n to use
-	 * when finding neighbors and calculating their distances.
-	 * 2. Find a pair of neighbors (u, v) in accordance to the findNeighbors function.
-	 * 3. Join nodes (u, v) to a new node x calculating their distances (dux, dvx).
-	 * 4. Recalculate the labels of the trees and distance matrix taking into account the new merged node x.
-	 * Return the new distance matrix and the new list of trees
-	 * @param matrix - Distance matrix
-	 * @param subtrees - List of node (trees) characterized by the distance matrix
-	 * @return A pair with the new distance matrix and the new list of trees
-	 */
-	private Pair<DistanceMatrix, List<Dendrogram>> runNeighborJoining (
-			DistanceMatrix matrix,
-			List<Dendrogram> subtrees
-	) {
-		double[][] D = matrix.getDistances();
-		int n = D.length;
-		List<String> names = matrix.getIds();
-		double[] rowSumVector = n == 2 ? new double[]{0, 0} : rowSums(D);
-		Pair<Integer, Integer> neighbors = findNeighbors(D, rowSumVector);
-		int u = neighbors.first;
-		int v = neighbors.second;
-		String newNodeName = names.get(u) + "!" + names.get(v);
-		Pair<Double, Double> neighborDistances = n == 2 ?
-				new Pair<>(0.5 * D[u][v], 0.5 * D[u][v]) :
-				NJDistances.distanceBetweenNeighbors(D, rowSumVector, neighbors);
-		Dendrogram newNode = Dendrogram.join2(newNodeName, neighborDistances, new Pair<>(
-				subtrees.get(u),
-				subtrees.get(v)
-		));
-
-		List<String> newNames = deleteFromList(names, neighbors);
-		newNames.add(newNodeName);
-		List<Dendrogram> newSubtrees = deleteFromList(subtrees, neighbors);
-		newSubtrees.add(newNode);
-		double[][] newD = recalculateDistances(D, neighbors);
-		return new Pair<>(
-				new DistanceMatrix(newNames, newD),
-				newSubtrees
-		);
-	}
-
 	/**
 	 *
 	 * @param names - The labels of each leaf in the tree to be constructed
 	 * @return The initial set of trees, each one containing only one node
 	 * labeled by the taxa to be clustered
 	 */
-	private List<Dendrogram> initializeSubtrees (List<String> names) {
-		List<Dendrogram> subtrees = new ArrayList<>(names.size());
-		for (String name : names) subtrees.add(new Dendrogram(name));
+	private Dendrogram[] initializeSubtrees (List<String> names) {
+		Dendrogram[] subtrees = new Dendrogram[names.size()];
+		for (int i = 0; i < subtrees.length; i++) subtrees[i] = new Dendrogram(names.get(i));
 		return subtrees;
 	}
 
 	/**
 	 * Clusters a given set of sequences characterized by a pairwise distance
-	 * matrix. Runs the runNeighborJoining function until the resulting list
-	 * of trees is reduced to only one tree.
+	 * matrix. Each iteration of the algorithm runs the following steps:
+	 * 1. Calculates a vector rowSumVector_i = 1 / (n - 2) * \sum_{j=1}^n D_{i j} for all 1<= i <= n to use
+	 * when finding neighbors and calculating their distances.
+	 * 2. Find the pair of neighbors (u, v) = argmin_{(i, j)} D_{i j} - rowSumVector_i - rowSumVector_j
+	 * 3. Join nodes (u, v) to a new node x calculating their distances (dux, dvx).
+	 * 4. Stores x in the slot of u and updates in place the distances from x to the other nodes
+	 * and the sums of distances of each node.
+	 * Iterations continue until only one tree remains.
 	 * @param distances - Initial distance matrix
 	 * @return - A binary tree (dendrogram) that clusters the given sequences.
 	 */
 	@Override
 	public Dendrogram buildDendrogram(DistanceMatrix distances) {
-		List<Dendrogram> subtrees = initializeSubtrees(distances.getIds());
-		DistanceMatrix matrix = distances;
-		while (subtrees.size() > 1) {
-			Pair<DistanceMatrix, List<Dendrogram>> njResult = runNeighborJoining(matrix, subtrees);
-			matrix = njResult.first;
-			subtrees = njResult.second;
+		Dendrogram[] subtrees = initializeSubtrees(distances.getIds());
+		PackedDistanceMatrix D = new PackedDistanceMatrix(distances);
+		D.setNumThreads(numThreads);
+		try {
+			runNeighborJoining(D, subtrees);
+		} finally {
+			D.close();
+		}
+		return subtrees[D.getSlot(0)];
+	}
+
+	private void runNeighborJoining (PackedDistanceMatrix D, Dendrogram[] subtrees) {
+		int n = D.getNumActive();
+		// Sums of distances indexed by slot. Initially slots and positions are the same
+		double[] sums = D.calculateRowSums();
+		double[] rowSumVector = new double[n];
+		boolean[] removed = new boolean[n];
+		while (D.getNumActive() > 1) {
+			int m = D.getNumActive();
+			for (int i = 0; i < m; i++) {
+				int slot = D.getSlot(i);
+				rowSumVector[slot] = m == 2 ? 0 : sums[slot] / (m - 2.0);
+			}
+			int[] neighbors = D.findMinimumPair((i, j, dij) -> dij - rowSumVector[i] - rowSumVector[j]);
+			int u = D.getSlot(neighbors[0]);
+			int v = D.getSlot(neighbors[1]);
+			double duv = D.getDistance(u, v);
+			Pair<Double, Double> neighborDistances = m == 2 ?
+					new Pair<>(0.5 * duv, 0.5 * duv) :
+					NJDistances.distanceBetweenNeighbors(duv, rowSumVector[u], rowSumVector[v]);
+			// Internal nodes are not labeled in the Newick output
+			subtrees[u] = Dendrogram.join2("", neighborDistances, new Pair<>(subtrees[u], subtrees[v]));
+			subtrees[v] = null;
+
+			removed[neighbors[0]] = removed[neighbors[1]] = true;
+			D.removeActive(removed);
+			removed[neighbors[0]] = removed[neighbors[1]] = false;
+			double sumX = 0;
+			for (int i = 0; i < D.getNumActive(); i++) {
+				int k = D.getSlot(i);
+				double duk = D.getDistance(u, k);
+				double dvk = D.getDistance(v, k);
+				double dxk = NJDistances.distanceBetweenNewAndOldNode(duk, dvk, duv);
+				sums[k] += dxk - duk - dvk;
+				sumX += dxk;
+				D.setDistance(u, k, dxk);
+			}
+			sums[u] = sumX;
+			D.addActive(u);
 		}
-		return subtrees.get(0);
 	}
 }
-
@@ -91,6 +91,34 @@ public class CountsHelper {
 		}
 		return helper;
 	}
+	/**
+	 * Calculates counts to call SNVs from the given base calls
+	 * @param calls Single base pair calls of a pileup position
+	 * @param maxBaseQS maximum base quality score. Larger quality scores are equalized to this value
+	 * @param heterozygousProportion Expected proportion of the alleles of a heterozygous genotype
+	 * @return CountsHelper object with counts and probabilities to call SNVs
+	 */
+	public static CountsHelper calculateCountsSNV (PileupBaseCalls calls, byte maxBaseQS, double heterozygousProportion) {
+		return calculateCountsGTSNV(DNASequence.BASES_ARRAY, calls, maxBaseQS, heterozygousProportion);
+	}
+	public static CountsHelper calculateCountsGTSNV(String [] alleles, PileupBaseCalls calls, byte maxBaseQS, double heterozygousProportion) {
+		CountsHelper helper = new CountsHelper(alleles);
+		if(maxBaseQS>0) helper.setMaxBaseQS(maxBaseQS);
+		helper.setHeterozygousProportion(heterozygousProportion);
+		//Index of the allele of each base pair
+		int [] alleleIndexes = new int [128];
+		Arrays.fill(alleleIndexes, -1);
+		for(int i=alleles.length-1;i>=0;i--) {
+			if(alleles[i].length()==1 && alleles[i].charAt(0)<alleleIndexes.length) alleleIndexes[alleles[i].charAt(0)] = i;
+		}
+		int n = calls.size();
+		for(int i=0;i<n;i++) {
+			char base = calls.getBase(i);
+			int index = (base<alleleIndexes.length)?alleleIndexes[base]:-1;
+			helper.updateCounts(index, calls.getQualityScore(i), calls.isNegativeStrand(i));
+		}
+		return helper;
+	}
 	public static CountsHelper calculateCountsIndel(String [] alleles, List<PileupAlleleCall> calls, byte maxBaseQS, double heterozygousProportion, boolean verbose) {
 		CountsHelper helper = new CountsHelper(alleles);
 		helper.setVerbose(verbose);
@@ -198,6 +226,15 @@ public class CountsHelper {
 	 * @param negativeStrand True if the allele comes from a read aligned to the negative strand
 	 */
 	public void updateCounts (String allele, byte qualScore, boolean negativeStrand) {
+		updateCounts(alleles.indexOf(allele), qualScore, negativeStrand);
+	}
+	/**
+	 * Updates counts and conditional probabilities for the allele call with the given index
+	 * @param index Index of the called allele. Calls with negative indexes only update the total count
+	 * @param qualScore Quality score of the allele call in Phred scale
+	 * @param negativeStrand True if the allele comes from a read aligned to the negative strand
+	 */
+	public void updateCounts (int index, byte qualScore, boolean negativeStrand) {
 		totalCount++;
 		//TODO: Move to setter
 		int f = (int)Math.round(heterozygousProportion*(DEF_NUM_FREQUENCIES-1));
@@ -208,7 +245,6 @@ public class CountsHelper {
 		} else if (qualScore>maxBaseQS) {
 			qualScore = maxBaseQS;
 		}
-		int index = alleles.indexOf(allele);
 		if(index>=0) {
 			//Update raw count
 			counts[index]++;
@@ -20,8 +20,22 @@
 package ngsep.discovery;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import ngsep.alignments.ReadAlignment;
@@ -30,33 +44,51 @@ import ngsep.genome.ReferenceGenome;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
+import ngsep.main.io.ParseUtils;
 import ngsep.sequences.QualifiedSequence;
+import ngsep.sequences.QualifiedSequenceList;
 
 
-public class CoverageStatisticsCalculator implements PileupListener {
+/**
+ * Calculates the distribution of read depth over the genome. Depth is calculated from the start and end
+ * of each alignment accumulating differences over fixed windows of each sequence. Windows of different sequences
+ * are processed in parallel while the alignments file is read
+ * @author Jorge Duitama
+ */
+public class CoverageStatisticsCalculator {
 	
 	// Constants for default values
 	public static final int DEF_MIN_MQ_UNIQUE_ALIGNMENT = ReadAlignment.DEF_MIN_MQ_UNIQUE_ALIGNMENT;
+	public static final int DEF_MAX_ALNS_PER_START_POS = 100;
+	public static final int DEF_BIN_SIZE = 1000;
+	public static final int DEF_NUM_THREADS = 1;
+	//Number of alignments processed by each task
+	private static final int ALIGNMENTS_BATCH = 100000;
+	//Minimum length of the windows used to accumulate depth differences
+	private static final int MIN_WINDOW_LENGTH = 65536;
 		
 	// Logging and progress
 	private Logger log = Logger.getLogger(CoverageStatisticsCalculator.class.getName());
 	private ProgressNotifier progressNotifier = null;
-	private long coveredGenomeSize = 0;
 	private long genomeSizeBAMFile = 0;
 	
 	// Parameters
 	private String inputFile = null;
 	private String outputFile = null;
+	private String binsFile = null;
 	private ReferenceGenome genome = null;
 	private int minMQ = ReadAlignment.DEF_MIN_MQ_UNIQUE_ALIGNMENT;
+	private int maxAlnsPerStartPos = DEF_MAX_ALNS_PER_START_POS;
+	private int binSize = DEF_BIN_SIZE;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	// Model attributes
-	private AlignmentsPileupGenerator generator;
 	private int maxCoverage = 300;
-	private int [] coverageCounts;
-	private int highCoverageCount = 0;
-	private int [] coverageCountUniqueAlignments;
-	private int highCoverageCountUniqueAlignments = 0;
+	private long [] coverageCounts;
+	private long highCoverageCount = 0;
+	private long [] coverageCountUniqueAlignments;
+	private long highCoverageCountUniqueAlignments = 0;
+	private List<SequenceDepthAccumulator> sequencesDepth = new ArrayList<SequenceDepthAccumulator>();
 	
 	
 	
@@ -88,6 +120,13 @@ public class CoverageStatisticsCalculator implements PileupListener {
 		this.outputFile = outputFile;
 	}
 	
+	public String getBinsFile() {
+		return binsFile;
+	}
+	public void setBinsFile(String binsFile) {
+		this.binsFile = binsFile;
+	}
+	
 	public int getMinMQ() {
 		return minMQ;
 	}
@@ -98,6 +137,37 @@ public class CoverageStatisticsCalculator implements PileupListener {
 		this.setMinMQ((int)OptionValuesDecoder.decode(value, Integer.class));
 	}
 	
+	public int getMaxAlnsPerStartPos() {
+		return maxAlnsPerStartPos;
+	}
+	public void setMaxAlnsPerStartPos(int maxAlnsPerStartPos) {
+		this.maxAlnsPerStartPos = maxAlnsPerStartPos;
+	}
+	public void setMaxAlnsPerStartPos(String value) {
+		this.setMaxAlnsPerStartPos((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public int getBinSize() {
+		return binSize;
+	}
+	public void setBinSize(int binSize) {
+		if(binSize<1) throw new IllegalArgumentException("Invalid bin size: "+binSize);
+		this.binSize = binSize;
+	}
+	public void setBinSize(String value) {
+		this.setBinSize((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		this.setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	public ReferenceGenome getGenome() {
 		return genome;
 	}
@@ -122,51 +192,170 @@ public class CoverageStatisticsCalculator implements PileupListener {
 	}
 	public void processFile(String inputFile, String outputFile) throws IOException {
 		reset();
-		coveredGenomeSize = 0;
-		try (ReadAlignmentFileReader reader = new ReadAlignmentFileReader(inputFile)){ 
-			genomeSizeBAMFile = reader.getSequences().getTotalLength();
-		}
-		if(genomeSizeBAMFile == 0) genomeSizeBAMFile = 1000000000;
-		generator = new AlignmentsPileupGenerator();
-		generator.setLog(log);
-		generator.setProcessSecondaryAlignments(true);
-		generator.setMaxAlnsPerStartPos(100);
-		generator.setMinMQ(minMQ);
-		if(genome!=null) generator.setGenome(genome);
-		generator.addListener(this);
-		generator.processFile(inputFile);
+		calculateDepth(inputFile);
+		for(SequenceDepthAccumulator seqDepth:sequencesDepth) {
+			long [] seqCounts = seqDepth.getCoverageCounts();
+			long [] seqCountsUnique = seqDepth.getCoverageCountsUniqueAlignments();
+			for(int i=0;i<maxCoverage;i++) {
+				coverageCounts[i]+=seqCounts[i];
+				coverageCountUniqueAlignments[i]+=seqCountsUnique[i];
+			}
+			highCoverageCount+=seqDepth.getHighCoverageCount();
+			highCoverageCountUniqueAlignments+=seqDepth.getHighCoverageCountUniqueAlignments();
+		}
 		if(outputFile!=null) {
 			try (PrintStream out = new PrintStream(outputFile)){
 				printCoverageStats(out);
 			}
-		} else printCoverageStats(System.out);	 
+		} else printCoverageStats(System.out);
+		if(binsFile!=null) {
+			try (PrintStream out = new PrintStream(binsFile)){
+				printBins(out);
+			}
+		}
 	}
-	@Override
-	public void onPileup(PileupRecord pileup) {
-		processPileup(pileup);
-		coveredGenomeSize++;
-		if(progressNotifier!=null && coveredGenomeSize%10000==0) {
-			int progress = 10+(int)Math.round(85.0*coveredGenomeSize/genomeSizeBAMFile);
-			generator.setKeepRunning(progressNotifier.keepRunning(progress));
+	
+	private void calculateDepth(String inputFile) throws IOException {
+		ExecutorService pool = null;
+		if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<?>> pendingTasks = new ArrayDeque<Future<?>>();
+		try (ReadAlignmentFileReader reader = new ReadAlignmentFileReader(inputFile, genome)) {
+			QualifiedSequenceList sequences = reader.getSequences();
+			genomeSizeBAMFile = sequences.getTotalLength();
+			if(genomeSizeBAMFile == 0) genomeSizeBAMFile = 1000000000;
+			reader.setLoadMode(ReadAlignmentFileReader.LOAD_MODE_MINIMAL);
+			reader.setFilterFlags(ReadAlignment.FLAG_READ_UNMAPPED);
+			reader.setMinMQ(minMQ);
+			Set<String> processedSequences = new HashSet<String>();
+			SequenceDepthAccumulator seqDepth = null;
+			//Last task submitted for the current sequence. Tasks of the same sequence must run in order
+			Future<?> lastTask = null;
+			AlignmentsBatch batch = new AlignmentsBatch();
+			List<ReadAlignment> sameStartPrimaryAlns = new ArrayList<ReadAlignment>();
+			List<ReadAlignment> sameStartSecondaryAlns = new ArrayList<ReadAlignment>();
+			long processedLength = 0;
+			long numAlns = 0;
+			Iterator<ReadAlignment> it = reader.iterator();
+			while(it.hasNext()) {
+				ReadAlignment aln = it.next();
+				boolean sequenceChange = seqDepth==null || !seqDepth.getSequenceName().equals(aln.getSequenceName());
+				if(sequenceChange || sameStartPrimaryAlns.size()+sameStartSecondaryAlns.size()>0 && getFirst(sameStartPrimaryAlns, sameStartSecondaryAlns)!=aln.getFirst()) {
+					selectSameStartAlns(sameStartPrimaryAlns, sameStartSecondaryAlns, batch);
+				}
+				if(sequenceChange || batch.size()>=ALIGNMENTS_BATCH) {
+					if(seqDepth!=null) {
+						lastTask = submit(seqDepth, batch, sequenceChange, lastTask, pool, pendingTasks);
+						batch = new AlignmentsBatch();
+					}
+					if(sequenceChange) {
+						String seqName = aln.getSequenceName();
+						if(!processedSequences.add(seqName)) throw new IOException("Alignments file is not sorted. Alignments to sequence "+seqName+" found after alignments to other sequences");
+						if(seqDepth!=null) processedLength+=seqDepth.getSequenceLength();
+						QualifiedSequence seq = sequences.get(seqName);
+						int seqLength = seq!=null?seq.getLength():0;
+						seqDepth = new SequenceDepthAccumulator(seqName, seqLength, maxCoverage, binSize, getWindowLength());
+						sequencesDepth.add(seqDepth);
+						lastTask = null;
+						log.info("Processing sequence "+seqName);
+					}
+				}
+				if(aln.isSecondary()) sameStartSecondaryAlns.add(aln);
+				else sameStartPrimaryAlns.add(aln);
+				numAlns++;
+				if(progressNotifier!=null && numAlns%10000==0) {
+					int progress = 10+(int)Math.round(85.0*(processedLength+aln.getFirst())/genomeSizeBAMFile);
+					if(!progressNotifier.keepRunning(progress)) {
+						log.warning("Cancelled process");
+						return;
+					}
+				}
+			}
+			if(seqDepth!=null) {
+				selectSameStartAlns(sameStartPrimaryAlns, sameStartSecondaryAlns, batch);
+				submit(seqDepth, batch, true, lastTask, pool, pendingTasks);
+			}
+			while(!pendingTasks.isEmpty()) waitTask(pendingTasks.removeFirst());
+		} finally {
+			if(pool!=null) pool.shutdownNow();
 		}
 	}
-	@Override
-	public void onSequenceStart(QualifiedSequence sequenceName) {
-		
+	
+	private int getWindowLength() {
+		int binsPerWindow = (MIN_WINDOW_LENGTH+binSize-1)/binSize;
+		return binsPerWindow*binSize;
 	}
-	@Override
-	public void onSequenceEnd(QualifiedSequence sequenceName) {
-		
+	
+	private static int getFirst(List<ReadAlignment> primaryAlns, List<ReadAlignment> secondaryAlns) {
+		if(primaryAlns.size()>0) return primaryAlns.get(0).getFirst();
+		return secondaryAlns.get(0).getFirst();
+	}
+	
+	/**
+	 * Adds to the given batch the alignments starting at the same position. Alignments are selected per read group
+	 * up to the maximum number of alignments per start position, giving priority to primary alignments
+	 * @param primaryAlns Primary alignments starting at the same position
+	 * @param secondaryAlns Secondary alignments starting at the same position
+	 * @param batch Batch to store the selected alignments
+	 */
+	private void selectSameStartAlns(List<ReadAlignment> primaryAlns, List<ReadAlignment> secondaryAlns, AlignmentsBatch batch) {
+		Map<String,Integer> alnsPerReadGroup = new HashMap<String, Integer>();
+		selectSameStartAlns(primaryAlns, alnsPerReadGroup, batch);
+		selectSameStartAlns(secondaryAlns, alnsPerReadGroup, batch);
+		primaryAlns.clear();
+		secondaryAlns.clear();
+	}
+	private void selectSameStartAlns(List<ReadAlignment> alns, Map<String,Integer> alnsPerReadGroup, AlignmentsBatch batch) {
+		for(ReadAlignment aln:alns) {
+			Integer count = alnsPerReadGroup.get(aln.getReadGroup());
+			if(count == null) {
+				alnsPerReadGroup.put(aln.getReadGroup(), 1);
+			} else if (maxAlnsPerStartPos<=0 || count<maxAlnsPerStartPos) {
+				alnsPerReadGroup.put(aln.getReadGroup(), count+1);
+			} else continue;
+			batch.add(aln.getFirst(), aln.getLast(), aln.isUnique());
+		}
 	}
+	
+	private Future<?> submit(SequenceDepthAccumulator seqDepth, AlignmentsBatch batch, boolean lastBatch, Future<?> previousTask, ExecutorService pool, Deque<Future<?>> pendingTasks) throws IOException {
+		if(pool==null) {
+			processBatch(seqDepth, batch, lastBatch);
+			return null;
+		}
+		Future<?> task = pool.submit(()-> {
+			//The previous task was submitted before, so it is already running or finished
+			if(previousTask!=null) previousTask.get();
+			processBatch(seqDepth, batch, lastBatch);
+			return null;
+		});
+		pendingTasks.addLast(task);
+		if(pendingTasks.size()>=2*numThreads) waitTask(pendingTasks.removeFirst());
+		return task;
+	}
+	
+	private void processBatch(SequenceDepthAccumulator seqDepth, AlignmentsBatch batch, boolean lastBatch) {
+		for(int i=0;i<batch.size();i++) seqDepth.addAlignment(batch.getFirst(i), batch.getLast(i), batch.isUnique(i));
+		if(lastBatch) seqDepth.finish();
+	}
+	
+	private void waitTask(Future<?> task) throws IOException {
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while calculating read depth");
+		} catch (ExecutionException e) {
+			throw new IOException("Error calculating read depth", e.getCause());
+		}
+	}
+	
 	public void reset() {
-		this.coverageCounts = new int[maxCoverage];
-		Arrays.fill(coverageCounts, 0);
+		this.coverageCounts = new long[maxCoverage];
 		highCoverageCount = 0;
-		this.coverageCountUniqueAlignments = new int[maxCoverage];
-		Arrays.fill(coverageCountUniqueAlignments, 0);
+		this.coverageCountUniqueAlignments = new long[maxCoverage];
 		highCoverageCountUniqueAlignments = 0;
+		sequencesDepth.clear();
 	}
-	public int[] getCoverageCounts() {
+	public long[] getCoverageCounts() {
 		return coverageCounts;
 	}
 	public int getMaxCoverage() {
@@ -178,24 +367,9 @@ public class CoverageStatisticsCalculator implements PileupListener {
 	}
 
 
-	public int getHighCoverageCount() {
+	public long getHighCoverageCount() {
 		return highCoverageCount;
 	}
-
-	public void processPileup (PileupRecord record) {
-		int calls = record.getNumAlignments();
-		if(calls < coverageCounts.length) {
-			coverageCounts[calls]++;
-		} else {
-			highCoverageCount++;
-		}
-		int callsUniqueAlns = record.getNumUniqueAlns();
-		if(callsUniqueAlns < coverageCountUniqueAlignments.length) {
-			coverageCountUniqueAlignments[callsUniqueAlns]++;
-		} else {
-			highCoverageCountUniqueAlignments++;
-		}
-	}
 	
 	public int getCoverageMaxCount() {
 		int maxIndex = 1;
@@ -213,4 +387,239 @@ public class CoverageStatisticsCalculator implements PileupListener {
 		out.println("More\t"+highCoverageCount+"\t"+highCoverageCountUniqueAlignments);
 		out.flush();
 	}
+	/**
+	 * Prints the average read depth of each bin of each sequence with alignments.
+	 * Each line has the sequence name, the bin limits, the average depth and the average depth of unique alignments
+	 * @param out Stream to print the bins
+	 */
+	public void printBins(PrintStream out) {
+		for(SequenceDepthAccumulator seqDepth:sequencesDepth) {
+			String seqName = seqDepth.getSequenceName();
+			int seqLength = seqDepth.getSequenceLength();
+			int numBins = seqDepth.getNumBins();
+			for(int i=0;i<numBins;i++) {
+				int first = i*binSize+1;
+				int last = first+binSize-1;
+				if(seqLength>0 && last>seqLength) last = seqLength;
+				double length = last-first+1;
+				double avgDepth = seqDepth.getBinDepthSum(i)/length;
+				double avgDepthUnique = seqDepth.getBinDepthSumUniqueAlignments(i)/length;
+				out.println(seqName+"\t"+first+"\t"+last+"\t"+ParseUtils.ENGLISHFMT.format(avgDepth)+"\t"+ParseUtils.ENGLISHFMT.format(avgDepthUnique));
+			}
+		}
+		out.flush();
+	}
+}
+/**
+ * Start, end and uniqueness of alignments sent together to one task
+ */
+class AlignmentsBatch {
+	private int [] firsts = new int[1024];
+	private int [] lasts = new int[1024];
+	private boolean [] unique = new boolean[1024];
+	private int size = 0;
+	
+	public void add(int first, int last, boolean uniqueAln) {
+		if(size==firsts.length) {
+			firsts = Arrays.copyOf(firsts, 2*size);
+			lasts = Arrays.copyOf(lasts, 2*size);
+			unique = Arrays.copyOf(unique, 2*size);
+		}
+		firsts[size] = first;
+		lasts[size] = last;
+		unique[size] = uniqueAln;
+		size++;
+	}
+	public int size() {
+		return size;
+	}
+	public int getFirst(int i) {
+		return firsts[i];
+	}
+	public int getLast(int i) {
+		return lasts[i];
+	}
+	public boolean isUnique(int i) {
+		return unique[i];
+	}
+}
+/**
+ * Accumulates the read depth of one sequence. Alignments must be added sorted by start position.
+ * Depth changes at the start and after the end of each alignment are stored in an array covering one window.
+ * When an alignment starts after the current window, depths of the window are calculated and added to the
+ * distribution and to the bins. Ends of alignments beyond the current window are kept until the window that contains them.
+ * Arrays of the window are allocated with the first alignment and released when the sequence is finished,
+ * so that only the distribution and the sums per bin are kept afterwards
+ */
+class SequenceDepthAccumulator {
+	private String sequenceName;
+	private int sequenceLength;
+	private int binSize;
+	private int windowLength;
+	
+	private long [] coverageCounts;
+	private long highCoverageCount = 0;
+	private long [] coverageCountsUniqueAlignments;
+	private long highCoverageCountUniqueAlignments = 0;
+	private long [] binDepthSums = new long[16];
+	private long [] binDepthSumsUniqueAlignments = new long[16];
+	private int numBins = 0;
+	
+	//First position of the current window
+	private int windowStart = 1;
+	private int [] depthChanges = null;
+	private int [] depthChangesUnique = null;
+	//Depth before the first position of the current window
+	private int initialDepth = 0;
+	private int initialDepthUnique = 0;
+	//Positions after the end of alignments finishing after the current window
+	private int [] pendingEnds = new int[16];
+	private boolean [] pendingEndsUnique = new boolean[16];
+	private int numPendingEnds = 0;
+	private boolean windowHasAlignments = false;
+	private boolean finished = false;
+	
+	public SequenceDepthAccumulator(String sequenceName, int sequenceLength, int maxCoverage, int binSize, int windowLength) {
+		this.sequenceName = sequenceName;
+		this.sequenceLength = sequenceLength;
+		this.binSize = binSize;
+		this.windowLength = windowLength;
+		coverageCounts = new long[maxCoverage];
+		coverageCountsUniqueAlignments = new long[maxCoverage];
+		if(sequenceLength>0) numBins = (sequenceLength+binSize-1)/binSize;
+	}
+	public String getSequenceName() {
+		return sequenceName;
+	}
+	public int getSequenceLength() {
+		return sequenceLength;
+	}
+	public long[] getCoverageCounts() {
+		return coverageCounts;
+	}
+	public long getHighCoverageCount() {
+		return highCoverageCount;
+	}
+	public long[] getCoverageCountsUniqueAlignments() {
+		return coverageCountsUniqueAlignments;
+	}
+	public long getHighCoverageCountUniqueAlignments() {
+		return highCoverageCountUniqueAlignments;
+	}
+	/**
+	 * @return int Number of bins from the start of the sequence to the end of the sequence or to the last covered position
+	 */
+	public int getNumBins() {
+		return numBins;
+	}
+	public long getBinDepthSum(int bin) {
+		return bin<binDepthSums.length?binDepthSums[bin]:0;
+	}
+	public long getBinDepthSumUniqueAlignments(int bin) {
+		return bin<binDepthSumsUniqueAlignments.length?binDepthSumsUniqueAlignments[bin]:0;
+	}
+	
+	public void addAlignment(int first, int last, boolean unique) {
+		if(finished) throw new IllegalStateException("Depth calculation of sequence "+sequenceName+" is already finished");
+		if(depthChanges==null) {
+			depthChanges = new int[windowLength];
+			depthChangesUnique = new int[windowLength];
+		}
+		if(first<windowStart) throw new IllegalArgumentException("Alignments of sequence "+sequenceName+" are not sorted. Found alignment starting at "+first+" after processing up to "+(windowStart-1));
+		int windowEnd = windowStart+windowLength;
+		if(first>=windowEnd) {
+			while(first>=windowEnd && (initialDepth>0 || numPendingEnds>0 || windowHasAlignments)) {
+				processWindow();
+				windowEnd = windowStart+windowLength;
+			}
+			if(first>=windowEnd) {
+				//Jump to the window containing the alignment
+				windowStart = ((first-1)/windowLength)*windowLength+1;
+				windowEnd = windowStart+windowLength;
+			}
+		}
+		windowHasAlignments = true;
+		depthChanges[first-windowStart]++;
+		if(unique) depthChangesUnique[first-windowStart]++;
+		int end = last+1;
+		if(end<windowEnd) {
+			depthChanges[end-windowStart]--;
+			if(unique) depthChangesUnique[end-windowStart]--;
+		} else {
+			if(numPendingEnds==pendingEnds.length) {
+				pendingEnds = Arrays.copyOf(pendingEnds, 2*numPendingEnds);
+				pendingEndsUnique = Arrays.copyOf(pendingEndsUnique, 2*numPendingEnds);
+			}
+			pendingEnds[numPendingEnds] = end;
+			pendingEndsUnique[numPendingEnds] = unique;
+			numPendingEnds++;
+		}
+	}
+	
+	/**
+	 * Processes the remaining windows. No more alignments can be added after calling this method
+	 */
+	public void finish() {
+		if(depthChanges!=null) {
+			while(initialDepth>0 || numPendingEnds>0 || windowHasAlignments) processWindow();
+		}
+		finished = true;
+		depthChanges = null;
+		depthChangesUnique = null;
+		pendingEnds = null;
+		pendingEndsUnique = null;
+	}
+	
+	private void processWindow() {
+		int depth = initialDepth;
+		int depthUnique = initialDepthUnique;
+		int bin = (windowStart-1)/binSize;
+		ensureBins(bin+windowLength/binSize);
+		int binEnd = (bin+1)*binSize;
+		for(int j=0;j<windowLength;j++) {
+			int pos = windowStart+j;
+			if(pos>binEnd) {
+				bin++;
+				binEnd+=binSize;
+			}
+			depth+=depthChanges[j];
+			depthUnique+=depthChangesUnique[j];
+			depthChanges[j] = 0;
+			depthChangesUnique[j] = 0;
+			if(depth==0) continue;
+			if(depth<coverageCounts.length) coverageCounts[depth]++;
+			else highCoverageCount++;
+			if(depthUnique<coverageCountsUniqueAlignments.length) coverageCountsUniqueAlignments[depthUnique]++;
+			else highCoverageCountUniqueAlignments++;
+			binDepthSums[bin]+=depth;
+			binDepthSumsUniqueAlignments[bin]+=depthUnique;
+			if(bin>=numBins) numBins = bin+1;
+		}
+		initialDepth = depth;
+		initialDepthUnique = depthUnique;
+		windowHasAlignments = false;
+		windowStart+=windowLength;
+		//Move to the new window the ends of alignments within the window
+		int windowEnd = windowStart+windowLength;
+		int k = 0;
+		for(int i=0;i<numPendingEnds;i++) {
+			int end = pendingEnds[i];
+			if(end<windowEnd) {
+				depthChanges[end-windowStart]--;
+				if(pendingEndsUnique[i]) depthChangesUnique[end-windowStart]--;
+			} else {
+				pendingEnds[k] = end;
+				pendingEndsUnique[k] = pendingEndsUnique[i];
+				k++;
+			}
+		}
+		numPendingEnds = k;
+	}
+	
+	private void ensureBins(int maxBin) {
+		if(maxBin<binDepthSums.length) return;
+		int newLength = Math.max(maxBin+1, 2*binDepthSums.length);
+		binDepthSums = Arrays.copyOf(binDepthSums, newLength);
+		binDepthSumsUniqueAlignments = Arrays.copyOf(binDepthSumsUniqueAlignments, newLength);
+	}
 }
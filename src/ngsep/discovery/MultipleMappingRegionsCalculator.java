@@ -21,12 +21,13 @@ package ngsep.discovery;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
 import ngsep.alignments.ReadAlignment;
 import ngsep.alignments.io.ReadAlignmentFileReader;
+import ngsep.alignments.io.ReadAlignmentsConsumer;
+import ngsep.alignments.io.ReadAlignmentsScanner;
 import ngsep.genome.GenomicRegion;
 import ngsep.genome.GenomicRegionImpl;
 import ngsep.genome.ReferenceGenome;
@@ -36,13 +37,20 @@ import ngsep.variants.GenomicVariant;
 import ngsep.variants.GenomicVariantImpl;
 
 
-public class MultipleMappingRegionsCalculator {
+public class MultipleMappingRegionsCalculator implements ReadAlignmentsConsumer {
 	
 	public static final String SOURCE_MULTIPLE_ALNS = "MultiAlns";
 	
 	private ReferenceGenome genome = null;
 	private int minMQ = ReadAlignment.DEF_MIN_MQ_UNIQUE_ALIGNMENT;
 	
+	// State of the scan of the alignments
+	private List<CalledCNV> multipleMappingRegions = new ArrayList<CalledCNV>();
+	private GenomicRegionImpl lastRegion = null;
+	private int nonUniqueLastRegion = 0;
+	private int minReadLength=-1;
+	private LinkedList<Integer> uniqueStarts = new LinkedList<Integer>();
+	private String currentSeqName = null;
 	
 	
 	public ReferenceGenome getGenome() {
@@ -64,58 +72,71 @@ public class MultipleMappingRegionsCalculator {
 		this.minMQ = minMQ;
 	}
 	
+	/**
+	 * @return List<CalledCNV> Regions with multiple alignments found in the last scan
+	 */
+	public List<CalledCNV> getMultipleMappingRegions() {
+		return multipleMappingRegions;
+	}
+	
 	public List<CalledCNV> calculateMultipleMappingRegions(String alnsFile) throws IOException {
-		List<CalledCNV> multipleMappingRegions = new ArrayList<CalledCNV>();
-		GenomicRegionImpl lastRegion = null;
-		int nonUniqueLastRegion = 0;
-		int minReadLength=-1;
-		LinkedList<Integer> uniqueStarts = new LinkedList<Integer>();
-		
-		try (ReadAlignmentFileReader reader = new ReadAlignmentFileReader(alnsFile, genome);) {
-			reader.setLoadMode(ReadAlignmentFileReader.LOAD_MODE_ALIGNMENT);
-			int filterFlags = ReadAlignment.FLAG_READ_UNMAPPED;
-			reader.setFilterFlags(filterFlags);
-			reader.setMinMQ(minMQ);
-			String currentSeqName = null;
-			Iterator<ReadAlignment> it = reader.iterator();
-			while(it.hasNext()) {
-				ReadAlignment aln = it.next();
-				if(aln.isPartialAlignment(10)) continue;
-				//if(aln.getReadLength()<100) System.out.println("Small read alignment: "+aln.getReadName()+" length: "+aln.getReadLength()+" CIGAR: "+aln.getCigarString());
-				if(minReadLength==-1 || minReadLength>aln.getReadLength()) minReadLength = aln.getReadLength();
-				boolean sequenceChange = !aln.getSequenceName().equals(currentSeqName);
-				if(lastRegion!=null && (sequenceChange || lastRegion.getLast() < aln.getFirst()-5)) {
-					CalledCNV cnv = makeCNVCall(lastRegion, nonUniqueLastRegion, uniqueStarts, minReadLength);
-					if(cnv!=null) multipleMappingRegions.add(cnv);
-					lastRegion = null;
-				}
-				if(sequenceChange) {
-					uniqueStarts.clear();
-					currentSeqName = aln.getSequenceName();
-				}
-				else if (lastRegion==null && uniqueStarts.size()>100000) purgeList(uniqueStarts, aln.getFirst());
-				boolean isUnique = aln.isUnique();
-				if(!isUnique) {
-					if(lastRegion == null) {
-						lastRegion = new GenomicRegionImpl(aln.getSequenceName(), aln.getFirst(), aln.getLast());
-						nonUniqueLastRegion=1;
-					} else {
-						nonUniqueLastRegion++;
-						if (lastRegion.getLast()<aln.getLast()) lastRegion.setLast(aln.getLast());
-					}
-					
-				} else {
-					uniqueStarts.add(aln.getFirst());
-				}
-				
+		multipleMappingRegions = new ArrayList<CalledCNV>();
+		ReadAlignmentsScanner scanner = new ReadAlignmentsScanner(genome);
+		scanner.setMinMQ(minMQ);
+		scanner.addConsumer(this);
+		scanner.scan(alnsFile);
+		return multipleMappingRegions;
+	}
+	
+	@Override
+	public int getAlignmentsLoadMode() {
+		return ReadAlignmentFileReader.LOAD_MODE_ALIGNMENT;
+	}
+	@Override
+	public int getAlignmentsFilterFlags() {
+		return ReadAlignment.FLAG_READ_UNMAPPED;
+	}
+	@Override
+	public void processAlignment(ReadAlignment aln) {
+		if(aln.isPartialAlignment(10)) return;
+		//if(aln.getReadLength()<100) System.out.println("Small read alignment: "+aln.getReadName()+" length: "+aln.getReadLength()+" CIGAR: "+aln.getCigarString());
+		if(minReadLength==-1 || minReadLength>aln.getReadLength()) minReadLength = aln.getReadLength();
+		boolean sequenceChange = !aln.getSequenceName().equals(currentSeqName);
+		if(lastRegion!=null && (sequenceChange || lastRegion.getLast() < aln.getFirst()-5)) {
+			CalledCNV cnv = makeCNVCall(lastRegion, nonUniqueLastRegion, uniqueStarts, minReadLength);
+			if(cnv!=null) multipleMappingRegions.add(cnv);
+			lastRegion = null;
+		}
+		if(sequenceChange) {
+			uniqueStarts.clear();
+			currentSeqName = aln.getSequenceName();
+		}
+		else if (lastRegion==null && uniqueStarts.size()>100000) purgeList(uniqueStarts, aln.getFirst());
+		boolean isUnique = aln.isUnique();
+		if(!isUnique) {
+			if(lastRegion == null) {
+				lastRegion = new GenomicRegionImpl(aln.getSequenceName(), aln.getFirst(), aln.getLast());
+				nonUniqueLastRegion=1;
+			} else {
+				nonUniqueLastRegion++;
+				if (lastRegion.getLast()<aln.getLast()) lastRegion.setLast(aln.getLast());
 			}
+			
+		} else {
+			uniqueStarts.add(aln.getFirst());
 		}
-		
+	}
+	@Override
+	public void onAlignmentsEnd() {
 		if(lastRegion!=null) {
 			CalledCNV cnv = makeCNVCall(lastRegion, nonUniqueLastRegion, uniqueStarts, minReadLength);
 			if(cnv!=null) multipleMappingRegions.add(cnv);
 		}
-		return multipleMappingRegions;
+		lastRegion = null;
+		nonUniqueLastRegion = 0;
+		minReadLength = -1;
+		uniqueStarts.clear();
+		currentSeqName = null;
 	}
 	public CalledCNV makeCNVCall(GenomicRegion region, int nonUniqueAlns, LinkedList<Integer> uniqueStarts, int minReadLength) {
 		CalledCNV cnv = new CalledCNV(new GenomicVariantImpl(region.getSequenceName(), region.getFirst(), region.getLast(), GenomicVariant.TYPE_REPEAT));
@@ -49,6 +49,7 @@ import ngsep.variants.Sample;
 import ngsep.vcf.VCFFileHeader;
 import ngsep.vcf.VCFFileReader;
 import ngsep.vcf.VCFFileWriter;
+import ngsep.vcf.VCFIndexedFileWriter;
 import ngsep.vcf.VCFRecord;
 
 public class MultisampleVariantsDetector implements PileupListener {
@@ -448,14 +449,23 @@ public class MultisampleVariantsDetector implements PileupListener {
 		
 		generator.addListener(indelRealigner);
 		generator.addListener(this);
+		VCFIndexedFileWriter indexedWriter = null;
 		try {
-			outFile = new PrintStream(outFilename);
+			if(outFilename.endsWith(".gz")) {
+				//Compressed output is written in BGZF format with a tabix index
+				indexedWriter = new VCFIndexedFileWriter(outFilename);
+				writer = indexedWriter;
+				outFile = indexedWriter.getOutputStream();
+			} else {
+				outFile = new PrintStream(outFilename);
+			}
 			vcfFileHeader = VCFFileHeader.makeDefaultEmptyHeader();
 			for(Sample s:samples) vcfFileHeader.addSample(s, printSamplePloidy);
 			writer.printHeader(vcfFileHeader, outFile);
 			generator.processFiles(inputFiles);
 		} finally {
-			if(outFile!=null) outFile.close();
+			if(indexedWriter!=null) indexedWriter.close();
+			else if(outFile!=null) outFile.close();
 			dispose();
 		}
 		log.info("Multisample Variants Detector Completed");
@@ -583,8 +593,8 @@ public class MultisampleVariantsDetector implements PileupListener {
 		return variant;
 	}
 	public GenomicVariant discoverPopulationSNV(PileupRecord pileup, char reference) {
-		List<PileupAlleleCall> alleleCalls = pileup.getAlleleCalls(1,(String)null);
-		CountsHelper helperSNV = CountsHelper.calculateCountsSNV(alleleCalls, maxBaseQS, 0.5);
+		PileupBaseCalls baseCalls = pileup.getBaseCalls((String)null);
+		CountsHelper helperSNV = CountsHelper.calculateCountsSNV(baseCalls, maxBaseQS, 0.5);
 		GenomicVariant variant = SingleSampleVariantPileupListener.createSNVVariantPool(pileup, helperSNV, reference, minAlleleDepthFrequency);
 		if(variant == null) return null;
 		while(variant.getAlleles().length > 2) {	
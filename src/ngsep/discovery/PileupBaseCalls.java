@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.discovery;
+
+import java.util.Arrays;
+
+/**
+ * Single base pair calls of a pileup position stored as primitive columns.
+ * Used instead of lists of PileupAlleleCall objects to genotype SNVs
+ * @author Jorge Duitama
+ */
+public class PileupBaseCalls {
+	private static final int DEF_CAPACITY = 32;
+	private int size = 0;
+	private char [] bases;
+	private byte [] qualityScores;
+	private boolean [] negativeStrand;
+
+	/**
+	 * Creates an empty set of base calls
+	 */
+	public PileupBaseCalls() {
+		this(DEF_CAPACITY);
+	}
+	/**
+	 * Creates an empty set of base calls
+	 * @param capacity Initial number of calls that can be stored
+	 */
+	public PileupBaseCalls(int capacity) {
+		capacity = Math.max(capacity, 1);
+		bases = new char[capacity];
+		qualityScores = new byte[capacity];
+		negativeStrand = new boolean[capacity];
+	}
+	/**
+	 * Adds a new base call
+	 * @param base Base pair. It is stored in upper case
+	 * @param qualityScore Base quality score in phred+33 format
+	 * @param negative True if the call comes from a read aligned to the negative strand
+	 */
+	public void add(char base, char qualityScore, boolean negative) {
+		if(size==bases.length) ensureCapacity(2*size);
+		bases[size] = Character.toUpperCase(base);
+		qualityScores[size] = (byte)Math.min(CountsHelper.DEF_MAX_BASE_QS, qualityScore-33);
+		negativeStrand[size] = negative;
+		size++;
+	}
+	private void ensureCapacity(int capacity) {
+		bases = Arrays.copyOf(bases, capacity);
+		qualityScores = Arrays.copyOf(qualityScores, capacity);
+		negativeStrand = Arrays.copyOf(negativeStrand, capacity);
+	}
+	/**
+	 * @return int Number of calls
+	 */
+	public int size() {
+		return size;
+	}
+	/**
+	 * @param i Index of the call
+	 * @return char Upper case base pair of the call
+	 */
+	public char getBase(int i) {
+		return bases[i];
+	}
+	/**
+	 * @param i Index of the call
+	 * @return byte Base quality score of the call in Phred scale
+	 */
+	public byte getQualityScore(int i) {
+		return qualityScores[i];
+	}
+	/**
+	 * @param i Index of the call
+	 * @return boolean True if the call comes from a read aligned to the negative strand
+	 */
+	public boolean isNegativeStrand(int i) {
+		return negativeStrand[i];
+	}
+}
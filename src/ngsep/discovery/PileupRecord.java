@@ -151,6 +151,42 @@ public class PileupRecord {
 		return alleleCalls;
 	}
 
+	/**
+	 * Calculates the calls of single base pairs at this pileup position for the given read groups
+	 * @param readGroups to return base calls. If null, base calls for all alignments of this pileup are returned
+	 * @return PileupBaseCalls Calls of alignments having exactly one base pair aligned to this position
+	 */
+	public PileupBaseCalls getBaseCalls(Set<String> readGroups) {
+		if(readGroups==null) return getBaseCalls((String)null);
+		PileupBaseCalls baseCalls = new PileupBaseCalls();
+		for(String readGroup:readGroups) {
+			addBaseCalls(alignmentsMap.get(readGroup), baseCalls);
+		}
+		return baseCalls;
+	}
+	/**
+	 * Calculates the calls of single base pairs at this pileup position
+	 * @param readGroup to return base calls. If null, base calls for all alignments of this pileup are returned
+	 * @return PileupBaseCalls Calls of alignments having exactly one base pair aligned to this position
+	 */
+	public PileupBaseCalls getBaseCalls(String readGroup) {
+		List<ReadAlignment> alignments;
+		if(readGroup == null) alignments = getAlignments();
+		else alignments = alignmentsMap.get(readGroup);
+		PileupBaseCalls baseCalls = new PileupBaseCalls(alignments!=null?alignments.size():1);
+		addBaseCalls(alignments, baseCalls);
+		return baseCalls;
+	}
+	private void addBaseCalls(List<ReadAlignment> alignments, PileupBaseCalls baseCalls) {
+		if(alignments==null) return;
+		for(ReadAlignment aln:alignments) {
+			int readPos = aln.getSingleBaseCallReadPosition(position);
+			if(readPos<0) continue;
+			baseCalls.add(aln.getReadCharacters().charAt(readPos), aln.getBaseQualityScoreReadPosition(readPos), aln.isNegativeStrand());
+		}
+		if(position==posPrint) System.out.println("getBaseCalls. Number of base calls: "+baseCalls.size());
+	}
+
 	public void addAlignment(ReadAlignment aln) {
 		if(aln.getFirst()>position) return;
 		if(aln.getLast()<position) return;
@@ -20,12 +20,20 @@
 package ngsep.discovery;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import JSci.maths.statistics.PoissonDistribution;
@@ -38,7 +46,6 @@ import ngsep.genome.GenomicRegionPositionComparator;
 import ngsep.genome.GenomicRegionSortedCollection;
 import ngsep.genome.GenomicRegionSpanComparator;
 import ngsep.genome.ReferenceGenome;
-import ngsep.graphs.CliquesFinder;
 import ngsep.math.Distribution;
 import ngsep.math.PhredScoreHelper;
 import ngsep.sequences.DNAMaskedSequence;
@@ -52,6 +59,9 @@ public class ReadPairAnalyzer {
 	public static final String DEF_READGROUP = "";
 	public static final int DEF_MAX_LEN_DELETION = 1000000;
 	public static final int DEF_SPLIT_READ_SEED = 8;
+	public static final int DEF_NUM_THREADS = 1;
+	//Number of uniquely aligned read pairs used to estimate the insert length distributions
+	public static final int DEF_INSERT_LENGTH_SAMPLE = 200000;
 	
 	private Logger log = Logger.getLogger(ReadPairAnalyzer.class.getName());
 	private int maxLengthDeletion = DEF_MAX_LEN_DELETION;
@@ -59,6 +69,8 @@ public class ReadPairAnalyzer {
 	private GenomicRegionSortedCollection<CalledCNV> duplications = new GenomicRegionSortedCollection<CalledCNV>();
 	private int minMQ = ReadAlignment.DEF_MIN_MQ_UNIQUE_ALIGNMENT;
 	private int seedSize = DEF_SPLIT_READ_SEED;
+	private int numThreads = DEF_NUM_THREADS;
+	private int insertLengthSample = DEF_INSERT_LENGTH_SAMPLE;
 	
 	private ReferenceGenome reference;
 	private List<String> seqNames;
@@ -71,9 +83,10 @@ public class ReadPairAnalyzer {
 	private Map<String, Distribution> insertLengthDistributions;
 	private Map<String, Integer> insertLengthModes;
 	private Map<String, Double> insertLengthStdevs;
-	private Map<String,List<SameChromosomeAbnormalLengthAln>> deletionAlns = new TreeMap<String, List<SameChromosomeAbnormalLengthAln>>();
-	private Map<String,List<SameChromosomeAbnormalLengthAln>> insertionAlns = new TreeMap<String, List<SameChromosomeAbnormalLengthAln>>();
-	private Map<String,List<SameChromosomeAbnormalLengthAln>> inversionAlns = new TreeMap<String, List<SameChromosomeAbnormalLengthAln>>();
+	//Mode and standard deviation used for read groups without enough data to estimate a distribution
+	private int defaultInsertLengthMode;
+	private double defaultInsertLengthStdev;
+	private Map<String,SequenceAbnormalAlignments> abnormalAlns = new HashMap<String, SequenceAbnormalAlignments>();
 	
 	
 	
@@ -90,9 +103,7 @@ public class ReadPairAnalyzer {
 	}
 	
 	private void dispose() {
-		deletionAlns.clear();
-		insertionAlns.clear();
-		inversionAlns.clear();
+		abnormalAlns.clear();
 	}
 
 	public boolean isIgnoreProperPairFlag() {
@@ -144,6 +155,28 @@ public class ReadPairAnalyzer {
 		this.seedSize = seedSize;
 	}
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads Number of threads used to cluster abnormal alignments of different sequences in parallel
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public int getInsertLengthSample() {
+		return insertLengthSample;
+	}
+
+	/**
+	 * @param insertLengthSample Number of uniquely aligned read pairs used to estimate the insert length distributions
+	 */
+	public void setInsertLengthSample(int insertLengthSample) {
+		this.insertLengthSample = insertLengthSample;
+	}
+
 	public GenomicRegionSortedCollection<CalledCNV> getDuplications() {
 		return duplications;
 	}
@@ -155,20 +188,32 @@ public class ReadPairAnalyzer {
 	public List<CalledGenomicVariant> findVariants(String filename) throws IOException {
 		try {
 			List<CalledGenomicVariant> calls = new ArrayList<CalledGenomicVariant>();
-			log.info("Calculating insert length distributions");
-			calculateInsertLengthDistributions(filename);
-			log.info("Calculated insert length distributions for "+(insertLengthDistributions.size()-1)+" read groups. Distributing abnormally aligned reads");
-			
+			log.info("Estimating insert length distributions and distributing abnormally aligned reads");
 			resetDuplicationCounts();
-			distributeReadsNonProperPair(filename);
+			distributeAlignments(filename);
 			
-			log.info("Finding deletions");
-			List<? extends CalledGenomicVariant> deletions = findDeletions();
+			log.info("Clustering abnormally aligned reads of "+abnormalAlns.size()+" sequences");
+			List<SequenceAbnormalAlignments> sequencesAlns = findCandidateEvents();
+			List<ReadPairCalledGenomicVariant> deletions = new ArrayList<ReadPairCalledGenomicVariant>();
+			List<ReadPairCalledGenomicVariant> insertions = new ArrayList<ReadPairCalledGenomicVariant>();
+			List<ReadPairCalledGenomicVariant> inversions = new ArrayList<ReadPairCalledGenomicVariant>();
+			int totalDelAlns = 0;
+			int totalInsAlns = 0;
+			int totalInvAlns = 0;
+			for(SequenceAbnormalAlignments seqAlns:sequencesAlns) {
+				deletions.addAll(seqAlns.getDeletions());
+				insertions.addAll(seqAlns.getInsertions());
+				inversions.addAll(seqAlns.getInversions());
+				totalDelAlns+=seqAlns.getDeletionAlns().size();
+				totalInsAlns+=seqAlns.getInsertionAlns().size();
+				totalInvAlns+=seqAlns.getInversionAlns().size();
+			}
+			
+			assignGenotypeQualities(deletions,totalDelAlns);
 			log.info("Found "+deletions.size()+" deletion candidates");
 			calls.addAll(deletions);
 			
-			log.info("Finding insertions");
-			List<? extends CalledGenomicVariant> insertions = findInsertions();
+			assignGenotypeQualities(insertions,totalInsAlns);
 			log.info("Found "+insertions.size()+" insertion candidates");
 			calls.addAll(insertions);
 			
@@ -177,8 +222,7 @@ public class ReadPairAnalyzer {
 			log.info("Identified "+splitReadIndels.size()+" indel candidates only based on split reads");
 			calls.addAll(splitReadIndels);
 			
-			log.info("Finding inversions");
-			List<? extends CalledGenomicVariant> inversions = findInversions();
+			assignGenotypeQualities(inversions,totalInvAlns);
 			log.info("Found "+inversions.size()+" inversion candidates");
 			calls.addAll(inversions);
 			
@@ -194,7 +238,6 @@ public class ReadPairAnalyzer {
 			dispose();
 		}
 	}	
-
 	private void resetDuplicationCounts() {
 		for(CalledCNV cnv:duplications) {
 			cnv.setTandemFragments(0);
@@ -202,12 +245,22 @@ public class ReadPairAnalyzer {
 		}
 	}
 
-	private void calculateInsertLengthDistributions(String filename) throws IOException {
+	/**
+	 * Reads the alignments file once. The insert length distributions are estimated from the first uniquely aligned pairs.
+	 * Alignments that could be abnormal are kept until the distributions are available. Then, they are distributed by sequence
+	 * and type of event together with the remaining alignments
+	 * @param filename Alignments file
+	 * @throws IOException If the file can not be read or if it does not have paired-end reads with unique alignments
+	 */
+	private void distributeAlignments(String filename) throws IOException {
 		insertLengthDistributions = new TreeMap<String, Distribution>();
 		//Default distribution for alignments without read group
 		insertLengthDistributions.put(DEF_READGROUP, new Distribution(1, 200000, 1));
+		insertLengthModes = null;
+		List<ReadAlignment> pendingAlns = new ArrayList<ReadAlignment>();
 		
 		ReadAlignmentFileReader reader = null;
+		int numReads = 0;
 		int numPairedUniqueAlnReads = 0;
 		int firstPos = 0;
 		int lastPos = 0;
@@ -216,9 +269,7 @@ public class ReadPairAnalyzer {
 			reader = new ReadAlignmentFileReader(filename, reference);
 			reader.setLoadMode (ReadAlignmentFileReader.LOAD_MODE_MINIMAL);
 			int filterFlags = ReadAlignment.FLAG_READ_UNMAPPED;
-			filterFlags += ReadAlignment.FLAG_MATE_UNMAPPED;
 			filterFlags += ReadAlignment.FLAG_MULTIPLE_ALN;
-			filterFlags += ReadAlignment.FLAG_MATE_DIFFERENT_SEQUENCE;
 			reader.setFilterFlags(filterFlags);
 			reader.setRequiredFlags(ReadAlignment.FLAG_PAIRED);
 			reader.setMinMQ(minMQ);
@@ -229,44 +280,58 @@ public class ReadPairAnalyzer {
 			Iterator<ReadAlignment> it = reader.iterator();
 			while(it.hasNext()) {
 				ReadAlignment aln = it.next();
-				//Updating covered genome
-				boolean sequenceChange = !aln.getSequenceName().equals(currentSeqName);
-				if(sequenceChange) {
-					if(currentSeqName!=null) {
+				numReads++;
+				if(numReads%1000000==0) log.info("Processed "+numReads+" paired-end reads with unique alignments");
+				if(!aln.isMateUnmapped() && aln.isMateSameSequence()) {
+					//Updating covered genome
+					boolean sequenceChange = !aln.getSequenceName().equals(currentSeqName);
+					if(sequenceChange) {
+						if(currentSeqName!=null) {
+							coveredGenome+=(lastPos-firstPos+1);
+						}
+						currentSeqName = aln.getSequenceName();
+						firstPos = aln.getFirst();
+						lastPos = aln.getLast();
+					} else if (aln.getFirst()>lastPos) {
 						coveredGenome+=(lastPos-firstPos+1);
+						firstPos = aln.getFirst();
+						lastPos = aln.getLast();
+					} else if(aln.getLast()>lastPos) {
+						lastPos = aln.getLast();
+					}
+					//Sampling insert lengths
+					if(insertLengthModes==null && (ignoreProperPairFlag || aln.isProperPair()) && aln.getInferredInsertSize()>0) {
+						Distribution dist  = getDistribution(aln);
+						dist.processDatapoint(aln.getInferredInsertSize());
+						numPairedUniqueAlnReads++;
+						if(numPairedUniqueAlnReads==insertLengthSample) {
+							estimateInsertLengthDistributions();
+							for(ReadAlignment pendingAln:pendingAlns) distributeAlignment(pendingAln);
+							pendingAlns.clear();
+						}
 					}
-					currentSeqName = aln.getSequenceName();
-					firstPos = aln.getFirst();
-					lastPos = aln.getLast();
-				} else if (aln.getFirst()>lastPos) {
-					coveredGenome+=(lastPos-firstPos+1);
-					firstPos = aln.getFirst();
-					lastPos = aln.getLast();
-				} else if(aln.getLast()>lastPos) {
-					lastPos = aln.getLast();
-				}
-				if(!ignoreProperPairFlag && !aln.isProperPair()) {
-					continue;
-				}
-				if(aln.getInferredInsertSize()<=0) {
-					continue;
 				}
-				
-				Distribution dist  = getDistribution(aln);
-				dist.processDatapoint(aln.getInferredInsertSize());
-				numPairedUniqueAlnReads++;
-				if(numPairedUniqueAlnReads%1000000==0) log.info("Processed "+numPairedUniqueAlnReads+" uniquely aligned paired-end reads with consistent reference sequence");
-				//if(numPairedUniqueAlnReads%1000000==0) log.info("Last processed name: "+aln.getReadName()+" Located at: "+aln.getSequenceName()+":"+aln.getFirst()+". Flags: "+aln.getFlags()+". Insert length: "+aln.getInferredInsertSize());
+				if(insertLengthModes!=null) distributeAlignment(aln);
+				//Proper pairs do not need to wait for the distributions if the proper pair flag is used
+				else if(ignoreProperPairFlag || !aln.isProperPair()) pendingAlns.add(aln);
 			}
 		} finally {
 			if(reader!=null) reader.close();
 		}
-		if(numPairedUniqueAlnReads==0) throw new IOException("BAM file does not have paired-end reads with unique alignments. Please skip read pair analysis for this dataset");
+		if(insertLengthModes==null) {
+			if(numPairedUniqueAlnReads==0) throw new IOException("BAM file does not have paired-end reads with unique alignments. Please skip read pair analysis for this dataset");
+			estimateInsertLengthDistributions();
+			for(ReadAlignment pendingAln:pendingAlns) distributeAlignment(pendingAln);
+		}
+	}
+
+	private void estimateInsertLengthDistributions() {
 		insertLengthModes = new TreeMap<String, Integer>();
 		insertLengthStdevs = new TreeMap<String, Double>();
 		maxAvgInsertLength = 0;
 		weightedAvgInsertLength = 0;
 		double sumWeights = 0;
+		double maxCount = 0;
 		for(String rg:insertLengthDistributions.keySet()) {
 			Distribution dist = insertLengthDistributions.get(rg);
 			if(dist.getCount()>0) {
@@ -286,12 +351,20 @@ public class ReadPairAnalyzer {
 				if(mode>maxAvgInsertLength) maxAvgInsertLength = mode;
 				weightedAvgInsertLength+=mode*dist.getCount();
 				sumWeights+=dist.getCount();
+				if(dist.getCount()>maxCount) {
+					maxCount = dist.getCount();
+					defaultInsertLengthMode = mode;
+					defaultInsertLengthStdev = stdev;
+				}
 			}
 		}
 		weightedAvgInsertLength/=sumWeights;
-		
+		if(insertLengthModes.containsKey(DEF_READGROUP)) {
+			defaultInsertLengthMode = insertLengthModes.get(DEF_READGROUP);
+			defaultInsertLengthStdev = insertLengthStdevs.get(DEF_READGROUP);
+		}
+		log.info("Calculated insert length distributions for "+insertLengthModes.size()+" read groups from "+((int)sumWeights)+" uniquely aligned paired end reads");
 	}
-
 	private double estimateStdevPeak(Distribution dist, int mode) {
 		double [] distN = dist.getDistribution();
 		int start = mode/2;
@@ -322,12 +395,12 @@ public class ReadPairAnalyzer {
 	private int getDistributionMode(ReadAlignment aln) {
 		Integer mode = insertLengthModes.get(getDistributionRG(aln));
 		if(mode != null) return mode;
-		return insertLengthModes.get(DEF_READGROUP);
+		return defaultInsertLengthMode;
 	}
 	private double getDistributionSD(ReadAlignment aln) {
 		Double distSD=insertLengthStdevs.get(getDistributionRG(aln));
 		if(distSD != null) return distSD;
-		return insertLengthStdevs.get(DEF_READGROUP);
+		return defaultInsertLengthStdev;
 	}
 	private String getDistributionRG(ReadAlignment aln) {
 		String readGroup = aln.getReadGroup();
@@ -338,98 +411,49 @@ public class ReadPairAnalyzer {
 		return DEF_READGROUP;
 	}
 
-	private void distributeReadsNonProperPair(String filename) throws IOException {
-		int firstDebug = -1;
-		int lastDebug = -1;
+	private void distributeAlignment(ReadAlignment aln) {
+		int avgInsertLength = getDistributionMode(aln);
+		int status = getAlignmentStatus(aln, avgInsertLength);
+		if(status == 0) {
+			//Proper pair
+			return;
+		}
+		if(intersectWithDuplication (aln,avgInsertLength)) {
+			return;
+		}
+		SequenceAbnormalAlignments seqAlns = abnormalAlns.get(aln.getSequenceName());
+		if(seqAlns==null) {
+			seqAlns = new SequenceAbnormalAlignments(aln.getSequenceName());
+			abnormalAlns.put(aln.getSequenceName(), seqAlns);
+		}
+		int length2 = aln.getReadLength()/2;
 		
-		ReadAlignmentFileReader reader = null;
-		int numReads = 0;
-		try {
-			reader = new ReadAlignmentFileReader(filename, reference);
-			//reader.setLoadMode (ReadAlignmentFileReader.LOAD_MODE_FULL);
-			reader.setLoadMode (ReadAlignmentFileReader.LOAD_MODE_MINIMAL);
-			int filterFlags = ReadAlignment.FLAG_READ_UNMAPPED;
-			filterFlags += ReadAlignment.FLAG_MULTIPLE_ALN;
-			reader.setFilterFlags(filterFlags);
-			reader.setRequiredFlags(ReadAlignment.FLAG_PAIRED);
-			reader.setMinMQ(minMQ);
-			String currentSeqName = null;
-			List<SameChromosomeAbnormalLengthAln> seqDelAlns=null;
-			List<SameChromosomeAbnormalLengthAln> seqInsAlns=null;
-			List<SameChromosomeAbnormalLengthAln> seqInvAlns=null;
-			Iterator<ReadAlignment> it = reader.iterator();
-			while(it.hasNext()) {
-				ReadAlignment aln = it.next();
-				boolean sequenceChange = !aln.getSequenceName().equals(currentSeqName);
-				if(sequenceChange) {
-					if(currentSeqName!=null) {
-						log.info("Finished sequence "+currentSeqName+" deletion alns: "+seqDelAlns.size()+" insertion alns: "+seqInsAlns.size()+" inversion alns: "+seqInvAlns.size());
-						deletionAlns.put(currentSeqName, seqDelAlns);
-						insertionAlns.put(currentSeqName, seqInsAlns);
-						inversionAlns.put(currentSeqName, seqInvAlns);
-					}
-					currentSeqName = aln.getSequenceName();
-					seqDelAlns = new ArrayList<SameChromosomeAbnormalLengthAln>();
-					seqInsAlns = new ArrayList<SameChromosomeAbnormalLengthAln>();
-					seqInvAlns = new ArrayList<SameChromosomeAbnormalLengthAln>();
-				}
-				numReads++;
-				if(numReads%1000000==0) log.info("Processed "+numReads+" paired-end reads with unique alignments");
-				
-				int avgInsertLength = getDistributionMode(aln);
-				int status = getAlignmentStatus(aln, avgInsertLength);
-				if(status == 0) {
-					//Proper pair
-					continue;
-				}
-				if(aln.getFirst()>firstDebug && aln.getLast()<lastDebug) log.info("Status aln "+aln.getReadName()+" at "+aln.getSequenceName()+":"+aln.getFirst()+" is "+status+" insertLength: "+aln.getInferredInsertSize()+" avgLength: "+avgInsertLength);
-				if(intersectWithDuplication (aln,avgInsertLength)) {
-					if(aln.getFirst()>firstDebug && aln.getLast()<lastDebug) log.info("Aln "+aln.getReadName()+" at "+aln.getSequenceName()+":"+aln.getFirst()+" intersect with duplications");
-					continue;
-				}
-				int length2 = aln.getReadLength()/2;
-				
-				if(status == 1 && aln.getInferredInsertSize()>0) {
-					//Less than normal
-					int predictedLength = avgInsertLength-aln.getInferredInsertSize();
-					seqInsAlns.add(new SameChromosomeAbnormalLengthAln(aln.getFirst()+length2, aln.getMateFirst()+length2, predictedLength));
-				} else if (status == 2 && aln.getInferredInsertSize()>0 ) {
-					//More than normal
-					int predictedLength = aln.getInferredInsertSize()-avgInsertLength;
-					seqDelAlns.add(new SameChromosomeAbnormalLengthAln(aln.getFirst()+length2, aln.getMateFirst()+length2, predictedLength));
-					if(aln.getFirst()>firstDebug && aln.getLast()<lastDebug) log.info("Predicted length deletion aln "+aln.getReadName()+" at "+aln.getSequenceName()+":"+aln.getFirst()+" is "+predictedLength+" numDelreads sequence: "+seqDelAlns.size());
-				} else if (status == 3) {
-					//Inversion candidate
-					int invFirst = 0;
-					int invLast = 0;
-					
-					if(!aln.isNegativeStrand() && aln.getFirst()>aln.getMateFirst()) {
-						invFirst = aln.getMateFirst() + length2;
-						invLast = aln.getLast() + avgInsertLength;
-					} else if (aln.isNegativeStrand() && aln.getFirst()<aln.getMateFirst()) {
-						invFirst = Math.max(1,aln.getFirst() - avgInsertLength);
-						invLast = aln.getMateFirst();
-					}
-					int invLength = invLast-invFirst+1;
-					if(aln.getFirst()>firstDebug && aln.getLast()<lastDebug) log.info("Aln "+aln.getReadName()+" at "+aln.getSequenceName()+":"+aln.getFirst()+" invFirst "+invFirst+" invLast: "+invLast+" length: "+invLength);
-					if(invFirst>0 && invLast > 0 && invLength < maxLengthDeletion) {
-						seqInvAlns.add(new SameChromosomeAbnormalLengthAln(invFirst, invLast, invLength));
-					}
-				}
-				
+		if(status == 1 && aln.getInferredInsertSize()>0) {
+			//Less than normal
+			int predictedLength = avgInsertLength-aln.getInferredInsertSize();
+			seqAlns.getInsertionAlns().add(aln.getFirst()+length2, aln.getMateFirst()+length2, predictedLength);
+		} else if (status == 2 && aln.getInferredInsertSize()>0 ) {
+			//More than normal
+			int predictedLength = aln.getInferredInsertSize()-avgInsertLength;
+			seqAlns.getDeletionAlns().add(aln.getFirst()+length2, aln.getMateFirst()+length2, predictedLength);
+		} else if (status == 3) {
+			//Inversion candidate
+			int invFirst = 0;
+			int invLast = 0;
+			
+			if(!aln.isNegativeStrand() && aln.getFirst()>aln.getMateFirst()) {
+				invFirst = aln.getMateFirst() + length2;
+				invLast = aln.getLast() + avgInsertLength;
+			} else if (aln.isNegativeStrand() && aln.getFirst()<aln.getMateFirst()) {
+				invFirst = Math.max(1,aln.getFirst() - avgInsertLength);
+				invLast = aln.getMateFirst();
 			}
-			if(currentSeqName!=null) {
-				log.info("Finished sequence "+currentSeqName+" deletion alns: "+seqDelAlns.size()+" insertion alns: "+seqInsAlns.size()+" inversion alns: "+seqInvAlns.size());
-				deletionAlns.put(currentSeqName, seqDelAlns);
-				insertionAlns.put(currentSeqName, seqInsAlns);
-				inversionAlns.put(currentSeqName, seqInvAlns);
+			int invLength = invLast-invFirst+1;
+			if(invFirst>0 && invLast > 0 && invLength < maxLengthDeletion) {
+				seqAlns.getInversionAlns().add(invFirst, invLast, invLength);
 			}
-		} finally {
-			if(reader!=null) reader.close();
-			
 		}
 	}
-
 	private boolean intersectWithDuplication(ReadAlignment aln, int avgInsertLength) {
 		GenomicRegionSortedCollection<CalledCNV> cnvsAln = duplications.findSpanningRegions(aln);
 		if(cnvsAln.size()==0) {
@@ -473,161 +497,196 @@ public class ReadPairAnalyzer {
 	}
 	
 
-	private List<ReadPairCalledGenomicVariant> findInsertions() {
-		List<ReadPairCalledGenomicVariant> insertions = new ArrayList<ReadPairCalledGenomicVariant>();
-		int totalInsAlns = 0;
-		for(String seqName:seqNames) {
-			List<SameChromosomeAbnormalLengthAln> seqInsAlns = insertionAlns.get(seqName);
-			if(seqInsAlns==null) continue;
-			Collections.sort(seqInsAlns);
-			totalInsAlns+=seqInsAlns.size();
-			List<List<SameChromosomeAbnormalLengthAln>> nonOverlappingAlns = distributeNonOverlappingAlns(seqInsAlns);
-			for(List<SameChromosomeAbnormalLengthAln> overlappingAlns:nonOverlappingAlns){
-				insertions.addAll(buildCandidateEvents(seqName,overlappingAlns,false));
+	private List<SequenceAbnormalAlignments> findCandidateEvents() throws IOException {
+		List<SequenceAbnormalAlignments> answer = new ArrayList<SequenceAbnormalAlignments>();
+		ExecutorService pool = null;
+		if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<SequenceAbnormalAlignments>> tasks = new ArrayList<Future<SequenceAbnormalAlignments>>();
+			for(String seqName:seqNames) {
+				SequenceAbnormalAlignments seqAlns = abnormalAlns.get(seqName);
+				if(seqAlns==null) continue;
+				if(pool==null) answer.add(findCandidateEvents(seqAlns));
+				else tasks.add(pool.submit(()->findCandidateEvents(seqAlns)));
 			}
-		}
-		assignGenotypeQualities(insertions,totalInsAlns);
-		return insertions;
-	}
-
-	private List<? extends CalledGenomicVariant> findDeletions() {
-		List<ReadPairCalledGenomicVariant> deletions = new ArrayList<ReadPairCalledGenomicVariant>();
-		int totalDelAlns = 0;
-		for(String seqName:seqNames) {
-			List<SameChromosomeAbnormalLengthAln> seqDelAlns = deletionAlns.get(seqName);
-			if(seqDelAlns==null) continue;
-			
-			Collections.sort(seqDelAlns);
-			totalDelAlns+=seqDelAlns.size();
-			List<List<SameChromosomeAbnormalLengthAln>> nonOverlappingAlns = distributeNonOverlappingAlns(seqDelAlns);
-			log.info("Finding deletions for sequence: "+seqName+" from "+seqDelAlns.size()+" alignments. NonOv clusters: "+nonOverlappingAlns.size());
-			for(List<SameChromosomeAbnormalLengthAln> overlappingAlns:nonOverlappingAlns){
-				deletions.addAll(buildCandidateEvents(seqName,overlappingAlns,true));
+			for(Future<SequenceAbnormalAlignments> task:tasks) {
+				try {
+					answer.add(task.get());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while clustering abnormal alignments");
+				} catch (ExecutionException e) {
+					throw new IOException("Error clustering abnormal alignments", e.getCause());
+				}
 			}
+		} finally {
+			if(pool!=null) pool.shutdownNow();
 		}
-		assignGenotypeQualities(deletions,totalDelAlns);
-		return deletions;
-		//return makeSuperInterfaceList(deletions);
+		return answer;
 	}
 
-	private List<List<SameChromosomeAbnormalLengthAln>> distributeNonOverlappingAlns(List<SameChromosomeAbnormalLengthAln> seqAlns) {
-		List<List<SameChromosomeAbnormalLengthAln>> answer = new ArrayList<List<SameChromosomeAbnormalLengthAln>>();
-		List<SameChromosomeAbnormalLengthAln> lastOverlappingAlns=null;
-		int lastEnd = -1;
-		for(SameChromosomeAbnormalLengthAln aln:seqAlns) {
-			if(aln.getFirst()>lastEnd) {
-				if(lastOverlappingAlns!=null) answer.add(lastOverlappingAlns);
-				lastOverlappingAlns = new ArrayList<SameChromosomeAbnormalLengthAln>();
-			}
-			lastOverlappingAlns.add(aln);
-			lastEnd = aln.getLast();
-		}
-		if(lastOverlappingAlns!=null) answer.add(lastOverlappingAlns);
-		return answer;
+	private SequenceAbnormalAlignments findCandidateEvents(SequenceAbnormalAlignments seqAlns) {
+		String seqName = seqAlns.getSequenceName();
+		log.info("Finding events for sequence "+seqName+" deletion alns: "+seqAlns.getDeletionAlns().size()+" insertion alns: "+seqAlns.getInsertionAlns().size()+" inversion alns: "+seqAlns.getInversionAlns().size());
+		seqAlns.getDeletions().addAll(findIndels(seqName, seqAlns.getDeletionAlns(), true));
+		seqAlns.getInsertions().addAll(findIndels(seqName, seqAlns.getInsertionAlns(), false));
+		seqAlns.getInversions().addAll(findInversions(seqName, seqAlns.getInversionAlns()));
+		return seqAlns;
 	}
 
-	private List<ReadPairCalledGenomicVariant> buildCandidateEvents(String seqName, List<SameChromosomeAbnormalLengthAln> overlappingAlns, boolean deletions) {
+	private List<ReadPairCalledGenomicVariant> findIndels(String seqName, AbnormalLengthAlignments alns, boolean deletions) {
 		List<ReadPairCalledGenomicVariant> answer = new ArrayList<ReadPairCalledGenomicVariant>();
-		if(overlappingAlns.size()<=1) return answer;
-		List<List<SameChromosomeAbnormalLengthAln>> minClusters = findMinimumClusters (seqName,overlappingAlns,deletions);
-		for(List<SameChromosomeAbnormalLengthAln> cluster:minClusters) {
-			answer.add(buildIndel(seqName,cluster,deletions));
+		alns.sort();
+		int n = alns.size();
+		int groupStart = 0;
+		for(int i=1;i<=n;i++) {
+			//Groups of overlapping alignments finish when the next alignment starts after the end of the previous alignment
+			if(i<n && alns.getFirst(i)<=alns.getLast(i-1)) continue;
+			if(i-groupStart>1) {
+				List<int []> clusters = findClusters(alns, groupStart, i, deletions);
+				for(int [] cluster:clusters) answer.add(buildIndel(seqName, alns, cluster, deletions));
+			}
+			groupStart = i;
 		}
 		return answer;
 	}
 
-	private List<List<SameChromosomeAbnormalLengthAln>> findMinimumClusters(String seqName, List<SameChromosomeAbnormalLengthAln> overlappingAlns, boolean deletions) {
-		boolean [][] consistencyMatrix = buildConsistencyMatrix(overlappingAlns,deletions);
-		int first = overlappingAlns.get(0).getFirst();
-		int firstDebug = -1;
-		int lastDebug = -1;
-		if(first > firstDebug && first < lastDebug) System.out.println("Calculating potential SVs from "+overlappingAlns.size()+" overlapping alignments starting at "+seqName+":"+first);
-		if(first > firstDebug && first < lastDebug) printAlignments(overlappingAlns);
-		if(first > firstDebug && first < lastDebug) printMatrix(consistencyMatrix);
-		List<List<Integer>> components = CliquesFinder.findCliques(consistencyMatrix);
-		if(first > firstDebug && first < lastDebug) System.out.println("Number of connected components: "+components.size());
-		List<List<SameChromosomeAbnormalLengthAln>> answer = new ArrayList<List<SameChromosomeAbnormalLengthAln>>();
-		for(List<Integer> idxs:components) {
-			List<SameChromosomeAbnormalLengthAln> nextList = new ArrayList<SameChromosomeAbnormalLengthAln>();
-			int j=0;
-			for(int i=0;i<overlappingAlns.size();i++) {
-				SameChromosomeAbnormalLengthAln aln = overlappingAlns.get(i);
-				if(j<idxs.size() && idxs.get(j)==i) {
-					nextList.add(aln);
-					j++;
-				}
+	/**
+	 * Finds clusters of consistent alignments within a group of sorted overlapping alignments.
+	 * A sweep over the start positions of the alignments collects the alignments spanning each position.
+	 * Then, the largest set of consistent alignments spanning one position becomes a cluster, its alignments are
+	 * removed from the other sets and the process continues while clusters with more than one alignment are found.
+	 * Sets are kept in a priority queue and their sizes are only recalculated when they reach the head of the queue
+	 * @param alns Alignments sorted by start position
+	 * @param start First index of the group
+	 * @param end Index after the last alignment of the group
+	 * @param deletions Tells if the alignments support deletions. In this case, consistency also requires compatible event lengths
+	 * @return List<int []> Sorted indexes of the alignments within each cluster
+	 */
+	private List<int []> findClusters(AbnormalLengthAlignments alns, int start, int end, boolean deletions) {
+		List<int []> answer = new ArrayList<int []>();
+		int n = end-start;
+		int [] active = new int[n];
+		int [] inconsistencies = new int[n];
+		//Alignments spanning each start position. All of them overlap each other
+		List<int []> stacks = new ArrayList<int []>();
+		int numActive = 0;
+		int i = 0;
+		while(i<n) {
+			int pos = alns.getFirst(start+i);
+			int k = 0;
+			for(int j=0;j<numActive;j++) {
+				if(alns.getLast(start+active[j])>=pos) active[k++] = active[j];
 			}
-			if(first > firstDebug && first < lastDebug) System.out.println("Next connected component contains "+nextList.size()+" alignments");
-			answer.add(nextList);
-			
+			numActive = k;
+			for(;i<n && alns.getFirst(start+i)==pos;i++) active[numActive++] = i;
+			if(numActive>1) stacks.add(Arrays.copyOf(active, numActive));
 		}
-		
-		return answer;
-	}
-
-	public void printAlignments( List<SameChromosomeAbnormalLengthAln> alns) {
-		System.out.println("Overlapping alns");
-		for(SameChromosomeAbnormalLengthAln aln:alns) {
-			System.out.println("First: "+aln.getFirst()+" last: "+aln.getLast()+" event length: "+aln.getEventLength());
+		//Each entry has the size of the consistent alignments of one stack and the index of the stack
+		PriorityQueue<int []> queue = new PriorityQueue<int []>(Math.max(1, stacks.size()), (e1,e2)-> e1[0]!=e2[0]?e2[0]-e1[0]:e1[1]-e2[1]);
+		for(int s=0;s<stacks.size();s++) {
+			int [] stack = stacks.get(s);
+			int size = stack.length;
+			if(deletions) size = selectConsistentAlignments(alns, start, stack.clone(), size, inconsistencies);
+			if(size>1) queue.add(new int[] {size, s});
 		}
-	}
-
-	public void printMatrix(boolean[][] consistencyMatrix) {
-		System.out.println("Consistency matrix: ");
-		for(int i=0;i<consistencyMatrix.length;i++) {
-			for(int j=0;j<consistencyMatrix.length;j++) {
-				System.out.print(" "+consistencyMatrix[i][j]);
+		boolean [] assigned = new boolean[n];
+		int [] candidates = new int[n];
+		while(!queue.isEmpty()) {
+			int [] entry = queue.poll();
+			int [] stack = stacks.get(entry[1]);
+			int size = 0;
+			for(int j:stack) {
+				if(!assigned[j]) candidates[size++] = j;
 			}
-			System.out.println();
+			if(deletions) size = selectConsistentAlignments(alns, start, candidates, size, inconsistencies);
+			if(size<=1) continue;
+			if(size!=entry[0]) {
+				//Sizes of other stacks may now be larger
+				queue.add(new int[] {size, entry[1]});
+				continue;
+			}
+			int [] cluster = new int[size];
+			for(int j=0;j<size;j++) {
+				cluster[j] = start+candidates[j];
+				assigned[candidates[j]] = true;
+			}
+			answer.add(cluster);
 		}
+		return answer;
 	}
 
-	private boolean[][] buildConsistencyMatrix(List<SameChromosomeAbnormalLengthAln> overlappingAlns, boolean deletions) {
-		int nAlns = overlappingAlns.size();
-		boolean matrix [] [] = new boolean [nAlns][nAlns];
-		for(int i=0;i<nAlns;i++) {
-			matrix[i][i] = true;
-			for(int j=i+1;j<nAlns;j++) {
-				 matrix[i][j] = matrix[j][i] = areConsistent(overlappingAlns.get(i),overlappingAlns.get(j),deletions);  
+	/**
+	 * Removes alignments from the given candidates until the remaining candidates are consistent with each other.
+	 * The alignment inconsistent with the largest number of remaining candidates is removed first
+	 * @param alns Alignments supporting deletions
+	 * @param start Offset of the candidate indexes
+	 * @param candidates Indexes of overlapping alignments. Consistent alignments are kept at the beginning of the array
+	 * @param size Number of candidates
+	 * @param inconsistencies Array to store inconsistency counts. Length must be at least the number of candidates
+	 * @return int Number of consistent alignments left at the beginning of the candidates array
+	 */
+	private int selectConsistentAlignments(AbnormalLengthAlignments alns, int start, int [] candidates, int size, int [] inconsistencies) {
+		Arrays.fill(inconsistencies, 0, size, 0);
+		for(int j=0;j<size;j++) {
+			for(int l=j+1;l<size;l++) {
+				if(!areConsistentDeletionAlns(alns, start+candidates[j], start+candidates[l])) {
+					inconsistencies[j]++;
+					inconsistencies[l]++;
+				}
+			}
+		}
+		while(true) {
+			int worst = -1;
+			for(int j=0;j<size;j++) {
+				if(inconsistencies[j]>0 && (worst==-1 || inconsistencies[j]>inconsistencies[worst])) worst = j;
+			}
+			if(worst==-1) break;
+			int removed = candidates[worst];
+			for(int j=worst;j<size-1;j++) {
+				candidates[j] = candidates[j+1];
+				inconsistencies[j] = inconsistencies[j+1];
+			}
+			size--;
+			for(int j=0;j<size;j++) {
+				if(!areConsistentDeletionAlns(alns, start+removed, start+candidates[j])) inconsistencies[j]--;
 			}
 		}
-		return matrix;
+		return size;
 	}
 
-	private boolean areConsistent(SameChromosomeAbnormalLengthAln aln1, SameChromosomeAbnormalLengthAln aln2,boolean deletions) {
+	private boolean areConsistentDeletionAlns(AbnormalLengthAlignments alns, int i, int j) {
+		int first1 = alns.getFirst(i);
+		int last1 = alns.getLast(i);
+		int eventLength1 = alns.getEventLength(i);
+		int first2 = alns.getFirst(j);
+		int last2 = alns.getLast(j);
+		int eventLength2 = alns.getEventLength(j);
 		//Consistent alignments must overlap
-		int overlap = GenomicRegionSpanComparator.getInstance().getSpanLength(aln1.getFirst(), aln1.getLast(), aln2.getFirst(), aln2.getLast());
-		
+		int overlap = GenomicRegionSpanComparator.getInstance().getSpanLength(first1, last1, first2, last2);
 		if(overlap<=0) return false;
-		if(deletions) {
-			int span1 = aln1.getLast()-aln1.getFirst()+1;
-			int span2 = aln2.getLast()-aln2.getFirst()+1;
-			int avgInsert = span1-aln1.getEventLength();
-			//Span + avg insert length is approximately the same as event length + 2*avgInsertLength 
-			if(aln1.getEventLength()>span2+avgInsert) return false;
-			if(aln2.getEventLength()>span1+avgInsert) return false;
-			//Check that the overlap can accommodate the potential event
-			int minEventLength = Math.min(aln1.getEventLength(),aln2.getEventLength());
-			if(overlap < minEventLength) return false;
-		}
+		int span1 = last1-first1+1;
+		int span2 = last2-first2+1;
+		int avgInsert = span1-eventLength1;
+		//Span + avg insert length is approximately the same as event length + 2*avgInsertLength 
+		if(eventLength1>span2+avgInsert) return false;
+		if(eventLength2>span1+avgInsert) return false;
+		//Check that the overlap can accommodate the potential event
+		int minEventLength = Math.min(eventLength1,eventLength2);
+		if(overlap < minEventLength) return false;
 		return true;
 	}
 
-	
-
-	private ReadPairCalledGenomicVariant buildIndel(String seqName, List<SameChromosomeAbnormalLengthAln> consistentAlns, boolean deletion) {
-		int firstDebug = -1;
-		int lastDebug = -1;
+	private ReadPairCalledGenomicVariant buildIndel(String seqName, AbnormalLengthAlignments alns, int [] cluster, boolean deletion) {
 		int first = -1;
 		int last = -1;
 		double sumPredictedLength = 0;
-		for(SameChromosomeAbnormalLengthAln aln:consistentAlns) {
-			if(first == -1 ||  aln.getFirst()>first) first = aln.getFirst();
-			if(last==-1 || aln.getLast()<last) last = aln.getLast();
-			sumPredictedLength+=aln.getEventLength();
-			if(first > firstDebug && first < lastDebug) log.info("Creating indel from "+consistentAlns.size()+" consistent alignments at "+seqName+". Next aln limits "+aln.getFirst()+"-"+aln.getLast()+" new event coordinates "+first+"-"+last);
+		for(int i:cluster) {
+			if(first == -1 ||  alns.getFirst(i)>first) first = alns.getFirst(i);
+			if(last==-1 || alns.getLast(i)<last) last = alns.getLast(i);
+			sumPredictedLength+=alns.getEventLength(i);
 		}
-		int avgPredictedLength = (int)Math.round(sumPredictedLength/consistentAlns.size());
+		int avgPredictedLength = (int)Math.round(sumPredictedLength/cluster.length);
 		int span = last-first+1;
 		if(span<0) {
 			//Some reads are still inconsistent
@@ -650,7 +709,7 @@ public class ReadPairAnalyzer {
 		//TODO: Calculate total depth and check if heterozygous
 		byte genotype = CalledGenomicVariant.GENOTYPE_HOMOALT;
 		ReadPairCalledGenomicVariant answer = new ReadPairCalledGenomicVariant(var, genotype, avgPredictedLength);
-		answer.setSupportingFragments(consistentAlns.size());
+		answer.setSupportingFragments(cluster.length);
 		return answer;
 	}
 	
@@ -1126,35 +1185,30 @@ public class ReadPairAnalyzer {
 		return answer;
 	}
 
-	private List<ReadPairCalledGenomicVariant> findInversions() {
+	private List<ReadPairCalledGenomicVariant> findInversions(String seqName, AbnormalLengthAlignments alns) {
 		List<ReadPairCalledGenomicVariant> inversions = new ArrayList<ReadPairCalledGenomicVariant>();
-		int totalInvAlns = 0;
-		for(String seqName:seqNames) {
-			List<SameChromosomeAbnormalLengthAln> seqInvAlns = inversionAlns.get(seqName);
-			if(seqInvAlns==null) continue;
-			Collections.sort(seqInvAlns);
-			totalInvAlns+=seqInvAlns.size();
-			List<List<SameChromosomeAbnormalLengthAln>> nonOverlappingAlns = distributeNonOverlappingAlns(seqInvAlns);
-			for(List<SameChromosomeAbnormalLengthAln> overlappingAlns:nonOverlappingAlns){
-				ReadPairCalledGenomicVariant inv = buildInversion(seqName,overlappingAlns); 
-				if (inv!=null) inversions.add(inv);
-			}
+		alns.sort();
+		int n = alns.size();
+		int groupStart = 0;
+		for(int i=1;i<=n;i++) {
+			if(i<n && alns.getFirst(i)<=alns.getLast(i-1)) continue;
+			ReadPairCalledGenomicVariant inv = buildInversion(seqName, alns, groupStart, i); 
+			if (inv!=null) inversions.add(inv);
+			groupStart = i;
 		}
-		
-		assignGenotypeQualities(inversions,totalInvAlns);
 		return inversions;
 	}
 
-	private ReadPairCalledGenomicVariant buildInversion(String seqName, List<SameChromosomeAbnormalLengthAln> overlappingAlns) {
+	private ReadPairCalledGenomicVariant buildInversion(String seqName, AbnormalLengthAlignments alns, int start, int end) {
 		int first = -1;
 		int last = -1;
 		double sumPredictedLength = 0;
-		for(SameChromosomeAbnormalLengthAln aln:overlappingAlns) {
-			if(first == -1 ||  aln.getFirst()>first) first = aln.getFirst();
-			if(last == -1 || aln.getLast()<last) last = aln.getLast();
-			sumPredictedLength+=aln.getEventLength();
+		for(int i=start;i<end;i++) {
+			if(first == -1 ||  alns.getFirst(i)>first) first = alns.getFirst(i);
+			if(last == -1 || alns.getLast(i)<last) last = alns.getLast(i);
+			sumPredictedLength+=alns.getEventLength(i);
 		}
-		int n = overlappingAlns.size();
+		int n = end-start;
 		int avgPredictedLength = (int)Math.round(sumPredictedLength/n);
 		int span = last - first + 1;
 		
@@ -1224,3 +1278,108 @@ class GenomicRegionWithAlignment extends GenomicRegionImpl {
 	
 	
 }
+/**
+ * Abnormally aligned reads within one sequence and candidate events built from them
+ */
+class SequenceAbnormalAlignments {
+	private String sequenceName;
+	private AbnormalLengthAlignments deletionAlns = new AbnormalLengthAlignments();
+	private AbnormalLengthAlignments insertionAlns = new AbnormalLengthAlignments();
+	private AbnormalLengthAlignments inversionAlns = new AbnormalLengthAlignments();
+	private List<ReadPairCalledGenomicVariant> deletions = new ArrayList<ReadPairCalledGenomicVariant>();
+	private List<ReadPairCalledGenomicVariant> insertions = new ArrayList<ReadPairCalledGenomicVariant>();
+	private List<ReadPairCalledGenomicVariant> inversions = new ArrayList<ReadPairCalledGenomicVariant>();
+	
+	public SequenceAbnormalAlignments(String sequenceName) {
+		this.sequenceName = sequenceName;
+	}
+	public String getSequenceName() {
+		return sequenceName;
+	}
+	public AbnormalLengthAlignments getDeletionAlns() {
+		return deletionAlns;
+	}
+	public AbnormalLengthAlignments getInsertionAlns() {
+		return insertionAlns;
+	}
+	public AbnormalLengthAlignments getInversionAlns() {
+		return inversionAlns;
+	}
+	public List<ReadPairCalledGenomicVariant> getDeletions() {
+		return deletions;
+	}
+	public List<ReadPairCalledGenomicVariant> getInsertions() {
+		return insertions;
+	}
+	public List<ReadPairCalledGenomicVariant> getInversions() {
+		return inversions;
+	}
+}
+/**
+ * Intervals predicted from abnormally aligned read pairs stored in primitive arrays
+ */
+class AbnormalLengthAlignments {
+	private int [] firsts = new int[16];
+	private int [] lasts = new int[16];
+	private int [] eventLengths = new int[16];
+	private int size = 0;
+	
+	public void add(int first, int last, int eventLength) {
+		if(size==firsts.length) {
+			int newCapacity = 2*size;
+			firsts = Arrays.copyOf(firsts, newCapacity);
+			lasts = Arrays.copyOf(lasts, newCapacity);
+			eventLengths = Arrays.copyOf(eventLengths, newCapacity);
+		}
+		firsts[size] = first;
+		lasts[size] = last;
+		eventLengths[size] = eventLength;
+		size++;
+	}
+	public int size() {
+		return size;
+	}
+	public int getFirst(int i) {
+		return firsts[i];
+	}
+	public int getLast(int i) {
+		return lasts[i];
+	}
+	public int getEventLength(int i) {
+		return eventLengths[i];
+	}
+	/**
+	 * Sorts the intervals by first position, then by last position and then by event length
+	 */
+	public void sort() {
+		//Sort by first position packing the first position and the index in a single number
+		long [] keys = new long[size];
+		for(int i=0;i<size;i++) keys[i] = ((long)firsts[i]<<32) | i;
+		Arrays.sort(keys);
+		int [] sortedFirsts = new int[size];
+		int [] sortedLasts = new int[size];
+		int [] sortedLengths = new int[size];
+		for(int i=0;i<size;i++) {
+			int idx = (int)(keys[i] & 0xFFFFFFFFL);
+			sortedFirsts[i] = firsts[idx];
+			sortedLasts[i] = lasts[idx];
+			sortedLengths[i] = eventLengths[idx];
+		}
+		firsts = sortedFirsts;
+		lasts = sortedLasts;
+		eventLengths = sortedLengths;
+		//Insertion sort within runs of intervals with the same first position
+		for(int i=1;i<size;i++) {
+			int last = lasts[i];
+			int length = eventLengths[i];
+			int j = i-1;
+			while(j>=0 && firsts[j]==firsts[i] && (lasts[j]>last || (lasts[j]==last && eventLengths[j]>length))) {
+				lasts[j+1] = lasts[j];
+				eventLengths[j+1] = eventLengths[j];
+				j--;
+			}
+			lasts[j+1] = last;
+			eventLengths[j+1] = length;
+		}
+	}
+}
@@ -232,7 +232,7 @@ public class SingleSampleVariantPileupListener implements PileupListener {
 	}
 	
 	public CalledGenomicVariant discoverSNV(PileupRecord pileup, char reference) {
-		List<PileupAlleleCall> calls = pileup.getAlleleCalls(1,(String)null);
+		PileupBaseCalls calls = pileup.getBaseCalls((String)null);
 		CountsHelper helperSNV = CountsHelper.calculateCountsSNV(calls, maxBaseQS, 0.5);
 		short ploidy = sample.getNormalPloidy();
 		if(ploidy<DEF_MIN_PLOIDY_POOL_ALGORITHM) {
@@ -240,7 +240,7 @@ public class SingleSampleVariantPileupListener implements PileupListener {
 		} else {
 			GenomicVariant variant = createSNVVariantPool(pileup, helperSNV, reference, 0.5/(double)sample.getNormalPloidy());
 			if(variant == null) return null;
-			CalledGenomicVariant call = genotypeVariantPool(variant, ploidy, calls, heterozygosityRate);
+			CalledGenomicVariant call = genotypeVariantPool(variant, ploidy, null, calls, heterozygosityRate);
 			if(variant.isBiallelic()) return call;
 			if(call.isUndecided() || call.isHomozygousReference()) return null;
 			byte [] indexes = call.getIndexesCalledAlleles();
@@ -250,7 +250,7 @@ public class SingleSampleVariantPileupListener implements PileupListener {
 			newAlleles.add(variant.getReference());
 			newAlleles.addAll(Arrays.asList(call.getCalledAlleles()));
 			variant = makeNewVariant(variant, newAlleles);
-			return genotypeVariantPool(variant, ploidy, calls, heterozygosityRate);
+			return genotypeVariantPool(variant, ploidy, null, calls, heterozygosityRate);
 		}
 	}
 	
@@ -280,7 +280,7 @@ public class SingleSampleVariantPileupListener implements PileupListener {
 		} else {
 			GenomicVariant indel = createIndelVariantPool(pileup, helper);
 			if(indel == null || allelesSameLength(indel.getAlleles())) return null;
-			CalledGenomicVariant call = genotypeVariantPool(indel, ploidy, calls, heterozygosityRate);
+			CalledGenomicVariant call = genotypeVariantPool(indel, ploidy, calls, null, heterozygosityRate);
 			if(indel.isBiallelic()) return call;
 			if(call.isUndecided() || call.isHomozygousReference()) return null;
 			byte [] indexes = call.getIndexesCalledAlleles();
@@ -291,7 +291,7 @@ public class SingleSampleVariantPileupListener implements PileupListener {
 			newAlleles.addAll(Arrays.asList(call.getCalledAlleles()));
 			indel = makeNewVariant(indel, newAlleles);
 			if(indel == null || allelesSameLength(indel.getAlleles())) return null;
-			return genotypeVariantPool(indel, ploidy, calls, heterozygosityRate);
+			return genotypeVariantPool(indel, ploidy, calls, null, heterozygosityRate);
 		}
 	}
 	public static GenomicVariant createSNVVariantPool(PileupRecord pileup, CountsHelper helper, char reference, double minAlleleDepthFrequency) {
@@ -362,11 +362,12 @@ public class SingleSampleVariantPileupListener implements PileupListener {
 		String referenceAllele = variant.getReference();
 		short ploidy = (sample!=null?sample.getNormalPloidy():this.sample.getNormalPloidy());
 		CalledGenomicVariant calledVar = null;
-		List<PileupAlleleCall> calls = pileup.getAlleleCalls(referenceAllele.length(),(sample!=null?sample.getReadGroups():null));
+		Set<String> readGroups = (sample!=null?sample.getReadGroups():null);
 		if(variant.isSNV()) {
-			CountsHelper helperSNV = CountsHelper.calculateCountsSNV(calls, maxBaseQS, 0.5);
+			PileupBaseCalls baseCalls = pileup.getBaseCalls(readGroups);
+			CountsHelper helperSNV = CountsHelper.calculateCountsSNV(baseCalls, maxBaseQS, 0.5);
 			if(ploidy>=DEF_MIN_PLOIDY_POOL_ALGORITHM) {
-				CalledGenomicVariantImpl calledVarI = genotypeVariantPool(variant, ploidy, calls, h);
+				CalledGenomicVariantImpl calledVarI = genotypeVariantPool(variant, ploidy, null, baseCalls, h);
 				calledVarI.setAllCounts(helperSNV.getCounts());
 				calledVar = calledVarI;
 			} else {
@@ -375,8 +376,9 @@ public class SingleSampleVariantPileupListener implements PileupListener {
 				calledVar.updateAllelesCopyNumberFromCounts(ploidy);
 			}
 		} else {
+			List<PileupAlleleCall> calls = pileup.getAlleleCalls(referenceAllele.length(),readGroups);
 			if(ploidy>=DEF_MIN_PLOIDY_POOL_ALGORITHM) {
-				calledVar = genotypeVariantPool(variant, ploidy, calls, h);
+				calledVar = genotypeVariantPool(variant, ploidy, calls, null, h);
 			} else {
 				CountsHelper helperIndel = CountsHelper.calculateCountsIndel(variant.getAlleles(), calls, maxBaseQS, 0.5, variant.getFirst()==posPrint);
 				if(variant.getFirst()==posPrint) helperIndel.printProbs(helperIndel.getLogConditionalProbs(), false);
@@ -395,11 +397,12 @@ public class SingleSampleVariantPileupListener implements PileupListener {
 	 * @param variant to genotype
 	 * @param sample to genotype as a pool
 	 * @param ploidy
-	 * @param calls
+	 * @param calls Allele calls to genotype indels
+	 * @param baseCalls Base calls to genotype SNVs
 	 * @param h prior heterozygosity rate
 	 * @return CalledGenomicVariantImpl Genotype call for the given pool at the given variant
 	 */
-	private CalledGenomicVariantImpl genotypeVariantPool(GenomicVariant variant, short haplotypes, List<PileupAlleleCall> calls, double h) {
+	private CalledGenomicVariantImpl genotypeVariantPool(GenomicVariant variant, short haplotypes, List<PileupAlleleCall> calls, PileupBaseCalls baseCalls, double h) {
 		double step = 1.0/(double)haplotypes;
 		List<Byte> selectedAlleles = new ArrayList<Byte>();
 		String [] alleles = variant.getAlleles();
@@ -409,7 +412,7 @@ public class SingleSampleVariantPileupListener implements PileupListener {
 		List<CountsHelper> helpers = new ArrayList<CountsHelper>();
 		for(double freq = step;freq<0.51;freq+=step) {
 			freqs.add(freq);
-			if(variant.isSNV()) helpers.add(CountsHelper.calculateCountsGTSNV(alleles, calls, maxBaseQS, freq));
+			if(variant.isSNV()) helpers.add(CountsHelper.calculateCountsGTSNV(alleles, baseCalls, maxBaseQS, freq));
 			else helpers.add(CountsHelper.calculateCountsIndel(alleles, calls, maxBaseQS, freq,variant.getFirst()==posPrint));
 		}
 		if(variant.getFirst()==posPrint) System.out.println("Frequencies: "+freqs+" helpers: "+helpers.size());
@@ -28,7 +28,9 @@ import java.util.List;
 import java.util.logging.Logger;
 
 import ngsep.alignments.ReadAlignment;
-import ngsep.discovery.rd.ReadDepthBin;
+import ngsep.alignments.io.ReadAlignmentsScanner;
+import ngsep.discovery.rd.ReadDepthSequenceBins;
+import ngsep.discovery.rd.CNVnatorReadDepthAlgorithm;
 import ngsep.discovery.rd.ReadDepthDistribution;
 import ngsep.discovery.rd.SingleSampleReadDepthAlgorithm;
 import ngsep.genome.GenomicRegion;
@@ -73,6 +75,7 @@ public class SingleSampleVariantsDetector implements PileupListener {
 	public static final short DEF_MAX_PCT_OVERLAP_CNVS = 100;
 	public static final int DEF_MAX_LEN_DELETION = ReadPairAnalyzer.DEF_MAX_LEN_DELETION;
 	public static final int DEF_SPLIT_READ_SEED = ReadPairAnalyzer.DEF_SPLIT_READ_SEED;
+	public static final int DEF_NUM_THREADS = 1;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(SingleSampleVariantsDetector.class.getName());
@@ -100,6 +103,7 @@ public class SingleSampleVariantsDetector implements PileupListener {
 	private boolean findSNVs = true;
 	private boolean runRPAnalysis = false;
 	private boolean findNewCNVs = true;
+	private int numThreads = DEF_NUM_THREADS;
 	// Classes implementing the algorithms for structural variants detection
 	private MultipleMappingRegionsCalculator mmRegsCalc = new MultipleMappingRegionsCalculator();
 	private ReadPairAnalyzer rpAnalyzer = new ReadPairAnalyzer();
@@ -512,6 +516,17 @@ public class SingleSampleVariantsDetector implements PileupListener {
 		setMaxPCTOverlapCNVs((int)OptionValuesDecoder.decode(value, Integer.class));
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+		rpAnalyzer.setNumThreads(numThreads);
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	public boolean isRunRPAnalysis() {
 		return runRPAnalysis;
 	}
@@ -589,9 +604,29 @@ public class SingleSampleVariantsDetector implements PileupListener {
 			calledSVs.addAll(svsFH.loadVariants(knownSVsFile));
 			log.info("Loaded "+calledSVs.size()+" input SVs");
 		}
+		ReadDepthDistribution rdDistribution = null;
+		if(runRDAnalysis) {
+			log.info("Loading bins");
+			rdDistribution = new ReadDepthDistribution(genome, binSize);
+			log.info("Loaded bins. Assembly genome size: "+rdDistribution.getGenomeSize());
+			//Pass parameters
+			rdDistribution.setLog(this.getLog());
+			rdDistribution.setMinMQ(generator.getMinMQ());
+		}
+		if(findRepeats || runRDAnalysis) {
+			//Repeats and read depth are calculated from a single pass over the alignments
+			ReadAlignmentsScanner scanner = new ReadAlignmentsScanner(genome);
+			scanner.setLog(log);
+			scanner.setMinMQ(generator.getMinMQ());
+			if(findRepeats) scanner.addConsumer(mmRegsCalc);
+			if(runRDAnalysis) scanner.addConsumer(rdDistribution);
+			log.info("Processing alignments file: "+inputFile);
+			scanner.scan(inputFile);
+			log.info("Processed alignments file: "+inputFile);
+		}
 		if(findRepeats) {
 			log.info("Finding repeats using reads with multiple alignments");
-			List<CalledCNV> multipleMCnvs = mmRegsCalc.calculateMultipleMappingRegions(inputFile);
+			List<CalledCNV> multipleMCnvs = mmRegsCalc.getMultipleMappingRegions();
 			log.info("Found "+multipleMCnvs.size()+" repeats");
 			calledSVs.addAll(multipleMCnvs);
 			log.info("Number of SVs after finding repeats: "+calledSVs.size());
@@ -600,7 +635,7 @@ public class SingleSampleVariantsDetector implements PileupListener {
 		//Call CNVs based on read depth
 		if(runRDAnalysis) {
 			log.info("Running read depth (RD) analysis to identify/genotype CNVs");
-			List<CalledCNV> cnvsRD = runRDAnalysis();
+			List<CalledCNV> cnvsRD = runRDAnalysis(rdDistribution);
 			if(cnvsRD !=null) {
 				log.info("Found "+cnvsRD.size()+" new CNVs running the RD analysis");
 				calledSVs.addAll(cnvsRD);
@@ -681,21 +716,17 @@ public class SingleSampleVariantsDetector implements PileupListener {
 			out.println("Size of the seed for split-read alignments : "+getSplitReadSeed());
 			out.println("Ignore proper pair flag for RP analysis : "+isIgnoreProperPairFlag());
 		}
+		out.println("Number of threads for CNVnator partition (RD analysis) and read pair clustering (RP analysis): "+getNumThreads());
 		log.info(os.toString());	
 	}
 	
-	public List<CalledCNV> runRDAnalysis() throws IOException {
-		log.info("Loading bins");
-		ReadDepthDistribution rdDistribution = new ReadDepthDistribution(genome, binSize);
-		log.info("Loaded bins. Assembly genome size: "+rdDistribution.getGenomeSize());
-		//Pass parameters
-		rdDistribution.setLog(this.getLog());
-		rdDistribution.setMinMQ(generator.getMinMQ());
-		
-		
-		log.info("Processing alignments file: "+inputFile);
-		rdDistribution.processAlignments(inputFile);
-		log.info("Processed alignments file: "+inputFile);
+	/**
+	 * Runs the read depth analysis to genotype the known CNVs and repeats and to find new CNVs
+	 * @param rdDistribution Read depth distribution after processing the alignments
+	 * @return List<CalledCNV> New CNVs. Null if new CNVs should not be called
+	 * @throws IOException If an algorithm for the RD analysis can not be loaded
+	 */
+	public List<CalledCNV> runRDAnalysis(ReadDepthDistribution rdDistribution) throws IOException {
 		if(progressNotifier!=null && !progressNotifier.keepRunning(7)) return new ArrayList<CalledCNV>();
 		rdDistribution.correctDepthByGCContent();
 		log.info("Corrected GCContent biases");
@@ -749,6 +780,7 @@ public class SingleSampleVariantsDetector implements PileupListener {
 		else rdAlgorithm.setGenomeSize(rdDistribution.getGenomeSize());
 		rdAlgorithm.setNormalPloidy((byte)normalPloidy);
 		rdAlgorithm.setReadDepthDistribution(rdDistribution);
+		if(rdAlgorithm instanceof CNVnatorReadDepthAlgorithm) ((CNVnatorReadDepthAlgorithm)rdAlgorithm).setNumThreads(numThreads);
 		return rdAlgorithm.callCNVs();
 	}
 	
@@ -789,7 +821,7 @@ public class SingleSampleVariantsDetector implements PileupListener {
 		for(String seqName:calledCNVs.getSequenceNames().getNamesStringList()) {
 			List<CalledCNV> seqCNVs = calledCNVs.getSequenceRegions(seqName).asList();
 			
-			List<ReadDepthBin> seqBins = rdDistribution.getBins(seqName);
+			ReadDepthSequenceBins seqBins = rdDistribution.getBins(seqName);
 			if(seqBins!=null) {
 				for(CalledCNV cnv:seqCNVs) {
 					int binStart = (cnv.getFirst()-1)/binSize;
@@ -798,9 +830,8 @@ public class SingleSampleVariantsDetector implements PileupListener {
 					int sumUncorrected = 0;
 					int nBins = 0;
 					for(int i=binStart;i<seqBins.size()&& i<=binEnd;i++) {
-						ReadDepthBin bin = seqBins.get(i);
-						sumUncorrected += bin.getRawReadDepth();
-						avg+=bin.getCorrectedReadDepth();
+						sumUncorrected += seqBins.getRawReadDepth(i);
+						avg+=seqBins.getCorrectedReadDepth(i);
 						nBins++;
 					}
 					//TODO: Update genotype quality
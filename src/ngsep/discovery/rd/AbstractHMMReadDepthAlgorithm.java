@@ -72,7 +72,7 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 		HMM hmm = buildHMM ();
 		for(String seqName:seqNames) {
 			log.info("Calling CNVs for sequence "+seqName);
-			List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
+			ReadDepthSequenceBins seqBins = readDepthDistribution.getBins(seqName);
 			List<CalledCNV> cnvsSeq = callCNVsSequence(seqName,seqBins,hmm); 
 			log.info("Called "+cnvsSeq.size()+" CNVs for sequence "+seqName);
 			answer.addAll(cnvsSeq);
@@ -125,7 +125,7 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 	
 	
 
-	private List<CalledCNV> callCNVsSequence(String seqName, List<ReadDepthBin> seqBins, HMM hmm) {
+	private List<CalledCNV> callCNVsSequence(String seqName, ReadDepthSequenceBins seqBins, HMM hmm) {
 		int m = seqBins.size();
 		int n = hmm.getNumStates();
 		Double [] [] posteriorLogs = new Double [m][n];
@@ -158,10 +158,10 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 		}
 	}
 
-	private List<Double> buildObservations(List<ReadDepthBin> seqBins) {
+	private List<Double> buildObservations(ReadDepthSequenceBins seqBins) {
 		List<Double> observations = new ArrayList<Double>();
-		for(ReadDepthBin bin:seqBins) {
-			observations.add(bin.getCorrectedReadDepth());
+		for(int i=0;i<seqBins.size();i++) {
+			observations.add(seqBins.getCorrectedReadDepth(i));
 		}
 		return observations;
 	}
@@ -179,19 +179,17 @@ public abstract class AbstractHMMReadDepthAlgorithm implements SingleSampleReadD
 		return maxI;
 	}
 
-	private CalledCNV createCNV(String seqName, List<ReadDepthBin> seqBins, Double [][] posteriorLogs, int firstI, int lastI, int copies) {
-		ReadDepthBin firstBin = seqBins.get(firstI);
-		ReadDepthBin lastBin = seqBins.get(lastI);
+	private CalledCNV createCNV(String seqName, ReadDepthSequenceBins seqBins, Double [][] posteriorLogs, int firstI, int lastI, int copies) {
 		int bins = 0;
 		int fragments = 0;
 		double avgProb = 0;
 		for(int i=firstI;i<=lastI;i++) {
-			fragments+=seqBins.get(i).getRawReadDepth();
+			fragments+=seqBins.getRawReadDepth(i);
 			avgProb += LogMath.power10(posteriorLogs[i][copies]); 
 			bins++;
 		}
 		avgProb/=bins;
-		GenomicVariantImpl cnv = new GenomicVariantImpl(seqName, firstBin.getFirst(), lastBin.getLast(),GenomicVariant.TYPE_CNV);
+		GenomicVariantImpl cnv = new GenomicVariantImpl(seqName, seqBins.getFirst(firstI), seqBins.getLast(lastI),GenomicVariant.TYPE_CNV);
 		CalledCNV call = new CalledCNV(cnv,copies);
 		call.setTotalReadDepth(fragments);
 		call.setGenotypeQuality(PhredScoreHelper.calculatePhredScore(1-avgProb));
@@ -32,6 +32,7 @@ import JSci.maths.SpecialMath;
 import JSci.maths.statistics.TDistribution;
 import ngsep.genome.GenomicRegionComparator;
 import ngsep.genome.ReferenceGenome;
+import ngsep.main.ThreadPoolManager;
 import ngsep.main.io.ParseUtils;
 import ngsep.math.PhredScoreHelper;
 import ngsep.variants.CalledCNV;
@@ -58,8 +59,12 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 	
 	private double minGradientValue = 0;
 	
+	private int numThreads = 1;
+	
 	
 	public static final double MAX_PVALUE_REGION=0.05;
+	//Maximum time to wait for the analysis of each sequence when running in parallel
+	private static final int SECONDS_PER_SEQUENCE=3600;
 	
 	public static void main(String[] args) throws Exception {
 		CNVnatorReadDepthAlgorithm cnvNator = new CNVnatorReadDepthAlgorithm();
@@ -86,6 +91,9 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 				fileType = Integer.parseInt(args[i]);
 			} else if("-noGreedyMerge".equals(args[i])) {
 				cnvNator.greedyMergeLevels = false;
+			} else if("-numThreads".equals(args[i])) {
+				i++;
+				cnvNator.numThreads = Integer.parseInt(args[i]);
 			}
 			i++;
 		}
@@ -155,35 +163,45 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 	
 	private void calculatePartition (int range, boolean skipMasked) {
 		List<String> sequenceNames = rdDistribution.getSequences().getNamesStringList();
+		//Sequences are independent. Each task only modifies the levels of its own sequence
+		ThreadPoolManager pool = new ThreadPoolManager(numThreads, Math.max(sequenceNames.size(), 1));
+		pool.setSecondsPerTask(SECONDS_PER_SEQUENCE);
 		for(String seqName:sequenceNames) {
-			List<ReadDepthBin> seqBins = rdDistribution.getBins(seqName);
-			log.info("Calculating partition for sequence: "+seqName+". Sequence bins: "+seqBins.size());
-			boolean [] mask = new boolean[seqBins.size()];
-			Arrays.fill(mask, false);
-			
-			for(int binBand=2;binBand<=range;binBand++) {
-				//Restore original RD values
-				for(int i=0;i<seqBins.size();i++) {
-					if(!mask[i]) {
-						ReadDepthBin bin = seqBins.get(i);
-						bin.setReadDepthLevel(bin.getCorrectedReadDepth());
-					}
-				}
-				calcLevels(seqBins, binBand, mask, skipMasked);
-				calcLevels(seqBins, binBand, mask, skipMasked);
-				calcLevels(seqBins, binBand, mask, skipMasked);
-				updateMask(seqBins, mask);
-				if(binBand>=8) binBand++;
-				if(binBand>=16) binBand+=2;
-				if(binBand>=32) binBand+=4;
-				if(binBand>=64) binBand+=8;
-				if(binBand>=128) binBand+=16;
-				if(binBand>=256) binBand+=32;
-				if(binBand>=512) binBand+=64;
+			ReadDepthSequenceBins seqBins = rdDistribution.getBins(seqName);
+			if(seqBins==null) continue;
+			try {
+				pool.queueTask(()->calculatePartition(seqBins, range, skipMasked));
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
 			}
 		}
+		try {
+			pool.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
 	}
-	private void calcLevels(List<ReadDepthBin> seqBins, int binBand, boolean [] mask, boolean skipMasked) {
+	private void calculatePartition (ReadDepthSequenceBins seqBins, int range, boolean skipMasked) {
+		log.info("Calculating partition for sequence: "+seqBins.getSequenceName()+". Sequence bins: "+seqBins.size());
+		boolean [] mask = new boolean[seqBins.size()];
+		Arrays.fill(mask, false);
+		for(int binBand=2;binBand<=range;binBand++) {
+			//Restore original RD values
+			seqBins.resetReadDepthLevels(mask);
+			calcLevels(seqBins, binBand, mask, skipMasked);
+			calcLevels(seqBins, binBand, mask, skipMasked);
+			calcLevels(seqBins, binBand, mask, skipMasked);
+			updateMask(seqBins, mask);
+			if(binBand>=8) binBand++;
+			if(binBand>=16) binBand+=2;
+			if(binBand>=32) binBand+=4;
+			if(binBand>=64) binBand+=8;
+			if(binBand>=128) binBand+=16;
+			if(binBand>=256) binBand+=32;
+			if(binBand>=512) binBand+=64;
+		}
+	}
+	private void calcLevels(ReadDepthSequenceBins seqBins, int binBand, boolean [] mask, boolean skipMasked) {
 		double [] gradients = new double[seqBins.size()];
 		Arrays.fill(gradients, 0);
 		double inv2BinBand = 1.0/(binBand*binBand);
@@ -197,22 +215,19 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		}
 		double [] hrs = new double[seqBins.size()];
 		for(int b=0;b<seqBins.size();b++) {
-			ReadDepthBin binB = seqBins.get(b);
 			hrs[b] = sigma2;
-			if(binB.getReadDepthLevel() >= mean4) hrs[b] = ms2/binB.getReadDepthLevel();
+			if(seqBins.getReadDepthLevel(b) >= mean4) hrs[b] = ms2/seqBins.getReadDepthLevel(b);
 		}
 		//Calculate gradients
 		for(int b=0;b<seqBins.size();b++) {
-			ReadDepthBin binB = seqBins.get(b);
 			if(mask[b]) continue;
 			int distance = 0;
 			for(int i=b+1;i<seqBins.size();i++) {
-				ReadDepthBin binI = seqBins.get(i);
 				if(mask[i]) continue;
 				distance++;
-				double difLevel = binI.getReadDepthLevel()-binB.getReadDepthLevel();
+				double difLevel = seqBins.getReadDepthLevel(i)-seqBins.getReadDepthLevel(b);
 				double val = -0.5*difLevel*difLevel;
-				//if(b==1058132 || b == 1058133)System.out.println("Bin start: "+binB.getFirst()+" BinI: "+binI.getFirst()+" current grad: "+gradients[b]+" Dif level: "+difLevel+" val: "+val+" Level: "+binB.getReadDepthLevel()+" invB: "+hrs[b]+" ms2: "+ms2);
+				//if(b==1058132 || b == 1058133)System.out.println("Bin start: "+seqBins.getFirst(b)+" BinI: "+seqBins.getFirst(i)+" current grad: "+gradients[b]+" Dif level: "+difLevel+" val: "+val+" Level: "+seqBins.getReadDepthLevel(b)+" invB: "+hrs[b]+" ms2: "+ms2);
 				gradients[b] += expsWindow[distance]*Math.exp(val*hrs[b]);
 				gradients[i] -= expsWindow[distance]*Math.exp(val*hrs[i]);
 				if(distance == window) break;
@@ -237,22 +252,20 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 			double nl = 0;
 			int n = 0;
 		    for (int i = bStart;i <= bStop;i++) {
-		    	ReadDepthBin bin = seqBins.get(i);
 		    	if (mask[i]) continue;
-		    	nl += bin.getReadDepthLevel();
+		    	nl += seqBins.getReadDepthLevel(i);
 		    	n++;
 		    }
 		    //Update with the average signal
 		    nl/=n;
 			for (int i = bStart;i <= bStop;i++) {
-		    	ReadDepthBin bin = seqBins.get(i);
-		    	if (!mask[i]) bin.setReadDepthLevel(nl);
-		    	//if(i==1058132 || i == 1058133)System.out.println("Bin start: "+bin.getFirst()+" Level: "+bin.getReadDepthLevel()+" mask: "+mask[i]+" gradient: "+gradients[i]);
+		    	if (!mask[i]) seqBins.setReadDepthLevel(i, nl);
+		    	//if(i==1058132 || i == 1058133)System.out.println("Bin start: "+seqBins.getFirst(i)+" Level: "+seqBins.getReadDepthLevel(i)+" mask: "+mask[i]+" gradient: "+gradients[i]);
 		    }
 		}
 	}
 	
-	private void updateMask(List<ReadDepthBin> seqBins, boolean[] mask) {
+	private void updateMask(ReadDepthSequenceBins seqBins, boolean[] mask) {
 		Arrays.fill(mask, false);
 		List<LevelRegion> regions = calculateRegions(seqBins);
 		for(int i=1;i<regions.size()-1;i++) {
@@ -274,7 +287,7 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		
 		
 	}
-	private List<LevelRegion> calculateRegions(List<ReadDepthBin> seqBins) {
+	private List<LevelRegion> calculateRegions(ReadDepthSequenceBins seqBins) {
 		List<LevelRegion> regions = new ArrayList<LevelRegion>();
 		double lastLevel = -1;
 		int first = 0;
@@ -283,19 +296,18 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		double sum = 0;
 		double sum2 = 0;
 		for(int i=0;i<seqBins.size();i++) {
-			ReadDepthBin bin = seqBins.get(i);
-			if(lastLevel != -1 && Math.abs(bin.getReadDepthLevel()-lastLevel)>=0.01) {
+			if(lastLevel != -1 && Math.abs(seqBins.getReadDepthLevel(i)-lastLevel)>=0.01) {
 				regions.add(new LevelRegion(first, last, nBins, lastLevel, sum, sum2));
 				first = i;
 				
 				sum = sum2 = nBins = 0;
 			}
-			double signal = bin.getCorrectedReadDepth(); 
+			double signal = seqBins.getCorrectedReadDepth(i); 
 			sum+=signal;
 			sum2+=(signal*signal);
 			nBins++;
 			last = i;
-			lastLevel = bin.getReadDepthLevel();
+			lastLevel = seqBins.getReadDepthLevel(i);
 		}
 		regions.add(new LevelRegion(first, last, nBins, lastLevel, sum, sum2));
 		return regions;
@@ -312,13 +324,12 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		if(correctMT) p *= (0.99*genomeSize/(rdDistribution.getBinSize()*region.nBins));
 		return p;
 	}
-	private double calculateModifiedPValue(List<ReadDepthBin> seqBins, LevelRegion region, boolean deletion) {
+	private double calculateModifiedPValue(ReadDepthSequenceBins seqBins, LevelRegion region, boolean deletion) {
 		double max = -1;
 		double min = -1;
 		for(int i=region.first;i<=region.last;i++) {
-			ReadDepthBin bin = seqBins.get(i);
-			if(bin.getCorrectedReadDepth()>max) max = bin.getCorrectedReadDepth();
-			if(min==-1 || bin.getCorrectedReadDepth()<min) min = bin.getCorrectedReadDepth();
+			if(seqBins.getCorrectedReadDepth(i)>max) max = seqBins.getCorrectedReadDepth(i);
+			if(min==-1 || seqBins.getCorrectedReadDepth(i)<min) min = seqBins.getCorrectedReadDepth(i);
 		}
 		double p;
 		if(deletion) {
@@ -360,13 +371,12 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		double cut = meanReadDepth / (2*normalPloidy);
 		List<String> sequenceNames = rdDistribution.getSequences().getNamesStringList();
 		for(String seqName:sequenceNames) {
-			List<ReadDepthBin> seqBins = rdDistribution.getBins(seqName);
+			ReadDepthSequenceBins seqBins = rdDistribution.getBins(seqName);
 			List<LevelRegion> regions = calculateFinalRegions(seqBins, cut,true,false);
 			for(LevelRegion region:regions) {
 				for(int i=region.first;i<=region.last;i++) {
-					ReadDepthBin bin = seqBins.get(i);
-					out.print(""+seqName+"\t"+bin.getFirst()+"\t"+bin.getLast()+"\t"+fmt.format(100*bin.getGcContent()));
-					out.print("\t"+fmt.format(bin.getRawReadDepth())+"\t"+fmt.format(bin.getCorrectedReadDepth())+"\t"+fmt.format(bin.getReadDepthLevel()));
+					out.print(""+seqName+"\t"+seqBins.getFirst(i)+"\t"+seqBins.getLast(i)+"\t"+fmt.format(100*seqBins.getGcContent(i)));
+					out.print("\t"+fmt.format(seqBins.getRawReadDepth(i))+"\t"+fmt.format(seqBins.getCorrectedReadDepth(i))+"\t"+fmt.format(seqBins.getReadDepthLevel(i)));
 					out.print("\t"+fmt.format(region.getAverageRD())+"\t"+fmt.format(Math.sqrt(region.getVarianceRD()))+"\t"+fmt.format(region.level));
 					out.print("\t"+region.pValueMethod);
 					out.print("\t"+region.pValueGaussian);
@@ -379,33 +389,55 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 	}
 	
 	private List<CalledCNV> makeCNVCallsPartition() {
-		List<CalledCNV> cnvs = new ArrayList<CalledCNV>();
 		double cut = meanReadDepth / (2*normalPloidy);
 		List<String> sequenceNames = rdDistribution.getSequences().getNamesStringList();
+		List<List<CalledCNV>> cnvsBySequence = new ArrayList<List<CalledCNV>>(sequenceNames.size());
+		ThreadPoolManager pool = new ThreadPoolManager(numThreads, Math.max(sequenceNames.size(), 1));
+		pool.setSecondsPerTask(SECONDS_PER_SEQUENCE);
 		for(String seqName:sequenceNames) {
-			if(sequenceNames.size()<100) log.info("Calling CNVs for sequence "+seqName);
-			List<ReadDepthBin> seqBins = rdDistribution.getBins(seqName);
-			List<LevelRegion> regions = calculateFinalRegions(seqBins, cut,false,greedyMergeLevels);
-			
-			for(LevelRegion region:regions) {
-				double pValue = region.getPValue();
-				
-				if(pValue <= MAX_PVALUE_REGION) {
-					float copies = (float) (region.getAverageRD()*normalPloidy/meanReadDepth);
-					GenomicVariantImpl cnv = new GenomicVariantImpl(seqName, seqBins.get(region.first).getFirst(), seqBins.get(region.last).getLast(),GenomicVariant.TYPE_CNV);
-					CalledCNV calledCNV = new CalledCNV(cnv,copies);
-					calledCNV.setSource(SOURCE_CNVNATOR);
-					calledCNV.setTotalReadDepth((int)Math.round(region.getAverageRD()*region.nBins));
-					calledCNV.setGenotypeQuality(PhredScoreHelper.calculatePhredScore(pValue));
-					cnvs.add(calledCNV);
-				}
+			List<CalledCNV> seqCNVs = new ArrayList<CalledCNV>();
+			cnvsBySequence.add(seqCNVs);
+			ReadDepthSequenceBins seqBins = rdDistribution.getBins(seqName);
+			if(seqBins==null) continue;
+			boolean logSequence = sequenceNames.size()<100;
+			try {
+				pool.queueTask(()->makeCNVCallsSequence(seqBins, cut, logSequence, seqCNVs));
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
 			}
 		}
+		try {
+			pool.terminatePool();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		List<CalledCNV> cnvs = new ArrayList<CalledCNV>();
+		for(List<CalledCNV> seqCNVs:cnvsBySequence) cnvs.addAll(seqCNVs);
 		Collections.sort(cnvs,new GenomicRegionComparator(rdDistribution.getSequences()));
 		return cnvs;
 	}
 	
-	private List<LevelRegion> calculateFinalRegions(List<ReadDepthBin> seqBins, double cut, boolean includeNeutral, boolean mergeLevels) {
+	private void makeCNVCallsSequence(ReadDepthSequenceBins seqBins, double cut, boolean logSequence, List<CalledCNV> cnvs) {
+		String seqName = seqBins.getSequenceName();
+		if(logSequence) log.info("Calling CNVs for sequence "+seqName);
+		List<LevelRegion> regions = calculateFinalRegions(seqBins, cut,false,greedyMergeLevels);
+		
+		for(LevelRegion region:regions) {
+			double pValue = region.getPValue();
+			
+			if(pValue <= MAX_PVALUE_REGION) {
+				float copies = (float) (region.getAverageRD()*normalPloidy/meanReadDepth);
+				GenomicVariantImpl cnv = new GenomicVariantImpl(seqName, seqBins.getFirst(region.first), seqBins.getLast(region.last),GenomicVariant.TYPE_CNV);
+				CalledCNV calledCNV = new CalledCNV(cnv,copies);
+				calledCNV.setSource(SOURCE_CNVNATOR);
+				calledCNV.setTotalReadDepth((int)Math.round(region.getAverageRD()*region.nBins));
+				calledCNV.setGenotypeQuality(PhredScoreHelper.calculatePhredScore(pValue));
+				cnvs.add(calledCNV);
+			}
+		}
+	}
+	
+	private List<LevelRegion> calculateFinalRegions(ReadDepthSequenceBins seqBins, double cut, boolean includeNeutral, boolean mergeLevels) {
 		if(mergeLevels)mergeLevels(seqBins,cut);
 		List <LevelRegion> regions = calculateAdjustedRegions(seqBins,cut);
 		mergeSmallMiddleRegions(regions,seqBins);
@@ -431,7 +463,7 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		}
 		return allRegions;
 	}
-	private void mergeLevels(List<ReadDepthBin> seqBins, double cut) {
+	private void mergeLevels(ReadDepthSequenceBins seqBins, double cut) {
 		while (true) {
 			boolean change = false;
 			List<LevelRegion> regions = calculateRegions(seqBins);
@@ -456,9 +488,7 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 						newLevel += r2.level*r2.nBins;
 						newLevel /= (r1.nBins + r2.nBins);
 						//System.out.println("Merging levels starting at "+r1.first+" and "+r2.first+". Level1: "+r1.level+". Level2: "+r2.level+" diff: "+v1+" diff2: "+v2+" diff3: "+v3+" new level: "+newLevel);
-						for(int j=r1.first;j<=r2.last;j++) {
-							seqBins.get(j).setReadDepthLevel(newLevel);
-						}
+						seqBins.fillReadDepthLevels(r1.first, r2.last, newLevel);
 						r1.last = r2.last;
 						r1.nBins +=r2.nBins;
 						r1.level = newLevel;
@@ -480,13 +510,12 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		}
 		
 	}
-	private List<LevelRegion> calculateAdjustedRegions(List<ReadDepthBin> seqBins,double cut) {
+	private List<LevelRegion> calculateAdjustedRegions(ReadDepthSequenceBins seqBins,double cut) {
 		List<LevelRegion> regions = new ArrayList<LevelRegion>();
 		int first=0;
 		int limitFirst = 0;
 		while(first<seqBins.size()) {
-			ReadDepthBin bin = seqBins.get(first);
-			double level = bin.getReadDepthLevel();
+			double level = seqBins.getReadDepthLevel(first);
 			double diffLevel = level-meanReadDepth; 
 			if(Math.abs(diffLevel)<cut) {
 				first++;
@@ -494,8 +523,7 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 			}
 			int last = first+1;
 			for(;last < seqBins.size();last++) {
-				ReadDepthBin bin2 = seqBins.get(last);
-				double diffLevel2 = bin2.getReadDepthLevel()-meanReadDepth;
+				double diffLevel2 = seqBins.getReadDepthLevel(last)-meanReadDepth;
 				if(Math.abs(diffLevel2)<cut || (diffLevel>0 != diffLevel2>0)) {
 					break;
 				}
@@ -519,7 +547,7 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		}
 		return regions;
 	}
-	private void mergeSmallMiddleRegions(List<LevelRegion> regions, List<ReadDepthBin> seqBins) {
+	private void mergeSmallMiddleRegions(List<LevelRegion> regions, ReadDepthSequenceBins seqBins) {
 		List<LevelRegion> newRegionsList = new ArrayList<LevelRegion>();
 		while(true) {
 			boolean change = false;
@@ -571,7 +599,7 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		}
 	}
 
-	private LevelRegion localAdjust(List<ReadDepthBin> seqBins, int first, int last, int limitFirst) { 
+	private LevelRegion localAdjust(ReadDepthSequenceBins seqBins, int first, int last, int limitFirst) { 
 		double pValue = calculatePValue(new LevelRegion(seqBins, first, last),true);
 		for (int i=0;i<1000 && pValue > MAX_PVALUE_REGION && last > first +1;i++) {
 			int bestIndex = 0;
@@ -621,7 +649,7 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		return region;
 	}
 	
-	private void addGaussianCNVs(List<LevelRegion> regions,List<ReadDepthBin> seqBins,double cut) {
+	private void addGaussianCNVs(List<LevelRegion> regions,ReadDepthSequenceBins seqBins,double cut) {
 		List<LevelRegion> finalRegions = new ArrayList<LevelRegion>();
 		int lastEnd = -1;
 		for(int i=0;i<regions.size();i++) {
@@ -636,14 +664,13 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 		regions.addAll(finalRegions);
 	}
 	
-	private List<LevelRegion> lookForGaussian(List<ReadDepthBin> seqBins, int first, int last,double cut) {
+	private List<LevelRegion> lookForGaussian(ReadDepthSequenceBins seqBins, int first, int last,double cut) {
 		List<LevelRegion> gaussianDeletions = new ArrayList<LevelRegion>();
 		double min = meanReadDepth-cut;
 		for(int i=first;i<=last;i++) {
-			ReadDepthBin bS = seqBins.get(i);
-			if(bS.getReadDepthLevel()<min) {
+			if(seqBins.getReadDepthLevel(i)<min) {
 				int j = i+1;
-				while (j<=last && seqBins.get(j).getReadDepthLevel()<min) j++;
+				while (j<=last && seqBins.getReadDepthLevel(j)<min) j++;
 				j--;
 				if(i<j) {
 					LevelRegion r = new LevelRegion(seqBins, i, j);
@@ -673,6 +700,12 @@ public class CNVnatorReadDepthAlgorithm implements SingleSampleReadDepthAlgorith
 	public long getGenomeSize() {
 		return genomeSize;
 	}
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
 	public void setGenomeSize(long genomeSize) {
 		this.genomeSize = genomeSize;
 	}
@@ -705,7 +738,7 @@ class LevelRegion {
 		this.sum = sum;
 		this.sumSquares = sumSquares;
 	}
-	public LevelRegion(List<ReadDepthBin> seqBins, int first, int last) {
+	public LevelRegion(ReadDepthSequenceBins seqBins, int first, int last) {
 		this.first = first;
 		this.last = last;
 		this.sum = 0;
@@ -713,12 +746,11 @@ class LevelRegion {
 		this.level = 0;
 		nBins = 0;
 		for(int i=first;i<=last;i++) {
-			ReadDepthBin bin = seqBins.get(i);
-			double signal = bin.getCorrectedReadDepth(); 
+			double signal = seqBins.getCorrectedReadDepth(i); 
 			sum+=signal;
 			sumSquares+=signal*signal;
 			nBins++;
-			level += bin.getReadDepthLevel(); 
+			level += seqBins.getReadDepthLevel(i); 
 		}
 		level/=nBins;
 	}
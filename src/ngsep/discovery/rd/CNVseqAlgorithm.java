@@ -87,8 +87,6 @@ public class CNVseqAlgorithm {
 	private double lambdaControl;
 	
 	// lists to manage the read count for each bin 
-	private List<ReadDepthBin> seqBinsInput;
-	private List<ReadDepthBin> seqBinsControl;
 	private List<Double> rdListInput;
 	private List<Double> rdListControl;
 	private List<Double> ratioRDList;
@@ -263,18 +261,13 @@ public class CNVseqAlgorithm {
 			readDepthControl.correctDepthByGCContent();
 		}
 		
-		// get lists of bins
-		seqBinsInput = new ArrayList<ReadDepthBin>();
-		seqBinsInput = readDepthInput.getAllBins();
-		seqBinsControl = new ArrayList<ReadDepthBin>();
-		seqBinsControl = readDepthControl.getAllBins();
 		advanceNotifier();
 
 		// get the list of the CNV ratio between sampleX:sampleY
 		log.info("Obtaining read depth for each bin.");
 		advanceNotifier();
-		rdListInput = getRDList(seqBinsInput);
-		rdListControl = getRDList(seqBinsControl);
+		rdListInput = getRDList(readDepthInput);
+		rdListControl = getRDList(readDepthControl);
 		double totalCountRatio = (readNumControl/readNumInput);
 		log.info("Calculating read depth ratio for each bin.");
 		advanceNotifier();
@@ -296,7 +289,7 @@ public class CNVseqAlgorithm {
 		log.info("Writing CNV list.");
 		advanceNotifier();
 		PrintStream out = new PrintStream(outputFile);
-		printCNVList(seqBinsInput, rdListInput, rdListControl, ratioCNVList, pValueList, out);
+		printCNVList(readDepthInput, rdListInput, rdListControl, ratioCNVList, pValueList, out);
 		out.flush();
 		out.close();
 		advanceNotifier();
@@ -307,20 +300,22 @@ public class CNVseqAlgorithm {
 	//------------------------------------------------------------------------------------------------------------------------------------------------
 
 	/**
-	 * This method creates a list with read counts for each bin in a list of bins
+	 * This method creates a list with read counts for each bin in the genome
 	 * takes into account GC correction
-	 * @param List containing all bins in the genome
-	 * @param boolean whether to perform CG correction or not
+	 * @param ReadDepthDistribution with the bins of each sequence in the genome
 	 * @return List of the read depth per bin 
 	 */
-	public List<Double> getRDList(List<ReadDepthBin> bins){
+	public List<Double> getRDList(ReadDepthDistribution distribution){
 		List<Double> binsRD = new ArrayList<Double>();
-		
-		for(ReadDepthBin bin:bins){
-			if(gcCorrection){
-				binsRD.add(bin.getCorrectedReadDepth());
-			} else{
-				binsRD.add(bin.getRawReadDepth());
+		for(String seqName:distribution.getSequences().getNamesStringList()) {
+			ReadDepthSequenceBins seqBins = distribution.getBins(seqName);
+			if(seqBins == null) continue;
+			for(int i=0;i<seqBins.size();i++){
+				if(gcCorrection){
+					binsRD.add(seqBins.getCorrectedReadDepth(i));
+				} else{
+					binsRD.add(seqBins.getRawReadDepth(i));
+				}
 			}
 		}
 		return binsRD;
@@ -396,7 +391,7 @@ public class CNVseqAlgorithm {
 	
 	/**
 	 * This method calculates the p-value for each read counts ratio,
-	 * @param List posList, ordered bins to extract their position in genome
+	 * @param ReadDepthDistribution positions, distribution with the ordered bins to extract their position in genome
 	 * @param List readDepthX, read depth for every bin of the sample X
 	 * @param List readDepthX, read depth for every bin of the sample Y
 	 * @param List CNVratios, estimated CNV ratio for each bin
@@ -405,23 +400,28 @@ public class CNVseqAlgorithm {
 	 * @throws FileNotFoundException 
 	 * @post a table is created listing all the information from CNV-seq algorithm. each line is a bin in the genome.
 	 */
-	public void printCNVList(List<ReadDepthBin> posList, List<Double> readDepthInput, List<Double> readDepthControl, List<Double> cnvRatioList, List<Double> pValueList, PrintStream out) {
+	public void printCNVList(ReadDepthDistribution positions, List<Double> readDepthInput, List<Double> readDepthControl, List<Double> cnvRatioList, List<Double> pValueList, PrintStream out) {
 		log.info("The maximum p-value reported is: "+ maxPValue);
 		DecimalFormat df = ParseUtils.ENGLISHFMT;
-		for ( int i = 0 ; i < posList.size() ; i++) {
-			if(pValueList.get(i) <= maxPValue){
-				out.print(posList.get(i).getSequenceName()+SEP);
-				out.print(posList.get(i).getFirst()+SEP);
-				out.print(posList.get(i).getLast()+SEP);
-				if(readDepthInput.get(i) == null) out.print(EMPTY+SEP);
-				else out.print(df.format(readDepthInput.get(i))+SEP);
-				if(readDepthControl.get(i) == null) out.print(EMPTY+SEP);
-				else out.print(df.format(readDepthControl.get(i))+SEP);
-				if(cnvRatioList.get(i) == null) out.print(EMPTY+SEP);
-				else out.print(cnvRatioList.get(i)+SEP);
-				if(pValueList.get(i) == null) out.print(EMPTY);
-				else out.print(pValueList.get(i));
-				out.println();
+		int i = 0;
+		for(String seqName:positions.getSequences().getNamesStringList()) {
+			ReadDepthSequenceBins seqBins = positions.getBins(seqName);
+			if(seqBins == null) continue;
+			for ( int j = 0 ; j < seqBins.size() ; j++,i++) {
+				if(pValueList.get(i) <= maxPValue){
+					out.print(seqName+SEP);
+					out.print(seqBins.getFirst(j)+SEP);
+					out.print(seqBins.getLast(j)+SEP);
+					if(readDepthInput.get(i) == null) out.print(EMPTY+SEP);
+					else out.print(df.format(readDepthInput.get(i))+SEP);
+					if(readDepthControl.get(i) == null) out.print(EMPTY+SEP);
+					else out.print(df.format(readDepthControl.get(i))+SEP);
+					if(cnvRatioList.get(i) == null) out.print(EMPTY+SEP);
+					else out.print(cnvRatioList.get(i)+SEP);
+					if(pValueList.get(i) == null) out.print(EMPTY);
+					else out.print(pValueList.get(i));
+					out.println();
+				}
 			}
 		}
 	}
@@ -430,31 +430,37 @@ public class CNVseqAlgorithm {
 	 * TODO
 	 * AT THE MOMENT NO ONE CALLS THIS METHOD, BUT IT WILL SOON BE IMPLEMENTED TO MODIFY THE OUTPUT FORMAT
 	 * merges large CNVs if several, continuous bins, have low p-values
-	 * @param List posList, ordered bins to extract their position in genome
+	 * @param ReadDepthDistribution positions, distribution with the ordered bins to extract their position in genome
 	 * @param List CNVratios, estimated CNV ratio for each bin
 	 * @param List pvalueList, calculated p-value for each CNV ratio
 	 * @return a list of all the detected CNVs with their average p-value and their average CNV
 	 */
-	public List<CalledCNV> mergeCNV(List<ReadDepthBin> posList, List<Double> cnvRatioList, List<Double> pValueList){
+	public List<CalledCNV> mergeCNV(ReadDepthDistribution positions, List<Double> cnvRatioList, List<Double> pValueList){
 		List<CalledCNV> mergedCNVs = new ArrayList<CalledCNV>();
-		for(int i = 0 ; i < posList.size() ; i++){
-			if(pValueList.get(i) < maxPValue){
-				int startBin = i;
-				double avrgPval = 0;
-				double avrgCNVratio = 0;
-				while(pValueList.get(i) < maxPValue && posList.get(i).getSequenceName().equals(posList.get(startBin).getSequenceName())){
-					avrgPval += pValueList.get(i);
-					avrgCNVratio += cnvRatioList.get(i);
-					i++;
+		int offset = 0;
+		for(String seqName:positions.getSequences().getNamesStringList()) {
+			ReadDepthSequenceBins seqBins = positions.getBins(seqName);
+			if(seqBins == null) continue;
+			for(int j = 0 ; j < seqBins.size() ; j++){
+				if(pValueList.get(offset+j) < maxPValue){
+					int startBin = j;
+					double avrgPval = 0;
+					double avrgCNVratio = 0;
+					while(j < seqBins.size() && pValueList.get(offset+j) < maxPValue){
+						avrgPval += pValueList.get(offset+j);
+						avrgCNVratio += cnvRatioList.get(offset+j);
+						j++;
+					}
+					int endBin = j-1;
+					GenomicVariantImpl cnv = new GenomicVariantImpl(seqName,seqBins.getFirst(startBin),seqBins.getLast(endBin),GenomicVariant.TYPE_CNV);
+					CalledCNV largeCNV = new CalledCNV(cnv,(float)avrgCNVratio);
+					avrgPval /= (endBin-startBin);
+					avrgCNVratio /= (endBin-startBin);
+					largeCNV.setGenotypeQuality(PhredScoreHelper.calculatePhredScore(avrgPval));
+					mergedCNVs.add(largeCNV);
 				}
-				int endBin = i-1;
-				GenomicVariantImpl cnv = new GenomicVariantImpl(posList.get(startBin).getSequenceName(),posList.get(startBin).getFirst(),posList.get(endBin).getLast(),GenomicVariant.TYPE_CNV);
-				CalledCNV largeCNV = new CalledCNV(cnv,(float)avrgCNVratio);
-				avrgPval /= (endBin-startBin);
-				avrgCNVratio /= (endBin-startBin);
-				largeCNV.setGenotypeQuality(PhredScoreHelper.calculatePhredScore(avrgPval));
-				mergedCNVs.add(largeCNV);
 			}
+			offset+=seqBins.size();
 		}
 		return mergedCNVs;
 	}
@@ -199,18 +199,17 @@ public class EWTReadDepthAlgorithm implements SingleSampleReadDepthAlgorithm {
 
 		// iterate over all the bins in the genome
 		for ( String seqName : sequences.getNamesStringList() ) {
-			List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
-			List<RDbinProbabilities> seqProbs = new ArrayList<RDbinProbabilities>();
+			ReadDepthSequenceBins seqBins = readDepthDistribution.getBins(seqName);
+			List<RDbinProbabilities> seqProbs = new ArrayList<RDbinProbabilities>(seqBins.size());
 			
 			log.info( "normalizing read depth for bins in " + seqName );
 			for ( int i = 0 ; i < seqBins.size() ; i++ ) {
-				ReadDepthBin bin = seqBins.get(i);
-
+				double readDepth = seqBins.getCorrectedReadDepth(i);
 				// change the nature of each bin to its probability
-				RDbinProbabilities binP = new RDbinProbabilities(bin.getSequenceName(), bin.getFirst(), bin.getLast(), bin.getGcContent(), bin.getCorrectedReadDepth());
+				RDbinProbabilities binP = new RDbinProbabilities(seqName, seqBins.getFirst(i), seqBins.getLast(i), seqBins.getGcContent(i), readDepth);
 
 				// calculate Z-score and add to the new list
-				binP.setzScore( (bin.getCorrectedReadDepth() - readDepthMean) / readDepthSDeviation );
+				binP.setzScore( (readDepth - readDepthMean) / readDepthSDeviation );
 				seqProbs.add(binP);
 			}
 			
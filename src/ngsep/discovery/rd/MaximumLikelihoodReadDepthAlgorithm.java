@@ -94,7 +94,7 @@ public class MaximumLikelihoodReadDepthAlgorithm implements SingleSampleReadDept
 		buildHMM();
 		for(String seqName:seqNames) {
 			log.info("Calling CNVs for sequence "+seqName);
-			List<ReadDepthBin> seqBins = readDepthDistribution.getBins(seqName);
+			ReadDepthSequenceBins seqBins = readDepthDistribution.getBins(seqName);
 			List<CalledCNV> cnvsSeq = callCNVsSequence(seqName,seqBins); 
 			log.info("Called "+cnvsSeq.size()+" CNVs for sequence "+seqName);
 			answer.addAll(cnvsSeq);
@@ -116,10 +116,10 @@ public class MaximumLikelihoodReadDepthAlgorithm implements SingleSampleReadDept
 		((ConstantTransitionHMM) hmm).calculateUniformChangeTransitions(changeProbability);
 	}
 
-	private List<Double> buildObservations(List<ReadDepthBin> seqBins) {
+	private List<Double> buildObservations(ReadDepthSequenceBins seqBins) {
 		List<Double> observations = new ArrayList<Double>();
-		for(ReadDepthBin bin:seqBins) {
-			observations.add(bin.getCorrectedReadDepth());
+		for(int i=0;i<seqBins.size();i++) {
+			observations.add(seqBins.getCorrectedReadDepth(i));
 		}
 		return observations;
 	}
@@ -137,13 +137,11 @@ public class MaximumLikelihoodReadDepthAlgorithm implements SingleSampleReadDept
 		return maxI;
 	}
 
-	private CalledCNV createCNV(String seqName, List<ReadDepthBin> seqBins, Double [][] likelihoods, int firstI, int lastI, int copies) {
-		ReadDepthBin firstBin = seqBins.get(firstI);
-		ReadDepthBin lastBin = seqBins.get(lastI);
+	private CalledCNV createCNV(String seqName, ReadDepthSequenceBins seqBins, Double [][] likelihoods, int firstI, int lastI, int copies) {
 		int fragments = 0;
 		double maxProb = 0;
 		for(int i=firstI;i<=lastI;i++) {
-			fragments+=seqBins.get(i).getRawReadDepth();
+			fragments+=seqBins.getRawReadDepth(i);
 			Double logLike = likelihoods[i][copies];
 			Double logNormalPloidy = likelihoods[i][normalPloidy];
 			Double sum = LogMath.logSum(logLike, logNormalPloidy);
@@ -151,7 +149,7 @@ public class MaximumLikelihoodReadDepthAlgorithm implements SingleSampleReadDept
 			//System.out.println("--nextProb---" + nextProb + " ----binI---- " + binI + " -----binInormalPloidy---- " + binInormalPloidy);
 			if(nextProb > maxProb) maxProb = nextProb;
 		}
-		GenomicVariantImpl cnv = new GenomicVariantImpl(seqName, firstBin.getFirst(), lastBin.getLast(),GenomicVariant.TYPE_CNV);
+		GenomicVariantImpl cnv = new GenomicVariantImpl(seqName, seqBins.getFirst(firstI), seqBins.getLast(lastI),GenomicVariant.TYPE_CNV);
 		CalledCNV call = new CalledCNV(cnv,copies);
 		call.setTotalReadDepth(fragments);
 		//System.out.println("-----Phred-----" + PhredScoreHelper.calculatePhredScore(1-maxProb) + " --maxProb---" + maxProb);
@@ -184,7 +182,7 @@ public class MaximumLikelihoodReadDepthAlgorithm implements SingleSampleReadDept
 		}
 	}
 
-	private List<CalledCNV> callCNVsSequence(String seqName, List<ReadDepthBin> seqBins){
+	private List<CalledCNV> callCNVsSequence(String seqName, ReadDepthSequenceBins seqBins){
 		int m = seqBins.size();
 		int n = hmm.getNumStates();
 		Double [] [] likelihoods = new Double [m][n];
@@ -24,29 +24,27 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Logger;
 
 import ngsep.alignments.ReadAlignment;
 import ngsep.alignments.io.ReadAlignmentFileReader;
+import ngsep.alignments.io.ReadAlignmentsConsumer;
+import ngsep.alignments.io.ReadAlignmentsScanner;
 import ngsep.genome.ReferenceGenome;
 import ngsep.math.Distribution;
 import ngsep.sequences.DNASequence;
 import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.QualifiedSequenceList;
 
-public class ReadDepthDistribution {
+public class ReadDepthDistribution implements ReadAlignmentsConsumer {
 	public static final int DEFAULT_BIN_SIZE=100;
 	private Logger log = Logger.getLogger(ReadDepthDistribution.class.getName());
 	//Parameters set before starting
 	private int binSize = DEFAULT_BIN_SIZE;
-	private Map<String, List<ReadDepthBin>> bins = new TreeMap<String, List<ReadDepthBin>>();
+	private Map<String, ReadDepthSequenceBins> bins = new TreeMap<String, ReadDepthSequenceBins>();
 	private QualifiedSequenceList sequences;
 	private ReferenceGenome genome;
 	private long genomeSize = 0;
@@ -55,6 +53,9 @@ public class ReadDepthDistribution {
 	private double meanReadDepth=0;
 	private double sigmaReadDepth = 1;
 	private int minMQ = ReadAlignment.DEF_MIN_MQ_UNIQUE_ALIGNMENT;
+	//Sequence under processing
+	private String currentSeqName = null;
+	private ReadDepthSequenceBins currentSeqBins = null;
 	
 	
 	public Logger getLog() {
@@ -111,22 +112,21 @@ public class ReadDepthDistribution {
 		while (line != null) {
 			String[] items = line.split("\t| ");
 			String seqName = sequences.addOrLookupName(items[0]).getName(); 
-			List<ReadDepthBin> binsSeq = bins.get(seqName);
-			if(binsSeq==null) {
-				binsSeq = new ArrayList<ReadDepthBin>();
-				bins.put(seqName, binsSeq);
-			}
 			int first = Integer.parseInt(items[1]);
 			int last = Integer.parseInt(items[2]);
-			ReadDepthBin bin = new ReadDepthBin(seqName, first, last, Double.parseDouble(items[3])/100.0);
-			bin.setRawReadDepth(Double.parseDouble(items[4]));
-			bin.setCorrectedReadDepth(Double.parseDouble(items[5]));
-			if(includeLevels) bin.setReadDepthLevel(Double.parseDouble(items[6]));
-			binsSeq.add(bin);
 			if(partitionGenomeSize==0) {
 				//Obtain bin size from the first bin
 				binSize = last - first + 1;
 			}
+			ReadDepthSequenceBins binsSeq = bins.get(seqName);
+			if(binsSeq==null) {
+				binsSeq = new ReadDepthSequenceBins(seqName, binSize, 1000);
+				bins.put(seqName, binsSeq);
+			}
+			int i = binsSeq.addBin(first, Double.parseDouble(items[3])/100.0);
+			binsSeq.setRawReadDepth(i, Double.parseDouble(items[4]));
+			binsSeq.setCorrectedReadDepth(i, Double.parseDouble(items[5]));
+			if(includeLevels) binsSeq.setReadDepthLevel(i, Double.parseDouble(items[6]));
 			partitionGenomeSize+=binSize;
 			line = in.readLine();
 		}
@@ -145,18 +145,17 @@ public class ReadDepthDistribution {
 		for(int h=0;h<n;h++) {
 			QualifiedSequence sequence = genome.getSequenceByIndex(h);
 			String seqName = sequence.getName();
-			List<ReadDepthBin> seqBins = new ArrayList<ReadDepthBin>(); 
-			bins.put(seqName, seqBins);
 			CharSequence sequenceChars = sequence.getCharacters();
 			int l = sequenceChars.length();
 			int end = l - l%binSize;
+			ReadDepthSequenceBins seqBins = new ReadDepthSequenceBins(seqName, binSize, end/binSize); 
+			bins.put(seqName, seqBins);
 			//Ignore the last basepairs to avoid going over the end of the chromosome
 			for(int i=0;i<end;i+=binSize) {
-				String binSequence = sequenceChars.subSequence(i, i+binSize).toString();
 				double gcContent = 0;
 				int nBases = 0;
-				for(int j=0;j<binSize;j++) {
-					char base = Character.toUpperCase(binSequence.charAt(j)); 
+				for(int j=i;j<i+binSize;j++) {
+					char base = Character.toUpperCase(sequenceChars.charAt(j)); 
 					if(DNASequence.isInAlphabeth(base)) {
 						nBases++;
 						if(base == 'G' || base == 'C') {
@@ -169,50 +168,62 @@ public class ReadDepthDistribution {
 				} else {
 					gcContent = -1;
 				}
-				seqBins.add(new ReadDepthBin(seqName, i+1, i+binSize,gcContent));
+				seqBins.addBin(i+1, gcContent);
 			}
 			//System.out.println("Sequence name: "+seqName+" Sequence length "+sequence.length+" end: "+end+" bins: "+seqBins.size());
 		}
 	}
+	/**
+	 * Counts the alignments within the given file
+	 * @param filename SAM/BAM/CRAM file with alignments
+	 * @throws IOException If the file can not be read or if the coverage is too low
+	 */
 	public void processAlignments (String filename) throws IOException {
-		try (ReadAlignmentFileReader reader = new ReadAlignmentFileReader(filename, genome)) {
-			reader.setLoadMode(ReadAlignmentFileReader.LOAD_MODE_MINIMAL);
-			reader.setLog(log);
-			int filterFlags = ReadAlignment.FLAG_READ_UNMAPPED;
-			reader.setFilterFlags(filterFlags);
-			reader.setMinMQ(minMQ);
-			Iterator<ReadAlignment> it = reader.iterator();
-			//Sequence under processing
-			while(it.hasNext()) {
-				ReadAlignment aln = it.next();
-				boolean uniqueRead = aln.isUnique();
-				
-				int middle = aln.getFirst()+aln.getReadLength()/2;
-				List<ReadDepthBin> seqBins = bins.get(aln.getSequenceName());
-				if(seqBins==null) continue;
-				int binPos = middle/binSize;
-				if(seqBins!=null && seqBins.size()>binPos) {
-					ReadDepthBin bin = seqBins.get(binPos);
-					if(!uniqueRead) bin.setInRepetitiveRegion(true);
-					bin.addRead();
-				}
-				totalReads++;
-				if(totalReads%1000000 == 0) log.info("Processed "+totalReads+" alignments");
-				//if(totalReads%100000 == 0) log.info("Processing read: "+aln.getReadName()+". Location: "+aln.getSequenceName()+":"+aln.getFirst()+" flags: "+aln.getFlags()+". Unique: "+aln.isUnique()+". Bins size: "+seqBins.size()+" bin pos: "+binPos);
-			}
+		ReadAlignmentsScanner scanner = new ReadAlignmentsScanner(genome);
+		scanner.setLog(log);
+		scanner.setMinMQ(minMQ);
+		scanner.addConsumer(this);
+		scanner.scan(filename);
+	}
+	@Override
+	public int getAlignmentsLoadMode() {
+		return ReadAlignmentFileReader.LOAD_MODE_MINIMAL;
+	}
+	@Override
+	public int getAlignmentsFilterFlags() {
+		return ReadAlignment.FLAG_READ_UNMAPPED;
+	}
+	@Override
+	public void processAlignment(ReadAlignment aln) {
+		boolean uniqueRead = aln.isUnique();
+		
+		int middle = aln.getFirst()+aln.getReadLength()/2;
+		if(!aln.getSequenceName().equals(currentSeqName)) {
+			currentSeqName = aln.getSequenceName();
+			currentSeqBins = bins.get(currentSeqName);
+		}
+		if(currentSeqBins==null) return;
+		int binPos = middle/binSize;
+		if(currentSeqBins.size()>binPos) {
+			if(!uniqueRead) currentSeqBins.setInRepetitiveRegion(binPos, true);
+			currentSeqBins.addRead(binPos);
 		}
+		totalReads++;
+	}
+	@Override
+	public void onAlignmentsEnd() throws IOException {
+		currentSeqName = null;
+		currentSeqBins = null;
 		//Set corrected depth back to raw depth
-		for(List<ReadDepthBin> binsSeq:bins.values()) {
-			for(ReadDepthBin bin:binsSeq) {
-				bin.setCorrectedReadDepth(bin.getRawReadDepth());
-			}
+		for(ReadDepthSequenceBins binsSeq:bins.values()) {
+			binsSeq.resetCorrectedReadDepths();
 		}
 		double sum = 0;
 		int n=0;
-		for(List<ReadDepthBin> binsSeq:bins.values()) {
-			for(ReadDepthBin bin:binsSeq) {
-				if(!bin.isInRepetitiveRegion()) {
-					sum+=bin.getRawReadDepth();
+		for(ReadDepthSequenceBins binsSeq:bins.values()) {
+			for(int i=0;i<binsSeq.size();i++) {
+				if(!binsSeq.isInRepetitiveRegion(i)) {
+					sum+=binsSeq.getRawReadDepth(i);
 					n++;
 				}
 			}
@@ -231,19 +242,19 @@ public class ReadDepthDistribution {
 		int globalNBins = 0;
 		log.info("Calculating average read depth in unique bins");
 		for(String seqName:bins.keySet()) {
-			List<ReadDepthBin> seqBins = bins.get(seqName);
+			ReadDepthSequenceBins seqBins = bins.get(seqName);
 			double seqReadDepth = 0;
 			int seqNBins = 0;
-			for(ReadDepthBin bin:seqBins) {
-				if(bin.isGoodForAverage()) {
-					seqReadDepth += bin.getRawReadDepth();
+			for(int i=0;i<seqBins.size();i++) {
+				if(seqBins.isGoodForAverage(i)) {
+					double rawDepth = seqBins.getRawReadDepth(i);
+					seqReadDepth += rawDepth;
 					seqNBins++;
-					globalReadDepth+= bin.getRawReadDepth();
+					globalReadDepth+= rawDepth;
 					globalNBins++;
-					int gcBinPos = (int)(gcContentBins*bin.getGcContent());
+					int gcBinPos = (int)(gcContentBins*seqBins.getGcContent(i));
 					if(gcBinPos == gcContentBins) gcBinPos--;
-					//if(gcBinPos==0) log.info("Bin "+seqName+":"+bin.getStart()+"-"+bin.getEnd()+" has low gc Content: "+bin.getGcContent()+". Read depth: "+bin.getRawReadDepth());
-					readDepthGC[gcBinPos]+=bin.getRawReadDepth();
+					readDepthGC[gcBinPos]+=rawDepth;
 					gcNBins[gcBinPos]++;
 				}
 			}
@@ -268,16 +279,16 @@ public class ReadDepthDistribution {
 		}
 		for(String seqName:bins.keySet()) {
 			if(bins.size()<100) log.info("Correcting GC for bins in sequence "+seqName);
-			List<ReadDepthBin> seqBins = bins.get(seqName);
-			for(ReadDepthBin bin:seqBins) {
-				double gcContentBin = bin.getGcContent();
+			ReadDepthSequenceBins seqBins = bins.get(seqName);
+			for(int i=0;i<seqBins.size();i++) {
+				double gcContentBin = seqBins.getGcContent(i);
 				if(gcContentBin>=0) {
 					int gcBinPos = (int)(gcContentBins*gcContentBin);
 					if(gcBinPos == gcContentBins) gcBinPos--;
 					if(readDepthGC[gcBinPos]>0) {
-						bin.setCorrectedReadDepth(bin.getRawReadDepth()*globalReadDepth/readDepthGC[gcBinPos]);
+						seqBins.setCorrectedReadDepth(i, seqBins.getRawReadDepth(i)*globalReadDepth/readDepthGC[gcBinPos]);
 					} else {
-						bin.setCorrectedReadDepth(bin.getRawReadDepth());
+						seqBins.setCorrectedReadDepth(i, seqBins.getRawReadDepth(i));
 					}
 				}
 			}
@@ -288,12 +299,13 @@ public class ReadDepthDistribution {
 		double maxReadDepth = 0;
 		double sum=0;
 		int n=0;
-		for(List<ReadDepthBin> seqBins:bins.values()) {
-			for(ReadDepthBin bin:seqBins) {
-				if(bin.isGoodForAverage()) {
-					sum+=bin.getCorrectedReadDepth();
-					if(bin.getCorrectedReadDepth()>maxReadDepth) {
-						maxReadDepth = bin.getCorrectedReadDepth();
+		for(ReadDepthSequenceBins seqBins:bins.values()) {
+			for(int i=0;i<seqBins.size();i++) {
+				if(seqBins.isGoodForAverage(i)) {
+					double depth = seqBins.getCorrectedReadDepth(i);
+					sum+=depth;
+					if(depth>maxReadDepth) {
+						maxReadDepth = depth;
 					}
 					n++;
 				}
@@ -310,16 +322,16 @@ public class ReadDepthDistribution {
 		Map<String,Distribution> seqDistCalc=null;
 		if(bins.size()<100) seqDistCalc =  new TreeMap<String, Distribution>(); 
 		for(String seqName:bins.keySet()) {		
-			List<ReadDepthBin> seqBins = bins.get(seqName);
+			ReadDepthSequenceBins seqBins = bins.get(seqName);
 			Distribution seqDist = null;
 			if(seqDistCalc!=null) {
 				seqDist = new Distribution(1, maxValueDistribution, 1);
 				seqDistCalc.put(seqName, seqDist);
 			}
-			for(ReadDepthBin bin:seqBins) {
-				if(bin.isGoodForAverage()) {
-					distCalc.processDatapoint(bin.getCorrectedReadDepth());
-					if(seqDist!=null) seqDist.processDatapoint(bin.getCorrectedReadDepth());
+			for(int i=0;i<seqBins.size();i++) {
+				if(seqBins.isGoodForAverage(i)) {
+					distCalc.processDatapoint(seqBins.getCorrectedReadDepth(i));
+					if(seqDist!=null) seqDist.processDatapoint(seqBins.getCorrectedReadDepth(i));
 				}
 			}
 		}
@@ -360,16 +372,13 @@ public class ReadDepthDistribution {
 		
 	}
 	
-	public List<ReadDepthBin> getBins(String seqName) {
-		return Collections.unmodifiableList(bins.get(seqName));
-	}
-	
-	public List<ReadDepthBin> getAllBins() {
-		List<ReadDepthBin> answer = new ArrayList<ReadDepthBin>();
-		for(String seqName:sequences.getNamesStringList()){
-			answer.addAll(getBins(seqName));
-		}
-		return answer;
+	/**
+	 * Returns the bins for the sequence with the given name
+	 * @param seqName Name of the sequence
+	 * @return ReadDepthSequenceBins Columns with the information of the bins of the sequence. null if the sequence does not have bins
+	 */
+	public ReadDepthSequenceBins getBins(String seqName) {
+		return bins.get(seqName);
 	}
 	
 	private void printDistributions(Map<String, Distribution> seqDistCalc,PrintStream out) {
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.discovery.rd;
+
+import java.util.Arrays;
+
+/**
+ * Read depth bins of a single sequence stored as primitive columns.
+ * Bin i spans the positions getFirst(i) to getLast(i) and its values are stored at position i of each column
+ * @author Jorge Duitama
+ */
+public class ReadDepthSequenceBins {
+	private String sequenceName;
+	private int binSize;
+	private int size = 0;
+	private int [] firsts;
+	private double [] gcContents;
+	private double [] rawReadDepths;
+	private double [] correctedReadDepths;
+	private double [] readDepthLevels;
+	private boolean [] inRepetitiveRegion;
+
+	/**
+	 * Creates an empty set of bins
+	 * @param sequenceName Name of the sequence
+	 * @param binSize Length of each bin
+	 * @param capacity Initial number of bins that can be stored
+	 */
+	public ReadDepthSequenceBins(String sequenceName, int binSize, int capacity) {
+		this.sequenceName = sequenceName;
+		this.binSize = binSize;
+		capacity = Math.max(capacity, 1);
+		firsts = new int [capacity];
+		gcContents = new double [capacity];
+		rawReadDepths = new double [capacity];
+		correctedReadDepths = new double [capacity];
+		readDepthLevels = new double [capacity];
+		inRepetitiveRegion = new boolean [capacity];
+	}
+
+	/**
+	 * Adds a new bin at the end of this sequence
+	 * @param first Start of the bin
+	 * @param gcContent GC-content of the bin or -1 if the bin does not have valid bases
+	 * @return int index of the new bin
+	 */
+	public int addBin(int first, double gcContent) {
+		if(size==firsts.length) ensureCapacity(2*size);
+		firsts[size] = first;
+		gcContents[size] = gcContent;
+		return size++;
+	}
+
+	private void ensureCapacity(int capacity) {
+		firsts = Arrays.copyOf(firsts, capacity);
+		gcContents = Arrays.copyOf(gcContents, capacity);
+		rawReadDepths = Arrays.copyOf(rawReadDepths, capacity);
+		correctedReadDepths = Arrays.copyOf(correctedReadDepths, capacity);
+		readDepthLevels = Arrays.copyOf(readDepthLevels, capacity);
+		inRepetitiveRegion = Arrays.copyOf(inRepetitiveRegion, capacity);
+	}
+
+	public String getSequenceName() {
+		return sequenceName;
+	}
+	public int getBinSize() {
+		return binSize;
+	}
+	/**
+	 * @return int Number of bins
+	 */
+	public int size() {
+		return size;
+	}
+	public int getFirst(int i) {
+		return firsts[i];
+	}
+	public int getLast(int i) {
+		return firsts[i]+binSize-1;
+	}
+	public double getGcContent(int i) {
+		return gcContents[i];
+	}
+	public double getRawReadDepth(int i) {
+		return rawReadDepths[i];
+	}
+	public void setRawReadDepth(int i, double rawReadDepth) {
+		rawReadDepths[i] = rawReadDepth;
+	}
+	public void addRead(int i) {
+		rawReadDepths[i]++;
+	}
+	public double getCorrectedReadDepth(int i) {
+		return correctedReadDepths[i];
+	}
+	public void setCorrectedReadDepth(int i, double correctedReadDepth) {
+		correctedReadDepths[i] = correctedReadDepth;
+	}
+	public double getReadDepthLevel(int i) {
+		return readDepthLevels[i];
+	}
+	public void setReadDepthLevel(int i, double level) {
+		readDepthLevels[i] = level;
+	}
+	public boolean isInRepetitiveRegion(int i) {
+		return inRepetitiveRegion[i];
+	}
+	public void setInRepetitiveRegion(int i, boolean repetitive) {
+		inRepetitiveRegion[i] = repetitive;
+	}
+	public boolean isGoodForAverage(int i) {
+		return !inRepetitiveRegion[i] && gcContents[i]>=0;
+	}
+	/**
+	 * Restores the corrected read depth of every bin to its raw read depth
+	 */
+	public void resetCorrectedReadDepths() {
+		System.arraycopy(rawReadDepths, 0, correctedReadDepths, 0, size);
+	}
+	/**
+	 * Sets the level of every bin not masked by the given array to its corrected read depth
+	 * @param mask Bins with true values in this array are not modified. If null, every bin is updated
+	 */
+	public void resetReadDepthLevels(boolean [] mask) {
+		for(int i=0;i<size;i++) {
+			if(mask==null || !mask[i]) readDepthLevels[i] = correctedReadDepths[i];
+		}
+	}
+	/**
+	 * Sets the given level to the bins within the given range
+	 * @param first Index of the first bin to update
+	 * @param last Index of the last bin to update (inclusive)
+	 * @param level New level
+	 */
+	public void fillReadDepthLevels(int first, int last, double level) {
+		Arrays.fill(readDepthLevels, first, last+1, level);
+	}
+}
@@ -38,6 +38,22 @@ public class AnnotatedReferenceGenome {
 		catalog = new HomologyCatalog(homologyUnitsList); 
 	}
 	
+	/**
+	 * Creates an annotated genome from a homology catalog built previously for the given genome
+	 * @param id of the genome
+	 * @param genome Reference genome
+	 * @param catalog with the homology units of the genome. Units should have the given genome id
+	 */
+	AnnotatedReferenceGenome(int id, ReferenceGenome genome, HomologyCatalog catalog) {
+		this.id = id;
+		this.genome = genome;
+		this.sequencesMetadata = genome.getSequencesMetadata();
+		this.catalog = catalog;
+		homologyUnitsList = new ArrayList<>(catalog.getIndexedHomologyUnits());
+		homologyUnitsBySequence = new GenomicRegionSortedCollection<>(sequencesMetadata);
+		homologyUnitsBySequence.addAll(homologyUnitsList);
+	}
+	
 	/**
 	 * Builds the homology units for this annotated genome based on the largest transcript of each gene
 	 */
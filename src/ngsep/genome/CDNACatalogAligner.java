@@ -26,6 +26,8 @@ public class CDNACatalogAligner {
 	public static final byte DEF_KMER_LENGTH = HomologRelationshipsFinder.DEF_KMER_LENGTH;
 	public static final int DEF_MIN_PCT_KMERS = HomologRelationshipsFinder.DEF_MIN_PCT_KMERS;
 	public static final int DEF_MAX_HOMOLOGS_UNIT = 3;
+	public static final int DEF_NUM_THREADS = HomologClustersCalculator.DEF_NUM_THREADS;
+	public static final int DEF_MAX_SIZE_MCL = HomologClustersCalculator.DEF_MAX_SIZE_MCL;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(CDNACatalogAligner.class.getName());
@@ -36,6 +38,8 @@ public class CDNACatalogAligner {
 	private String outputPrefix = DEF_OUT_PREFIX;
 	private boolean skipMCL= false;
 	private int inputType = INPUT_TYPE_CDNA;
+	private int numThreads = DEF_NUM_THREADS;
+	private int maxSizeMCL = DEF_MAX_SIZE_MCL;
 	
 	// Model attributes
 	private HomologRelationshipsFinder homologRelationshipsFinder = new HomologRelationshipsFinder();
@@ -102,6 +106,24 @@ public class CDNACatalogAligner {
 	public void setInputType(String value) {
 		setInputType((int)OptionValuesDecoder.decode(value, Integer.class));
 	}
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	public int getMaxSizeMCL() {
+		return maxSizeMCL;
+	}
+	public void setMaxSizeMCL(int maxSizeMCL) {
+		this.maxSizeMCL = maxSizeMCL;
+	}
+	public void setMaxSizeMCL(String value) {
+		setMaxSizeMCL((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
 	public static void main(String[] args) throws Exception {
 		CDNACatalogAligner instance = new CDNACatalogAligner();
 		int i = CommandsDescriptor.getInstance().loadOptions(instance, args);
@@ -186,6 +208,8 @@ public class CDNACatalogAligner {
 	private void generateClusters() {
 		HomologClustersCalculator calculator = new HomologClustersCalculator(skipMCL);
 		calculator.setLog(log);
+		calculator.setNumThreads(numThreads);
+		calculator.setMaxSizeMCL(maxSizeMCL);
 		orthologyUnitClusters = calculator.clusterHomologsCatalogs(cdnaCatalogs, homologyEdges);
 	}
 	
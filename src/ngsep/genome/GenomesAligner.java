@@ -63,6 +63,8 @@ public class GenomesAligner {
 	public static final int DEF_MIN_PCT_KMERS = HomologRelationshipsFinder.DEF_MIN_PCT_KMERS;
 	public static final int DEF_MAX_HOMOLOGS_UNIT = 3;
 	public static final double DEF_MIN_FREQUENCY_SOFT_CORE = 0.9;
+	public static final int DEF_NUM_THREADS = HomologClustersCalculator.DEF_NUM_THREADS;
+	public static final int DEF_MAX_SIZE_MCL = HomologClustersCalculator.DEF_MAX_SIZE_MCL;
 
 	// Logging and progress
 	private Logger log = Logger.getLogger(GenomesAligner.class.getName());
@@ -74,12 +76,17 @@ public class GenomesAligner {
 	private int maxHomologsUnit = DEF_MAX_HOMOLOGS_UNIT;
 	private boolean skipMCL= false;
 	private double minFrequencySoftCore = DEF_MIN_FREQUENCY_SOFT_CORE;
+	private int numThreads = DEF_NUM_THREADS;
+	private int maxSizeMCL = DEF_MAX_SIZE_MCL;
 	private String inputFile = null;
 	private String inputDirectory = null;
+	private String cacheDirectory = null;
 
 	
 	// Model attributes
 	private HomologRelationshipsFinder homologRelationshipsFinder = new HomologRelationshipsFinder();
+	private HomologyCatalogCache catalogCache = null;
+	private List<String> genomeFingerprints = new ArrayList<>();
 	private List<HomologyEdge> homologyEdges = new ArrayList<HomologyEdge>();
 	
 	private List<HomologyCluster> listHomologyCluster = new ArrayList<>();
@@ -176,6 +183,32 @@ public class GenomesAligner {
 		this.inputDirectory = inputDirectory;
 	}
 	
+	public String getCacheDirectory() {
+		return cacheDirectory;
+	}
+	public void setCacheDirectory(String cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	public int getMaxSizeMCL() {
+		return maxSizeMCL;
+	}
+	public void setMaxSizeMCL(int maxSizeMCL) {
+		this.maxSizeMCL = maxSizeMCL;
+	}
+	public void setMaxSizeMCL(String value) {
+		setMaxSizeMCL((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	public static void main(String[] args) throws Exception 
 	{
 		GenomesAligner instance = new GenomesAligner();
@@ -207,12 +240,20 @@ public class GenomesAligner {
 	
 
 	
-	private void inferOrthologs() {
+	private void inferOrthologs() throws IOException {
 		genomesDescription();
 		
 		for(int i=0;i<genomes.size();i++) {
 			AnnotatedReferenceGenome genome = genomes.get(i);
-			List<HomologyEdge> edges = homologRelationshipsFinder.calculateParalogs(genome);
+			String fingerprint = genomeFingerprints.get(i);
+			List<HomologyEdge> edges;
+			if(fingerprint!=null && catalogCache.containsParalogs(fingerprint, homologRelationshipsFinder)) {
+				edges = catalogCache.loadParalogs(fingerprint, homologRelationshipsFinder, genome);
+				log.info(String.format("Loaded cached paralogs for Genome #%d", i+1));
+			} else {
+				edges = homologRelationshipsFinder.calculateParalogs(genome);
+				if(fingerprint!=null) catalogCache.saveParalogs(fingerprint, homologRelationshipsFinder, edges);
+			}
 			homologyEdges.addAll(edges);
 			log.info(String.format("Paralogs found for Genome #%d: %d", i+1, edges.size()));
 		}
@@ -246,18 +287,36 @@ public class GenomesAligner {
 		out.println("Output prefix:"+ outputPrefix);
 		out.println("K-mer length: "+ getKmerLength());
 		out.println("Minimum percentage of k-mers to call orthologs: "+ getMinPctKmers());
+		if(cacheDirectory!=null) out.println("Directory of cached homology catalogs: "+ cacheDirectory);
 		log.info(os.toString());
 	}
 	public void loadGenome(String fileGenome, String fileTranscriptome) throws IOException {
+		String fingerprint = null;
+		if(cacheDirectory!=null) {
+			if(catalogCache==null) {
+				catalogCache = new HomologyCatalogCache(cacheDirectory);
+				catalogCache.setLog(log);
+			}
+			fingerprint = catalogCache.calculateFingerprint(fileGenome, fileTranscriptome);
+		}
 		ReferenceGenome genome = new ReferenceGenome(fileGenome);
 		log.info("Loaded genome "+fileGenome);
+		if(fingerprint!=null && catalogCache.containsCatalog(fingerprint)) {
+			AnnotatedReferenceGenome annGenome = catalogCache.loadGenome(fingerprint, genomes.size()+1, genome);
+			log.info("Loaded cached homology catalog for "+fileTranscriptome+". Genome: "+annGenome.getId()+" has "+annGenome.getTotalHomologyUnits()+" total homology units.");
+			genomes.add(annGenome);
+			genomeFingerprints.add(fingerprint);
+			return;
+		}
 		GFF3TranscriptomeHandler transcriptomeHandler = new GFF3TranscriptomeHandler(genome.getSequencesMetadata());
 		Transcriptome transcriptome = transcriptomeHandler.loadMap(fileTranscriptome);
 		transcriptome.fillSequenceTranscripts(genome, log);
 		log.info("Loaded transcriptome "+fileTranscriptome+ " number of transcripts: "+transcriptome.getAllTranscripts().size());
 		AnnotatedReferenceGenome annGenome = new AnnotatedReferenceGenome(genomes.size()+1, genome, transcriptome);
 		log.info("Genome: "+annGenome.getId()+" has "+annGenome.getTotalHomologyUnits()+" total homology units.");
+		if(fingerprint!=null) catalogCache.saveCatalog(fingerprint, annGenome);
 		genomes.add(annGenome);
+		genomeFingerprints.add(fingerprint);
 	}
 
 	public void loadGenomesFromFile() throws IOException {
@@ -328,6 +387,8 @@ public class GenomesAligner {
 	public void alignGenomes() {		
 		HomologClustersCalculator calculator = new HomologClustersCalculator(skipMCL);
 		calculator.setLog(log);
+		calculator.setNumThreads(numThreads);
+		calculator.setMaxSizeMCL(maxSizeMCL);
 		listHomologyCluster = calculator.clusterHomologs(genomes, homologyEdges);
 		if(genomes.size()<2) return;
 		// By now this is still done for two genomes
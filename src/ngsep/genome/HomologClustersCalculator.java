@@ -14,24 +14,28 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.logging.Logger;
 
+import ngsep.graphs.CompressedSparseMatrix;
 import ngsep.graphs.MCLJob;
 import ngsep.math.Distribution;
 
 public class HomologClustersCalculator {
 	//Possible program arguments
 	private static final int PREFERRED_ORTHOGROUP_SIZE = 50;
-	private static final int MAX_SIZE_MCL = 5000;
+	public static final int DEF_NUM_THREADS = 1;
+	public static final int DEF_MAX_SIZE_MCL = 50000;
 	
 	//Statistics
-	private int countLarge = 0;
 	private int countSmall = 0;
 	private int countMedium = 0;
+	private int countLarge = 0;
 	private int reProcessedClusters = 0;
 	
 	//Run parameters
 	private boolean skipMCL;
 	private Distribution distClusterSizes = new Distribution(0, PREFERRED_ORTHOGROUP_SIZE, 1);
 	private int sampleSize = 0;
+	private int numThreads = DEF_NUM_THREADS;
+	private int maxSizeMCL = DEF_MAX_SIZE_MCL;
 	
 	private Logger log;
 	
@@ -49,6 +53,28 @@ public class HomologClustersCalculator {
 	public void setLog(Logger log) {
 		this.log = log;
 	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	
+	/**
+	 * @param numThreads number of threads used by MCL to multiply similarity matrices
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	
+	public int getMaxSizeMCL() {
+		return maxSizeMCL;
+	}
+	
+	/**
+	 * @param maxSizeMCL maximum number of units of a partition to run MCL. Larger partitions are returned as a single cluster
+	 */
+	public void setMaxSizeMCL(int maxSizeMCL) {
+		this.maxSizeMCL = maxSizeMCL;
+	}
 
 	public List<HomologyCluster> clusterHomologs(List<AnnotatedReferenceGenome> genomes, List<HomologyEdge> homologyEdges) {
 		List<HomologyCatalog> catalogs = new ArrayList<>();
@@ -131,7 +157,7 @@ public class HomologClustersCalculator {
 	private void generateStatistics() {
 		log.info("OrthoGroup Results");
 		log.info("Size Statistics");
-		log.info(String.format("SMALL (2-%d): %d || MEDIUM (%d-MAX): %d || LARGE (%d+): %d", sampleSize, countSmall, sampleSize, countMedium, MAX_SIZE_MCL, countLarge));
+		log.info(String.format("SMALL (2-%d): %d || MEDIUM (%d-%d): %d || LARGE (%d+): %d", sampleSize, countSmall, sampleSize+1, maxSizeMCL, countMedium, maxSizeMCL+1, countLarge));
 		
 		ByteArrayOutputStream os = new ByteArrayOutputStream();
 		PrintStream out = new PrintStream(os);
@@ -163,6 +189,7 @@ public class HomologClustersCalculator {
 			if (marked.contains(filteredUnits.get(i).getUniqueKey())) continue;
 			Queue<HomologyUnit> queue = new LinkedList<>();
 			List<HomologyUnit> currentPartition = new ArrayList<>();
+			Set<String> currentKeys = new HashSet<>();
 			
 			queue.add(filteredUnits.get(i));
 			while(!queue.isEmpty()) {
@@ -171,7 +198,7 @@ public class HomologClustersCalculator {
 				}
 				
 				HomologyUnit currentUnit = queue.poll();
-				if(currentPartition.contains(currentUnit)) {
+				if(currentKeys.contains(currentUnit.getUniqueKey())) {
 					//Element already inside current partition.
 					continue;
 				} else {
@@ -183,6 +210,7 @@ public class HomologClustersCalculator {
 							if(set.contains(currentUnit)) {
 								merged = true;
 								currentPartition.addAll(set);
+								for(HomologyUnit unit : set) currentKeys.add(unit.getUniqueKey());
 								partitions.remove(j);
 							}
 						}
@@ -193,6 +221,7 @@ public class HomologClustersCalculator {
 						marked.add(currentUnit.getUniqueKey());
 						markedCount++;
 						currentPartition.add(currentUnit);
+						currentKeys.add(currentUnit.getUniqueKey());
 						Collection<HomologyEdge> edges = currentUnit.getAllHomologyRelationships();
 						for(HomologyEdge edge : edges) {
 							queue.add(edge.getSubjectUnit());
@@ -219,7 +248,7 @@ public class HomologClustersCalculator {
 			List<List<HomologyUnit>> clusters = new ArrayList<>();
 			clusters.add(partition);
 			task.setResults(clusters);
-		} else if (partition.size() <= MAX_SIZE_MCL){
+		} else if (partition.size() <= maxSizeMCL){
 			//MCL
 			countMedium++;
 			task = dispatchMCL(task);
@@ -246,16 +275,31 @@ public class HomologClustersCalculator {
 			indexOf.put(partition.get(i).getUniqueKey(), i);
 		}
 		
-		//Generating score matrix for MCL
-		double[][] matrix = new double[partition.size()][partition.size()];
+		//Generating sparse score matrix for MCL
+		int numEdges = 0;
+		for(HomologyUnit unit : partition) numEdges += unit.getTotalHomologs();
+		int[] rows = new int[numEdges];
+		int[] columns = new int[numEdges];
+		double[] scores = new double[numEdges];
+		int numEntries = 0;
 		for(int i = 0; i < partition.size(); i++) {
 			HomologyUnit currentUnit = partition.get(i);
 			for(HomologyEdge edge : currentUnit.getAllHomologyRelationships()) {
-				matrix[i][indexOf.get(edge.getSubjectUnit().getUniqueKey())] = edge.getScore();
+				if(numEntries == rows.length) {
+					rows = Arrays.copyOf(rows, 2*numEntries+1);
+					columns = Arrays.copyOf(columns, rows.length);
+					scores = Arrays.copyOf(scores, rows.length);
+				}
+				rows[numEntries] = i;
+				columns[numEntries] = indexOf.get(edge.getSubjectUnit().getUniqueKey());
+				scores[numEntries] = edge.getScore();
+				numEntries++;
 			}
 		}
+		CompressedSparseMatrix matrix = CompressedSparseMatrix.fromEntries(partition.size(), partition.size(), rows, columns, scores, numEntries);
 		
 		MCLJob job = new MCLJob(matrix);
+		job.setNumThreads(numThreads);
 		job.run();
 		
 		List<List<Integer>> results = job.getResults();
@@ -11,24 +11,46 @@ import ngsep.sequences.QualifiedSequenceList;
 
 public class HomologyCatalog {
 	private Map<String, HomologyUnit> homologyUnitsMap= new HashMap<String, HomologyUnit>();
+	private List<HomologyUnit> indexedUnits = new ArrayList<>();
 	private FMIndex indexHomologyUnits=null;
 	
 	public HomologyCatalog (List<HomologyUnit> units) {
+		loadUnits(units);
+		buildFMIndex();
+	}
+	/**
+	 * Creates a catalog reusing an FM-index previously built for the given units
+	 * @param units Homology units in the same order that was used to build the index
+	 * @param index FM-index of the sequences of the given units
+	 */
+	HomologyCatalog (List<HomologyUnit> units, FMIndex index) {
+		loadUnits(units);
+		indexHomologyUnits = index;
+	}
+	private void loadUnits(List<HomologyUnit> units) {
 		for(HomologyUnit unit: units) {
 			homologyUnitsMap.put(unit.getId(), unit);
+			indexedUnits.add(unit);
 		}
-		buildFMIndex();
 	}
 	private void buildFMIndex() {
 		indexHomologyUnits = new FMIndex();
+		indexHomologyUnits.loadQualifiedSequences(buildUnitSequences(indexedUnits), null);
+	}
+	/**
+	 * Builds the list of sequences that is indexed for the given homology units
+	 * @param units Homology units to index
+	 * @return QualifiedSequenceList List with the unit ids and sequences in the same order of the given list
+	 */
+	static QualifiedSequenceList buildUnitSequences(List<HomologyUnit> units) {
 		QualifiedSequenceList unitSequences = new QualifiedSequenceList();
-		for (HomologyUnit ql:homologyUnitsMap.values()) {
+		for (HomologyUnit ql:units) {
 			String unitSequence = ql.getUnitSequence();
 			String unitId = ql.getId();
 			QualifiedSequence qualifiedSequence = new QualifiedSequence(unitId, unitSequence);
 			unitSequences.add(qualifiedSequence);
 		}
-		indexHomologyUnits.loadQualifiedSequences(unitSequences, null);
+		return unitSequences;
 	}
 	
 	/**
@@ -43,6 +65,13 @@ public class HomologyCatalog {
 		return new ArrayList<>(homologyUnitsMap.values());
 	}
 	
+	/**
+	 * @return List<HomologyUnit> Homology units in the order in which they were indexed
+	 */
+	List<HomologyUnit> getIndexedHomologyUnits() {
+		return indexedUnits;
+	}
+	
 	public HomologyUnit getHomologyUnit(String unitId) {
 		return homologyUnitsMap.get(unitId);
 	}
@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.genome;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import ngsep.main.io.ConcatGZIPInputStream;
+import ngsep.sequences.FMIndex;
+
+/**
+ * Directory of homology catalogs built in previous runs. Each entry is identified by a fingerprint
+ * of the genome and annotation files and contains the homology units, the FM-index of the units
+ * and the paralog relationships calculated for each combination of k-mer length and minimum percentage of k-mers
+ * @author Jorge Duitama
+ */
+public class HomologyCatalogCache {
+
+	public static final String SUFFIX_UNITS = "_units.txt.gz";
+	public static final String SUFFIX_INDEX = "_unitsIndex.fmi";
+
+	private Logger log = Logger.getLogger(HomologyCatalogCache.class.getName());
+	private File directory;
+
+	/**
+	 * Creates a cache over the given directory. The directory is created if it does not exist
+	 * @param directory Path to the cache directory
+	 * @throws IOException If the directory can not be created
+	 */
+	public HomologyCatalogCache(String directory) throws IOException {
+		this.directory = new File(directory);
+		if(!this.directory.exists() && !this.directory.mkdirs()) throw new IOException("Can not create cache directory "+directory);
+		if(!this.directory.isDirectory()) throw new IOException("Cache path "+directory+" is not a directory");
+	}
+
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+
+	/**
+	 * Calculates a fingerprint of the contents of the given genome and annotation files
+	 * @param fileGenome FASTA file with the genome
+	 * @param fileTranscriptome GFF3 file with the annotation
+	 * @return String hexadecimal MD5 digest of the contents of both files
+	 * @throws IOException If the files can not be read
+	 */
+	public String calculateFingerprint(String fileGenome, String fileTranscriptome) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("MD5 digest not available",e);
+		}
+		updateDigest(digest, fileGenome);
+		updateDigest(digest, fileTranscriptome);
+		byte [] hash = digest.digest();
+		StringBuilder answer = new StringBuilder(2*hash.length);
+		for(byte b:hash) answer.append(String.format("%02x", b));
+		return answer.toString();
+	}
+	private void updateDigest(MessageDigest digest, String filename) throws IOException {
+		byte [] buffer = new byte[65536];
+		try (InputStream in = new FileInputStream(filename)) {
+			int n = in.read(buffer);
+			while(n>=0) {
+				digest.update(buffer, 0, n);
+				n = in.read(buffer);
+			}
+		}
+		//Separates the contents of consecutive files
+		digest.update((byte)0);
+	}
+
+	/**
+	 * Tells if the homology catalog with the given fingerprint is already stored
+	 * @param fingerprint of the genome and annotation files
+	 * @return boolean true if the catalog can be loaded from the cache
+	 */
+	public boolean containsCatalog(String fingerprint) {
+		return getFile(fingerprint, SUFFIX_UNITS).exists() && getFile(fingerprint, SUFFIX_INDEX).exists();
+	}
+
+	/**
+	 * Tells if the paralogs calculated with the given parameters are already stored for the catalog with the given fingerprint
+	 * @param fingerprint of the genome and annotation files
+	 * @param finder with the parameters to calculate paralogs
+	 * @return boolean true if the paralogs can be loaded from the cache
+	 */
+	public boolean containsParalogs(String fingerprint, HomologRelationshipsFinder finder) {
+		return getFile(fingerprint, getParalogsSuffix(finder)).exists();
+	}
+
+	/**
+	 * Loads an annotated genome reusing the homology catalog stored with the given fingerprint
+	 * @param fingerprint of the genome and annotation files
+	 * @param id of the genome to load
+	 * @param genome Reference genome
+	 * @return AnnotatedReferenceGenome with the cached homology units and FM-index
+	 * @throws IOException If the cache files can not be read
+	 */
+	public AnnotatedReferenceGenome loadGenome(String fingerprint, int id, ReferenceGenome genome) throws IOException {
+		List<HomologyUnit> units = loadUnits(getFile(fingerprint, SUFFIX_UNITS), id);
+		FMIndex index;
+		try {
+			index = FMIndex.load(HomologyCatalog.buildUnitSequences(units), getFile(fingerprint, SUFFIX_INDEX).getAbsolutePath());
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Error loading cached FM-index for fingerprint "+fingerprint,e);
+		}
+		HomologyCatalog catalog = new HomologyCatalog(units, index);
+		return new AnnotatedReferenceGenome(id, genome, catalog);
+	}
+
+	private List<HomologyUnit> loadUnits(File file, int genomeId) throws IOException {
+		List<HomologyUnit> units = new ArrayList<>();
+		try (FileInputStream fis = new FileInputStream(file);
+			 ConcatGZIPInputStream gzis = new ConcatGZIPInputStream(fis);
+			 InputStreamReader isr = new InputStreamReader(gzis);
+			 BufferedReader in = new BufferedReader(isr)) {
+			String line = in.readLine();
+			while(line!=null) {
+				String [] items = line.split("\t");
+				if(items.length<6) throw new IOException("Unexpected number of fields in cached homology unit. Line: "+line);
+				HomologyUnit unit = new HomologyUnit(genomeId, items[0], items[1], Integer.parseInt(items[2]), Integer.parseInt(items[3]));
+				unit.setNegativeStrand("-".equals(items[4]));
+				unit.setUnitSequence(items[5]);
+				units.add(unit);
+				line = in.readLine();
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Error loading cached homology units from "+file.getAbsolutePath(),e);
+		}
+		return units;
+	}
+
+	/**
+	 * Loads the paralog relationships stored for the given genome. Relationships are also registered in the homology units
+	 * @param fingerprint of the genome and annotation files
+	 * @param finder with the parameters used to calculate paralogs
+	 * @param genome with homology units loaded from the same catalog
+	 * @return List<HomologyEdge> Paralog relationships
+	 * @throws IOException If the cache file can not be read or if it is not consistent with the genome
+	 */
+	public List<HomologyEdge> loadParalogs(String fingerprint, HomologRelationshipsFinder finder, AnnotatedReferenceGenome genome) throws IOException {
+		List<HomologyEdge> edges = new ArrayList<>();
+		File file = getFile(fingerprint, getParalogsSuffix(finder));
+		try (FileInputStream fis = new FileInputStream(file);
+			 ConcatGZIPInputStream gzis = new ConcatGZIPInputStream(fis);
+			 InputStreamReader isr = new InputStreamReader(gzis);
+			 BufferedReader in = new BufferedReader(isr)) {
+			String line = in.readLine();
+			while(line!=null) {
+				String [] items = line.split("\t");
+				if(items.length<3) throw new IOException("Unexpected number of fields in cached paralog relationship. Line: "+line);
+				HomologyUnit query = genome.getHomologyUnit(items[0]);
+				HomologyUnit subject = genome.getHomologyUnit(items[1]);
+				if(query == null || subject == null) throw new IOException("Cached paralog relationship between unknown units. Line: "+line);
+				HomologyEdge edge = new HomologyEdge(query, subject, Double.parseDouble(items[2]));
+				query.addHomologRelationship(edge);
+				edges.add(edge);
+				line = in.readLine();
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Error loading cached paralogs from "+file.getAbsolutePath(),e);
+		}
+		genome.selectUniqueOrthologyUnits();
+		return edges;
+	}
+
+	/**
+	 * Stores the homology units and the FM-index of the given genome
+	 * @param fingerprint of the genome and annotation files
+	 * @param genome with the homology catalog to store
+	 * @throws IOException If the cache files can not be written
+	 */
+	public void saveCatalog(String fingerprint, AnnotatedReferenceGenome genome) throws IOException {
+		HomologyCatalog catalog = genome.getHomologyCatalog();
+		File indexFile = getFile(fingerprint, SUFFIX_INDEX);
+		File tmpIndex = new File(indexFile.getAbsolutePath()+".tmp");
+		catalog.getIndexHomologyUnits().save(tmpIndex.getAbsolutePath());
+		Files.move(tmpIndex.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		File unitsFile = getFile(fingerprint, SUFFIX_UNITS);
+		File tmpUnits = new File(unitsFile.getAbsolutePath()+".tmp");
+		try (OutputStream os = new GZIPOutputStream(new FileOutputStream(tmpUnits));
+			 PrintStream out = new PrintStream(os)) {
+			for(HomologyUnit unit:catalog.getIndexedHomologyUnits()) {
+				out.println(unit.getId()+"\t"+unit.getSequenceName()+"\t"+unit.getFirst()+"\t"+unit.getLast()+"\t"+(unit.isNegativeStrand()?"-":"+")+"\t"+unit.getUnitSequence());
+			}
+		}
+		Files.move(tmpUnits.toPath(), unitsFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		log.info("Saved homology catalog of genome "+genome.getId()+" in cache with fingerprint "+fingerprint);
+	}
+
+	/**
+	 * Stores the given paralog relationships
+	 * @param fingerprint of the genome and annotation files
+	 * @param finder with the parameters used to calculate paralogs
+	 * @param paralogs Relationships to store
+	 * @throws IOException If the cache file can not be written
+	 */
+	public void saveParalogs(String fingerprint, HomologRelationshipsFinder finder, List<HomologyEdge> paralogs) throws IOException {
+		File file = getFile(fingerprint, getParalogsSuffix(finder));
+		File tmpFile = new File(file.getAbsolutePath()+".tmp");
+		try (OutputStream os = new GZIPOutputStream(new FileOutputStream(tmpFile));
+			 PrintStream out = new PrintStream(os)) {
+			for(HomologyEdge edge:paralogs) {
+				out.println(edge.getQueryUnit().getId()+"\t"+edge.getSubjectUnit().getId()+"\t"+edge.getScore());
+			}
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private String getParalogsSuffix(HomologRelationshipsFinder finder) {
+		return "_paralogs_k"+finder.getKmerLength()+"_p"+finder.getMinPctKmers()+".txt.gz";
+	}
+
+	private File getFile(String fingerprint, String suffix) {
+		return new File(directory, fingerprint+suffix);
+	}
+}
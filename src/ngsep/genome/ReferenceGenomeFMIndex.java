@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.util.List;
 import java.util.logging.Logger;
 
+import ngsep.main.LoadedObjectsCache;
 import ngsep.sequences.FMIndex;
 import ngsep.sequences.UngappedSearchHit;
 import ngsep.sequences.QualifiedSequence;
@@ -59,6 +60,10 @@ public class ReferenceGenomeFMIndex {
 	 * @throws IOException If there were errors reading the file
 	 */
 	public static ReferenceGenomeFMIndex load(ReferenceGenome genome, String indexFile) throws IOException
+	{
+		return LoadedObjectsCache.getOrLoad(ReferenceGenomeFMIndex.class, indexFile, ()->loadFile(genome, indexFile), genome);
+	}
+	private static ReferenceGenomeFMIndex loadFile(ReferenceGenome genome, String indexFile) throws IOException
 	{
 		ReferenceGenomeFMIndex fmIndex = new ReferenceGenomeFMIndex();
 		fmIndex.sequencesMetadata = genome.getSequencesMetadata();
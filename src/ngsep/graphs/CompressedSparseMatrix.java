@@ -0,0 +1,289 @@
+package ngsep.graphs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Sparse matrix stored in compressed sparse row (CSR) format. Entries of each row are sorted by column.
+ * The structure of the matrix is fixed but values can be modified in place
+ * @author Jorge Duitama
+ */
+public class CompressedSparseMatrix {
+	private int numRows;
+	private int numColumns;
+	//Entries of row i are stored between rowStarts[i] (inclusive) and rowStarts[i+1] (exclusive)
+	private int [] rowStarts;
+	private int [] columns;
+	private double [] values;
+
+	/**
+	 * Creates a matrix from its CSR representation. Arrays are not copied
+	 * @param numRows Number of rows
+	 * @param numColumns Number of columns
+	 * @param rowStarts Start of each row in the entries arrays. Length must be numRows+1
+	 * @param columns Columns of the entries. Columns must be sorted within each row
+	 * @param values Values of the entries
+	 */
+	public CompressedSparseMatrix(int numRows, int numColumns, int [] rowStarts, int [] columns, double [] values) {
+		if(rowStarts.length!=numRows+1) throw new IllegalArgumentException("Invalid length of row starts array "+rowStarts.length+" for "+numRows+" rows");
+		if(columns.length<rowStarts[numRows] || values.length<rowStarts[numRows]) throw new IllegalArgumentException("Arrays of entries are shorter than the number of entries "+rowStarts[numRows]);
+		this.numRows = numRows;
+		this.numColumns = numColumns;
+		this.rowStarts = rowStarts;
+		this.columns = columns;
+		this.values = values;
+	}
+
+	/**
+	 * Creates a sparse matrix with the non zero entries of the given dense matrix
+	 * @param matrix Dense matrix
+	 * @return CompressedSparseMatrix Sparse copy of the given matrix
+	 */
+	public static CompressedSparseMatrix fromDense(double [][] matrix) {
+		int n = matrix.length;
+		int m = n>0?matrix[0].length:0;
+		int [] rowStarts = new int[n+1];
+		for(int i=0;i<n;i++) {
+			int count = 0;
+			for(int j=0;j<m;j++) if(matrix[i][j]!=0) count++;
+			rowStarts[i+1] = rowStarts[i]+count;
+		}
+		int [] columns = new int[rowStarts[n]];
+		double [] values = new double[rowStarts[n]];
+		int k = 0;
+		for(int i=0;i<n;i++) {
+			for(int j=0;j<m;j++) {
+				if(matrix[i][j]!=0) {
+					columns[k] = j;
+					values[k] = matrix[i][j];
+					k++;
+				}
+			}
+		}
+		return new CompressedSparseMatrix(n, m, rowStarts, columns, values);
+	}
+
+	/**
+	 * Creates a sparse matrix from a list of entries given in arbitrary order.
+	 * If an entry appears more than once, the value of the last occurrence is kept
+	 * @param numRows Number of rows
+	 * @param numColumns Number of columns
+	 * @param entryRows Rows of the entries
+	 * @param entryColumns Columns of the entries
+	 * @param entryValues Values of the entries
+	 * @param numEntries Number of entries to read from the arrays
+	 * @return CompressedSparseMatrix Sparse matrix with the given entries
+	 */
+	public static CompressedSparseMatrix fromEntries(int numRows, int numColumns, int [] entryRows, int [] entryColumns, double [] entryValues, int numEntries) {
+		int [] rowStarts = new int[numRows+1];
+		for(int k=0;k<numEntries;k++) {
+			int row = entryRows[k];
+			int column = entryColumns[k];
+			if(row<0 || row>=numRows || column<0 || column>=numColumns) throw new IndexOutOfBoundsException("Invalid entry ("+row+","+column+") for a matrix of dimensions "+numRows+"x"+numColumns);
+			rowStarts[row+1]++;
+		}
+		for(int i=0;i<numRows;i++) rowStarts[i+1]+=rowStarts[i];
+		//Stable bucket sort by row. Within each row entries are sorted by column and then by order of appearance
+		long [] keys = new long[numEntries];
+		int [] next = Arrays.copyOf(rowStarts, numRows);
+		for(int k=0;k<numEntries;k++) {
+			keys[next[entryRows[k]]++] = ((long)entryColumns[k]<<32) | k;
+		}
+		int [] columns = new int[numEntries];
+		double [] values = new double[numEntries];
+		int [] finalStarts = new int[numRows+1];
+		int total = 0;
+		for(int i=0;i<numRows;i++) {
+			int first = rowStarts[i];
+			int last = rowStarts[i+1];
+			Arrays.sort(keys, first, last);
+			for(int k=first;k<last;k++) {
+				int column = (int)(keys[k]>>>32);
+				if(k+1<last && (int)(keys[k+1]>>>32)==column) continue;
+				columns[total] = column;
+				values[total] = entryValues[(int)(keys[k] & 0xFFFFFFFFL)];
+				total++;
+			}
+			finalStarts[i+1] = total;
+		}
+		return new CompressedSparseMatrix(numRows, numColumns, finalStarts, columns, values);
+	}
+
+	public int getNumRows() {
+		return numRows;
+	}
+
+	public int getNumColumns() {
+		return numColumns;
+	}
+
+	/**
+	 * @return int Number of entries explicitly stored in the matrix
+	 */
+	public int getNumEntries() {
+		return rowStarts[numRows];
+	}
+
+	/**
+	 * @param row Row of the matrix
+	 * @return int Index of the first entry of the given row
+	 */
+	public int getRowStart(int row) {
+		return rowStarts[row];
+	}
+
+	/**
+	 * @param row Row of the matrix
+	 * @return int Index after the last entry of the given row
+	 */
+	public int getRowEnd(int row) {
+		return rowStarts[row+1];
+	}
+
+	/**
+	 * @param entry Index of an entry
+	 * @return int Column of the entry
+	 */
+	public int getColumn(int entry) {
+		return columns[entry];
+	}
+
+	/**
+	 * @param entry Index of an entry
+	 * @return double Value of the entry
+	 */
+	public double getValue(int entry) {
+		return values[entry];
+	}
+
+	/**
+	 * Changes the value of an existing entry
+	 * @param entry Index of the entry
+	 * @param value New value
+	 */
+	public void setValue(int entry, double value) {
+		values[entry] = value;
+	}
+
+	/**
+	 * Returns the value at the given row and column
+	 * @param row Row of the matrix
+	 * @param column Column of the matrix
+	 * @return double Value of the entry. Zero if the entry is not stored
+	 */
+	public double get(int row, int column) {
+		int idx = Arrays.binarySearch(columns, rowStarts[row], rowStarts[row+1], column);
+		if(idx<0) return 0;
+		return values[idx];
+	}
+
+	/**
+	 * @return CompressedSparseMatrix Transpose of this matrix
+	 */
+	public CompressedSparseMatrix transpose() {
+		int n = getNumEntries();
+		int [] tStarts = new int[numColumns+1];
+		for(int k=0;k<n;k++) tStarts[columns[k]+1]++;
+		for(int j=0;j<numColumns;j++) tStarts[j+1]+=tStarts[j];
+		int [] next = Arrays.copyOf(tStarts, numColumns);
+		int [] tColumns = new int[n];
+		double [] tValues = new double[n];
+		//Rows are visited in order, so columns of the transpose are sorted
+		for(int i=0;i<numRows;i++) {
+			for(int k=rowStarts[i];k<rowStarts[i+1];k++) {
+				int pos = next[columns[k]]++;
+				tColumns[pos] = i;
+				tValues[pos] = values[k];
+			}
+		}
+		return new CompressedSparseMatrix(numColumns, numRows, tStarts, tColumns, tValues);
+	}
+
+	/**
+	 * Multiplies this matrix by the given matrix. Entries of the result smaller or equal than the given threshold are not stored.
+	 * Each entry of the result is accumulated in increasing order of the inner index
+	 * @param other Matrix to multiply. The number of rows must be equal to the number of columns of this matrix
+	 * @param threshold Minimum value to keep an entry of the result
+	 * @param pool Pool of threads to calculate rows of the result. If null, the multiplication runs in the current thread
+	 * @param numTasks Number of tasks to submit to the pool
+	 * @return CompressedSparseMatrix Product of the two matrices
+	 */
+	public CompressedSparseMatrix multiply(CompressedSparseMatrix other, double threshold, ExecutorService pool, int numTasks) {
+		if(numColumns!=other.numRows) throw new IllegalArgumentException("Matrix with "+numColumns+" columns can not be multiplied by a matrix with "+other.numRows+" rows");
+		int [][] rowColumns = new int[numRows][];
+		double [][] rowValues = new double[numRows][];
+		if(pool==null || numTasks<=1) {
+			multiplyRows(other, threshold, 0, 1, rowColumns, rowValues);
+		} else {
+			List<Future<?>> tasks = new ArrayList<>(numTasks);
+			for(int t=0;t<numTasks;t++) {
+				int first = t;
+				//Rows are interleaved to balance the work among tasks
+				tasks.add(pool.submit(()->multiplyRows(other, threshold, first, numTasks, rowColumns, rowValues)));
+			}
+			try {
+				for(Future<?> f:tasks) f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while multiplying matrices",e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Error multiplying matrices",e.getCause());
+			}
+		}
+		int [] answerStarts = new int[numRows+1];
+		for(int i=0;i<numRows;i++) answerStarts[i+1] = answerStarts[i]+rowColumns[i].length;
+		int [] answerColumns = new int[answerStarts[numRows]];
+		double [] answerValues = new double[answerStarts[numRows]];
+		for(int i=0;i<numRows;i++) {
+			System.arraycopy(rowColumns[i], 0, answerColumns, answerStarts[i], rowColumns[i].length);
+			System.arraycopy(rowValues[i], 0, answerValues, answerStarts[i], rowValues[i].length);
+		}
+		return new CompressedSparseMatrix(numRows, other.numColumns, answerStarts, answerColumns, answerValues);
+	}
+
+	private void multiplyRows(CompressedSparseMatrix other, double threshold, int first, int step, int [][] rowColumns, double [][] rowValues) {
+		//Dense accumulator for the current row and list of touched columns
+		double [] accumulator = new double[other.numColumns];
+		boolean [] touched = new boolean[other.numColumns];
+		int [] touchedColumns = new int[other.numColumns];
+		for(int i=first;i<numRows;i+=step) {
+			int numTouched = 0;
+			for(int k=rowStarts[i];k<rowStarts[i+1];k++) {
+				double a = values[k];
+				int z = columns[k];
+				for(int l=other.rowStarts[z];l<other.rowStarts[z+1];l++) {
+					int j = other.columns[l];
+					if(!touched[j]) {
+						touched[j] = true;
+						touchedColumns[numTouched++] = j;
+					}
+					accumulator[j] += a*other.values[l];
+				}
+			}
+			Arrays.sort(touchedColumns, 0, numTouched);
+			int count = 0;
+			for(int t=0;t<numTouched;t++) {
+				if(accumulator[touchedColumns[t]]>threshold) count++;
+			}
+			int [] cols = new int[count];
+			double [] vals = new double[count];
+			count = 0;
+			for(int t=0;t<numTouched;t++) {
+				int j = touchedColumns[t];
+				if(accumulator[j]>threshold) {
+					cols[count] = j;
+					vals[count] = accumulator[j];
+					count++;
+				}
+				accumulator[j] = 0;
+				touched[j] = false;
+			}
+			rowColumns[i] = cols;
+			rowValues[i] = vals;
+		}
+	}
+}
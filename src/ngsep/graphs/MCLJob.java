@@ -3,6 +3,8 @@ package ngsep.graphs;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MCLJob extends Thread {
 	private static final double INFERED_EDGE_VALUE = 1;
@@ -11,39 +13,64 @@ public class MCLJob extends Thread {
 	private static final double INFLATION_COEFFICIENT = 8;
 	private static final double DEVIATION_THRESHOLD = 0.000001;
 	
-	private double[][] similarityMatrix;
+	private CompressedSparseMatrix similarityMatrix;
 	private int nextColumn = 0;
 	private List<List<Integer>> clusters;
+	private int numThreads = 1;
 	
 	public MCLJob(double[][] providedMatrix) {
+		this(CompressedSparseMatrix.fromDense(providedMatrix));
+	}
+	
+	/**
+	 * Creates a job on a sparse similarity matrix. Memory and time depend on the number of edges rather than on the square of the number of nodes
+	 * @param providedMatrix square matrix of similarities between nodes
+	 */
+	public MCLJob(CompressedSparseMatrix providedMatrix) {
 		super();
+		if(providedMatrix.getNumRows()!=providedMatrix.getNumColumns()) throw new IllegalArgumentException("The similarity matrix must be square. Dimensions: "+providedMatrix.getNumRows()+"x"+providedMatrix.getNumColumns());
 		this.similarityMatrix = providedMatrix;
 		this.clusters = new ArrayList<>();
 	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	
+	/**
+	 * @param numThreads number of threads used to multiply the matrix during the expansion steps
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
 
 	@Override
 	public void run() {		
 		similarityMatrix = completeMatrix(similarityMatrix);
-		similarityMatrix = fitMatrix(similarityMatrix);
+		fitMatrix(similarityMatrix);
 		
+		ExecutorService pool = null;
+		if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
 		int runs = 0;
 		boolean convergenceState = false;
-		double[][] backup;
-		while(!convergenceState) {
-			runs++;
-			backup = copyOf(similarityMatrix);
-			backup = squareMatrixTimes(backup, E_POWER);
-			backup = inflateMatrix(backup, INFLATION_COEFFICIENT);
-			convergenceState = verifyConvergence(backup, similarityMatrix, DEVIATION_THRESHOLD);
-			similarityMatrix = backup;
+		CompressedSparseMatrix backup;
+		try {
+			while(!convergenceState) {
+				runs++;
+				backup = squareMatrixTimes(similarityMatrix, E_POWER, pool);
+				inflateMatrix(backup, INFLATION_COEFFICIENT);
+				convergenceState = verifyConvergence(backup, similarityMatrix, DEVIATION_THRESHOLD);
+				similarityMatrix = backup;
+			}
+		} finally {
+			if(pool!=null) pool.shutdownNow();
 		}
 		
 		System.out.println(String.format("Matrix converged after %d runs", runs));
-		similarityMatrix = consolidateAttractors(similarityMatrix);
-		clusters = extractResults(similarityMatrix);
+		clusters = extractResults(consolidateAttractors(similarityMatrix));
 	}
 
-	public double[][] getSimilarityMatrix() {
+	public CompressedSparseMatrix getSimilarityMatrix() {
 		return similarityMatrix;
 	}
 	
@@ -56,196 +83,199 @@ public class MCLJob extends Thread {
 	}
 	
 	/**
-	 * Takes all nodes from each column with a value of 1 an puts them into the same cluster. Each column is a boolean representation of each cluster.
-	 * @param matrix matrix to extract results from.
+	 * Takes all nodes assigned to each attractor and puts them into the same cluster. Clusters are sorted by attractor.
+	 * @param attractors attractor assigned to each node.
 	 * @return lists with all-non empty clusters, with the cluster being represented as a list of indexes.
 	 */
-	private List<List<Integer>> extractResults(double[][] matrix) {
+	private List<List<Integer>> extractResults(int[] attractors) {
 		List<List<Integer>> clusters = new ArrayList<>();
-		
-		for(int j = 0; j < matrix.length; j++) {
-			ArrayList<Integer> cluster = new ArrayList<>();
-			for(int i = 0; i < matrix.length; i++) {
-				if(matrix[i][j] > 0) {
-					cluster.add(i);
-				}
+		List<List<Integer>> clustersByAttractor = new ArrayList<>(attractors.length);
+		for(int j = 0; j < attractors.length; j++) clustersByAttractor.add(null);
+		for(int i = 0; i < attractors.length; i++) {
+			List<Integer> cluster = clustersByAttractor.get(attractors[i]);
+			if(cluster == null) {
+				cluster = new ArrayList<>();
+				clustersByAttractor.set(attractors[i], cluster);
 			}
-			if(cluster.size() > 0) clusters.add(cluster);
+			cluster.add(i);
+		}
+		for(List<Integer> cluster : clustersByAttractor) {
+			if(cluster != null) clusters.add(cluster);
 		}
-		
 		return clusters;
 	}
 	
 	/**
-	 * Verifies if the standard deviation the matrix is below the desired threshold. Each matrix needs to have the same dimensions.
+	 * Verifies if the standard deviation of the differences between the two matrices is below the desired threshold. Each matrix needs to have the same dimensions.
+	 * Entries stored in only one of the matrices are compared against zero. Entries not stored in any of the matrices are zero in both
+	 * and are not visited, but they are included in the count of entries, so the result is the same as comparing the dense matrices.
 	 * @param oldState one state to be compared
 	 * @param newState other state to be compared
+	 * @param threshold maximum standard deviation to declare convergence
 	 * @return true if the std is below the desired threshold, false otherwise.
 	 */
-	private boolean verifyConvergence(double[][] oldState, double[][] newState, double threshold) {
+	private boolean verifyConvergence(CompressedSparseMatrix oldState, CompressedSparseMatrix newState, double threshold) {
 		double squaredSum = 0;
-		for(int i = 0; i < oldState.length; i++) {
-			for(int j = 0; j < oldState[0].length; j++) {
-				double errVal = oldState[i][j] - newState[i][j];
+		for(int i = 0; i < oldState.getNumRows(); i++) {
+			int k1 = oldState.getRowStart(i);
+			int end1 = oldState.getRowEnd(i);
+			int k2 = newState.getRowStart(i);
+			int end2 = newState.getRowEnd(i);
+			while(k1 < end1 || k2 < end2) {
+				int column1 = k1 < end1 ? oldState.getColumn(k1) : Integer.MAX_VALUE;
+				int column2 = k2 < end2 ? newState.getColumn(k2) : Integer.MAX_VALUE;
+				double errVal;
+				if(column1 == column2) errVal = oldState.getValue(k1++) - newState.getValue(k2++);
+				else if (column1 < column2) errVal = oldState.getValue(k1++);
+				else errVal = -newState.getValue(k2++);
 				squaredSum += (errVal)*(errVal);
 			}
 		}
-		double count = (oldState.length*oldState[0].length) - 1;
+		double count = ((double)oldState.getNumRows()*oldState.getNumColumns()) - 1;
 		double std = Math.sqrt(squaredSum/(count));
 		return std <= threshold;
 	}
 	
 	/**
 	 * Each row gets fitted so that each node can only belong to 1 cluster. Gets rid of any ties in the matrix, and selects the cluster with the highest probability for the node to be fitted to.
-	 * As a result, all values for the resulting matrix will be either 1 or 0.
 	 * @param matrix matrix to fit.
-	 * @return matrix with clear clusters.
+	 * @return column of the attractor selected for each row.
 	 */
-	private double[][] consolidateAttractors(double[][] matrix) {
-		for(int i = 0; i < matrix.length; i++) {
+	private int[] consolidateAttractors(CompressedSparseMatrix matrix) {
+		int[] attractors = new int[matrix.getNumRows()];
+		for(int i = 0; i < matrix.getNumRows(); i++) {
 			int index = 0;
 			double max = 0;
-			for(int j = 0; j < matrix.length; j++) {
-				if(max < matrix[i][j]) {
-					index = j;
-					max = matrix[i][j];
+			for(int k = matrix.getRowStart(i); k < matrix.getRowEnd(i); k++) {
+				if(max < matrix.getValue(k)) {
+					index = matrix.getColumn(k);
+					max = matrix.getValue(k);
 				}
-				matrix[i][j] = 0;
 			}
-			matrix[i][index] = 1;
+			attractors[i] = index;
 		}
-		return matrix;
+		return attractors;
 	}
 	
 	/**
-	 * Normalizes the matrix given as input, also adds self loops equal to 1/n, where n is the quantity of viable neighbours for that node
+	 * Normalizes the matrix given as input, also adds self loops equal to 1/n, where n is the quantity of viable neighbours for that node.
+	 * The diagonal must be stored in the given matrix.
 	 * @param matrix matrix to be normalized
-	 * @return
 	 */
-	private double[][] fitMatrix(double[][] matrix) {
-		for(int i = 0; i < matrix.length; i++) {
+	private void fitMatrix(CompressedSparseMatrix matrix) {
+		for(int i = 0; i < matrix.getNumRows(); i++) {
 			double sum = 0;
 			int valid = 0;
-			for(int j = 0; j < matrix.length; j++) {
-				if (matrix[i][j] > 0) {
-					sum += matrix[i][j];
+			int diagonal = -1;
+			for(int k = matrix.getRowStart(i); k < matrix.getRowEnd(i); k++) {
+				if(matrix.getColumn(k) == i) diagonal = k;
+				if (matrix.getValue(k) > 0) {
+					sum += matrix.getValue(k);
 					valid++;
 				}
 			}
 			
 			if(sum > 0) {
-				matrix[i][i] = sum/valid;
+				matrix.setValue(diagonal, sum/valid);
 				sum += (sum/valid);
-				for(int j = 0; j < matrix.length; j++) matrix[i][j] = matrix[i][j]/sum;
+				for(int k = matrix.getRowStart(i); k < matrix.getRowEnd(i); k++) matrix.setValue(k, matrix.getValue(k)/sum);
 			} else {
-				matrix[i][i] = 1;
+				matrix.setValue(diagonal, 1);
 			}
 		}
-		return matrix;
 	}
 	
 	/**
 	 * Normalizes a given row, taking the weight of each edge and returning a distribution probability over all edges.
-	 * @param row row to be normalized
-	 * @return normalized row
+	 * @param matrix matrix with the row to be normalized
+	 * @param i row to be normalized
 	 */
-	private double[] normalizeRow(double[] row) {
+	private void normalizeRow(CompressedSparseMatrix matrix, int i) {
 		double sum = 0;
-		for(int j = 0; j < row.length; j++) {
-			if (row[j] > 0) {
-				sum += row[j];
+		for(int k = matrix.getRowStart(i); k < matrix.getRowEnd(i); k++) {
+			if (matrix.getValue(k) > 0) {
+				sum += matrix.getValue(k);
 			}
 		}
 		
 		if(sum > 0) {
-			for(int j = 0; j < row.length; j++) row[j] = row[j]/sum;
+			for(int k = matrix.getRowStart(i); k < matrix.getRowEnd(i); k++) matrix.setValue(k, matrix.getValue(k)/sum);
 		}
-		
-		return row;
 	}
 	
 	/**
-	 * Returns a matrix where if node_i has a link to node_j, then node_j will have a link to node_i. The added links have the value given by constant FAKE_LINK_VALUE
+	 * Returns a matrix where if node_i has a link to node_j, then node_j will have a link to node_i. The added links have the value given by constant INFERED_EDGE_VALUE.
+	 * The diagonal of the returned matrix is always stored to allow adding self loops.
 	 * @param matrix matrix to be completed
 	 * @return
 	 */
-	private double[][] completeMatrix(double[][] matrix) {
-		for(int i = 0; i < matrix.length; i++) {
-			for(int j = 0; j < matrix.length - i; j++) {
-				if(i == j) continue;
-				
-				if(matrix[i][j] > 0 && matrix[j][i] == 0) {
-					matrix[j][i] = INFERED_EDGE_VALUE;
-				} else if (matrix[j][i] > 0 && matrix[i][j] == 0) {
-					matrix[i][j] = INFERED_EDGE_VALUE;
+	private CompressedSparseMatrix completeMatrix(CompressedSparseMatrix matrix) {
+		CompressedSparseMatrix transpose = matrix.transpose();
+		int n = matrix.getNumRows();
+		int[] rowStarts = new int[n + 1];
+		int[] columns = new int[2 * matrix.getNumEntries() + n];
+		double[] values = new double[columns.length];
+		int total = 0;
+		for(int i = 0; i < n; i++) {
+			int k1 = matrix.getRowStart(i);
+			int end1 = matrix.getRowEnd(i);
+			int k2 = transpose.getRowStart(i);
+			int end2 = transpose.getRowEnd(i);
+			boolean diagonalAdded = false;
+			while(k1 < end1 || k2 < end2 || !diagonalAdded) {
+				int column1 = k1 < end1 ? matrix.getColumn(k1) : Integer.MAX_VALUE;
+				int column2 = k2 < end2 ? transpose.getColumn(k2) : Integer.MAX_VALUE;
+				int column = Math.min(column1, column2);
+				if(!diagonalAdded && i <= column) {
+					column = i;
+					diagonalAdded = true;
 				}
+				double value = column1 == column ? matrix.getValue(k1) : 0;
+				double reverse = column2 == column ? transpose.getValue(k2) : 0;
+				if(column != i && value == 0 && reverse > 0) value = INFERED_EDGE_VALUE;
+				if(column1 == column) k1++;
+				if(column2 == column) k2++;
+				columns[total] = column;
+				values[total] = value;
+				total++;
 			}
+			rowStarts[i + 1] = total;
 		}
-		return matrix;
+		return new CompressedSparseMatrix(n, n, rowStarts, columns, values);
 	}
 	
 	/**
-	 * Squares the provided matrix a given number of times
+	 * Squares the provided matrix a given number of times. Values below ZERO_THRESHOLD are pruned after each multiplication.
 	 * @param matrix matrix to be squared, this matrix is square (n x n)
 	 * @param times iterations to square the matrix, has to be > 0. e.g. times = 4 returns M^16
+	 * @param pool pool of threads to run the multiplications. If null, multiplications run in the current thread
 	 * @return
 	 */
-	private double[][] squareMatrixTimes(double[][] matrix, int times) {
-		if(times < 1) {
-			return matrix;
-		}
-		
+	private CompressedSparseMatrix squareMatrixTimes(CompressedSparseMatrix matrix, int times, ExecutorService pool) {
 		for(int k = 0; k < times; k++) {
-			double[][] base = new double[matrix.length][];
-			for(int i = 0; i < matrix.length; i++) base[i] = new double[matrix.length];
-			
-			for(int i = 0; i < matrix.length; i++) {
-				for(int j = 0; j < matrix.length; j++) {
-					double val = 0;
-					for(int z = 0; z < matrix.length; z++) {
-						val += matrix[i][z]*matrix[z][j];
-					}
-					if(val <= ZERO_THRESHOLD) val = 0;
-					base[i][j] = val;
-				}
-			}
-			
-			matrix = base;
+			matrix = matrix.multiply(matrix, ZERO_THRESHOLD, pool, numThreads);
 		}
 		
 		return matrix;
 	}
 	
 	/**
-	 * Takes the provided matrix and elevates a random row to the given coefficient, then normalizes all rows.
+	 * Takes the provided matrix and elevates a random row to the given coefficient, then normalizes all rows. The matrix is modified in place.
 	 * @param matrix matrix to be inflated.
 	 * @param coefficient coefficient to be used.
-	 * @return
 	 */
-	private double[][] inflateMatrix(double[][] matrix, double coefficient) {
+	private void inflateMatrix(CompressedSparseMatrix matrix, double coefficient) {
 		//Select next row
 		int k = nextColumn;
-		if(++nextColumn >= matrix.length) nextColumn = 0;
+		if(++nextColumn >= matrix.getNumRows()) nextColumn = 0;
 			
 		//Elevate to the coefficient
-		for(int j = 0; j < matrix.length; j++) {
-			matrix[k][j] = (double) Math.pow(matrix[k][j], coefficient);
+		for(int l = matrix.getRowStart(k); l < matrix.getRowEnd(k); l++) {
+			matrix.setValue(l, Math.pow(matrix.getValue(l), coefficient));
 		}
 		
 		//Normalize rows
-		for(int i = 0; i < matrix.length; i++) matrix[i] = this.normalizeRow(matrix[i]);
-		return matrix;
-	}
-	
-	/**
-	 * Generates a copy of the given matrix.
-	 * @param matrix matrix to be copied.
-	 * @return
-	 */
-	private double[][] copyOf(double[][] matrix) {
-		double[][] copy = new double[matrix.length][];
-		for(int i = 0; i < matrix.length; i++) copy[i] = Arrays.copyOf(matrix[i], matrix[i].length);
-		return copy;
+		for(int i = 0; i < matrix.getNumRows(); i++) normalizeRow(matrix, i);
 	}
 	
 	public List<List<Integer>> getResults() {
@@ -20,18 +20,24 @@
 package ngsep.gwas;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import JSci.maths.statistics.FDistribution;
-import ngsep.math.FactorialAnova;
 import ngsep.variants.CalledGenomicVariant;
 import ngsep.variants.GenomicVariant;
-import ngsep.vcf.VCFFileHeader;
 import ngsep.vcf.VCFFileReader;
 import ngsep.vcf.VCFRecord;
 
@@ -41,40 +47,109 @@ import ngsep.vcf.VCFRecord;
  *
  */
 public class GeneralLinearModel {
+	
+	public static final int DEF_NUM_THREADS = 1;
+	//Number of markers tested by each task
+	private static final int MARKERS_BATCH = 1000;
+	
+	private String covariatesFile = null;
+	private int numThreads = DEF_NUM_THREADS;
 
+	/**
+	 * Arguments: VCF file, phenotypes file, and optionally number of threads and covariates file
+	 * @param args Arguments
+	 * @throws Exception If the files can not be read
+	 */
 	public static void main(String[] args) throws Exception {
 		GeneralLinearModel instance = new GeneralLinearModel();
+		if(args.length>2) instance.numThreads = Integer.parseInt(args[2]);
+		if(args.length>3) instance.covariatesFile = args[3];
 		instance.process (args[0], args[1], System.out);
 
 	}
+	
+	public String getCovariatesFile() {
+		return covariatesFile;
+	}
+
+	/**
+	 * @param covariatesFile CSV file with a header line and then one line per sample with the values of the covariates.
+	 * Samples must be sorted as in the VCF file
+	 */
+	public void setCovariatesFile(String covariatesFile) {
+		this.covariatesFile = covariatesFile;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
 
+	/**
+	 * Tests the association of each variant with the phenotype using a factorial ANOVA on the genotype classes
+	 * of the variant, adjusted by the covariates. Samples with undecided genotypes form their own class.
+	 * Prints for each variant the sequence name, first position, last position, p-value,
+	 * degrees of freedom of the genotype classes and proportion of the residual variance explained by the variant
+	 * @param vcfFile File with genotype calls
+	 * @param phenotypesFile CSV file with a header line and then the phenotype values of the samples sorted as in the VCF file
+	 * @param out Stream to print the results
+	 * @throws IOException If the files can not be read
+	 */
 	public void process(String vcfFile, String phenotypesFile, PrintStream out) throws IOException {
 		List<Double> phenotypes = readPhenotypes(phenotypesFile);
+		double [][] covariates = null;
+		if(covariatesFile!=null) covariates = readCovariates(covariatesFile);
 		
-			
+		ExecutorService pool = null;
+		if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<MarkersBatch>> pendingBatches = new ArrayDeque<>();
 		try (VCFFileReader reader = new VCFFileReader(vcfFile)){
-				
+			reader.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
+			//The global option -t sets the threads of the reader if this command runs with one thread
+			if(numThreads>1) reader.setNumThreads(numThreads);
 			//Ids of the samples
 			List<String> sampleIds = reader.getSampleIds();
-			//If you want the full header
-			VCFFileHeader header = reader.getHeader();
+			int n = sampleIds.size();
+			if(phenotypes.size()!=n) throw new IOException("Number of phenotypes "+phenotypes.size()+" does not match the number of samples "+n);
+			if(covariates!=null && covariates.length!=n) throw new IOException("Number of samples with covariates "+covariates.length+" does not match the number of samples "+n);
+			double [] y = new double[n];
+			for(int i=0;i<n;i++) y[i] = phenotypes.get(i);
+			//Phenotypes and covariates are projected once for all markers
+			LinearAssociationTest test = new LinearAssociationTest(y, covariates);
 			
 			Iterator<VCFRecord> it = reader.iterator();
 			while(it.hasNext()) {
-				
-				VCFRecord record = it.next();
-				//Basic information from the variant
-				GenomicVariant variant = record.getVariant();
-				
-				List<CalledGenomicVariant> genotypeCalls = record.getCalls();
-				
-				List<String> encodedGenotypes = encodeGenotypes(genotypeCalls);
-				
-				// Create a new genotype object to run ANOVA.
-				FactorialAnova anova = new FactorialAnova(encodedGenotypes, phenotypes);
-				printSummary(variant, anova,out);
-			}	
-		}	
+				MarkersBatch batch = new MarkersBatch(n);
+				while(batch.size<MARKERS_BATCH && it.hasNext()) {
+					VCFRecord record = it.next();
+					batch.add(record.getVariant(), record.getCalls());
+				}
+				if(pool==null) {
+					batch.process(test).print(out);
+					continue;
+				}
+				pendingBatches.addLast(pool.submit(()->batch.process(test)));
+				if(pendingBatches.size()>=2*numThreads) nextBatch(pendingBatches).print(out);
+			}
+			while(!pendingBatches.isEmpty()) nextBatch(pendingBatches).print(out);
+		} finally {
+			if(pool!=null) pool.shutdownNow();
+		}
+	}
+	
+	private MarkersBatch nextBatch(Deque<Future<MarkersBatch>> pendingBatches) throws IOException {
+		Future<MarkersBatch> next = pendingBatches.removeFirst();
+		try {
+			return next.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while testing markers");
+		} catch (ExecutionException e) {
+			throw new IOException("Error testing markers", e.getCause());
+		}
 	}
 
 	private List<Double> readPhenotypes(String phenotypesFile) throws IOException {
@@ -122,22 +197,90 @@ public class GeneralLinearModel {
 		return phenotypes;
 	}
 
-	private List<String> encodeGenotypes(List<CalledGenomicVariant> genotypeCalls) {
-		List<String> allelesList = new ArrayList<String>();
-		for(int i=0;i<genotypeCalls.size();i++) {
-			CalledGenomicVariant genotypeCall = genotypeCalls.get(i);
-			String allele = String.join("", genotypeCall.getCalledAlleles());
-			allelesList.add(allele);
+	private double [][] readCovariates(String covariatesFile) throws IOException {
+		List<double []> covariates = new ArrayList<>();
+		try (FileReader fr = new FileReader(covariatesFile);
+			 BufferedReader fileReader = new BufferedReader(fr);) {
+			//The first line is the header
+			String line = fileReader.readLine();
+			while ((line = fileReader.readLine()) != null) {
+				if(line.trim().length()==0) continue;
+				String [] tokens = line.split(",");
+				double [] values = new double[tokens.length];
+				for(int j=0;j<tokens.length;j++) values[j] = Double.parseDouble(tokens[j].trim());
+				if(covariates.size()>0 && values.length!=covariates.get(0).length) throw new IOException("Line "+(covariates.size()+2)+" of the covariates file has "+values.length+" values. Expected: "+covariates.get(0).length);
+				covariates.add(values);
+			}
 		}
+		return covariates.toArray(new double[0][]);
+	}
 
-		return allelesList;
+	/**
+	 * Batch of markers tested by one thread. Genotype classes are stored in a primitive matrix and results are kept as text
+	 */
+	private static class MarkersBatch {
+		private List<GenomicVariant> variants = new ArrayList<>(MARKERS_BATCH);
+		private int [][] genotypeClasses;
+		private int [] numClasses = new int[MARKERS_BATCH];
+		private int size = 0;
+		private ByteArrayOutputStream results = new ByteArrayOutputStream();
+		
+		public MarkersBatch(int numSamples) {
+			genotypeClasses = new int[MARKERS_BATCH][numSamples];
+		}
+		
+		public void add(GenomicVariant variant, List<CalledGenomicVariant> genotypeCalls) {
+			variants.add(variant);
+			numClasses[size] = encodeGenotypeClasses(genotypeCalls, genotypeClasses[size]);
+			size++;
+		}
+		
+		public MarkersBatch process(LinearAssociationTest test) {
+			FDistribution [] distributions = new FDistribution[test.getNumSamples()+1];
+			double [] result = new double[3];
+			PrintStream out = new PrintStream(results);
+			for(int k=0;k<size;k++) {
+				test.test(genotypeClasses[k], numClasses[k], distributions, result);
+				printSummary(variants.get(k), result, out);
+			}
+			out.flush();
+			genotypeClasses = null;
+			return this;
+		}
+		
+		public void print(PrintStream out) throws IOException {
+			results.writeTo(out);
+		}
+	}
 
+	/**
+	 * Stores in the given array the genotype class of each sample. As in the previous string encoding, a class is
+	 * defined by the set of called alleles. Hence, every combination of alleles of multiallelic variants is a different class.
+	 * Undecided genotypes form their own class
+	 * @param genotypeCalls Genotype calls of a variant
+	 * @param genotypeClasses Array to store the class of each sample, numbered in order of appearance
+	 * @return int Number of genotype classes
+	 */
+	private static int encodeGenotypeClasses(List<CalledGenomicVariant> genotypeCalls, int [] genotypeClasses) {
+		List<Long> classKeys = new ArrayList<>();
+		for(int i=0;i<genotypeCalls.size();i++) {
+			CalledGenomicVariant genotypeCall = genotypeCalls.get(i);
+			//Bit set of the indexes of the called alleles. Indexes above 62 share the last bit
+			long key = 0;
+			if(!genotypeCall.isUndecided()) {
+				for(byte idx:genotypeCall.getIndexesCalledAlleles()) key|=1L<<Math.min(idx, 62);
+			}
+			int c = classKeys.indexOf(key);
+			if(c<0) {
+				c = classKeys.size();
+				classKeys.add(key);
+			}
+			genotypeClasses[i] = c;
+		}
+		return classKeys.size();
 	}
 
-	private void printSummary(GenomicVariant variant, FactorialAnova anova, PrintStream out) {
-		double pValue = anova.getpValue();
-		FDistribution fdist = anova.getpFdist();
-		out.println(variant.getSequenceName() + "\t" + variant.getFirst() + "\t" + variant.getLast() + "\t" + pValue);
-		
+	private static void printSummary(GenomicVariant variant, double [] result, PrintStream out) {
+		out.println(variant.getSequenceName() + "\t" + variant.getFirst() + "\t" + variant.getLast() + "\t" + result[0] + "\t" + (int)result[1] + "\t" + result[2]);
 	}
 }
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.gwas;
+
+import java.util.Arrays;
+
+import JSci.maths.statistics.FDistribution;
+
+/**
+ * Least squares test of association between a phenotype and the genotypes of one marker
+ * in the model y = Xb + Gc + e, where X contains an intercept and optional covariates and G contains
+ * one indicator column for each genotype class of the marker. This is the factorial ANOVA on genotype classes
+ * adjusted by the covariates. The phenotype and the covariates are projected once when the test is created.
+ * Then, each marker only requires sums of the residual phenotype and of an orthonormal basis of X within each genotype class
+ * @author Jorge Duitama
+ */
+public class LinearAssociationTest {
+	//Fraction of the squared norm of a vector that should remain after projection to consider it linearly independent of X
+	private static final double MIN_RESIDUAL_FRACTION = 1e-10;
+
+	private int numSamples;
+	//Orthonormal basis of the columns of X. The first row is always the normalized intercept
+	private double [][] basis;
+	//Residuals of the phenotype after projection on the columns of X
+	private double [] residualPhenotypes;
+	private double residualSumSquares;
+	private int errorDegreesOfFreedom;
+
+	/**
+	 * Creates a new test projecting the given phenotypes on the intercept and the given covariates
+	 * @param phenotypes Phenotype values for each sample
+	 * @param covariates Covariate values. The first index is the sample and the second index is the covariate. It can be null
+	 */
+	public LinearAssociationTest(double [] phenotypes, double [][] covariates) {
+		numSamples = phenotypes.length;
+		int numCovariates = covariates!=null && numSamples>0?covariates[0].length:0;
+		double [][] columns = new double[numCovariates+1][numSamples];
+		for(int i=0;i<numSamples;i++) {
+			columns[0][i] = 1;
+			if(numCovariates==0) continue;
+			if(covariates[i].length!=numCovariates) throw new IllegalArgumentException("Sample "+i+" has "+covariates[i].length+" covariates. Expected: "+numCovariates);
+			for(int j=0;j<numCovariates;j++) columns[j+1][i] = covariates[i][j];
+		}
+		//Modified Gram-Schmidt. Columns linearly dependent on previous columns are skipped
+		int rank = 0;
+		for(int j=0;j<columns.length;j++) {
+			double [] v = columns[j];
+			double originalNorm2 = dot(v, v);
+			for(int l=0;l<rank;l++) {
+				double c = dot(columns[l], v);
+				for(int i=0;i<numSamples;i++) v[i]-=c*columns[l][i];
+			}
+			double norm2 = dot(v, v);
+			if(norm2==0 || norm2<MIN_RESIDUAL_FRACTION*originalNorm2) continue;
+			double norm = Math.sqrt(norm2);
+			for(int i=0;i<numSamples;i++) v[i]/=norm;
+			columns[rank] = v;
+			rank++;
+		}
+		basis = new double[rank][];
+		System.arraycopy(columns, 0, basis, 0, rank);
+		residualPhenotypes = residuals(phenotypes);
+		residualSumSquares = dot(residualPhenotypes, residualPhenotypes);
+		errorDegreesOfFreedom = numSamples - rank - 1;
+	}
+
+	private double [] residuals(double [] values) {
+		double [] answer = values.clone();
+		for(double [] q:basis) {
+			double c = dot(q, answer);
+			for(int i=0;i<numSamples;i++) answer[i]-=c*q[i];
+		}
+		return answer;
+	}
+
+	private static double dot(double [] v1, double [] v2) {
+		double answer = 0;
+		for(int i=0;i<v1.length;i++) answer+=v1[i]*v2[i];
+		return answer;
+	}
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	/**
+	 * @return int Degrees of freedom of the error for a marker with two genotype classes
+	 */
+	public int getErrorDegreesOfFreedom() {
+		return errorDegreesOfFreedom;
+	}
+
+	/**
+	 * Creates the distribution of the statistic for a marker test
+	 * @param genotypeDegreesOfFreedom Degrees of freedom of the genotype classes of the marker
+	 * @return FDistribution Distribution of the statistic. It should not be shared among threads
+	 */
+	public FDistribution createDistribution(int genotypeDegreesOfFreedom) {
+		return new FDistribution(genotypeDegreesOfFreedom, Math.max(1, errorDegreesOfFreedom-genotypeDegreesOfFreedom+1));
+	}
+
+	/**
+	 * Tests the association of the genotype classes of the given marker with the phenotype
+	 * @param genotypeClasses Genotype class of each sample. Classes should be numbered from zero to numClasses-1
+	 * @param numClasses Number of genotype classes
+	 * @param distributions Cache of distributions indexed by degrees of freedom of the genotype classes. Missing distributions are created with createDistribution
+	 * @param result Array of length at least 3 to store the p-value, the degrees of freedom of the genotype classes and the proportion of the residual variance explained by the marker
+	 */
+	public void test(int [] genotypeClasses, int numClasses, FDistribution [] distributions, double [] result) {
+		if(genotypeClasses.length!=numSamples) throw new IllegalArgumentException("Number of genotypes "+genotypeClasses.length+" different than number of samples "+numSamples);
+		int rank = basis.length;
+		//Counts, sums of residual phenotypes and projections on X of the indicator column of each class
+		int [] counts = new int[numClasses];
+		double [] sums = new double[numClasses];
+		double [][] projections = new double[numClasses][rank];
+		for(int i=0;i<numSamples;i++) {
+			int c = genotypeClasses[i];
+			counts[c]++;
+			sums[c]+=residualPhenotypes[i];
+			double [] projection = projections[c];
+			for(int l=0;l<rank;l++) projection[l]+=basis[l][i];
+		}
+		//Cholesky decomposition of the inner products of the indicators after projection on the complement of X.
+		//Indicators linearly dependent on X or on previous indicators are skipped
+		double [][] factors = new double[numClasses][];
+		int [] accepted = new int[numClasses];
+		int df = 0;
+		double explainedSS = 0;
+		double [] solution = new double[numClasses];
+		for(int j=0;j<numClasses;j++) {
+			double [] row = new double[df];
+			double norm2 = counts[j]-dot(projections[j], projections[j]);
+			double b = sums[j];
+			for(int m=0;m<df;m++) {
+				int am = accepted[m];
+				double [] rowM = factors[am];
+				double g = -dot(projections[j], projections[am]);
+				for(int m2=0;m2<m;m2++) g-=row[m2]*rowM[m2];
+				row[m] = g/rowM[m];
+				norm2-=row[m]*row[m];
+				b-=row[m]*solution[m];
+			}
+			if(norm2<=0 || norm2<MIN_RESIDUAL_FRACTION*counts[j]) continue;
+			double diagonal = Math.sqrt(norm2);
+			factors[j] = Arrays.copyOf(row, df+1);
+			factors[j][df] = diagonal;
+			solution[df] = b/diagonal;
+			explainedSS+=solution[df]*solution[df];
+			accepted[df] = j;
+			df++;
+		}
+		int errorDF = errorDegreesOfFreedom-df+1;
+		if(df==0 || errorDF<1 || residualSumSquares==0) {
+			//Monomorphic marker or marker linearly dependent on covariates
+			result[0] = 1;
+			result[1] = df;
+			result[2] = 0;
+			return;
+		}
+		explainedSS = Math.min(residualSumSquares, explainedSS);
+		double errorSS = residualSumSquares-explainedSS;
+		double pValue;
+		if(errorSS<=0) pValue = 0;
+		else {
+			if(distributions[df]==null) distributions[df] = createDistribution(df);
+			pValue = Math.max(0, 1-distributions[df].cumulative((explainedSS/df)/(errorSS/errorDF)));
+		}
+		result[0] = pValue;
+		result[1] = df;
+		result[2] = explainedSS/residualSumSquares;
+	}
+}
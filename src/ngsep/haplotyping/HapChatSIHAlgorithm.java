@@ -22,6 +22,7 @@ package ngsep.haplotyping;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Logger;
 
 import ngsep.variants.CalledGenomicVariant;
@@ -82,20 +83,20 @@ public class HapChatSIHAlgorithm  implements SIHAlgorithm
 	 */
 	private void computeDistanceMin(int i, int j) 
 	{
-		ArrayList<ArrayList<Byte>> kCorrectionsJ=new ArrayList<ArrayList<Byte>>();
-		ArrayList<ArrayList<Byte>> kCorrectionsI=new ArrayList<ArrayList<Byte>>();
+		List<byte []> kCorrectionsJ=new ArrayList<byte []>();
+		List<byte []> kCorrectionsI=new ArrayList<byte []>();
 		ArrayList<Integer> distancesI= new ArrayList<Integer>(); 
 		ArrayList<Integer> distancesJ= new ArrayList<Integer>(); 
 		if(i>0&&j>0) 
 		{
-			ArrayList<Byte> iColumn = block.getColumn(i);
+			byte [] iColumn = block.getColumnCalls(i);
 			kCorrectionsI=computekCorrections(iColumn);
 			for (int z=0;z<kCorrectionsI.size();z++)
 			{
 				distancesI.add(getHammingScore(iColumn, kCorrectionsI.get(z)));
 			}
 
-			ArrayList<Byte> jColumn = block.getColumn(j);
+			byte [] jColumn = block.getColumnCalls(j);
 			kCorrectionsJ=computekCorrections(jColumn);
 			for (int z=0;z<kCorrectionsI.size();z++)
 			{
@@ -103,8 +104,8 @@ public class HapChatSIHAlgorithm  implements SIHAlgorithm
 			}
 			
 			int minDistance=Integer.MAX_VALUE;
-			ArrayList<Byte> jColumnCorrection =new ArrayList<Byte>();
-			ArrayList<Byte> iColumnCorrection =new ArrayList<Byte>();
+			byte [] jColumnCorrection =new byte[0];
+			byte [] iColumnCorrection =new byte[0];
 			for (int k = 0; k < kCorrectionsI.size(); k++) 
 			{
 				for (int l = 0; l < kCorrectionsI.size(); l++) 
@@ -130,10 +131,10 @@ public class HapChatSIHAlgorithm  implements SIHAlgorithm
 	 * @param iColumn list of the calls values in the different reads of the HB, this values represent the same column
 	 * @return the K-Corrections of the column iColumn
 	 */
-	private ArrayList<ArrayList<Byte>> computekCorrections(ArrayList<Byte> iColumn) 
+	private List<byte []> computekCorrections(byte [] iColumn) 
 	{
-		ArrayList<ArrayList<Byte>> kCorrections=new ArrayList<ArrayList<Byte>>();
-		int i=iColumn.size();
+		List<byte []> kCorrections=new ArrayList<byte []>();
+		int i=iColumn.length;
 		for(int j=0;j<i;j++)
 		{
 			kCorrections.add(kCorrection(iColumn));
@@ -218,16 +219,16 @@ public class HapChatSIHAlgorithm  implements SIHAlgorithm
 	 * @param Cj
 	 * @return the hamming distance of the columns
 	 */
-	private int getHammingScore( ArrayList<Byte> Mj, ArrayList<Byte> Cj)
+	private int getHammingScore( byte [] Mj, byte [] Cj)
 	{
 		int hamming=0;
-		int tamanioMJ= Mj.size();
-		int tamanioCJ= Cj.size();
+		int tamanioMJ= Mj.length;
+		int tamanioCJ= Cj.length;
 		if(tamanioCJ==tamanioMJ)
 		{
 			for (int i=0; i<tamanioCJ;i++)
 			{
-				if(Mj.get(i)!=Cj.get(i))
+				if(Mj[i]!=Cj[i])
 				{
 					hamming++;
 				}
@@ -243,23 +244,23 @@ public class HapChatSIHAlgorithm  implements SIHAlgorithm
 	 * @param m column to modified
 	 * @return a modification of the values in the original m array
 	 */
-	private ArrayList<Byte> kCorrection(ArrayList<Byte> m)
+	private byte [] kCorrection(byte [] m)
 	{
-		ArrayList<Byte> mc=m;
+		byte [] mc=m;
 		int numberCorrectionsActual=0;
-		for(int i=0; i<m.size()&&numberCorrectionsActual<K_NUMBER_OF_CORRECTIONS;i++)
+		for(int i=0; i<m.length&&numberCorrectionsActual<K_NUMBER_OF_CORRECTIONS;i++)
 		{
 			int correct= (int) ((Math.random()*100)%4);
-			byte actual=m.get(i);
+			byte actual=m[i];
 			if(correct==0&& actual!=CalledGenomicVariant.ALLELE_UNDECIDED)
 			{
 				if(actual==CalledGenomicVariant.ALLELE_REFERENCE)
 				{
-					mc.set(i, CalledGenomicVariant.ALLELE_ALTERNATIVE);
+					mc[i] = CalledGenomicVariant.ALLELE_ALTERNATIVE;
 				}
 				else
 				{
-					mc.set(i, CalledGenomicVariant.ALLELE_REFERENCE);
+					mc[i] = CalledGenomicVariant.ALLELE_REFERENCE;
 				}
 				numberCorrectionsActual++;
 			}
@@ -362,19 +363,19 @@ public class HapChatSIHAlgorithm  implements SIHAlgorithm
 	 * @param haplotype calculated until now
 	 * @param j column to calculate the haplotype
 	 */
-	private void calculateHaplotype(ArrayList<Byte> haplo, int j) 
+	private void calculateHaplotype(byte [] haplo, int j) 
 	{
 
 		int count0=0;
 		int count1=0;
 
-		for(int i= 0; i<haplo.size();i++)
+		for(int i= 0; i<haplo.length;i++)
 		{
-			if(haplo.get(i)==CalledGenomicVariant.ALLELE_UNDECIDED)
+			if(haplo[i]==CalledGenomicVariant.ALLELE_UNDECIDED)
 			{
 
 			}
-			else if(haplo.get(i)==CalledGenomicVariant.ALLELE_REFERENCE)
+			else if(haplo[i]==CalledGenomicVariant.ALLELE_REFERENCE)
 			{
 				count0++;
 			}
@@ -158,14 +158,7 @@ public class HaplotypeBlock
 	public int getHammingDistance(int row1, int row2) 
 	{
 		sort();
-		int score = 0;
-		int lastColRow1 = getLastColumn(row1);
-		for(int i = getFirstColumn(row2) ; i <=lastColRow1 ; i++) {
-			byte allele1 = getAllele(row1, i);
-			byte allele2 = getAllele(row2, i);
-			score+=getHammingScore(allele1, allele2, false);
-		}	
-		return score;
+		return matrix.get(row1).getHammingDistance(matrix.get(row2));
 	}
 	
 	/**
@@ -177,15 +170,7 @@ public class HaplotypeBlock
  	 */
 	public int getHammingDistance(byte [] haplotype, int row)
 	{
-		sort();
-		int score = 0;
-		int lastColRow = getLastColumn(row);
-		for(int j = getFirstColumn(row) ; j <=lastColRow ; j++) {
-			byte allele1 = haplotype[j];
-			byte allele2 = getAllele(row, j);
-			score+=getHammingScore(allele1, allele2, false);
-		}
-		return score;
+		return getHaplotypeScore(haplotype, row, false);
 	}
 	
 	/**
@@ -199,15 +184,7 @@ public class HaplotypeBlock
 	public int getHamming2(int row1, int row2)
 	{
 		sort();
-		int score = 0;
-		int lastColRow1 = getLastColumn(row1);
-		for(int i = getFirstColumn(row2) ; i <=lastColRow1 ; i++) 
-		{
-			byte allele1 = getAllele(row1, i);
-			byte allele2 = getAllele(row2, i);
-			score+=getHammingScore(allele1, allele2, true);
-		}
-		return score;
+		return matrix.get(row1).getHamming2(matrix.get(row2));
 	}
 	
 	/**
@@ -219,14 +196,19 @@ public class HaplotypeBlock
  	 * @return int Modified hamming distance score as defined above
  	 */
 	public int getHamming2(byte [] haplotype, int row)
+	{
+		return getHaplotypeScore(haplotype, row, true);
+	}
+	
+	private int getHaplotypeScore(byte [] haplotype, int row, boolean type2) 
 	{
 		sort();
+		HaplotypeFragment fragment = matrix.get(row);
+		byte [] fragmentCalls = fragment.getCalls();
+		int firstColumn = fragment.getFirstColumn();
 		int score = 0;
-		int lastColRow = getLastColumn(row);
-		for(int j = getFirstColumn(row) ; j <=lastColRow ; j++) {
-			byte allele1 = haplotype[j];
-			byte allele2 = getAllele(row, j);
-			score+=getHammingScore(allele1, allele2, true);
+		for(int i=0;i<fragmentCalls.length;i++) {
+			score+=getHammingScore(haplotype[firstColumn+i], fragmentCalls[i], type2);
 		}
 		return score;
 	}
@@ -311,19 +293,18 @@ public class HaplotypeBlock
 
 	/**
 	 * Obtains the calls that are in a column of the Haplotype Block 
-	 * @param j
-	 * @return
+	 * @param j Column
+	 * @return byte [] Calls of the sorted fragments in the given column
 	 */
-	public ArrayList<Byte> getColumn(int j)
+	public byte [] getColumnCalls(int j)
 	{
-		ArrayList<Byte> column = new ArrayList<Byte>();
-		for(int i =0; i<matrix.size();i++)
+		sort();
+		byte [] column = new byte[matrix.size()];
+		for(int i =0; i<column.length;i++)
 		{
-		column.add(getAllele(i, j));
+			column[i] = matrix.get(i).getCall(j);
 		}
-		
 		return column;
-		
 	}
 	
 	/**
@@ -342,17 +323,8 @@ public class HaplotypeBlock
 	 */
 	public int getFragmentCalls(int row) 
 	{
-		int firstJ = getFirstColumn(row);
-		int lastJ = getLastColumn(row);
-		int count = 0;
-		for(int j=firstJ;j<=lastJ;j++)
-		{
-			if(getAllele(row, j)!=CalledGenomicVariant.ALLELE_UNDECIDED) 
-			{
-				count++;
-			}
-		}
-		return count;
+		sort();
+		return matrix.get(row).getTotalCalls();
 	}
 	
 	/**
@@ -420,9 +392,11 @@ public class HaplotypeBlock
 	
 	public int calculateMECCurrentHaplotypes() {
 		int total = 0;
+		//Packed haplotype to compare with each fragment
+		HaplotypeFragment haplotypeFragment = new HaplotypeFragment(-1, 0, haplotype);
 		for(int i=0;i<matrix.size();i++) {
 			HaplotypeFragment fragment = matrix.get(i); 
-			int hamming = getHammingDistance(haplotype, i);
+			int hamming = fragment.getHammingDistance(haplotypeFragment);
 			int totalCalls = fragment.getTotalCalls();
 			hamming = Math.min(hamming, totalCalls-hamming);
 			total+=hamming;
@@ -36,8 +36,25 @@ public class HaplotypeFragment {
 	 */
 	private byte calls [];
 	
+	/**
+	 * Bits set for columns with alternative allele calls. Bit i corresponds to column firstColumn+i
+	 */
+	private long alternativeBits [];
+	
+	/**
+	 * Bits set for columns with reference or alternative allele calls.
+	 * null if the fragment has calls different from reference, alternative or undecided
+	 */
+	private long callsMask [];
+	
+	/**
+	 * Number of calls different from undecided
+	 */
+	private int totalCalls;
+	
 	/**
 	 * Constructor that initializes the attributes of a HaplotypeFragment with the given parameters.
+	 * The given calls should not be modified after the fragment is created
 	 * @param firstColumn.
 	 * @param calls.
 	 */
@@ -45,6 +62,26 @@ public class HaplotypeFragment {
 		this.id = id;
 		this.firstColumn = firstColumn;
 		this.calls = calls;
+		pack();
+	}
+	
+	private void pack() {
+		int words = (calls.length+63)/64;
+		alternativeBits = new long[words];
+		callsMask = new long[words];
+		boolean binary = true;
+		for(int i=0;i<calls.length;i++) {
+			byte call = calls[i];
+			if(call==CalledGenomicVariant.ALLELE_UNDECIDED) continue;
+			totalCalls++;
+			if(call==CalledGenomicVariant.ALLELE_ALTERNATIVE) alternativeBits[i>>>6] |= 1L<<i;
+			else if(call!=CalledGenomicVariant.ALLELE_REFERENCE) binary = false;
+			callsMask[i>>>6] |= 1L<<i;
+		}
+		if(!binary) {
+			alternativeBits = null;
+			callsMask = null;
+		}
 	}
 	
 	
@@ -103,15 +140,15 @@ public class HaplotypeFragment {
 		return lastColumn;
 	}
 	public int getTotalCalls() {
-		int total = 0;
-		for(int i=0;i<calls.length;i++) {
-			if(calls[i]!=CalledGenomicVariant.ALLELE_UNDECIDED) total++;
-		}
-		return total;
+		return totalCalls;
 	}
 
 
 	public int getCountCalls(byte allele) {
+		if(callsMask!=null) {
+			if(allele==CalledGenomicVariant.ALLELE_ALTERNATIVE) return countBits(alternativeBits);
+			if(allele==CalledGenomicVariant.ALLELE_REFERENCE) return totalCalls-countBits(alternativeBits);
+		}
 		int total = 0;
 		for(int i=0;i<calls.length;i++) {
 			if(calls[i]==allele) total++;
@@ -119,6 +156,69 @@ public class HaplotypeFragment {
 		return total;
 	}
 	
+	private static int countBits(long [] bits) {
+		int total = 0;
+		for(long word:bits) total+=Long.bitCount(word);
+		return total;
+	}
 	
-
+	/**
+	 * Calculates the number of columns with different calls in this fragment and the given fragment.
+	 * Columns with undecided calls in either fragment are not counted
+	 * @param other Fragment to compare
+	 * @return int Hamming distance between the two fragments
+	 */
+	public int getHammingDistance(HaplotypeFragment other) {
+		return compareCalls(other, false);
+	}
+	
+	/**
+	 * Calculates the number of columns with different calls minus the number of columns with equal calls
+	 * in this fragment and the given fragment. Columns with undecided calls in either fragment are not counted
+	 * @param other Fragment to compare
+	 * @return int Modified hamming distance
+	 */
+	public int getHamming2(HaplotypeFragment other) {
+		return compareCalls(other, true);
+	}
+	
+	private int compareCalls(HaplotypeFragment other, boolean subtractMatches) {
+		int first = Math.max(firstColumn, other.firstColumn);
+		int last = Math.min(getLastColumn(), other.getLastColumn());
+		int mismatches = 0;
+		int matches = 0;
+		if(callsMask!=null && other.callsMask!=null) {
+			int start1 = first-firstColumn;
+			int start2 = first-other.firstColumn;
+			for(int offset=0;first+offset<=last;offset+=64) {
+				long mask = getWord(callsMask, start1+offset) & getWord(other.callsMask, start2+offset);
+				int remaining = last-first-offset+1;
+				if(remaining<64) mask &= (1L<<remaining)-1;
+				long differences = (getWord(alternativeBits, start1+offset) ^ getWord(other.alternativeBits, start2+offset)) & mask;
+				int wordMismatches = Long.bitCount(differences);
+				mismatches+=wordMismatches;
+				matches+=Long.bitCount(mask)-wordMismatches;
+			}
+		} else {
+			for(int j=first;j<=last;j++) {
+				byte call1 = calls[j-firstColumn];
+				byte call2 = other.calls[j-other.firstColumn];
+				if(call1==CalledGenomicVariant.ALLELE_UNDECIDED || call2==CalledGenomicVariant.ALLELE_UNDECIDED) continue;
+				if(call1!=call2) mismatches++;
+				else matches++;
+			}
+		}
+		return subtractMatches?mismatches-matches:mismatches;
+	}
+	
+	/**
+	 * Returns 64 bits of the given packed array starting at the given relative column
+	 */
+	private static long getWord(long [] bits, int start) {
+		int w = start>>>6;
+		int b = start & 63;
+		long word = bits[w]>>>b;
+		if(b>0 && w+1<bits.length) word |= bits[w+1]<<(64-b);
+		return word;
+	}
 }
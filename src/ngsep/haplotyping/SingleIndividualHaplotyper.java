@@ -2,6 +2,7 @@ package ngsep.haplotyping;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
@@ -10,6 +11,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ngsep.alignments.ReadAlignment;
 import ngsep.alignments.io.ReadAlignmentFileReader;
@@ -36,6 +41,7 @@ public class SingleIndividualHaplotyper {
 	public static final String DEF_ALGORITHM_NAME=ALGORITHM_NAME_REFHAP;
 	
 	public static final int DEF_MIN_MQ = ReadAlignment.DEF_MIN_MQ_UNIQUE_ALIGNMENT;
+	public static final int DEF_NUM_THREADS = 1;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(SingleIndividualHaplotyper.class.getName());
@@ -49,6 +55,7 @@ public class SingleIndividualHaplotyper {
 	private String algorithmName = DEF_ALGORITHM_NAME;
 	private SIHAlgorithm algorithm;
 	private int minMQ = DEF_MIN_MQ;
+	private int numThreads = DEF_NUM_THREADS;
 	
 	public Logger getLog() {
 		return log;
@@ -102,6 +109,15 @@ public class SingleIndividualHaplotyper {
 	public void setMinMQ(String value) {
 		this.setMinMQ((int)OptionValuesDecoder.decode(value, Integer.class));
 	}
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		this.setNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
 	public ReferenceGenome getGenome() {
 		return genome;
 	}
@@ -140,6 +156,7 @@ public class SingleIndividualHaplotyper {
 		else out.println("VCF file written to standard output");
 		out.println("Minimum mapping quality: "+minMQ);
 		out.println("Algorithm: "+algorithmName);
+		out.println("Number of threads: "+numThreads);
 		log.info(""+os.toString());
 	}
 	
@@ -158,6 +175,8 @@ public class SingleIndividualHaplotyper {
 		VCFFileWriter vcfWriter = new VCFFileWriter();
 		try (VCFFileReader inputVCF = new VCFFileReader(vcfFilename);
 			 ReadAlignmentFileReader alnReader = new ReadAlignmentFileReader(bamFilename,genome)) {
+			//The global option -t sets the threads of the reader if this command runs with one thread
+			if(numThreads>1) inputVCF.setNumThreads(numThreads);
 			VCFFileHeader header = inputVCF.getHeader();
 			vcfWriter = new VCFFileWriter();
 			vcfWriter.printHeader(header, out);
@@ -201,12 +220,16 @@ public class SingleIndividualHaplotyper {
 		}
 	}
 	private void loadAlgorithm() throws IOException {
+		algorithm = createAlgorithm();
+	}
+	private SIHAlgorithm createAlgorithm() throws IOException {
 		try {
 			String algorithmClassName = "ngsep.haplotyping."+algorithmName+"SIHAlgorithm";
 			Class<?> algClass = Class.forName(algorithmClassName);
 			Constructor<?> constructor = algClass.getDeclaredConstructors()[0];
-			algorithm = (SIHAlgorithm) constructor.newInstance();
-			algorithm.setLog(log);
+			SIHAlgorithm answer = (SIHAlgorithm) constructor.newInstance();
+			answer.setLog(log);
+			return answer;
 		} catch (Exception e) {
 			throw new IOException("Can not load algorithm: "+algorithmName,e);
 		}
@@ -227,8 +250,46 @@ public class SingleIndividualHaplotyper {
 	}
 	
 	public List<List<ReadAlignment>> phaseSequenceVariants (String seqName, List<CalledGenomicVariant> hetCalls, List<ReadAlignment> alignments) throws IOException {
-		HaplotypeBlock block = new HaplotypeBlock(hetCalls);
+		List<BlockPhasingTask> tasks = buildBlocks(seqName, hetCalls, alignments);
+		Map<Integer,ReadAlignment> alnsByReadId = new HashMap<Integer, ReadAlignment>();
+		for(ReadAlignment aln:alignments) alnsByReadId.put(aln.getReadNumber(),aln);
 		List<List<ReadAlignment>> answer = new ArrayList<List<ReadAlignment>>();
+		if(numThreads<=1 || tasks.size()<=1) {
+			if(tasks.size()>0 && algorithm==null) loadAlgorithm();
+			for(BlockPhasingTask task:tasks) answer.addAll(task.phase(algorithm, alnsByReadId));
+			return answer;
+		}
+		log.info("Phasing "+tasks.size()+" blocks of sequence "+seqName+" using "+numThreads+" threads");
+		//Blocks span disjoint sets of heterozygous calls. Hence, they can be phased independently
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<List<List<ReadAlignment>>>> results = new ArrayList<>(tasks.size());
+			for(BlockPhasingTask task:tasks) {
+				SIHAlgorithm taskAlgorithm = createAlgorithm();
+				results.add(pool.submit(()->task.phase(taskAlgorithm, alnsByReadId)));
+			}
+			for(Future<List<List<ReadAlignment>>> result:results) answer.addAll(result.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while phasing blocks of sequence "+seqName);
+		} catch (ExecutionException e) {
+			throw new IOException("Error phasing blocks of sequence "+seqName, e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		return answer;
+	}
+	
+	/**
+	 * Builds the fragments of the given alignments and partitions them in blocks of fragments spanning disjoint sets of heterozygous calls
+	 * @param seqName Name of the sequence
+	 * @param hetCalls Heterozygous calls within the sequence
+	 * @param alignments Alignments to the sequence sorted by position
+	 * @return List<BlockPhasingTask> Blocks in genomic order
+	 */
+	private List<BlockPhasingTask> buildBlocks(String seqName, List<CalledGenomicVariant> hetCalls, List<ReadAlignment> alignments) {
+		List<BlockPhasingTask> tasks = new ArrayList<>();
+		HaplotypeBlock block = new HaplotypeBlock(hetCalls);
 		int i=0;
 		int firstNextBlock = 0;
 		int lastNextBlock = -1;
@@ -285,13 +346,7 @@ public class SingleIndividualHaplotyper {
 				CalledGenomicVariant lastCall = hetCalls.get(lastNextBlock);
 				CalledGenomicVariant nextCall = hetCalls.get(first);
 				log.info("Discontiguity in haplotype block for sequence: "+seqName+". Last SNP with information "+lastNextBlock +" "+lastCall.getFirst()+" next SNP: "+first+" "+nextCall.getFirst()+" next alignment: "+aln);
-				if(block.getNumFragments()>0) {	
-					if(algorithm==null) loadAlgorithm();
-					algorithm.buildHaplotype(block);
-					block.phaseCallsWithHaplotype(firstNextBlock, lastNextBlock);
-					log.info("Phased block of "+seqName+" between "+firstNextBlock+" and "+lastNextBlock+" with "+block.getNumFragments()+" fragments. MEC: "+block.calculateMECCurrentHaplotypes()+" calls proportion: "+block.calculateRelativeCallsProportion());
-					answer.addAll(buildAlignmentClusters(alignments, block));
-				}
+				if(block.getNumFragments()>0) tasks.add(new BlockPhasingTask(seqName, block, firstNextBlock, lastNextBlock));
 				block = new HaplotypeBlock(hetCalls);
 				firstNextBlock = first;
 				lastNextBlock = first;
@@ -301,34 +356,53 @@ public class SingleIndividualHaplotyper {
 			lastNextBlock=Math.max(lastNextBlock, first+calls.size()-1);
 			
 		}
-		log.info("Phasing last block of sequence "+seqName+" with "+block.getNumFragments()+" fragments");
-		
-		if(block.getNumFragments()>0) {	
-			if(algorithm==null) loadAlgorithm();
-			algorithm.buildHaplotype(block);
-			block.phaseCallsWithHaplotype(firstNextBlock, lastNextBlock);
-			log.info("Phased block of "+seqName+" between "+firstNextBlock+" and "+lastNextBlock+" with "+block.getNumFragments()+" fragments and "+hetCalls.size()+" heterozygous SNVs. MEC: "+block.calculateMECCurrentHaplotypes()+" calls proportion: "+block.calculateRelativeCallsProportion());
-			answer.addAll(buildAlignmentClusters(alignments, block));
-		}
-		return answer;
+		log.info("Built last block of sequence "+seqName+" with "+block.getNumFragments()+" fragments");
+		if(block.getNumFragments()>0) tasks.add(new BlockPhasingTask(seqName, block, firstNextBlock, lastNextBlock));
+		return tasks;
 	}
-	private List<List<ReadAlignment>> buildAlignmentClusters(List<ReadAlignment> alignments, HaplotypeBlock block) {
+	
+	private static List<List<ReadAlignment>> buildAlignmentClusters(HaplotypeBlock block, Map<Integer,ReadAlignment> alnsByReadId) {
 		List<List<HaplotypeFragment>> fragmentsClusters = block.getFragmentsClusters();
-		Map<Integer,ReadAlignment> alnsByReadId = new HashMap<Integer, ReadAlignment>();
-		for(ReadAlignment aln:alignments) {
-			//if(block.getNumFragments()==34) System.out.println("Build aln clusters. Next aln: "+aln);
-			alnsByReadId.put(aln.getReadNumber(),aln);
-		}
 		List<List<ReadAlignment>> answer = new ArrayList<List<ReadAlignment>>(fragmentsClusters.size());
 		for(List<HaplotypeFragment> cluster:fragmentsClusters) {
 			List<ReadAlignment> alnsCluster = new ArrayList<ReadAlignment>(cluster.size());
 			for(HaplotypeFragment fragment:cluster) {
 				ReadAlignment aln = alnsByReadId.get(fragment.getId());
-				//if(block.getNumFragments()==34) System.out.println("Build aln clusters. Next clusteredId: "+fragment.getId()+" cluster: "+answer.size()+" aln: " +aln);
 				if(aln!=null) alnsCluster.add(aln);
 			}
 			answer.add(alnsCluster);
 		}
 		return answer;
 	}
+	
+	/**
+	 * Block of fragments that can be phased independently of other blocks
+	 */
+	private class BlockPhasingTask {
+		private String seqName;
+		private HaplotypeBlock block;
+		private int firstVariant;
+		private int lastVariant;
+		
+		public BlockPhasingTask(String seqName, HaplotypeBlock block, int firstVariant, int lastVariant) {
+			this.seqName = seqName;
+			this.block = block;
+			this.firstVariant = firstVariant;
+			this.lastVariant = lastVariant;
+		}
+		/**
+		 * Builds the haplotype of this block and phases the calls spanned by the block
+		 * @param blockAlgorithm Algorithm to use. It should not be shared with other threads
+		 * @param alnsByReadId Alignments of the sequence indexed by read number
+		 * @return List<List<ReadAlignment>> Clusters of alignments consistent with each haplotype
+		 */
+		public List<List<ReadAlignment>> phase(SIHAlgorithm blockAlgorithm, Map<Integer,ReadAlignment> alnsByReadId) {
+			blockAlgorithm.buildHaplotype(block);
+			block.phaseCallsWithHaplotype(firstVariant, lastVariant);
+			log.info("Phased block of "+seqName+" between "+firstVariant+" and "+lastVariant+" with "+block.getNumFragments()+" fragments. MEC: "+block.calculateMECCurrentHaplotypes()+" calls proportion: "+block.calculateRelativeCallsProportion());
+			List<List<ReadAlignment>> answer = buildAlignmentClusters(block, alnsByReadId);
+			block = null;
+			return answer;
+		}
+	}
 }
@@ -107,14 +107,22 @@ public class CommandOption {
 		}
 	}
 	public Method findSetMethod (Object instance) {
+		return findSetMethod(instance.getClass());
+	}
+	/**
+	 * Finds the method of the given class that sets the attribute of this option
+	 * @param programClass Class declaring the method
+	 * @return Method Setter receiving a value of the type of the option or a String
+	 */
+	public Method findSetMethod (Class<?> programClass) {
 		if(attribute==null) throw new RuntimeException("Attribute not set for option: "+id);
 		String methodName = "set"+Character.toUpperCase(attribute.charAt(0));
 		if(attribute.length()>0) methodName+=attribute.substring(1);
 		try {
-			return instance.getClass().getMethod(methodName,getTypeClass());
+			return programClass.getMethod(methodName,getTypeClass());
 		} catch (NoSuchMethodException | SecurityException e) {
 			try {
-				return instance.getClass().getMethod(methodName,String.class);
+				return programClass.getMethod(methodName,String.class);
 			} catch (NoSuchMethodException | SecurityException e1) {
 				throw new RuntimeException(e);
 			}
@@ -160,6 +168,12 @@ public class CommandOption {
 		}
 		throw new RuntimeException("Can not decode option of unrecognized type: "+type);
 	}
+	/**
+	 * @return boolean true if the values of this option are numbers
+	 */
+	public boolean isNumeric() {
+		return TYPE_INT.equals(type) || TYPE_LONG.equals(type) || TYPE_FLOAT.equals(type) || TYPE_DOUBLE.equals(type);
+	}
 	public Object decodeValue (String value) {
 		return OptionValuesDecoder.decode(value, getTypeClass());
 	}
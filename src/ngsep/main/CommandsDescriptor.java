@@ -67,6 +67,7 @@ public class CommandsDescriptor {
 	public static final String ELEMENT_USAGE="usage";
 	public static final String ELEMENT_ARGUMENT="argument";
 	public static final String ELEMENT_OPTION="option";
+	public static final String ELEMENT_GLOBALOPTION="globaloption";
 	
 	private String swName;
 	private String swVersion;
@@ -79,6 +80,9 @@ public class CommandsDescriptor {
 	private Map<String,Command> commandsById = new HashMap<String,Command>();
 	private Map<String, String> commandGroupNames = new LinkedHashMap<String, String>();
 	private Map<String,String> formerCommandIds = new HashMap<String, String>();
+	//Options given before the command id. Values are set calling static methods of the class of each option
+	private Map<String,CommandOption> globalOptions = new LinkedHashMap<String, CommandOption>();
+	private Map<String,Class<?>> globalOptionClasses = new HashMap<String, Class<?>>();
 	public static CommandsDescriptor instance = new CommandsDescriptor();
 	/**
 	 * Private constructor to implement the singleton pattern
@@ -151,11 +155,32 @@ public class CommandsDescriptor {
 					commandsById.put(c.getId(),c);
 					commandsList.add(c);
 					commandsByClass.put(c.getProgram().getName(), c);
-				} 
+				} else if(ELEMENT_GLOBALOPTION.equals(elem.getNodeName())) {
+					loadGlobalOption(elem);
+				}
 			}
 		}
 		
 	}
+	/**
+	 * Loads an option that can be given before the id of any command
+	 * @param elem XML element with the option description
+	 */
+	private void loadGlobalOption(Element elem) {
+		String className = elem.getAttribute(ATTRIBUTE_CLASSNAME);
+		if(className==null || className.length()==0) throw new RuntimeException("Global option "+elem.getAttribute(ATTRIBUTE_ID)+" does not have a class name");
+		Class<?> optionClass;
+		try {
+			optionClass = Class.forName(className);
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException("Can not load class for global option: "+elem.getAttribute(ATTRIBUTE_ID),e);
+		}
+		CommandOption opt = loadOption(elem, optionClass);
+		opt.findSetMethod(optionClass);
+		if(globalOptions.containsKey(opt.getId())) throw new RuntimeException("Duplicated global option id: "+opt.getId());
+		globalOptions.put(opt.getId(), opt);
+		globalOptionClasses.put(opt.getId(), optionClass);
+	}
 	/**
 	 * Loads the basic information of a command group specified by the given element
 	 * @param elem XML element with the command group description
@@ -215,28 +240,37 @@ public class CommandsDescriptor {
 					if(optMultiple!=null) multiple = "true".equals(optMultiple.trim().toLowerCase());
 					cmd.addArgument(loadText(elem),multiple);
 				} else if(ELEMENT_OPTION.equals(elem.getNodeName())) {
-					String optId = elem.getAttribute(ATTRIBUTE_ID);
-					if(optId==null || optId.length()==0) throw new RuntimeException("Every option must have an id");
-					CommandOption opt = new CommandOption(optId);
-					String optType = elem.getAttribute(ATTRIBUTE_TYPE);
-					if(optType!=null && optType.length()>0) opt.setType(optType);
-					String optDefault = elem.getAttribute(ATTRIBUTE_DEFAULT_VALUE);
-					if(optDefault!=null && optDefault.trim().length()>0) opt.setDefaultValue(optDefault);
-					String optDefaultConstant = elem.getAttribute(ATTRIBUTE_DEFAULT_CONSTANT);
-					if(optDefaultConstant!=null && optDefaultConstant.trim().length()>0) opt.setDefaultValue(loadValue(program,optDefaultConstant));
-					String optAttribute = elem.getAttribute(ATTRIBUTE_ATTRIBUTE);
-					if(optAttribute!=null && optAttribute.trim().length()>0) opt.setAttribute(optAttribute);
-					String optDeprecated = elem.getAttribute(ATTRIBUTE_DEPRECATED);
-					if(optDeprecated!=null) opt.setDeprecated("true".equals(optDeprecated.trim().toLowerCase()));
-					String description = loadText(elem);
-					if(description==null || description.length()==0) throw new RuntimeException("Option "+optId+" does not have a description");
-					opt.setDescription(description);
-					cmd.addOption(opt);
+					cmd.addOption(loadOption(elem, program));
 				}	
 			}
 		}
 		return cmd;
 	}
+	/**
+	 * Loads the information of an option
+	 * @param elem XML element with the option description
+	 * @param program Class declaring the constant with the default value
+	 * @return CommandOption
+	 */
+	private CommandOption loadOption(Element elem, Class<?> program) {
+		String optId = elem.getAttribute(ATTRIBUTE_ID);
+		if(optId==null || optId.length()==0) throw new RuntimeException("Every option must have an id");
+		CommandOption opt = new CommandOption(optId);
+		String optType = elem.getAttribute(ATTRIBUTE_TYPE);
+		if(optType!=null && optType.length()>0) opt.setType(optType);
+		String optDefault = elem.getAttribute(ATTRIBUTE_DEFAULT_VALUE);
+		if(optDefault!=null && optDefault.trim().length()>0) opt.setDefaultValue(optDefault);
+		String optDefaultConstant = elem.getAttribute(ATTRIBUTE_DEFAULT_CONSTANT);
+		if(optDefaultConstant!=null && optDefaultConstant.trim().length()>0) opt.setDefaultValue(loadValue(program,optDefaultConstant));
+		String optAttribute = elem.getAttribute(ATTRIBUTE_ATTRIBUTE);
+		if(optAttribute!=null && optAttribute.trim().length()>0) opt.setAttribute(optAttribute);
+		String optDeprecated = elem.getAttribute(ATTRIBUTE_DEPRECATED);
+		if(optDeprecated!=null) opt.setDeprecated("true".equals(optDeprecated.trim().toLowerCase()));
+		String description = loadText(elem);
+		if(description==null || description.length()==0) throw new RuntimeException("Option "+optId+" does not have a description");
+		opt.setDescription(description);
+		return opt;
+	}
 	private String loadValue(Class<?> program, String constantName) {
 		try {
 			return ""+program.getDeclaredField(constantName).get(null);
@@ -294,8 +328,25 @@ public class CommandsDescriptor {
 		printVersionHeader();
 		System.err.println("=============================================================================");
 		System.err.println();
-		System.err.println("USAGE: java -jar "+getJarFilename()+" <COMMAND> <OPTIONS> <ARGUMENTS>");
+		System.err.println("USAGE: java -jar "+getJarFilename()+" <GLOBAL_OPTIONS> <COMMAND> <OPTIONS> <ARGUMENTS>");
 		System.err.println();
+		if(globalOptions.size()>0) {
+			System.err.println("Global options");
+			System.err.println();
+			List<CommandOption> options = new ArrayList<CommandOption>(globalOptions.values());
+			int longestOpt = getLongestOption(options);
+			for(CommandOption option:options) {
+				System.err.print("        -"+option.getId());
+				if(option.printType() ) System.err.print(" "+option.getType());
+				int diff = longestOpt-option.getPrintLength();
+				for(int i=0;i<diff+1;i++)System.err.print(" ");
+				System.err.print(": ");
+				String desc = option.getDescription();
+				if(option.getDefaultValue()!=null) desc+=" Default: "+option.getDefaultValue();
+				printDescription(desc,longestOpt+3);
+			}
+			System.err.println();
+		}
 		for(String commandGroupId:commandGroupNames.keySet()) {
 			System.err.println("Commands for "+commandGroupNames.get(commandGroupId));
 			List<Command> commandsGroup = commandsByGroup.get(commandGroupId);
@@ -434,15 +485,18 @@ public class CommandsDescriptor {
 			System.exit(1);
 		}
 		Command c = commandsByClass.get(programInstance.getClass().getName());
+		try {
+			validateOptions(c, args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			printHelp(programInstance.getClass());
+			System.exit(1);
+		}
 		int i = 0;
 		while(i<args.length && args[i].charAt(0)=='-') {
 			if("-".equals(args[i])) break;
 			CommandOption o = c.getOption(args[i].substring(1));
-			if (o==null) {
-				System.err.println("Unrecognized option "+args[i]);
-				printHelp(programInstance.getClass());
-				System.exit(1);
-			} else if (o.isDeprecated()) {
+			if (o.isDeprecated()) {
 				System.err.println("WARN: Deprecated option "+args[i]);
 				System.err.println(o.getDescription());
 				i++;
@@ -458,21 +512,76 @@ public class CommandsDescriptor {
 				if(setter.getParameterTypes()[0].equals(String.class)) {
 					value = args[i];
 				} else {
+					value = o.decodeValue(args[i]);
+				}
+			}
+			try {
+				setter.invoke(programInstance, value);
+			} catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+				Throwable cause = e;
+				if(e instanceof InvocationTargetException) cause = e.getCause();
+				throw new IllegalArgumentException("Error setting value \""+value+"\" for option \""+o.getId()+"\" of type: "+o.getType()+". "+cause.getMessage(), cause);
+			}
+			i++;
+		}
+		return i;
+	}
+	
+	/**
+	 * Validates the options given for a command without loading them. Verifies that options are recognized,
+	 * that options have values and that numeric values can be decoded
+	 * @param c Command receiving the options
+	 * @param args Arguments sent by the user
+	 * @throws IllegalArgumentException If the options are not valid
+	 */
+	public void validateOptions(Command c, String [] args) {
+		int i = 0;
+		while(i<args.length && args[i].length()>0 && args[i].charAt(0)=='-') {
+			if("-".equals(args[i])) break;
+			CommandOption o = c.getOption(args[i].substring(1));
+			if (o==null) throw new IllegalArgumentException("Unrecognized option "+args[i]+" for command "+c.getId());
+			if(!CommandOption.TYPE_BOOLEAN.equals(o.getType())) {
+				i++;
+				if(i==args.length) throw new IllegalArgumentException("Missing value for option "+args[i-1]+" of command "+c.getId());
+				if(!o.isDeprecated() && o.isNumeric()) {
 					try {
-						value = o.decodeValue(args[i]);
+						o.decodeValue(args[i]);
 					} catch (NumberFormatException e) {
-						System.err.println("Error loading value \""+args[i]+"\" for option \""+o.getAttribute()+"\" of type "+o.getType()+": "+e.getMessage());
-						printHelp(programInstance.getClass());
-						System.exit(1);
+						throw new IllegalArgumentException("Error loading value \""+args[i]+"\" for option \""+o.getAttribute()+"\" of type "+o.getType()+": "+e.getMessage(),e);
 					}
 				}
 			}
+			i++;
+		}
+	}
+	/**
+	 * Loads the global options given before the id of the command
+	 * @param args Arguments sent by the user
+	 * @return int Index of the command id in the arguments array
+	 * @throws IllegalArgumentException If an option is not recognized or its value is not valid
+	 */
+	public int loadGlobalOptions(String [] args) {
+		int i = 0;
+		while(i<args.length && args[i].length()>1 && args[i].charAt(0)=='-') {
+			CommandOption o = globalOptions.get(args[i].substring(1));
+			if (o==null) throw new IllegalArgumentException("Unrecognized global option "+args[i]);
+			Method setter = o.findSetMethod(globalOptionClasses.get(o.getId()));
+			Object value = true;
+			if(!CommandOption.TYPE_BOOLEAN.equals(o.getType())) {
+				i++;
+				if(i==args.length) throw new IllegalArgumentException("Missing value for global option "+args[i-1]);
+				try {
+					value = setter.getParameterTypes()[0].equals(String.class)?args[i]:o.decodeValue(args[i]);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Error loading value \""+args[i]+"\" for global option \""+o.getId()+"\" of type "+o.getType()+": "+e.getMessage(),e);
+				}
+			}
 			try {
-				setter.invoke(programInstance, value);
+				setter.invoke(null, value);
 			} catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-				System.err.println("Error setting value \""+value+"\" for option \""+o.getId()+"\" of type: "+o.getType()+". "+e.getMessage());
-				e.printStackTrace();
-				System.exit(1);
+				Throwable cause = e;
+				if(e instanceof InvocationTargetException) cause = e.getCause();
+				throw new IllegalArgumentException("Error setting value \""+value+"\" for global option \""+o.getId()+"\" of type: "+o.getType()+". "+cause.getMessage(), cause);
 			}
 			i++;
 		}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Cache of large objects loaded from files, such as reference genomes, FM-indexes and transcriptomes.
+ * The cache is disabled by default, which means that objects are loaded every time that they are requested.
+ * It is enabled by the Pipeline command to share loaded objects among commands executed in the same JVM.
+ * Objects obtained from the cache are shared and must not be modified. Each object is loaded only once, even if it is
+ * requested concurrently, and loading an object does not block requests of other objects
+ * @author Jorge Duitama
+ */
+public class LoadedObjectsCache {
+	private static volatile boolean enabled = false;
+	private static ConcurrentHashMap<List<Object>, Future<Object>> objects = new ConcurrentHashMap<>();
+	
+	/**
+	 * Loader of an object that is not available in the cache
+	 * @param <T> Type of the loaded object
+	 */
+	public interface ObjectLoader<T> {
+		public T load() throws IOException;
+	}
+	
+	public static boolean isEnabled() {
+		return enabled;
+	}
+	/**
+	 * Enables or disables the cache. Disabling the cache removes the stored objects
+	 * @param enabled Tells if loaded objects should be kept in the cache
+	 */
+	public static synchronized void setEnabled(boolean enabled) {
+		LoadedObjectsCache.enabled = enabled;
+		if(!enabled) objects.clear();
+	}
+	
+	/**
+	 * Returns the object loaded from the given file, loading it if it is not available in the cache
+	 * @param <T> Type of the object
+	 * @param type Class of the object. Different classes can be loaded from the same file
+	 * @param filename Name of the file from which the object is loaded
+	 * @param loader Loader used if the object is not in the cache or if the cache is disabled
+	 * @param parameters Further parameters that, together with the file, identify the loaded object.
+	 * Objects without a custom equals method, such as a genome, are compared by identity
+	 * @return T Object loaded from the given file
+	 * @throws IOException If the loader throws an exception
+	 */
+	public static <T> T getOrLoad(Class<T> type, String filename, ObjectLoader<T> loader, Object... parameters) throws IOException {
+		if(!enabled) return loader.load();
+		Object [] keyItems = Arrays.copyOf(new Object[] {type.getName(), new File(filename).getAbsolutePath()}, 2+parameters.length);
+		System.arraycopy(parameters, 0, keyItems, 2, parameters.length);
+		List<Object> key = Arrays.asList(keyItems);
+		FutureTask<Object> newTask = new FutureTask<>(()->loader.load());
+		Future<Object> task = objects.computeIfAbsent(key, (k)->newTask);
+		//Only the thread registering the task loads the object. Other threads wait for it
+		if(task==newTask) newTask.run();
+		try {
+			return type.cast(task.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while loading object from file "+filename);
+		} catch (ExecutionException e) {
+			//Failed loads are not cached
+			objects.remove(key, task);
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) throw (IOException)cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if(cause instanceof Error) throw (Error)cause;
+			throw new IOException("Error loading object from file "+filename, cause);
+		}
+	}
+}
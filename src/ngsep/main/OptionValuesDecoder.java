@@ -51,15 +51,20 @@ public class OptionValuesDecoder {
 	}
 
 	public static ReferenceGenome loadGenome(String genomeFile, Logger log) throws IOException {
-		log.info("Loading genome from: "+genomeFile);
-		ReferenceGenome genome = new ReferenceGenome(genomeFile);
-		log.info("Loaded genome with: "+genome.getNumSequences()+" sequences. Total length: "+genome.getTotalLength()+" from file: "+genomeFile);
-		return genome;
+		return loadGenome(genomeFile, false, log);
 	}
 	public static ReferenceGenome loadGenomeWithLowerCase(String genomeFile, Logger log) throws IOException {
-		log.info("Loading genome from: "+genomeFile);
-		ReferenceGenome genome = new ReferenceGenome(genomeFile,true);
-		log.info("Loaded genome with: "+genome.getNumSequences()+" sequences. Total length: "+genome.getTotalLength()+" from file: "+genomeFile);
+		return loadGenome(genomeFile, true, log);
+	}
+	private static ReferenceGenome loadGenome(String genomeFile, boolean keepLowerCase, Logger log) throws IOException {
+		boolean [] loaded = {false};
+		ReferenceGenome genome = LoadedObjectsCache.getOrLoad(ReferenceGenome.class, genomeFile, ()-> {
+			log.info("Loading genome from: "+genomeFile);
+			loaded[0] = true;
+			return new ReferenceGenome(genomeFile, keepLowerCase);
+		}, keepLowerCase);
+		if(loaded[0]) log.info("Loaded genome with: "+genome.getNumSequences()+" sequences. Total length: "+genome.getTotalLength()+" from file: "+genomeFile);
+		else log.info("Reusing genome with: "+genome.getNumSequences()+" sequences. Total length: "+genome.getTotalLength()+" previously loaded from file: "+genomeFile);
 		return genome;
 	}
 }
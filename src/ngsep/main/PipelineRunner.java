@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.main;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Runs a workflow of NGSEP commands within the same JVM. Reference genomes, FM-indexes and transcriptomes
+ * loaded by one command are kept in the LoadedObjectsCache and reused by the following commands.
+ * The standard output of a command can be passed in memory as standard input to the next command
+ * @author Jorge Duitama
+ */
+public class PipelineRunner {
+	
+	public static final String COMMENT_PREFIX = "#";
+	public static final String PIPE_PREFIX = "|";
+	
+	// Logging and progress
+	private Logger log = Logger.getLogger(PipelineRunner.class.getName());
+	
+	// Parameters
+	private String inputFile = null;
+	
+	// Get and set methods
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+	
+	public String getInputFile() {
+		return inputFile;
+	}
+	public void setInputFile(String inputFile) {
+		this.inputFile = inputFile;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		PipelineRunner instance = new PipelineRunner();
+		CommandsDescriptor.getInstance().loadOptions(instance, args);
+		instance.run();
+	}
+	
+	public void run() throws Exception {
+		if(inputFile==null) throw new IOException("The workflow file is a required parameter");
+		log.info("Loading workflow from file: "+inputFile);
+		List<PipelineStep> steps = loadWorkflow(inputFile);
+		log.info("Loaded workflow with "+steps.size()+" commands");
+		run(steps);
+		log.info("Process finished");
+	}
+	
+	/**
+	 * Loads the steps of a workflow. Each line has the same arguments that would be passed to NGSEPcore
+	 * to run one command. Arguments are separated by spaces or tabs. Quotes can be used to group arguments with spaces.
+	 * Lines starting with # are comments. Lines starting with | receive as standard input the standard output of the previous command
+	 * @param filename File with the workflow
+	 * @return List<PipelineStep> Steps of the workflow
+	 * @throws IOException If the file can not be read or if it contains unrecognized commands or invalid options
+	 */
+	public List<PipelineStep> loadWorkflow(String filename) throws IOException {
+		CommandsDescriptor descriptor = CommandsDescriptor.getInstance();
+		List<PipelineStep> steps = new ArrayList<>();
+		try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
+			String line = in.readLine();
+			for(int i=1;line!=null;i++) {
+				line = line.trim();
+				if(line.length()>0 && !line.startsWith(COMMENT_PREFIX)) {
+					boolean piped = line.startsWith(PIPE_PREFIX);
+					if(piped) {
+						if(steps.isEmpty()) throw new IOException("The first command of the workflow can not read the output of a previous command. Line: "+i);
+						line = line.substring(PIPE_PREFIX.length()).trim();
+						steps.get(steps.size()-1).outputPiped = true;
+					}
+					List<String> args = splitArguments(line, i);
+					if(args.isEmpty()) throw new IOException("Missing command at line "+i);
+					Command command = descriptor.getCommand(args.get(0));
+					if(command==null) {
+						String currentCommandId = descriptor.getCurrentCommandId(args.get(0));
+						if(currentCommandId!=null) throw new IOException("Command "+args.get(0)+" at line "+i+" was replaced by command "+currentCommandId);
+						throw new IOException("Unrecognized command "+args.get(0)+" at line "+i);
+					}
+					if(command.getProgram()==PipelineRunner.class) throw new IOException("Workflows can not be nested. Line: "+i);
+					args.remove(0);
+					String [] commandArgs = args.toArray(new String[0]);
+					validateArguments(command, commandArgs, i);
+					steps.add(new PipelineStep(i, line, command, commandArgs));
+				}
+				line = in.readLine();
+			}
+		}
+		return steps;
+	}
+	
+	/**
+	 * Validates the options of a command before any command of the workflow is executed
+	 * @param command Command of the step
+	 * @param args Arguments of the command
+	 * @param lineNumber Line of the workflow file
+	 * @throws IOException If the command would not run with the given arguments
+	 */
+	private void validateArguments(Command command, String [] args, int lineNumber) throws IOException {
+		if(args.length==0) throw new IOException("Missing arguments for command "+command.getId()+" at line "+lineNumber);
+		if("-h".equals(args[0]) || "--help".equals(args[0])) throw new IOException("Help of command "+command.getId()+" can not be printed within a workflow. Line: "+lineNumber);
+		try {
+			CommandsDescriptor.getInstance().validateOptions(command, args);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage()+". Line: "+lineNumber, e);
+		}
+	}
+	
+	private List<String> splitArguments(String line, int lineNumber) throws IOException {
+		List<String> args = new ArrayList<>();
+		StringBuilder arg = null;
+		char quote = 0;
+		for(int j=0;j<line.length();j++) {
+			char c = line.charAt(j);
+			if(quote!=0) {
+				if(c==quote) quote = 0;
+				else arg.append(c);
+			} else if (c=='"' || c=='\'') {
+				quote = c;
+				if(arg==null) arg = new StringBuilder();
+			} else if (Character.isWhitespace(c)) {
+				if(arg!=null) args.add(arg.toString());
+				arg = null;
+			} else {
+				if(arg==null) arg = new StringBuilder();
+				arg.append(c);
+			}
+		}
+		if(quote!=0) throw new IOException("Unclosed quote at line "+lineNumber);
+		if(arg!=null) args.add(arg.toString());
+		return args;
+	}
+	
+	/**
+	 * Runs the given steps in order. The cache of loaded objects is enabled while the steps are executed
+	 * @param steps Steps to run
+	 * @throws Exception If one of the commands fails. Following steps are not executed
+	 */
+	public void run(List<PipelineStep> steps) throws Exception {
+		InputStream stdIn = System.in;
+		PrintStream stdOut = System.out;
+		boolean cacheEnabled = LoadedObjectsCache.isEnabled();
+		LoadedObjectsCache.setEnabled(true);
+		StepOutputBuffer previousOutput = null;
+		try {
+			for(PipelineStep step:steps) {
+				log.info("Running command at line "+step.lineNumber+": "+step.line);
+				long time = System.currentTimeMillis();
+				if(previousOutput!=null) System.setIn(previousOutput.toInputStream());
+				StepOutputBuffer output = null;
+				if(step.outputPiped) {
+					output = new StepOutputBuffer();
+					System.setOut(new PrintStream(output, false));
+				} else {
+					//Commands closing the standard output should not close it for the next commands
+					System.setOut(new PrintStream(new FilterOutputStream(stdOut) {
+						@Override
+						public void close() throws IOException {
+							flush();
+						}
+					}, true));
+				}
+				try {
+					step.run();
+				} finally {
+					System.out.flush();
+					System.setIn(stdIn);
+					System.setOut(stdOut);
+				}
+				previousOutput = output;
+				log.info("Finished command at line "+step.lineNumber+" in "+(System.currentTimeMillis()-time)/1000+" seconds");
+			}
+		} finally {
+			LoadedObjectsCache.setEnabled(cacheEnabled);
+		}
+	}
+	
+	/**
+	 * Command of a workflow with its arguments
+	 */
+	public static class PipelineStep {
+		private int lineNumber;
+		private String line;
+		private Command command;
+		private String [] args;
+		private boolean outputPiped = false;
+		
+		public PipelineStep(int lineNumber, String line, Command command, String[] args) {
+			this.lineNumber = lineNumber;
+			this.line = line;
+			this.command = command;
+			this.args = args;
+		}
+		public int getLineNumber() {
+			return lineNumber;
+		}
+		public Command getCommand() {
+			return command;
+		}
+		/**
+		 * @return boolean true if the standard output of this step is the standard input of the next step
+		 */
+		public boolean isOutputPiped() {
+			return outputPiped;
+		}
+		
+		private void run() throws Exception {
+			Method main = command.getProgram().getDeclaredMethod("main", String[].class);
+			try {
+				main.invoke(null, (Object)args);
+			} catch (InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof Exception) throw (Exception) cause;
+				if(cause instanceof Error) throw (Error) cause;
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Memory buffer of the standard output of a step that can be read without copying
+	 */
+	private static class StepOutputBuffer extends ByteArrayOutputStream {
+		public InputStream toInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+}
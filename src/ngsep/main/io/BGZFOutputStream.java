@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.main.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream writing the BGZF format used by tabix and BAM files.
+ * Data is split in blocks of BLOCK_SIZE bytes which are compressed as independent gzip members.
+ * Blocks can be compressed by several threads. They are always written in order.
+ * Because only the last block can be shorter than BLOCK_SIZE, the block of every position
+ * can be calculated from the number of uncompressed bytes written before it.
+ * @author Jorge Duitama
+ */
+public class BGZFOutputStream extends OutputStream {
+	/**
+	 * Maximum number of uncompressed bytes in a block. Same value used by htslib
+	 */
+	public static final int BLOCK_SIZE = 0xff00;
+	public static final int DEF_COMPRESSION_LEVEL = 5;
+	public static final int DEF_NUM_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+	private static final int MAX_BLOCK_LENGTH = 0x10000;
+	private static final int HEADER_LENGTH = 18;
+	private static final int FOOTER_LENGTH = 8;
+	private static final byte [] EOF_BLOCK = {0x1f, (byte)0x8b, 0x08, 0x04, 0, 0, 0, 0, 0, (byte)0xff, 0x06, 0, 0x42, 0x43, 0x02, 0, 0x1b, 0, 0x03, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+	private OutputStream out;
+	private int compressionLevel;
+	private int maxPendingBlocks;
+	private ExecutorService pool = null;
+	//True if the pool was created by this stream and must be shut down on close
+	private boolean ownPool = false;
+	private Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+
+	private byte [] buffer = new byte[BLOCK_SIZE];
+	private int bufferLength = 0;
+	//Number of uncompressed bytes received
+	private long position = 0;
+	//Compressed start of each written block. The last value is the start of the next block
+	private long [] blockAddresses = new long[1024];
+	private int numWrittenBlocks = 0;
+	private boolean closed = false;
+
+	/**
+	 * Creates a stream compressing blocks in DEF_NUM_THREADS threads
+	 * @param out Stream receiving the compressed data
+	 */
+	public BGZFOutputStream(OutputStream out) {
+		this(out, DEF_NUM_THREADS);
+	}
+	/**
+	 * Creates a stream with the default compression level
+	 * @param out Stream receiving the compressed data
+	 * @param numThreads Number of threads compressing blocks. If 1, blocks are compressed by the calling thread
+	 */
+	public BGZFOutputStream(OutputStream out, int numThreads) {
+		this(out, numThreads, DEF_COMPRESSION_LEVEL);
+	}
+	/**
+	 * Creates a new stream
+	 * @param out Stream receiving the compressed data
+	 * @param numThreads Number of threads compressing blocks. If 1, blocks are compressed by the calling thread
+	 * @param compressionLevel Compression level passed to the deflater (0-9)
+	 */
+	public BGZFOutputStream(OutputStream out, int numThreads, int compressionLevel) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads must be positive. Given: "+numThreads);
+		if(compressionLevel<0 || compressionLevel>9) throw new IllegalArgumentException("Invalid compression level: "+compressionLevel);
+		this.out = out;
+		this.maxPendingBlocks = 2*numThreads;
+		this.compressionLevel = compressionLevel;
+		if(numThreads>1) {
+			pool = Executors.newFixedThreadPool(numThreads, (r)-> {
+				Thread t = new Thread(r, "BGZFCompressor");
+				t.setDaemon(true);
+				return t;
+			});
+			ownPool = true;
+		}
+	}
+	/**
+	 * Creates a stream compressing blocks in a pool shared with other streams or tasks.
+	 * The pool is not shut down when the stream is closed
+	 * @param out Stream receiving the compressed data
+	 * @param pool Pool of threads compressing blocks
+	 * @param maxPendingBlocks Maximum number of blocks of this stream waiting to be written
+	 */
+	public BGZFOutputStream(OutputStream out, ExecutorService pool, int maxPendingBlocks) {
+		if(maxPendingBlocks<1) throw new IllegalArgumentException("Maximum number of pending blocks must be positive. Given: "+maxPendingBlocks);
+		this.out = out;
+		this.pool = pool;
+		this.maxPendingBlocks = maxPendingBlocks;
+		this.compressionLevel = DEF_COMPRESSION_LEVEL;
+	}
+
+	/**
+	 * @return long Number of uncompressed bytes written so far
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Calculates the virtual file pointer of the given uncompressed position
+	 * @param position Number of uncompressed bytes before the position of interest
+	 * @return long Virtual file pointer of the position. -1 if the block of the position has not been written yet
+	 */
+	public long getVirtualFilePointer(long position) {
+		long block = position/BLOCK_SIZE;
+		int offset = (int)(position%BLOCK_SIZE);
+		//The start of the next block is known as soon as the previous block is written
+		if(block>numWrittenBlocks || (block==numWrittenBlocks && offset>0)) return -1;
+		return (blockAddresses[(int)block]<<16) | offset;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(closed) throw new IOException("Stream closed");
+		buffer[bufferLength++] = (byte)b;
+		position++;
+		if(bufferLength==BLOCK_SIZE) submitBlock();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(closed) throw new IOException("Stream closed");
+		while(len>0) {
+			int n = Math.min(len, BLOCK_SIZE-bufferLength);
+			System.arraycopy(b, off, buffer, bufferLength, n);
+			bufferLength+=n;
+			position+=n;
+			off+=n;
+			len-=n;
+			if(bufferLength==BLOCK_SIZE) submitBlock();
+		}
+	}
+
+	/**
+	 * Writes the blocks already compressed and flushes the underlying stream.
+	 * The current block is not finished to keep all blocks but the last one full
+	 */
+	@Override
+	public void flush() throws IOException {
+		while(!pendingBlocks.isEmpty() && pendingBlocks.peekFirst().isDone()) writeNextBlock();
+		out.flush();
+	}
+
+	/**
+	 * Writes the last block, the empty block marking the end of the file and closes the underlying stream
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		closed = true;
+		try {
+			if(bufferLength>0) submitBlock();
+			while(!pendingBlocks.isEmpty()) writeNextBlock();
+			out.write(EOF_BLOCK);
+			out.flush();
+		} finally {
+			if(ownPool) pool.shutdownNow();
+			out.close();
+		}
+	}
+
+	private void submitBlock() throws IOException {
+		byte [] data = Arrays.copyOf(buffer, bufferLength);
+		bufferLength = 0;
+		if(pool==null) {
+			writeBlock(compressBlock(data, compressionLevel));
+			return;
+		}
+		pendingBlocks.addLast(pool.submit(()->compressBlock(data, compressionLevel)));
+		if(pendingBlocks.size()>=maxPendingBlocks) writeNextBlock();
+	}
+
+	private void writeNextBlock() throws IOException {
+		Future<byte[]> next = pendingBlocks.removeFirst();
+		try {
+			writeBlock(next.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing BGZF block");
+		} catch (ExecutionException e) {
+			throw new IOException("Error compressing BGZF block", e.getCause());
+		}
+	}
+
+	private void writeBlock(byte [] block) throws IOException {
+		out.write(block);
+		if(numWrittenBlocks+1==blockAddresses.length) blockAddresses = Arrays.copyOf(blockAddresses, 2*blockAddresses.length);
+		blockAddresses[numWrittenBlocks+1] = blockAddresses[numWrittenBlocks]+block.length;
+		numWrittenBlocks++;
+	}
+
+	/**
+	 * Compresses the given data as a complete BGZF block
+	 * @param data Uncompressed data. At most BLOCK_SIZE bytes
+	 * @param level Compression level
+	 * @return byte[] BGZF block including header and footer
+	 */
+	private static byte [] compressBlock(byte [] data, int level) {
+		byte [] block = new byte[MAX_BLOCK_LENGTH];
+		int cdataLength = deflate(data, level, block);
+		//Incompressible data is stored without compression
+		if(cdataLength<0) cdataLength = deflate(data, Deflater.NO_COMPRESSION, block);
+		int blockLength = HEADER_LENGTH+cdataLength+FOOTER_LENGTH;
+		block[0] = 0x1f;
+		block[1] = (byte)0x8b;
+		block[2] = 8;
+		block[3] = 4;
+		//MTIME and XFL remain zero
+		block[9] = (byte)0xff;
+		writeLittleEndian(block, 10, 6, 2);
+		block[12] = 'B';
+		block[13] = 'C';
+		writeLittleEndian(block, 14, 2, 2);
+		writeLittleEndian(block, 16, blockLength-1, 2);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		int footerStart = HEADER_LENGTH+cdataLength;
+		writeLittleEndian(block, footerStart, crc.getValue(), 4);
+		writeLittleEndian(block, footerStart+4, data.length, 4);
+		return Arrays.copyOf(block, blockLength);
+	}
+
+	private static int deflate(byte [] data, int level, byte [] block) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			int capacity = MAX_BLOCK_LENGTH-HEADER_LENGTH-FOOTER_LENGTH;
+			int length = deflater.deflate(block, HEADER_LENGTH, capacity);
+			if(!deflater.finished()) return -1;
+			return length;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static void writeLittleEndian(byte [] array, int start, long value, int numBytes) {
+		for(int i=0;i<numBytes;i++) {
+			array[start+i] = (byte)(value & 0xff);
+			value>>>=8;
+		}
+	}
+}
@@ -38,18 +38,15 @@ public class ParseUtils {
 	public static String[] parseString(String s,char delim) {
 		//return s.split(""+delim);
 		List<String> answer = new ArrayList<String>();
-		char [] a = s.toCharArray();
-		StringBuilder current = new StringBuilder(a.length);
-		for (int i=0;i<a.length;i++) {
-			if(a[i] == delim) {
-				answer.add(current.toString());
-				current = new StringBuilder(a.length);
-				continue;
-			}
-			current.append(a[i]);
+		int start = 0;
+		int next = s.indexOf(delim);
+		while(next>=0) {
+			answer.add(s.substring(start, next));
+			start = next+1;
+			next = s.indexOf(delim, start);
 		}
-		answer.add(current.toString());
-		return answer.toArray(new String[0]);
+		answer.add(s.substring(start));
+		return answer.toArray(new String[answer.size()]);
 	}
 	/**
 	 * Parse the given string with possible text that should not be parsed, 
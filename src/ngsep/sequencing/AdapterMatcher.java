@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequencing;
+
+import ngsep.sequences.DegenerateSequence;
+
+/**
+ * Bit-parallel search of an adapter within reads (Shift-And algorithm extended to mismatches).
+ * The adapter can have IUPAC degenerate bases. Besides complete occurrences, the matcher can detect
+ * prefixes of the adapter at the 3' end of the read
+ * @author Jorge Duitama
+ */
+public class AdapterMatcher {
+	/**
+	 * Maximum length of the adapter. Only the first bases of longer adapters are used
+	 */
+	public static final int MAX_ADAPTER_LENGTH = 64;
+	
+	private String adapter;
+	private int length;
+	private int maxMismatches;
+	private int minOverlap;
+	//Positions of the adapter that match each character of the read
+	private long [] masks = new long [128];
+	private long lastBit;
+	
+	/**
+	 * Creates a matcher for exact occurrences of the adapter
+	 * @param adapter Adapter sequence. It can have degenerate bases
+	 */
+	public AdapterMatcher(String adapter) {
+		this(adapter,0,0);
+	}
+	/**
+	 * Creates a new matcher
+	 * @param adapter Adapter sequence. It can have degenerate bases
+	 * @param maxMismatches Maximum number of mismatches of a complete occurrence of the adapter
+	 * @param minOverlap Minimum length of a prefix of the adapter at the end of the read to detect partial occurrences.
+	 * Zero to search only complete occurrences. The number of mismatches allowed for partial occurrences is proportional to the overlap
+	 */
+	public AdapterMatcher(String adapter, int maxMismatches, int minOverlap) {
+		if(adapter.length()==0) throw new IllegalArgumentException("Adapter sequence can not be empty");
+		if(maxMismatches<0) throw new IllegalArgumentException("Maximum number of mismatches can not be negative. Given: "+maxMismatches);
+		if(minOverlap<0) throw new IllegalArgumentException("Minimum overlap can not be negative. Given: "+minOverlap);
+		this.adapter = adapter;
+		this.length = Math.min(adapter.length(), MAX_ADAPTER_LENGTH);
+		this.maxMismatches = Math.min(maxMismatches, length-1);
+		this.minOverlap = minOverlap;
+		for(int i=0;i<length;i++) {
+			char degBase = adapter.charAt(i);
+			String extBases = DegenerateSequence.getExtendedBases(degBase);
+			if(extBases==null || extBases.length()==0) throw new IllegalArgumentException("Unrecognized degenerate base "+degBase+" in sequence "+adapter);
+			for(int j=0;j<extBases.length();j++) masks[extBases.charAt(j)] |= 1L<<i;
+		}
+		lastBit = 1L<<(length-1);
+	}
+	
+	public String getAdapter() {
+		return adapter;
+	}
+	public int getMaxMismatches() {
+		return maxMismatches;
+	}
+	public int getMinOverlap() {
+		return minOverlap;
+	}
+	/**
+	 * @return int Number of bases of the adapter used for the search
+	 */
+	public int getLength() {
+		return length;
+	}
+	
+	/**
+	 * Finds the first occurrence of the adapter in the given read. If the adapter is not found and partial occurrences are allowed,
+	 * finds the longest prefix of the adapter matching the end of the read
+	 * @param read Read sequence
+	 * @return int Start of the occurrence in the read. -1 if the adapter was not found.
+	 * The occurrence is partial if the start plus the length of the adapter is larger than the read length
+	 */
+	public int findAdapterStart(CharSequence read) {
+		int n = read.length();
+		int k = maxMismatches;
+		//states[j] has bit i on if the first i+1 bases of the adapter match the read ending at the current position with at most j mismatches
+		long [] states = new long [k+1];
+		for(int i=0;i<n;i++) {
+			char c = read.charAt(i);
+			long mask = (c<128)?masks[c]:0;
+			long previous = states[0];
+			states[0] = ((previous<<1) | 1) & mask;
+			for(int j=1;j<=k;j++) {
+				long current = states[j];
+				states[j] = (((current<<1) | 1) & mask) | ((previous<<1) | 1);
+				previous = current;
+			}
+			if((states[k] & lastBit)!=0) return i-length+1;
+		}
+		if(minOverlap==0) return -1;
+		for(int overlap=Math.min(n, length-1);overlap>=minOverlap;overlap--) {
+			int allowedMismatches = k*overlap/length;
+			if((states[allowedMismatches] & (1L<<(overlap-1)))!=0) return n-overlap;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.sequencing;
+
+import java.io.PrintStream;
+
+import ngsep.sequences.RawRead;
+
+/**
+ * Trims reads from the start of the first adapter found among a list of adapters.
+ * Objects of this class can be shared by different threads. Statistics are collected in separate counts objects
+ * @author Jorge Duitama
+ */
+public class AdaptersTrimmer {
+	public static final int DEF_MAX_MISMATCHES = 0;
+	public static final int DEF_MIN_OVERLAP = 0;
+	
+	private AdapterMatcher [] matchers;
+	
+	/**
+	 * Creates a trimmer searching exact complete occurrences of the adapters
+	 * @param adapters Adapter sequences. They can have degenerate bases
+	 */
+	public AdaptersTrimmer(String [] adapters) {
+		this(adapters, DEF_MAX_MISMATCHES, DEF_MIN_OVERLAP);
+	}
+	/**
+	 * Creates a new trimmer
+	 * @param adapters Adapter sequences. They can have degenerate bases
+	 * @param maxMismatches Maximum number of mismatches of a complete occurrence of an adapter
+	 * @param minOverlap Minimum length of a prefix of an adapter at the end of a read to trim partial occurrences. Zero to trim only complete occurrences
+	 */
+	public AdaptersTrimmer(String [] adapters, int maxMismatches, int minOverlap) {
+		matchers = new AdapterMatcher[adapters.length];
+		for(int i=0;i<adapters.length;i++) matchers[i] = new AdapterMatcher(adapters[i], maxMismatches, minOverlap);
+	}
+	
+	public int getNumAdapters() {
+		return matchers.length;
+	}
+	public String getAdapter(int i) {
+		return matchers[i].getAdapter();
+	}
+	
+	/**
+	 * Trims the read from the start of the first adapter found. Adapters are searched in the order given to the constructor
+	 * @param read Read to trim
+	 * @param counts Counts to update. It can be null
+	 * @return int Index of the adapter used to trim the read. -1 if no adapter was found
+	 */
+	public int trim(RawRead read, Counts counts) {
+		String sequence = read.getSequenceString();
+		for(int i=0;i<matchers.length;i++) {
+			int start = matchers[i].findAdapterStart(sequence);
+			if(start<0) continue;
+			read.trimToLength(start);
+			if(counts!=null) {
+				if(start+matchers[i].getLength()>sequence.length()) counts.partial[i]++;
+				else counts.complete[i]++;
+			}
+			return i;
+		}
+		return -1;
+	}
+	/**
+	 * @return Counts New counts object for the adapters of this trimmer
+	 */
+	public Counts createCounts() {
+		return new Counts(matchers.length);
+	}
+	
+	/**
+	 * Prints the number of reads trimmed by each adapter
+	 * @param counts Counts to print
+	 * @param out Stream to print the statistics
+	 */
+	public void printStatistics(Counts counts, PrintStream out) {
+		out.println("Adapter\tComplete\tPartial");
+		for(int i=0;i<matchers.length;i++) {
+			out.println(matchers[i].getAdapter()+"\t"+counts.complete[i]+"\t"+counts.partial[i]);
+		}
+	}
+	
+	/**
+	 * Number of reads trimmed by each adapter
+	 */
+	public static class Counts {
+		private long [] complete;
+		private long [] partial;
+		private Counts(int numAdapters) {
+			complete = new long [numAdapters];
+			partial = new long [numAdapters];
+		}
+		/**
+		 * @param i Index of the adapter
+		 * @return long Number of reads trimmed from a complete occurrence of the adapter
+		 */
+		public long getComplete(int i) {
+			return complete[i];
+		}
+		/**
+		 * @param i Index of the adapter
+		 * @return long Number of reads trimmed from a prefix of the adapter at the end of the read
+		 */
+		public long getPartial(int i) {
+			return partial[i];
+		}
+		/**
+		 * Adds the given counts to these counts
+		 * @param other Counts of the same adapters
+		 */
+		public void add(Counts other) {
+			for(int i=0;i<complete.length;i++) {
+				complete[i]+=other.complete[i];
+				partial[i]+=other.partial[i];
+			}
+		}
+	}
+}
@@ -25,39 +25,64 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 
 import ngsep.sequences.DNASequence;
 
 /**
+ * Map from barcodes to sample ids. Barcodes of each read are searched in a trie indexed by nucleotide.
+ * The longest barcode matching the start of the read is selected. If no barcode matches exactly and
+ * mismatches are allowed, the barcode with the smallest number of mismatches is selected if it is unique
  * @author Jorge Duitama
  */
 public class BarcodeMap {
+	public static final int DEF_MAX_MISMATCHES = 0;
 
 	private Map<String, String> barcodeSampleMap = new HashMap<>();
 	private Set<String> barcodes1 = new HashSet<>();
 	private Set<String> barcodes2 = new HashSet<>();
+	private int maxMismatches = DEF_MAX_MISMATCHES;
 	
-	//Sorted list of barcodes
-	private String [] sortedBarcodes;
-	private int [] [] ntPairFirsts = new int[4][4];
-	private int [] [] ntPairLasts = new int[4][4];
+	//Tries of the barcodes of the first and the second read. Assigned after they are built to allow searches from different threads
+	private volatile BarcodesTrie trie1;
+	private volatile BarcodesTrie trie2;
+	
+	public int getMaxMismatches() {
+		return maxMismatches;
+	}
+	/**
+	 * Changes the number of mismatches allowed to match a barcode if no barcode matches exactly
+	 * @param maxMismatches Maximum number of mismatches
+	 */
+	public void setMaxMismatches(int maxMismatches) {
+		if(maxMismatches<0) throw new IllegalArgumentException("Maximum number of mismatches can not be negative. Given: "+maxMismatches);
+		this.maxMismatches = maxMismatches;
+	}
 	
 	public void addSingleBarcode(String barcode, String sampleId) throws IOException {
+		validateBarcode(barcode);
 		String oldSample = barcodeSampleMap.get(barcode);
 		if(oldSample!=null && !oldSample.equals(sampleId)) throw new IOException("Barcode "+barcode+" already registered with a sample "+oldSample+" different from: "+sampleId);
 		barcodeSampleMap.put(barcode, sampleId);
 		barcodes1.add(barcode);
-		sortedBarcodes=null;
+		trie1 = null;
 	}
 	public void addDualBarcode(String barcode1, String barcode2, String sampleId) throws IOException {
+		validateBarcode(barcode1);
+		validateBarcode(barcode2);
 		String dualKey = buildDualKey(barcode1,barcode2);
 		String oldSample = barcodeSampleMap.get(dualKey);
 		if(oldSample!=null && !oldSample.equals(sampleId)) throw new IOException("Barcode pair"+barcode1+" - "+barcode2+" already registered with a sample "+oldSample+" different from: "+sampleId);
 		barcodeSampleMap.put(dualKey, sampleId);
 		barcodes1.add(barcode1);
 		barcodes2.add(barcode2);
-		sortedBarcodes=null;
+		trie1 = null;
+		trie2 = null;
+	}
+	private void validateBarcode(String barcode) throws IOException {
+		if(barcode.length()==0) throw new IOException("Barcodes can not be empty");
+		for(int i=0;i<barcode.length();i++) {
+			if(DNASequence.BASES_STRING.indexOf(barcode.charAt(i))<0) throw new IOException("Invalid barcode "+barcode+". Barcodes can only have the nucleotides "+DNASequence.BASES_STRING);
+		}
 	}
 	private String buildDualKey(String barcode1, String barcode2) {
 		return barcode1+"_"+barcode2;
@@ -70,69 +95,146 @@ public class BarcodeMap {
 		return answer;
 	}
 	/**
-	 * 
-	 * @param read1
-	 * @param read2
-	 * @return
+	 * Finds the sample of a read pair with dual barcodes
+	 * @param read1 Sequence of the first read
+	 * @param read2 Sequence of the second read
+	 * @return String[] Sample id, barcode of the first read and barcode of the second read. Null if the pair of barcodes was not found
 	 */
 	public String [] getSampleIdByReadPair (String read1, String read2) {
 		String [] answer = new String [3];
 		answer[1] = findBarcode(read1,(byte)1);
 		answer[2] = findBarcode(read2,(byte)2);
-		if(answer[1]!=null && answer[2]!=null) {
-			answer[0] = barcodeSampleMap.get(buildDualKey(answer[1], answer[2]));
-		} else {
-			return null;
-		}
+		if(answer[1]==null || answer[2]==null) return null;
+		answer[0] = barcodeSampleMap.get(buildDualKey(answer[1], answer[2]));
+		//Both barcodes exist but the pair is not assigned to a sample
+		if(answer[0]==null) return null;
 		return answer;
 	}
 	
-	private void initBarcodeSortedList() {
-		Set<String> allBarcodes = new TreeSet<>();
-		allBarcodes.addAll(barcodes1);
-		allBarcodes.addAll(barcodes2);
-		
-		sortedBarcodes = allBarcodes.toArray(new String[0]);
-		for(int i=0;i<ntPairFirsts.length;i++) {
-			Arrays.fill(ntPairFirsts[i], -1);
-			Arrays.fill(ntPairLasts[i], -1);
-		}
-		String alphabet = DNASequence.BASES_STRING;
-		for (int k=0;k<sortedBarcodes.length;k++) {
-			String barcode = sortedBarcodes[k];
-			int i = alphabet.indexOf(barcode.charAt(0));
-			int j = alphabet.indexOf(barcode.charAt(1));
-			if(ntPairFirsts[i][j]==-1)ntPairFirsts[i][j] = k;
-			ntPairLasts[i][j] = k;
+	private synchronized BarcodesTrie getTrie(byte readIndex) {
+		if(readIndex==2) {
+			if(trie2==null) trie2 = new BarcodesTrie(barcodes2);
+			return trie2;
 		}
+		if(trie1==null) trie1 = new BarcodesTrie(barcodes1);
+		return trie1;
 	}
 	/**
 	 * Finds the barcode matching the given sequence
 	 * @param readSeq Sequence to barcode
-	 * @return String barcode matching the given sequence. Null if the barcode was not found
+	 * @param readIndex 1 for barcodes of the first read and 2 for barcodes of the second read
+	 * @return String barcode matching the given sequence. Null if the barcode was not found or if the best match is ambiguous
 	 */
 	private String findBarcode(String readSeq, byte readIndex) {
-		if(sortedBarcodes==null) initBarcodeSortedList();
-		String alphabet = DNASequence.BASES_STRING;
-		int firstIndex = alphabet.indexOf(readSeq.charAt(0));
-		int secondIndex = alphabet.indexOf(readSeq.charAt(1));
-		if(firstIndex <0 || secondIndex < 0 ) return null;
-		int first = ntPairFirsts[firstIndex][secondIndex];
-		int last = ntPairLasts[firstIndex][secondIndex];
-		if(first==-1) return null;
-		String selectedBarcode = null;
-		for(int i=first;i<=last;i++) {
-			String barcode = sortedBarcodes[i];
-			Set<String> barcodesReadIdx = barcodes1;
-			if(readIndex==2) barcodesReadIdx = barcodes2;
-			
-			boolean barcodeFound = readSeq.startsWith(barcode) && barcodesReadIdx.contains(barcode);
-			//The last condition is to taking into account cases where one barcode is substring of another
-			//and pick the longest matching barcode
-			if(barcodeFound && (selectedBarcode==null || selectedBarcode.length()<barcode.length()) ) {
-				selectedBarcode = barcode;
+		BarcodesTrie trie = (readIndex==2)?trie2:trie1;
+		if(trie==null) trie = getTrie(readIndex);
+		String barcode = trie.findLongestMatch(readSeq);
+		if(barcode==null && maxMismatches>0) barcode = trie.findBestMatch(readSeq, maxMismatches);
+		return barcode;
+	}
+	
+	/**
+	 * Trie of barcodes stored in arrays. Each node has one child for each nucleotide
+	 */
+	private static class BarcodesTrie {
+		private static final byte [] NT_CODES = new byte[128];
+		static {
+			Arrays.fill(NT_CODES, (byte)-1);
+			for(int i=0;i<DNASequence.BASES_STRING.length();i++) NT_CODES[DNASequence.BASES_STRING.charAt(i)] = (byte)i;
+		}
+		//Children of each node. -1 if the child does not exist
+		private int [][] children;
+		//Barcode ending at each node. Null if no barcode ends at the node
+		private String [] barcodes;
+		private int numNodes = 0;
+		
+		public BarcodesTrie(Set<String> barcodeSet) {
+			int maxNodes = 1;
+			for(String barcode:barcodeSet) maxNodes+=barcode.length();
+			children = new int[maxNodes][4];
+			barcodes = new String[maxNodes];
+			newNode();
+			for(String barcode:barcodeSet) add(barcode);
+		}
+		private int newNode() {
+			Arrays.fill(children[numNodes], -1);
+			return numNodes++;
+		}
+		private void add(String barcode) {
+			int node = 0;
+			for(int i=0;i<barcode.length();i++) {
+				int code = NT_CODES[barcode.charAt(i)];
+				if(children[node][code]==-1) children[node][code] = newNode();
+				node = children[node][code];
+			}
+			barcodes[node] = barcode;
+		}
+		private static int getCode(char c) {
+			if(c>=128) return -1;
+			return NT_CODES[c];
+		}
+		/**
+		 * Finds the longest barcode matching exactly the start of the given read
+		 * @param read Read sequence
+		 * @return String Longest barcode. Null if no barcode matches
+		 */
+		public String findLongestMatch(String read) {
+			String answer = null;
+			int node = 0;
+			for(int i=0;i<read.length();i++) {
+				int code = getCode(read.charAt(i));
+				if(code<0) break;
+				node = children[node][code];
+				if(node==-1) break;
+				if(barcodes[node]!=null) answer = barcodes[node];
+			}
+			return answer;
+		}
+		/**
+		 * Finds the barcode with the smallest number of mismatches with the start of the given read
+		 * @param read Read sequence
+		 * @param maxMismatches Maximum number of mismatches
+		 * @return String Best barcode. Null if no barcode has at most maxMismatches mismatches
+		 * or if two or more barcodes have the smallest number of mismatches
+		 */
+		public String findBestMatch(String read, int maxMismatches) {
+			MismatchesSearch search = new MismatchesSearch(read, maxMismatches);
+			search.visit(0, 0, 0);
+			if(search.numBest!=1) return null;
+			return search.best;
+		}
+		private class MismatchesSearch {
+			private String read;
+			private int maxMismatches;
+			private String best = null;
+			private int bestMismatches;
+			private int numBest = 0;
+			public MismatchesSearch(String read, int maxMismatches) {
+				this.read = read;
+				this.maxMismatches = maxMismatches;
+				bestMismatches = maxMismatches+1;
+			}
+			private void visit(int node, int pos, int mismatches) {
+				if(barcodes[node]!=null) {
+					if(mismatches<bestMismatches) {
+						best = barcodes[node];
+						bestMismatches = mismatches;
+						numBest = 1;
+					} else if (mismatches==bestMismatches) {
+						numBest++;
+					}
+				}
+				if(pos==read.length()) return;
+				int code = getCode(read.charAt(pos));
+				for(int c=0;c<4;c++) {
+					int child = children[node][c];
+					if(child==-1) continue;
+					int childMismatches = (c==code)?mismatches:mismatches+1;
+					//Barcodes with more mismatches than the best found so far are not needed
+					if(childMismatches>maxMismatches || childMismatches>bestMismatches) continue;
+					visit(child, pos+1, childMismatches);
+				}
 			}
 		}
-		return selectedBarcode;
 	}
 }
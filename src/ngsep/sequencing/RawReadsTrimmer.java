@@ -1,43 +1,178 @@
 package ngsep.sequencing;
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Scanner;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
 
-import ngsep.sequences.DegenerateSequence;
+import ngsep.main.CommandsDescriptor;
+import ngsep.main.OptionValuesDecoder;
+import ngsep.main.io.BGZFOutputStream;
 import ngsep.sequences.RawRead;
 import ngsep.sequences.io.FastqFileReader;
 
-
 public class RawReadsTrimmer {
-	
-	private String adapter = "AGATCG";
-	
-	private String inputDirectory;
-	private String outDirectory;
-	private String sampleNamesFile;
-	
+
+	// Constants for default values
+	public static final String DEF_ADAPTERS = "AGATCG";
+	public static final int DEF_TRIM_MAX_MISMATCHES = AdaptersTrimmer.DEF_MAX_MISMATCHES;
+	public static final int DEF_TRIM_MIN_OVERLAP = AdaptersTrimmer.DEF_MIN_OVERLAP;
+	public static final int DEF_MIN_READ_LENGTH = 40;
+	public static final int DEF_NUM_THREADS = 1;
+	//Number of read pairs trimmed by each task
+	private static final int READS_BATCH = 10000;
+
+	// Logging
+	private Logger log = Logger.getLogger(RawReadsTrimmer.class.getName());
+
+	// Parameters
+	private String inputDirectory = null;
+	private String sampleNamesFile = null;
+	private String outDirectory = ".";
+	private String [] adapters = DEF_ADAPTERS.split(",");
+	private String [] adapters2 = null;
+	private int trimMaxMismatches = DEF_TRIM_MAX_MISMATCHES;
+	private int trimMinOverlap = DEF_TRIM_MIN_OVERLAP;
+	private int minReadLength = DEF_MIN_READ_LENGTH;
+	private int numThreads = DEF_NUM_THREADS;
+
+	// Model attributes
+	private AdaptersTrimmer trimmer;
+	private AdaptersTrimmer trimmer2;
+
+	// Get and set methods
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+
+	public String getInputDirectory() {
+		return inputDirectory;
+	}
+	public void setInputDirectory(String inputDirectory) {
+		this.inputDirectory = inputDirectory;
+	}
+
+	public String getSampleNamesFile() {
+		return sampleNamesFile;
+	}
+	public void setSampleNamesFile(String sampleNamesFile) {
+		this.sampleNamesFile = sampleNamesFile;
+	}
+
+	public String getOutDirectory() {
+		return outDirectory;
+	}
+	public void setOutDirectory(String outDirectory) {
+		this.outDirectory = outDirectory;
+	}
+
+	public String [] getAdapters() {
+		return adapters;
+	}
+	public void setAdapters(String [] adapters) {
+		//Validates the sequences
+		new AdaptersTrimmer(adapters);
+		this.adapters = adapters;
+	}
+	public void setAdapters(String adaptersByComma) {
+		setAdapters(adaptersByComma.split(","));
+	}
+
+	public String [] getAdapters2() {
+		return adapters2;
+	}
+	/**
+	 * Changes the adapters searched in the second read of each pair
+	 * @param adapters2 Adapter sequences. If null, the second read is only trimmed to the length of the trimmed first read
+	 */
+	public void setAdapters2(String [] adapters2) {
+		//Validates the sequences
+		if(adapters2!=null) new AdaptersTrimmer(adapters2);
+		this.adapters2 = adapters2;
+	}
+	public void setAdapters2(String adaptersByComma) {
+		setAdapters2(adaptersByComma.split(","));
+	}
+
+	public int getTrimMaxMismatches() {
+		return trimMaxMismatches;
+	}
+	public void setTrimMaxMismatches(int trimMaxMismatches) {
+		if (trimMaxMismatches<0) throw new IllegalArgumentException("Maximum number of mismatches can not be negative. Given: "+trimMaxMismatches);
+		this.trimMaxMismatches = trimMaxMismatches;
+	}
+	public void setTrimMaxMismatches(String value) {
+		this.setTrimMaxMismatches((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+
+	public int getTrimMinOverlap() {
+		return trimMinOverlap;
+	}
+	public void setTrimMinOverlap(int trimMinOverlap) {
+		if (trimMinOverlap<0) throw new IllegalArgumentException("Minimum overlap can not be negative. Given: "+trimMinOverlap);
+		this.trimMinOverlap = trimMinOverlap;
+	}
+	public void setTrimMinOverlap(String value) {
+		this.setTrimMinOverlap((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+
+	public int getMinReadLength() {
+		return minReadLength;
+	}
+	public void setMinReadLength(int minReadLength) {
+		if (minReadLength<0) throw new IllegalArgumentException("Minimum read length can not be negative. Given: "+minReadLength);
+		this.minReadLength = minReadLength;
+	}
+	public void setMinReadLength(String value) {
+		this.setMinReadLength((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		if (numThreads<=0) throw new IllegalArgumentException("Number of threads must be a positive number. Given: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		this.setNumThreads((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+
 	public static void main(String[] args) throws Exception {
 		RawReadsTrimmer instance = new RawReadsTrimmer();
-		instance.inputDirectory = args[0];
-		instance.sampleNamesFile = args[1];
-		instance.outDirectory = args[2];
-		instance.adapter = args[3];
+		CommandsDescriptor.getInstance().loadOptions(instance, args);
 		instance.run();
 	}
 
-	private void run() throws FileNotFoundException, IOException {
+	public void run() throws FileNotFoundException, IOException {
+		if(inputDirectory==null) throw new IOException("The directory with the input fastq files is a required parameter");
+		if(sampleNamesFile==null) throw new IOException("The file with sample names and fastq files is a required parameter");
+		trimmer = new AdaptersTrimmer(adapters, trimMaxMismatches, trimMinOverlap);
+		if(adapters2!=null) trimmer2 = new AdaptersTrimmer(adapters2, trimMaxMismatches, trimMinOverlap);
 		loadFileNames();
+		log.info("Process finished");
 	}
-	
+
 	private void loadFileNames() throws IOException {
 		try (Scanner scanner = new Scanner(new File(sampleNamesFile))) {
 			while (scanner.hasNextLine()) {
@@ -52,30 +187,112 @@ public class RawReadsTrimmer {
 	}
 
 	private void trimAdapters(FastqFileReader reader1, String file1, FastqFileReader reader2, String file2) throws IOException {
-		Pattern pattern = Pattern.compile(DegenerateSequence.makeRegularExpression(adapter));
-		try(OutputStream os1 = new GZIPOutputStream(new FileOutputStream(outDirectory + File.separator+file1));
-			PrintStream out1 = new PrintStream(os1);
-			OutputStream os2 = new GZIPOutputStream(new FileOutputStream(outDirectory + File.separator+file2));
-			PrintStream out2 = new PrintStream(os2)) {
+		AdaptersTrimmer.Counts counts = trimmer.createCounts();
+		AdaptersTrimmer.Counts counts2 = trimmer2!=null?trimmer2.createCounts():null;
+		ExecutorService pool = null;
+		if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<ReadsBatch>> pendingBatches = new ArrayDeque<>();
+		try(OutputStream out1 = openOutputStream(outDirectory + File.separator+file1, pool);
+			OutputStream out2 = openOutputStream(outDirectory + File.separator+file2, pool)) {
 			Iterator<RawRead> it1 = reader1.iterator();
 			Iterator<RawRead> it2 = reader2.iterator();
 			while(it1.hasNext() && it2.hasNext()) {
-				RawRead read1 = it1.next();
-				RawRead read2 = it2.next();
-				int l1 = read1.getLength();
-				read1.trimFromSequence(pattern);
-
-				if(read1.getLength()!=l1) {
-					l1 = read1.getLength();
-					read2.trimToLength(l1);
+				ReadsBatch batch = new ReadsBatch();
+				while(batch.reads1.size()<READS_BATCH && it1.hasNext() && it2.hasNext()) {
+					batch.reads1.add(it1.next());
+					batch.reads2.add(it2.next());
+				}
+				if(pool==null) {
+					batch.process().save(out1, out2, counts, counts2);
+					continue;
 				}
-				if(l1>=40 ) {
+				pendingBatches.addLast(pool.submit(()->batch.process()));
+				if(pendingBatches.size()>=2*numThreads) nextBatch(pendingBatches).save(out1, out2, counts, counts2);
+			}
+			while(!pendingBatches.isEmpty()) nextBatch(pendingBatches).save(out1, out2, counts, counts2);
+		} finally {
+			if(pool!=null) pool.shutdownNow();
+		}
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(os);
+		out.println("Trimmed reads of file "+file1);
+		trimmer.printStatistics(counts, out);
+		if(trimmer2!=null) {
+			out.println("Trimmed reads of file "+file2);
+			trimmer2.printStatistics(counts2, out);
+		}
+		log.info(os.toString());
+ 	}
+
+	private OutputStream openOutputStream(String filename, ExecutorService pool) throws IOException {
+		OutputStream os = new FileOutputStream(filename);
+		if(pool!=null) return new BGZFOutputStream(os, pool, 2*numThreads);
+		return new GZIPOutputStream(os);
+	}
+
+	/**
+	 * Trims the first read with the adapters of the first reads and the second read with the adapters of the second reads.
+	 * If adapters are found in one or both reads, both reads are trimmed to the shortest trimmed length, which is the length of the insert
+	 * @param read1 First read of the pair
+	 * @param read2 Second read of the pair
+	 * @param counts Counts of the adapters of the first reads
+	 * @param counts2 Counts of the adapters of the second reads. Null if adapters are not searched in the second reads
+	 */
+	private void trimPair(RawRead read1, RawRead read2, AdaptersTrimmer.Counts counts, AdaptersTrimmer.Counts counts2) {
+		boolean trimmed1 = trimmer.trim(read1, counts)>=0;
+		boolean trimmed2 = trimmer2!=null && trimmer2.trim(read2, counts2)>=0;
+		if(!trimmed1 && !trimmed2) return;
+		int insertLength = Math.min(read1.getLength(), read2.getLength());
+		read1.trimToLength(insertLength);
+		read2.trimToLength(insertLength);
+	}
+
+	private ReadsBatch nextBatch(Deque<Future<ReadsBatch>> pendingBatches) throws IOException {
+		Future<ReadsBatch> next = pendingBatches.removeFirst();
+		try {
+			return next.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while trimming reads");
+		} catch (ExecutionException e) {
+			throw new IOException("Error trimming reads", e.getCause());
+		}
+	}
+
+	/**
+	 * Batch of read pairs trimmed by one thread. Pairs passing the length filter are kept as fastq text
+	 */
+	private class ReadsBatch {
+		private List<RawRead> reads1 = new ArrayList<>();
+		private List<RawRead> reads2 = new ArrayList<>();
+		private AdaptersTrimmer.Counts counts = trimmer.createCounts();
+		private AdaptersTrimmer.Counts counts2 = trimmer2!=null?trimmer2.createCounts():null;
+		private ByteArrayOutputStream data1 = new ByteArrayOutputStream();
+		private ByteArrayOutputStream data2 = new ByteArrayOutputStream();
+
+		public ReadsBatch process() {
+			PrintStream out1 = new PrintStream(data1);
+			PrintStream out2 = new PrintStream(data2);
+			for(int i=0;i<reads1.size();i++) {
+				RawRead read1 = reads1.get(i);
+				RawRead read2 = reads2.get(i);
+				trimPair(read1, read2, counts, counts2);
+				if(read1.getLength()>=minReadLength) {
 					read1.save(out1);
 					read2.save(out2);
 				}
-				
 			}
+			out1.flush();
+			out2.flush();
+			reads1 = null;
+			reads2 = null;
+			return this;
 		}
- 	}
-	
+		public void save(OutputStream out1, OutputStream out2, AdaptersTrimmer.Counts totalCounts, AdaptersTrimmer.Counts totalCounts2) throws IOException {
+			data1.writeTo(out1);
+			data2.writeTo(out2);
+			totalCounts.add(counts);
+			if(totalCounts2!=null) totalCounts2.add(counts2);
+		}
+	}
 }
@@ -24,21 +24,27 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
 import java.util.zip.GZIPOutputStream;
 
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
-import ngsep.sequences.DegenerateSequence;
+import ngsep.main.io.BGZFOutputStream;
 import ngsep.sequences.RawRead;
 import ngsep.sequences.io.FastqFileReader;
 import ngsep.sequencing.io.BarcodesFileLoader;
@@ -53,6 +59,14 @@ public class ReadsDemultiplex {
 	
 	// Constants for default values
 	public static final int DEF_MIN_READ_LENGTH = 40;
+	public static final int DEF_NUM_THREADS = 1;
+	public static final int DEF_MAX_MISMATCHES = BarcodeMap.DEF_MAX_MISMATCHES;
+	public static final int DEF_TRIM_MAX_MISMATCHES = AdaptersTrimmer.DEF_MAX_MISMATCHES;
+	public static final int DEF_TRIM_MIN_OVERLAP = AdaptersTrimmer.DEF_MIN_OVERLAP;
+	//Number of reads or read pairs demultiplexed by each task
+	private static final int READS_BATCH = 10000;
+	//Compressed blocks of each output file waiting to be written
+	private static final int MAX_PENDING_BLOCKS_SAMPLE = 2;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(ReadsDemultiplex.class.getName());
@@ -67,9 +81,13 @@ public class ReadsDemultiplex {
 	private String flowcell = null;
 	private String lane = null;
 	private String [] trimSequences = null;
+	private int trimMaxMismatches = DEF_TRIM_MAX_MISMATCHES;
+	private int trimMinOverlap = DEF_TRIM_MIN_OVERLAP;
 	private int minReadLength = DEF_MIN_READ_LENGTH;
 	private boolean uncompressedOutput = false;
 	private boolean dualBarcode = false;
+	private int numThreads = DEF_NUM_THREADS;
+	private int maxMismatches = DEF_MAX_MISMATCHES;
 	
 	
 	
@@ -80,13 +98,14 @@ public class ReadsDemultiplex {
 	
 	private BarcodeMap barcodeMap;
 	
-	private Pattern [] trimRegexps = null;
+	private AdaptersTrimmer adaptersTrimmer = null;
 	
 	//Statistics
 	private int total = 0;
 	private int notFound = 0;
 	private int tooShort = 0;
 	private Map<String,Integer> counts;
+	private AdaptersTrimmer.Counts trimCounts;
 	
 	// Get and set methods
 	public Logger getLog() {
@@ -167,20 +186,40 @@ public class ReadsDemultiplex {
 	}
 
 	public void setTrimSequences(String [] trimSequences) {
+		//Validates the sequences
+		if(trimSequences!=null) new AdaptersTrimmer(trimSequences);
 		this.trimSequences = trimSequences;
-		if(trimSequences!=null) {
-			trimRegexps = new Pattern[trimSequences.length];
-			for(int i=0;i<trimSequences.length;i++) {
-				trimRegexps[i] = Pattern.compile(DegenerateSequence.makeRegularExpression(trimSequences[i]));
-			}
-		} else {
-			trimRegexps = null;
-		}
  	}
 	
 	public void setTrimSequences(String trimSequencesByComma) {
 		setTrimSequences(trimSequencesByComma.split(","));
 	}
+	
+	public int getTrimMaxMismatches() {
+		return trimMaxMismatches;
+	}
+
+	public void setTrimMaxMismatches(int trimMaxMismatches) {
+		if (trimMaxMismatches<0) throw new IllegalArgumentException("Maximum number of mismatches can not be negative. Given: "+trimMaxMismatches);
+		this.trimMaxMismatches = trimMaxMismatches;
+	}
+	
+	public void setTrimMaxMismatches(String value) {
+		this.setTrimMaxMismatches((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public int getTrimMinOverlap() {
+		return trimMinOverlap;
+	}
+
+	public void setTrimMinOverlap(int trimMinOverlap) {
+		if (trimMinOverlap<0) throw new IllegalArgumentException("Minimum overlap can not be negative. Given: "+trimMinOverlap);
+		this.trimMinOverlap = trimMinOverlap;
+	}
+	
+	public void setTrimMinOverlap(String value) {
+		this.setTrimMinOverlap((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
 
 	public int getMinReadLength() {
 		return minReadLength;
@@ -219,6 +258,32 @@ public class ReadsDemultiplex {
 		this.uncompressedOutput = uncompressedOutput;
 	}
 	
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public void setNumThreads(int numThreads) {
+		if (numThreads<=0) throw new IllegalArgumentException("Number of threads must be a positive number. Given: "+numThreads);
+		this.numThreads = numThreads;
+	}
+	
+	public void setNumThreads(String value) {
+		this.setNumThreads((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public int getMaxMismatches() {
+		return maxMismatches;
+	}
+
+	public void setMaxMismatches(int maxMismatches) {
+		if (maxMismatches<0) throw new IllegalArgumentException("Maximum number of mismatches can not be negative. Given: "+maxMismatches);
+		this.maxMismatches = maxMismatches;
+	}
+	
+	public void setMaxMismatches(String value) {
+		this.setMaxMismatches((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
 	public String getPrefix() {
 		return prefix;
 	}
@@ -283,10 +348,14 @@ public class ReadsDemultiplex {
 			out.print("Trim sequences:");
 			for(String sequence:trimSequences) out.print(" "+sequence);
 			out.println();
+			out.println("Maximum mismatches to trim sequences: "+trimMaxMismatches);
+			if(trimMinOverlap>0) out.println("Minimum overlap to trim partial sequences at the end of reads: "+trimMinOverlap);
 		}
 		out.println("Minimum read length (after trimming): "+minReadLength);
 		if(dualBarcode) out.println("Dual barcoding");
+		out.println("Maximum mismatches to match barcodes: "+maxMismatches);
 		if(uncompressedOutput) out.println("Keep output uncompressed");
+		out.println("Number of threads: "+numThreads);
 		log.info(""+os.toString());
 	}
 
@@ -332,24 +401,9 @@ public class ReadsDemultiplex {
 	 */
 	public void demultiplex(String filename) throws IOException {
 		log.info("Demultiplexing file: "+filename);
-		
-		Map<String, PrintStream> outFiles = new TreeMap<String, PrintStream>();
-		initCounts();
-		
 		try (FastqFileReader reader = new FastqFileReader(filename)) {
-			Iterator<RawRead> it = reader.iterator();
-			while (it.hasNext()) {
-				RawRead read = it.next();
-				processRead(read, outFiles);
-				if(!keepRunning()) break;
-			}
-		} finally {
-			for(PrintStream s:outFiles.values()) {
-				s.flush();
-				s.close();
-			}
+			demultiplex(reader.iterator(), null);
 		}
-		printStatistics();
 	}
 	/**
 	 * Demultiplex raw reads taken from the given input stream
@@ -357,30 +411,126 @@ public class ReadsDemultiplex {
 	 * @throws IOException If the file can not be read
 	 */
 	public void demultiplex(InputStream input) throws IOException {
-		Map<String, PrintStream> outFiles = new TreeMap<String, PrintStream>();
-		initCounts();
-		
 		try (FastqFileReader reader = new FastqFileReader(input)) {
-			Iterator<RawRead> it = reader.iterator();
-			while (it.hasNext()) {
-				RawRead read = it.next();
-				processRead(read, outFiles);
-				if(!keepRunning()) break;
+			demultiplex(reader.iterator(), null);
+		}
+	}
+	
+	public void demultiplex(String filename1, String filename2) throws IOException {
+		try (FastqFileReader in1 = new FastqFileReader(filename1);
+			 FastqFileReader in2 = new FastqFileReader(filename2)) {
+			demultiplex(in1.iterator(), in2.iterator());
+		}
+	}
+	public void demultiplex(InputStream i1, InputStream i2) throws IOException {
+		try (FastqFileReader in1 = new FastqFileReader(i1);
+			 FastqFileReader in2 = new FastqFileReader(i2)) {
+			demultiplex(in1.iterator(), in2.iterator());
+		}
+	}
+	
+	/**
+	 * Demultiplex reads in batches. If more than one thread is used, batches are demultiplexed in parallel
+	 * and output blocks are compressed by the same pool of threads. Batches are saved in the order of the input
+	 * @param it1 Iterator over the reads
+	 * @param it2 Iterator over the second reads of each pair. Null for single reads
+	 * @throws IOException If the reads can not be read or the output files can not be written
+	 */
+	private void demultiplex(Iterator<RawRead> it1, Iterator<RawRead> it2) throws IOException {
+		Map<String, OutputStream> outFiles1 = new TreeMap<String, OutputStream>();
+		Map<String, OutputStream> outFiles2 = new TreeMap<String, OutputStream>();
+		barcodeMap.setMaxMismatches(maxMismatches);
+		adaptersTrimmer = null;
+		if(trimSequences!=null) adaptersTrimmer = new AdaptersTrimmer(trimSequences, trimMaxMismatches, trimMinOverlap);
+		initCounts();
+		ExecutorService pool = null;
+		if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<ReadsBatch>> pendingBatches = new ArrayDeque<>();
+		try {
+			while(true) {
+				ReadsBatch batch = loadBatch(it1, it2);
+				if(batch==null) break;
+				if(pool==null) {
+					batch.process();
+					saveBatch(batch, outFiles1, outFiles2, pool);
+					if(!keepRunning()) break;
+					continue;
+				}
+				pendingBatches.addLast(pool.submit(()->batch.process()));
+				if(pendingBatches.size()>=2*numThreads) {
+					saveBatch(nextBatch(pendingBatches), outFiles1, outFiles2, pool);
+					if(!keepRunning()) break;
+				}
 			}
+			while(!pendingBatches.isEmpty()) saveBatch(nextBatch(pendingBatches), outFiles1, outFiles2, pool);
 		} finally {
-			for(PrintStream s:outFiles.values()) {
-				s.flush();
-				s.close();
-			}
+			for(OutputStream s:outFiles1.values()) s.close();
+			for(OutputStream s:outFiles2.values()) s.close();
+			if(pool!=null) pool.shutdownNow();
 		}
 		printStatistics();
 	}
+	
+	private ReadsBatch loadBatch(Iterator<RawRead> it1, Iterator<RawRead> it2) {
+		ReadsBatch batch = new ReadsBatch(it2!=null);
+		while(batch.reads1.size()<READS_BATCH && it1.hasNext() && (it2==null || it2.hasNext())) {
+			batch.reads1.add(it1.next());
+			if(it2!=null) batch.reads2.add(it2.next());
+		}
+		if(batch.reads1.size()==0) return null;
+		return batch;
+	}
+	
+	private ReadsBatch nextBatch(Deque<Future<ReadsBatch>> pendingBatches) throws IOException {
+		Future<ReadsBatch> next = pendingBatches.removeFirst();
+		try {
+			return next.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while demultiplexing reads");
+		} catch (ExecutionException e) {
+			throw new IOException("Error demultiplexing reads", e.getCause());
+		}
+	}
+	
+	/**
+	 * Updates the statistics and writes the reads of the given batch to the files of the samples
+	 */
+	private void saveBatch(ReadsBatch batch, Map<String, OutputStream> outFiles1, Map<String, OutputStream> outFiles2, ExecutorService pool) throws IOException {
+		total+=batch.numReads;
+		notFound+=batch.notFound;
+		tooShort+=batch.tooShort;
+		if(trimCounts!=null) trimCounts.add(batch.trimCounts);
+		for(Map.Entry<String, ByteArrayOutputStream> entry:batch.data1.entrySet()) {
+			String sampleId = entry.getKey();
+			OutputStream out1 = outFiles1.get(sampleId);
+			OutputStream out2 = outFiles2.get(sampleId);
+			if(out1==null) {
+				if(batch.data2==null) {
+					out1 = getOutputStream(sampleId, pool);
+				} else {
+					out1 = getOutputStream(sampleId+"_1", pool);
+					out2 = getOutputStream(sampleId+"_2", pool);
+					outFiles2.put(sampleId, out2);
+				}
+				outFiles1.put(sampleId, out1);
+			}
+			entry.getValue().writeTo(out1);
+			if(batch.data2!=null) batch.data2.get(sampleId).writeTo(out2);
+			Integer count = counts.get(sampleId);
+			int batchCount = batch.counts.get(sampleId);
+			if(count==null) counts.put(sampleId, batchCount);
+			else counts.put(sampleId, count+batchCount);
+		}
+	}
 
 	private void initCounts() {
 		counts = new TreeMap<String, Integer>();
 		total = 0;
 		notFound = 0;
 		tooShort = 0;
+		trimCounts = null;
+		if(adaptersTrimmer!=null) trimCounts = adaptersTrimmer.createCounts();
 	}
 	
 	private void printStatistics() {
@@ -394,44 +544,32 @@ public class ReadsDemultiplex {
 		}
 		out.println("Not found\t"+notFound);
 		out.println("Fragment too short\t"+tooShort);
+		if(adaptersTrimmer!=null) {
+			out.println("Fragments trimmed by each sequence");
+			adaptersTrimmer.printStatistics(trimCounts, out);
+		}
 		log.info(os.toString());
 	}
 
 	/**
 	 * Demultiplex one single read
 	 * @param read to demultiplex
-	 * @param outFiles Map of files to choose
-	 * @return boolean true if the process should keep running
-	 * @throws IOException 
+	 * @param batch Batch receiving the read if the sample is found
 	 */
-	private void processRead(RawRead read, Map<String, PrintStream> outFiles) throws IOException {
-		total++;
+	private void processRead(RawRead read, ReadsBatch batch) {
 		String [] barcodeData = barcodeMap.getSampleIdByRead(read.getSequenceString());
 		if (barcodeData == null) {
-			notFound++;
+			batch.notFound++;
 		} else {
 			int barcodeLength = barcodeData[1].length();
 			//Trim barcode
 			read.trimFirstNucleotides(barcodeLength);
 			//Trim end if sequence appears
-			if(trimRegexps!=null) {
-				for(Pattern pattern:trimRegexps) {
-					if(read.trimFromSequence(pattern)) break;
-				}
-			}
+			if(adaptersTrimmer!=null) adaptersTrimmer.trim(read, batch.trimCounts);
 			if(read.getLength()>=minReadLength) {
-				String sampleId = barcodeData[0];
-				PrintStream out = outFiles.get(sampleId);
-				if(out==null) {
-					out = getOutputStream(sampleId);
-					outFiles.put(sampleId, out);
-				}
-				read.save(out);
-				Integer count = counts.get(sampleId);
-				if(count==null) counts.put(sampleId, 1);
-				else counts.put(sampleId, count+1);
+				batch.addRead(barcodeData[0], read, null);
 			} else {
-				tooShort++;
+				batch.tooShort++;
 			}
 		}
 	}
@@ -448,8 +586,14 @@ public class ReadsDemultiplex {
 		return true;
 	}
 
-	private PrintStream getOutputStream(String filePrefix) throws IOException {
-		PrintStream out;
+	/**
+	 * Opens the output file for the given prefix. Previous files are appended
+	 * @param filePrefix Prefix of the file name
+	 * @param pool Pool of threads to compress blocks. If null, files are compressed by the calling thread
+	 * @return OutputStream Stream to write reads
+	 * @throws IOException If the file can not be opened
+	 */
+	private OutputStream getOutputStream(String filePrefix, ExecutorService pool) throws IOException {
 		String filename =  filePrefix + ".fastq";
 		if(!uncompressedOutput) filename+=".gz";
 		if(prefix!=null && Character.isDigit(filename.charAt(0))) {
@@ -460,73 +604,19 @@ public class ReadsDemultiplex {
 		}
 		File f = new File(filename);
 		OutputStream os = new FileOutputStream(filename,f.exists());
-		if(!uncompressedOutput) os = new GZIPOutputStream(os); 
-		out = new PrintStream(os);
-		return out;
-	}
-	public void demultiplex(String filename1, String filename2) throws IOException {
-		Map<String, PrintStream> outFiles1 = new TreeMap<String, PrintStream>();
-		Map<String, PrintStream> outFiles2 = new TreeMap<String, PrintStream>();
-		initCounts();
-		try (FastqFileReader in1 = new FastqFileReader(filename1);
-			 FastqFileReader in2 = new FastqFileReader(filename2)) {
-			Iterator<RawRead> it1 = in1.iterator();
-			Iterator<RawRead> it2 = in2.iterator();
-			while (it1.hasNext() && it2.hasNext()) {
-				RawRead read1 = it1.next();
-				RawRead read2 = it2.next();
-				demultiplexReadPair(read1, read2, outFiles1, outFiles2);
-				if(!keepRunning()) break;
-			}
-		} finally {
-			for(PrintStream s:outFiles1.values()) {
-				s.flush();
-				s.close();
-			}
-			for(PrintStream s:outFiles2.values()) {
-				s.flush();
-				s.close();
-			}
-		}
-		printStatistics();
-	}
-	public void demultiplex(InputStream i1, InputStream i2) throws IOException {
-		Map<String, PrintStream> outFiles1 = new TreeMap<String, PrintStream>();
-		Map<String, PrintStream> outFiles2 = new TreeMap<String, PrintStream>();
-		initCounts();
-		try (FastqFileReader in1 = new FastqFileReader(i1);
-			 FastqFileReader in2 = new FastqFileReader(i2)) {
-			Iterator<RawRead> it1 = in1.iterator();
-			Iterator<RawRead> it2 = in2.iterator();
-			while (it1.hasNext() && it2.hasNext()) {
-				RawRead read1 = it1.next();
-				RawRead read2 = it2.next();
-				demultiplexReadPair(read1, read2, outFiles1, outFiles2);
-				if(!keepRunning()) break;
-			}
-		} finally {
-			for(PrintStream s:outFiles1.values()) {
-				s.flush();
-				s.close();
-			}
-			for(PrintStream s:outFiles2.values()) {
-				s.flush();
-				s.close();
-			}
-		}
-		printStatistics();
+		if(uncompressedOutput) return os;
+		//BGZF files are valid gzip files and allow to compress blocks in parallel
+		if(pool!=null) return new BGZFOutputStream(os, pool, MAX_PENDING_BLOCKS_SAMPLE);
+		return new GZIPOutputStream(os);
 	}
 
 	/**
 	 * Demultiplex two reads as a pair
 	 * @param read1 First read of the pair
 	 * @param read2 Second read of the pair
-	 * @param outFiles1 List of out files to choose
-	 * @param outFiles2 List of out files to choose
-	 * @throws IOException If the out files can not be written
+	 * @param batch Batch receiving the pair if the sample is found
 	 */
-	private void demultiplexReadPair(RawRead read1, RawRead read2, Map<String, PrintStream> outFiles1, Map<String, PrintStream> outFiles2) throws IOException {
-		total++;
+	private void demultiplexReadPair(RawRead read1, RawRead read2, ReadsBatch batch) {
 		String [] barcodeData;
 		if(dualBarcode) {
 			barcodeData = barcodeMap.getSampleIdByReadPair(read1.getSequenceString(), read2.getSequenceString());
@@ -535,7 +625,7 @@ public class ReadsDemultiplex {
 			barcodeData = barcodeMap.getSampleIdByRead(read1.getSequenceString());
 		}
 		if (barcodeData == null) {
-			notFound++;
+			batch.notFound++;
 			return;
 		}
 		//Trim barcode
@@ -545,33 +635,70 @@ public class ReadsDemultiplex {
 		}
 		//Trim end if sequence appears
 		int l1 = read1.getLength();
-		if(trimRegexps!=null) {
-			for(Pattern pattern:trimRegexps) {
-				if(read1.trimFromSequence(pattern)) break;
-			}
-		}
+		if(adaptersTrimmer!=null) adaptersTrimmer.trim(read1, batch.trimCounts);
 		
 		if(read1.getLength()!=l1) {
 			read2.trimToLength(read1.getLength());
 		}
 		if(read1.getLength()>=minReadLength) {
-			String sampleId = barcodeData[0];
-			PrintStream out1 = outFiles1.get(sampleId);
-			PrintStream out2 = outFiles2.get(sampleId);
-			if(out1==null) {
-				out1 = getOutputStream(sampleId+"_1");
-				out2 = getOutputStream(sampleId+"_2");
-				outFiles1.put(sampleId, out1);
-				outFiles2.put(sampleId, out2);
+			batch.addRead(barcodeData[0], read1, read2);
+		} else {
+			batch.tooShort++;
+		}
+	}
+	
+	/**
+	 * Batch of consecutive reads or read pairs demultiplexed by one thread.
+	 * Reads assigned to each sample are kept as fastq text until the batch is saved
+	 */
+	private class ReadsBatch {
+		private List<RawRead> reads1 = new ArrayList<>();
+		private List<RawRead> reads2 = null;
+		private int numReads = 0;
+		private int notFound = 0;
+		private int tooShort = 0;
+		private AdaptersTrimmer.Counts trimCounts = null;
+		private Map<String,Integer> counts = new TreeMap<>();
+		private Map<String,ByteArrayOutputStream> data1 = new TreeMap<>();
+		private Map<String,ByteArrayOutputStream> data2 = null;
+		private Map<String,PrintStream> outs1 = new TreeMap<>();
+		private Map<String,PrintStream> outs2 = null;
+		
+		public ReadsBatch(boolean paired) {
+			if(adaptersTrimmer!=null) trimCounts = adaptersTrimmer.createCounts();
+			if(paired) {
+				reads2 = new ArrayList<>();
+				data2 = new TreeMap<>();
+				outs2 = new TreeMap<>();
 			}
-			read1.save(out1);
-			read2.save(out2);
+		}
+		public ReadsBatch process() {
+			numReads = reads1.size();
+			for(int i=0;i<numReads;i++) {
+				if(reads2==null) processRead(reads1.get(i), this);
+				else demultiplexReadPair(reads1.get(i), reads2.get(i), this);
+			}
+			//Reads are not needed anymore
+			reads1 = null;
+			reads2 = null;
+			return this;
+		}
+		private void addRead(String sampleId, RawRead read1, RawRead read2) {
+			read1.save(getStream(sampleId, data1, outs1));
+			if(read2!=null) read2.save(getStream(sampleId, data2, outs2));
 			Integer count = counts.get(sampleId);
 			if(count==null) counts.put(sampleId, 1);
 			else counts.put(sampleId, count+1);
-		} else {
-			tooShort++;
+		}
+		private PrintStream getStream(String sampleId, Map<String,ByteArrayOutputStream> data, Map<String,PrintStream> outs) {
+			PrintStream out = outs.get(sampleId);
+			if(out==null) {
+				ByteArrayOutputStream os = new ByteArrayOutputStream();
+				out = new PrintStream(os);
+				data.put(sampleId, os);
+				outs.put(sampleId, out);
+			}
+			return out;
 		}
 	}
-	
 }
@@ -3,10 +3,17 @@ package ngsep.simulation;
 import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Random;
+import java.util.Deque;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
 
@@ -14,6 +21,7 @@ import ngsep.genome.ReferenceGenome;
 import ngsep.main.CommandsDescriptor;
 import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
+import ngsep.main.io.BGZFOutputStream;
 import ngsep.sequences.DNAMaskedSequence;
 import ngsep.sequences.DNASequence;
 import ngsep.sequences.QualifiedSequence;
@@ -30,6 +38,10 @@ public class SingleReadsSimulator {
 	public static final double DEF_INDEL_ERROR_RATE = 0.01;
 	public static final byte OUT_FORMAT_FASTQ = 0;
 	public static final byte OUT_FORMAT_FASTA = 1;
+	public static final int DEF_NUM_THREADS = 1;
+	//Number of reads simulated by each task
+	private static final int READS_BATCH = 1000;
+	private static final int OUTPUT_BUFFER_SIZE = 65536;
 	
 	// Logging and progress
 	private Logger log = Logger.getLogger(SingleReadsSimulator.class.getName());
@@ -45,8 +57,8 @@ public class SingleReadsSimulator {
 	private double substitutionErrorRate = DEF_SUBSTITUTION_ERROR_RATE;
 	private double indelErrorRate = DEF_INDEL_ERROR_RATE;
 	private byte outFormat = OUT_FORMAT_FASTQ;
-
-	private final static Random rnd = new Random();
+	private int numThreads = DEF_NUM_THREADS;
+	private long seed = new SplittableRandom().nextLong();
 
 	// Get and set methods
 	
@@ -111,6 +123,16 @@ public class SingleReadsSimulator {
 		this.setStdevReadlength((int) OptionValuesDecoder.decode(value, Integer.class));
 	}
 
+	public int getMinReadLength() {
+		return minReadLength;
+	}
+	public void setMinReadLength(int minReadLength) {
+		this.minReadLength = minReadLength;
+	}
+	public void setMinReadLength(String value) {
+		this.setMinReadLength((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+
 	public double getSubstitutionErrorRate() {
 		return substitutionErrorRate;
 	}
@@ -141,6 +163,26 @@ public class SingleReadsSimulator {
 		this.setOutFormat((byte) OptionValuesDecoder.decode(value, Byte.class));
 	}
 
+	public int getNumThreads() {
+		return numThreads;
+	}
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+	public void setNumThreads(String value) {
+		this.setNumThreads((int) OptionValuesDecoder.decode(value, Integer.class));
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+	public void setSeed(String value) {
+		this.setSeed((long) OptionValuesDecoder.decode(value, Long.class));
+	}
+
 	public static void main(String[] args) throws Exception {
 		SingleReadsSimulator instance = new SingleReadsSimulator();
 		CommandsDescriptor.getInstance().loadOptions(instance, args);
@@ -166,6 +208,8 @@ public class SingleReadsSimulator {
 		out.println("Indel error rate: " + indelErrorRate);
 		if(OUT_FORMAT_FASTA==outFormat) out.println("Reads will be generated in FASTA format");
 		if(OUT_FORMAT_FASTQ==outFormat) out.println("Reads will be generated in FASTQ format");
+		out.println("Seed for random numbers: " + seed);
+		out.println("Number of threads: " + numThreads);
 		log.info(os.toString());
 	}
 	
@@ -178,24 +222,77 @@ public class SingleReadsSimulator {
 			cumulativeStarts[i] = cumulativeStarts[i - 1] + genome.getSequenceByIndex(i - 1).getLength();
 		}
 		if(!outputFile.toLowerCase().endsWith(".gz")) outputFile=outputFile+".gz";
-		try (OutputStream os = new GZIPOutputStream(new FileOutputStream(outputFile));
-			 PrintStream out = new PrintStream(os)) {
-			for (int i = 0; i < numberOfReads; i++) {
-				int readLength;
-				long nextStart;
+		//Each batch receives its own generator split from the main generator in the order of the batches.
+		//Hence, the simulated reads only depend on the seed and not on the number of threads
+		SplittableRandom random = new SplittableRandom(seed);
+		ExecutorService pool = null;
+		if(numThreads>1) pool = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<ReadsBatch>> pendingBatches = new ArrayDeque<>();
+		try (OutputStream out = openOutputStream(outputFile, pool)) {
+			for (int first = 0; first < numberOfReads; first+=READS_BATCH) {
+				ReadsBatch batch = new ReadsBatch(first, Math.min(numberOfReads, first+READS_BATCH), random.split(), cumulativeStarts, totalLength);
+				if(pool==null) {
+					batch.process().save(out);
+				} else {
+					pendingBatches.addLast(pool.submit(()->batch.process()));
+					if(pendingBatches.size()>=2*numThreads) nextBatch(pendingBatches).save(out);
+				}
+				if(progressNotifier!=null && !progressNotifier.keepRunning(first/READS_BATCH+1)) break;
+			}
+			while(!pendingBatches.isEmpty()) nextBatch(pendingBatches).save(out);
+		} finally {
+			if(pool!=null) pool.shutdownNow();
+		}
+	}
+
+	private OutputStream openOutputStream(String filename, ExecutorService pool) throws IOException {
+		OutputStream os = new FileOutputStream(filename);
+		if(pool!=null) return new BGZFOutputStream(os, pool, 2*numThreads);
+		return new GZIPOutputStream(os, OUTPUT_BUFFER_SIZE);
+	}
+
+	private ReadsBatch nextBatch(Deque<Future<ReadsBatch>> pendingBatches) throws IOException {
+		Future<ReadsBatch> next = pendingBatches.removeFirst();
+		try {
+			return next.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while simulating reads");
+		} catch (ExecutionException e) {
+			throw new IOException("Error simulating reads", e.getCause());
+		}
+	}
+
+	/**
+	 * Batch of consecutive reads simulated by one thread with its own random generator
+	 */
+	private class ReadsBatch {
+		private int first;
+		private int last;
+		private SplittableRandom rnd;
+		private long [] cumulativeStarts;
+		private long totalLength;
+		private ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+		public ReadsBatch(int first, int last, SplittableRandom rnd, long [] cumulativeStarts, long totalLength) {
+			this.first = first;
+			this.last = last;
+			this.rnd = rnd;
+			this.cumulativeStarts = cumulativeStarts;
+			this.totalLength = totalLength;
+		}
+
+		public ReadsBatch process() {
+			PrintStream out = new PrintStream(data);
+			for (int i = first; i < last; i++) {
 				QualifiedSequence seq = null;
 				int relStart = 0;
-				byte reverse = 0;
-				String read = null;
+				char [] read = null;
 				for (int j = 0; j < 100; j++) {
-					readLength = (int) (rnd.nextGaussian() * stdevReadlength + meanReadLength);
-					if(readLength<minReadLength) continue;
-					long nextLong = rnd.nextLong();
-					nextStart = nextLong % (totalLength - readLength);
-					if (nextStart < 0) continue;
-
+					int readLength = (int) (nextGaussian() * stdevReadlength + meanReadLength);
+					if(readLength<minReadLength || readLength>=totalLength) continue;
+					long nextStart = rnd.nextLong(totalLength - readLength);
 					int idx1 = Arrays.binarySearch(cumulativeStarts, nextStart);
-
 					int sequenceIdx;
 					if (idx1 >= 0)
 						sequenceIdx = idx1;
@@ -204,18 +301,21 @@ public class SingleReadsSimulator {
 					}
 					seq = genome.getSequenceByIndex(sequenceIdx);
 					relStart = (int) (nextStart - cumulativeStarts[sequenceIdx]);
-					int relEnd = relStart + readLength;
-					if (relEnd <= seq.getLength()) {
-						read = seq.getCharacters().subSequence(relStart, relEnd).toString().toUpperCase();
+					if (relStart + readLength <= seq.getLength()) {
+						read = new char[readLength];
+						CharSequence characters = seq.getCharacters();
+						for(int k=0;k<readLength;k++) read[k] = Character.toUpperCase(characters.charAt(relStart+k));
 						break;
 					}
 				}
 				if (read == null) continue;
+				byte reverse = 0;
 				if (rnd.nextBoolean()) {
 					reverse = 1;
-					read = DNAMaskedSequence.getReverseComplement(read).toString();
+					reverseComplement(read);
 				}
-				String finalRead = generateErrors(read);
+				generateSubstitutionErrors(read);
+				char [] finalRead = generateIndelErrorsMononucleotides(read);
 				String readId = seq.getName() + "_" + (relStart+1) + "_" + reverse + "_" + (i+1);
 				if(outFormat == OUT_FORMAT_FASTA) {
 					out.println(">" + readId);
@@ -224,86 +324,78 @@ public class SingleReadsSimulator {
 					out.println("@" + readId);
 					out.println(finalRead);
 					out.println("+");
-					out.println(RawRead.generateFixedQSString('J', finalRead.length()));
+					out.println(RawRead.generateFixedQSString('J', finalRead.length));
 				}
-				
 			}
+			out.flush();
+			return this;
+		}
+
+		public void save(OutputStream out) throws IOException {
+			data.writeTo(out);
 		}
-	}
 
-	private String generateErrors(String read) {
-		String read2 = generateSubstitutionErrors(read);
-		//return generateIndelErrorsRandom(read2);
-		return generateIndelErrorsMononucleotides(read2);
-	}
-	private String generateSubstitutionErrors (String read) {
-		String alphabet = DNASequence.BASES_STRING;
-		int len = read.length();
-		StringBuilder answer = new StringBuilder(len);
+		/**
+		 * Generates a standard normal value with the polar method
+		 * @return double Random value from a standard normal distribution
+		 */
+		private double nextGaussian() {
+			double v1, v2, s;
+			do {
+				v1 = 2 * rnd.nextDouble() - 1;
+				v2 = 2 * rnd.nextDouble() - 1;
+				s = v1 * v1 + v2 * v2;
+			} while (s >= 1 || s == 0);
+			return v1 * Math.sqrt(-2 * Math.log(s) / s);
+		}
 
-		for(int i=0;i<len;i++) {
-			char c = read.charAt(i);
-			if(rnd.nextDouble()<substitutionErrorRate) {
-				// Generate random substitution
-				char c2 = c;
-				for (int j=0; j<100 && c == c2;j++) {
-					c2 = alphabet.charAt(rnd.nextInt(alphabet.length()));
-				}
-				c = c2;
+		private void reverseComplement(char [] read) {
+			for(int i=0,j=read.length-1;i<=j;i++,j--) {
+				char c = DNAMaskedSequence.getComplement(read[i]);
+				read[i] = DNAMaskedSequence.getComplement(read[j]);
+				read[j] = c;
 			}
-			answer.append(c);
 		}
-		return answer.toString();
-	}
-	private String generateIndelErrorsRandom (String read) {
-		String alphabet = DNASequence.BASES_STRING;
-		int len = read.length();
-		StringBuilder answer = new StringBuilder(len);
 
-		for(int i=0;i<len;i++) {
-			if(rnd.nextDouble()<indelErrorRate) {
-				//Generate random indels
-				int length = 0;
-				for (int j=0; j<100 && length == 0;j++) {
-					length = (int) Math.round(rnd.nextGaussian()*2.0);
-				}
-				length = Math.min(length, 5);
-				length = Math.max(length, -5);
-				if(length < 0) {
-					//Deletion
-					i-=(length+1);
-				} else {
-					//Insertion
-					answer.append(read.charAt(i));
-					for (int j=0; j<length;j++) answer.append(alphabet.charAt(0));
+		private void generateSubstitutionErrors (char [] read) {
+			String alphabet = DNASequence.BASES_STRING;
+			for(int i=0;i<read.length;i++) {
+				if(rnd.nextDouble()<substitutionErrorRate) {
+					// Generate random substitution
+					char c = read[i];
+					char c2 = c;
+					for (int j=0; j<100 && c == c2;j++) {
+						c2 = alphabet.charAt(rnd.nextInt(alphabet.length()));
+					}
+					read[i] = c2;
 				}
 			}
 		}
-		return answer.toString();
-	}
-	private String generateIndelErrorsMononucleotides (String read) {
-		int len = read.length();
-		StringBuilder answer = new StringBuilder(len);
-		int mononucleotideCount = 0;
-		char lastChar = 0;
-		for(int i=0;i<len;i++) {
-			char c = read.charAt(i);
-			if(c==lastChar) mononucleotideCount++;
-			else mononucleotideCount = 1;
-			lastChar = c;
-			if(mononucleotideCount>1 && rnd.nextDouble()<indelErrorRate) {
-				if(rnd.nextInt(2)==1) {
-					//Insertion
-					answer.append(c);
-				} else {
-					//Deletion
-					continue;
+
+		private char [] generateIndelErrorsMononucleotides (char [] read) {
+			int len = read.length;
+			//Insertions can at most double the length of the read
+			char [] answer = new char[2*len];
+			int n = 0;
+			int mononucleotideCount = 0;
+			char lastChar = 0;
+			for(int i=0;i<len;i++) {
+				char c = read[i];
+				if(c==lastChar) mononucleotideCount++;
+				else mononucleotideCount = 1;
+				lastChar = c;
+				if(mononucleotideCount>1 && rnd.nextDouble()<indelErrorRate) {
+					if(rnd.nextInt(2)==1) {
+						//Insertion
+						answer[n++] = c;
+					} else {
+						//Deletion
+						continue;
+					}
 				}
+				answer[n++] = c;
 			}
-			answer.append(c);
-			
+			return Arrays.copyOf(answer, n);
 		}
-		return answer.toString();
 	}
-
 }
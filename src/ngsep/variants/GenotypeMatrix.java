@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.variants;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Matrix of small genotype codes packed with a fixed number of bits per entry.
+ * Rows are usually variants and columns are usually samples. Rows are added one at a time.
+ * Rows are kept in memory until the matrix reaches a maximum size. Then, they are saved in a temporary file
+ * which is memory mapped for reading. Entries can be read by rows or by blocks of columns
+ * @author Jorge Duitama
+ */
+public class GenotypeMatrix implements Closeable {
+	public static final long DEF_MAX_MEMORY = Runtime.getRuntime().maxMemory()/4;
+	private static final int CHUNK_SIZE = 1<<20;
+	private static final long MAX_SEGMENT_SIZE = 1L<<30;
+
+	private int numColumns;
+	private int bitsPerEntry;
+	private int entriesPerByte;
+	private int entryMask;
+	private int bytesPerRow;
+	private long numRows = 0;
+	private long maxMemory = DEF_MAX_MEMORY;
+
+	//Rows stored in memory grouped in chunks of rowsPerChunk rows
+	private int rowsPerChunk;
+	private List<byte []> chunks = new ArrayList<>();
+	//Temporary file storing the rows after the maximum memory is reached
+	private File tmpFile = null;
+	private RandomAccessFile tmpStorage = null;
+	private ByteBuffer writeBuffer = null;
+	//Read only segments of the temporary file. Each segment contains rowsPerSegment rows
+	private List<MappedByteBuffer> segments = null;
+	private long rowsPerSegment;
+
+	private byte [] packedRow;
+
+	/**
+	 * Creates an empty matrix
+	 * @param numColumns Number of columns of each row
+	 * @param bitsPerEntry Number of bits of each entry. It must be 1, 2, 4 or 8
+	 */
+	public GenotypeMatrix(int numColumns, int bitsPerEntry) {
+		if(numColumns<0) throw new IllegalArgumentException("Invalid number of columns: "+numColumns);
+		if(bitsPerEntry!=1 && bitsPerEntry!=2 && bitsPerEntry!=4 && bitsPerEntry!=8) throw new IllegalArgumentException("Bits per entry must be 1, 2, 4 or 8. Given: "+bitsPerEntry);
+		this.numColumns = numColumns;
+		this.bitsPerEntry = bitsPerEntry;
+		entriesPerByte = 8/bitsPerEntry;
+		entryMask = (1<<bitsPerEntry)-1;
+		bytesPerRow = (numColumns+entriesPerByte-1)/entriesPerByte;
+		rowsPerChunk = Math.max(1, CHUNK_SIZE/Math.max(1, bytesPerRow));
+		packedRow = new byte[bytesPerRow];
+	}
+
+	public int getNumColumns() {
+		return numColumns;
+	}
+	public long getNumRows() {
+		return numRows;
+	}
+	public int getBitsPerEntry() {
+		return bitsPerEntry;
+	}
+	/**
+	 * @return int Largest value that can be stored in an entry
+	 */
+	public int getMaxValue() {
+		return entryMask;
+	}
+	public long getMaxMemory() {
+		return maxMemory;
+	}
+	/**
+	 * @param maxMemory Maximum number of bytes kept in memory. Larger matrices are saved in a temporary file
+	 */
+	public void setMaxMemory(long maxMemory) {
+		if(numRows>0) throw new IllegalStateException("The maximum memory can not be changed after rows are added");
+		this.maxMemory = maxMemory;
+	}
+	/**
+	 * @return boolean true if the rows are saved in a temporary file
+	 */
+	public boolean isFileBacked() {
+		return tmpFile!=null;
+	}
+
+	/**
+	 * Adds a new row to the matrix
+	 * @param codes Values of the entries read as unsigned bytes. Values must be between zero and getMaxValue()
+	 * @throws IOException If the row can not be saved in the temporary file
+	 */
+	public void addRow(byte [] codes) throws IOException {
+		if(codes.length!=numColumns) throw new IllegalArgumentException("Row with "+codes.length+" entries can not be added to a matrix with "+numColumns+" columns");
+		if(segments!=null) throw new IllegalStateException("Rows can not be added after the matrix is read from the temporary file");
+		for(int i=0;i<bytesPerRow;i++) packedRow[i] = 0;
+		for(int j=0;j<numColumns;j++) {
+			int code = codes[j] & 0xff;
+			if(code>entryMask) throw new IllegalArgumentException("Value "+code+" can not be stored with "+bitsPerEntry+" bits");
+			packedRow[j/entriesPerByte] |= code<<((j%entriesPerByte)*bitsPerEntry);
+		}
+		if(tmpFile==null && (numRows+1)*bytesPerRow>maxMemory) moveToFile();
+		if(tmpFile!=null) {
+			if(writeBuffer.remaining()<bytesPerRow) flushWriteBuffer();
+			if(writeBuffer.remaining()<bytesPerRow) {
+				//Rows larger than the buffer are written directly
+				ByteBuffer rowBuffer = ByteBuffer.wrap(packedRow);
+				while(rowBuffer.hasRemaining()) tmpStorage.getChannel().write(rowBuffer);
+			} else {
+				writeBuffer.put(packedRow);
+			}
+		} else {
+			int chunk = (int)(numRows/rowsPerChunk);
+			if(chunk==chunks.size()) chunks.add(new byte[rowsPerChunk*bytesPerRow]);
+			System.arraycopy(packedRow, 0, chunks.get(chunk), (int)(numRows%rowsPerChunk)*bytesPerRow, bytesPerRow);
+		}
+		numRows++;
+	}
+
+	private void moveToFile() throws IOException {
+		tmpFile = File.createTempFile("ngsepGenotypes", ".bin");
+		tmpFile.deleteOnExit();
+		tmpStorage = new RandomAccessFile(tmpFile, "rw");
+		writeBuffer = ByteBuffer.allocate(CHUNK_SIZE);
+		FileChannel channel = tmpStorage.getChannel();
+		for(int i=0;i<chunks.size();i++) {
+			long rowsChunk = Math.min(rowsPerChunk, numRows-(long)i*rowsPerChunk);
+			ByteBuffer chunkBuffer = ByteBuffer.wrap(chunks.get(i), 0, (int)rowsChunk*bytesPerRow);
+			while(chunkBuffer.hasRemaining()) channel.write(chunkBuffer);
+		}
+		chunks.clear();
+	}
+
+	private void flushWriteBuffer() throws IOException {
+		writeBuffer.flip();
+		FileChannel channel = tmpStorage.getChannel();
+		while(writeBuffer.hasRemaining()) channel.write(writeBuffer);
+		writeBuffer.clear();
+	}
+
+	private void mapFile() throws IOException {
+		flushWriteBuffer();
+		FileChannel channel = tmpStorage.getChannel();
+		rowsPerSegment = Math.max(1, MAX_SEGMENT_SIZE/Math.max(1, bytesPerRow));
+		segments = new ArrayList<>();
+		for(long first=0;first<numRows;first+=rowsPerSegment) {
+			long rows = Math.min(rowsPerSegment, numRows-first);
+			segments.add(channel.map(FileChannel.MapMode.READ_ONLY, first*bytesPerRow, rows*bytesPerRow));
+		}
+	}
+
+	private byte getRowByte(long row, int byteIdx) throws IOException {
+		if(tmpFile==null) return chunks.get((int)(row/rowsPerChunk))[(int)(row%rowsPerChunk)*bytesPerRow+byteIdx];
+		if(segments==null) mapFile();
+		return segments.get((int)(row/rowsPerSegment)).get((int)(row%rowsPerSegment)*bytesPerRow+byteIdx);
+	}
+
+	/**
+	 * Returns the value of one entry
+	 * @param row Index of the row
+	 * @param column Index of the column
+	 * @return int Value of the entry
+	 * @throws IOException If the temporary file can not be read
+	 */
+	public int get(long row, int column) throws IOException {
+		if(row<0 || row>=numRows) throw new IndexOutOfBoundsException("Invalid row "+row+" for a matrix with "+numRows+" rows");
+		if(column<0 || column>=numColumns) throw new IndexOutOfBoundsException("Invalid column "+column+" for a matrix with "+numColumns+" columns");
+		int b = getRowByte(row, column/entriesPerByte);
+		return (b>>((column%entriesPerByte)*bitsPerEntry)) & entryMask;
+	}
+
+	/**
+	 * Loads the values of one row
+	 * @param row Index of the row
+	 * @param codes Array to store the values. It must have at least getNumColumns() entries
+	 * @throws IOException If the temporary file can not be read
+	 */
+	public void getRow(long row, byte [] codes) throws IOException {
+		if(row<0 || row>=numRows) throw new IndexOutOfBoundsException("Invalid row "+row+" for a matrix with "+numRows+" rows");
+		for(int i=0;i<bytesPerRow;i++) {
+			int b = getRowByte(row, i);
+			int firstColumn = i*entriesPerByte;
+			int lastColumn = Math.min(numColumns, firstColumn+entriesPerByte);
+			for(int j=firstColumn;j<lastColumn;j++) {
+				codes[j] = (byte)(b & entryMask);
+				b>>=bitsPerEntry;
+			}
+		}
+	}
+
+	/**
+	 * Loads the values of a block of consecutive columns reading the rows once
+	 * @param firstColumn Index of the first column of the block
+	 * @param numBlockColumns Number of columns of the block
+	 * @return byte[][] Values of the block. The first index is the column within the block and the second index is the row
+	 * @throws IOException If the temporary file can not be read
+	 */
+	public byte [][] getColumns(int firstColumn, int numBlockColumns) throws IOException {
+		if(firstColumn<0 || numBlockColumns<0 || firstColumn+numBlockColumns>numColumns) throw new IndexOutOfBoundsException("Invalid block of "+numBlockColumns+" columns starting at "+firstColumn+" for a matrix with "+numColumns+" columns");
+		if(numRows>Integer.MAX_VALUE) throw new IllegalStateException("Columns can not be loaded for matrices with more than "+Integer.MAX_VALUE+" rows");
+		byte [][] answer = new byte[numBlockColumns][(int)numRows];
+		for(int row=0;row<numRows;row++) {
+			for(int j=0;j<numBlockColumns;j++) {
+				int column = firstColumn+j;
+				int b = getRowByte(row, column/entriesPerByte);
+				answer[j][row] = (byte)((b>>((column%entriesPerByte)*bitsPerEntry)) & entryMask);
+			}
+		}
+		return answer;
+	}
+
+	/**
+	 * Calculates the number of columns that can be loaded with getColumns within the given memory
+	 * @param memory Maximum number of bytes for the block
+	 * @return int Number of columns. At least one if the matrix has columns
+	 */
+	public int getColumnsBlockSize(long memory) {
+		if(numColumns==0) return 0;
+		long columns = memory/Math.max(1, numRows);
+		return (int)Math.max(1, Math.min(numColumns, columns));
+	}
+
+	/**
+	 * Releases the memory and deletes the temporary file if it was created
+	 */
+	@Override
+	public void close() throws IOException {
+		chunks.clear();
+		segments = null;
+		if(tmpStorage!=null) {
+			tmpStorage.close();
+			tmpStorage = null;
+		}
+		if(tmpFile!=null) {
+			tmpFile.delete();
+		}
+	}
+}
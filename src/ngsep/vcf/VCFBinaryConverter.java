@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.logging.Logger;
+
+import ngsep.main.CommandsDescriptor;
+import ngsep.main.ProgressNotifier;
+
+/**
+ * Script to save the genotype calls of a VCF file in the binary format of VCFBinaryFileWriter.
+ * The binary file can be used as input of the commands reading VCF files
+ * @author Jorge Duitama
+ *
+ */
+public class VCFBinaryConverter {
+
+	// Logging and progress
+	private Logger log = Logger.getLogger(VCFBinaryConverter.class.getName());
+	private ProgressNotifier progressNotifier=null;
+	
+	// Parameters
+	private String inputFile = null;
+	private String outputFile = null;
+	private boolean storeDepths = false;
+	
+	// Get and set methods
+	
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+
+	public ProgressNotifier getProgressNotifier() {
+		return progressNotifier;
+	}
+	public void setProgressNotifier(ProgressNotifier progressNotifier) {
+		this.progressNotifier = progressNotifier;
+	}
+
+	public String getInputFile() {
+		return inputFile;
+	}
+	public void setInputFile(String inputFile) {
+		this.inputFile = inputFile;
+	}
+	
+	public String getOutputFile() {
+		return outputFile;
+	}
+	public void setOutputFile(String outputFile) {
+		this.outputFile = outputFile;
+	}
+	
+	public boolean isStoreDepths() {
+		return storeDepths;
+	}
+	public void setStoreDepths(boolean storeDepths) {
+		this.storeDepths = storeDepths;
+	}
+	public void setStoreDepths(Boolean storeDepths) {
+		this.setStoreDepths(storeDepths.booleanValue());
+	}
+	
+	public static void main(String[] args) throws Exception {
+		VCFBinaryConverter instance = new VCFBinaryConverter();
+		CommandsDescriptor.getInstance().loadOptions(instance, args);
+		instance.run();
+	}
+	
+	public void run() throws IOException {
+		if (outputFile == null) throw new IOException("The output file is a required parameter");
+		log.info("Output file: "+outputFile);
+		if(storeDepths) log.info("Storing read depths");
+		if(inputFile==null) {
+			log.info("Reading from standard input");
+			try (VCFFileReader in = new VCFFileReader(System.in)) {
+				run(in, outputFile);
+			}
+		} else {
+			log.info("Reading from file: "+inputFile);
+			try (VCFFileReader in = new VCFFileReader(inputFile)) {
+				run(in, outputFile);
+			}
+		}
+		log.info("Process finished");
+	}
+	
+	public void run(VCFFileReader in, String outputFile) throws IOException {
+		in.setLog(log);
+		int n=0;
+		try (VCFBinaryFileWriter writer = new VCFBinaryFileWriter(outputFile, in.getHeader())) {
+			writer.setStoreDepths(storeDepths);
+			Iterator<VCFRecord> it = in.iterator();
+			while(it.hasNext()) {
+				writer.addRecord(it.next());
+				n++;
+				if (progressNotifier!=null && n%1000==0) {
+					if (!progressNotifier.keepRunning(n/1000)) break;
+				}
+			}
+		}
+		log.info("Saved "+n+" variants");
+	}
+}
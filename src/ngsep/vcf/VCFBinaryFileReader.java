@@ -0,0 +1,431 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import ngsep.genome.GenomicRegion;
+import ngsep.main.io.ParseUtils;
+import ngsep.sequences.QualifiedSequence;
+import ngsep.variants.CalledGenomicVariant;
+import ngsep.variants.GenomicVariant;
+import ngsep.variants.GenomicVariantAnnotation;
+import ngsep.variants.Sample;
+
+/**
+ * Reader of the binary files written by VCFBinaryFileWriter. Chunks are memory mapped when they are visited.
+ * Records are created through the VCFFileReader using this reader to keep the same semantics of VCF files.
+ * Genotype calls are decoded only when they are requested
+ * @author Jorge Duitama
+ */
+class VCFBinaryFileReader implements Closeable {
+	private File file;
+	private RandomAccessFile storage;
+	private String headerText;
+	private List<ChunkEntry> chunks = new ArrayList<>();
+
+	/**
+	 * Checks if the given file starts with the magic bytes of the binary format
+	 * @param file File to check
+	 * @return boolean true if the file was written by VCFBinaryFileWriter
+	 * @throws IOException If the file can not be read
+	 */
+	static boolean isBinaryFile(File file) throws IOException {
+		byte [] magic = VCFBinaryFileWriter.MAGIC;
+		if(!file.isFile() || file.length()<magic.length) return false;
+		byte [] start = new byte[magic.length];
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			in.readFully(start);
+		}
+		return Arrays.equals(magic, start);
+	}
+
+	/**
+	 * Opens the given file loading the VCF header and the table of chunks
+	 * @param file Binary file
+	 * @throws IOException If the file can not be read or if it is not a valid binary file
+	 */
+	VCFBinaryFileReader(File file) throws IOException {
+		this.file = file;
+		storage = new RandomAccessFile(file, "r");
+		try {
+			byte [] magic = new byte[VCFBinaryFileWriter.MAGIC.length];
+			storage.readFully(magic);
+			if(!Arrays.equals(magic, VCFBinaryFileWriter.MAGIC)) throw new IOException("File "+file.getPath()+" is not a binary VCF file");
+			int version = storage.readInt();
+			if(version!=VCFBinaryFileWriter.VERSION) throw new IOException("Unsupported version "+version+" of binary VCF file "+file.getPath());
+			byte [] header = new byte[storage.readInt()];
+			storage.readFully(header);
+			headerText = new String(header);
+			storage.seek(storage.length()-8);
+			storage.seek(storage.readLong());
+			int numChunks = storage.readInt();
+			for(int i=0;i<numChunks;i++) {
+				ChunkEntry entry = new ChunkEntry();
+				byte [] name = new byte[storage.readInt()];
+				storage.readFully(name);
+				entry.sequenceName = new String(name, StandardCharsets.UTF_8);
+				entry.first = storage.readInt();
+				entry.last = storage.readInt();
+				entry.numVariants = storage.readInt();
+				entry.offset = storage.readLong();
+				entry.length = storage.readLong();
+				chunks.add(entry);
+			}
+		} catch (IOException e) {
+			storage.close();
+			throw e;
+		}
+	}
+	/**
+	 * @return String Text of the VCF header including the line with the sample ids
+	 */
+	String getHeaderText() {
+		return headerText;
+	}
+
+	/**
+	 * @return List<String> Names of the sequences in the order of the file
+	 */
+	List<String> getSequenceNames() {
+		List<String> answer = new ArrayList<>();
+		for(ChunkEntry entry:chunks) {
+			if(answer.isEmpty() || !answer.get(answer.size()-1).equals(entry.sequenceName)) answer.add(entry.sequenceName);
+		}
+		return answer;
+	}
+
+	/**
+	 * Creates an iterator over the records of the file
+	 * @param reader Reader used to create the records
+	 * @param regions Merged regions to query. If null, all records are returned
+	 * @return Iterator<VCFRecord> Records in the order of the file or in the order of the regions
+	 */
+	Iterator<VCFRecord> iterator(VCFFileReader reader, List<GenomicRegion> regions) {
+		List<ChunkQuery> queries = new ArrayList<>();
+		if(regions==null) {
+			for(ChunkEntry entry:chunks) queries.add(new ChunkQuery(entry, null, null));
+		} else {
+			GenomicRegion previous = null;
+			for(GenomicRegion region:regions) {
+				for(ChunkEntry entry:chunks) {
+					if(!entry.sequenceName.equals(region.getSequenceName())) continue;
+					if(entry.first>region.getLast() || entry.last<region.getFirst()) continue;
+					queries.add(new ChunkQuery(entry, region, previous));
+				}
+				previous = region;
+			}
+		}
+		return new VCFBinaryFileIterator(reader, queries);
+	}
+
+	@Override
+	public void close() throws IOException {
+		storage.close();
+	}
+
+	private static class ChunkEntry {
+		private String sequenceName;
+		private int first;
+		private int last;
+		private int numVariants;
+		private long offset;
+		private long length;
+	}
+
+	private static class ChunkQuery {
+		private ChunkEntry entry;
+		private GenomicRegion region;
+		//Records overlapping the previous region were already returned
+		private GenomicRegion previousRegion;
+		public ChunkQuery(ChunkEntry entry, GenomicRegion region, GenomicRegion previousRegion) {
+			this.entry = entry;
+			this.region = region;
+			this.previousRegion = previousRegion;
+		}
+		private boolean overlaps(GenomicRegion r, int first, int last) {
+			return r!=null && r.getSequenceName().equals(entry.sequenceName) && first<=r.getLast() && last>=r.getFirst();
+		}
+		public boolean accept(int first, int last) {
+			if(region==null) return true;
+			return overlaps(region, first, last) && !overlaps(previousRegion, first, last);
+		}
+	}
+
+	/**
+	 * Memory mapped chunk of records
+	 */
+	private class Chunk {
+		private ByteBuffer buffer;
+		private int numVariants;
+		private int lastsStart;
+		private int sitesStart;
+		private int formatsStart;
+		private int genotypesStart;
+		private int valuesStart;
+
+		public Chunk(ChunkEntry entry) throws IOException {
+			buffer = storage.getChannel().map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length);
+			numVariants = buffer.getInt(0);
+			lastsStart = 4+4*numVariants;
+			sitesStart = lastsStart+4*numVariants;
+			formatsStart = nextColumn(sitesStart);
+			genotypesStart = nextColumn(formatsStart);
+			valuesStart = nextColumn(genotypesStart);
+		}
+		private int nextColumn(int columnStart) {
+			return columnStart+4*(numVariants+1)+buffer.getInt(columnStart+4*numVariants);
+		}
+		int getFirst(int k) {
+			return buffer.getInt(4+4*k);
+		}
+		int getLast(int k) {
+			return buffer.getInt(lastsStart+4*k);
+		}
+		/**
+		 * @return int Start in the buffer of the entry k of the column starting at the given position
+		 */
+		int getEntryStart(int columnStart, int k) {
+			return columnStart+4*(numVariants+1)+buffer.getInt(columnStart+4*k);
+		}
+		String getText(int columnStart, int k, boolean ascii) {
+			int start = getEntryStart(columnStart, k);
+			byte [] bytes = new byte[getEntryStart(columnStart, k+1)-start];
+			for(int i=0;i<bytes.length;i++) bytes[i] = buffer.get(start+i);
+			if(ascii) return new String(bytes, StandardCharsets.US_ASCII);
+			//Site columns are encoded with the default charset as in VCF files
+			return new String(bytes);
+		}
+	}
+
+	private class VCFBinaryFileIterator implements Iterator<VCFRecord> {
+		private VCFFileReader reader;
+		private List<ChunkQuery> queries;
+		private int queryIdx = -1;
+		private ChunkQuery query = null;
+		private Chunk chunk = null;
+		private QualifiedSequence sequence = null;
+		private int nextIdx = 0;
+		private VCFRecord nextRecord;
+		//Format fields stored and loaded for each FORMAT text
+		private Map<String,int[][]> formatsCache = new HashMap<>();
+
+		public VCFBinaryFileIterator(VCFFileReader reader, List<ChunkQuery> queries) {
+			this.reader = reader;
+			this.queries = queries;
+			nextRecord = loadRecord();
+		}
+		@Override
+		public boolean hasNext() {
+			return nextRecord!=null;
+		}
+		@Override
+		public VCFRecord next() {
+			if(nextRecord==null) throw new NoSuchElementException();
+			VCFRecord answer = nextRecord;
+			nextRecord = loadRecord();
+			return answer;
+		}
+		private VCFRecord loadRecord() {
+			while(true) {
+				if(chunk==null || nextIdx==chunk.numVariants) {
+					if(!nextChunk()) return null;
+					continue;
+				}
+				int k = nextIdx++;
+				if(!query.accept(chunk.getFirst(k), chunk.getLast(k))) continue;
+				VCFRecord record = loadRecord(k);
+				if(record!=null) return record;
+			}
+		}
+		private boolean nextChunk() {
+			chunk = null;
+			while(chunk==null) {
+				queryIdx++;
+				if(queryIdx>=queries.size()) return false;
+				query = queries.get(queryIdx);
+				String sequenceName = query.entry.sequenceName;
+				try {
+					sequence = reader.getSequences().addOrLookupName(sequenceName);
+				} catch (RuntimeException e) {
+					reader.getLog().severe("Can not load genomic variants of sequence "+sequenceName+". Unrecognized sequence name. "+e.getMessage());
+					continue;
+				}
+				try {
+					chunk = new Chunk(query.entry);
+				} catch (IOException e) {
+					throw new UncheckedIOException("Error reading chunk of sequence "+sequenceName+" from binary file "+file.getPath(), e);
+				}
+			}
+			nextIdx = 0;
+			return true;
+		}
+		private VCFRecord loadRecord(int k) {
+			String [] items = ParseUtils.parseString(chunk.getText(chunk.sitesStart, k, false), '\t');
+			GenomicVariant variant = reader.loadGenomicVariant(items, sequence);
+			if(variant == null) return null;
+			List<String> filters = reader.loadFilters(items[6]);
+			List<GenomicVariantAnnotation> infoFields = reader.loadInfoField(variant, items[7]);
+			String formatStr = chunk.getText(chunk.formatsStart, k, true);
+			int [][] formats = formatsCache.computeIfAbsent(formatStr, this::loadFormats);
+			VCFGenotypeColumns columns = new BinaryGenotypeColumns(reader, chunk, k, variant, formats[0], formats[1]);
+			return reader.createRecord(variant, filters, infoFields, formats[1], columns);
+		}
+		private int [][] loadFormats(String formatStr) {
+			int [] storedFields = new int[0];
+			if(formatStr.length()>0) {
+				String [] names = ParseUtils.parseString(formatStr, ':');
+				storedFields = new int [names.length];
+				for(int i=0;i<names.length;i++) storedFields[i] = VCFRecord.KNOWN_FORMAT_FIELDS_MAP.get(names[i]);
+			}
+			return new int [][] {storedFields, reader.loadInputFormat(formatStr)};
+		}
+	}
+
+	private static class BinaryGenotypeColumns extends VCFGenotypeColumns {
+		private VCFFileReader reader;
+		private Chunk chunk;
+		private GenomicVariant variant;
+		private int [] storedFields;
+		private int [] inputFormat;
+		private List<Sample> samples;
+		private int [] sampleColumns;
+		private int numFileSamples;
+		private int genotypesStart;
+		//Start of the values of each stored field. -1 for GT
+		private int [] valuesStarts;
+
+		public BinaryGenotypeColumns(VCFFileReader reader, Chunk chunk, int k, GenomicVariant variant, int [] storedFields, int [] inputFormat) {
+			super(reader.getHeader().getSamples().size());
+			this.reader = reader;
+			this.chunk = chunk;
+			this.variant = variant;
+			this.storedFields = storedFields;
+			this.inputFormat = inputFormat;
+			samples = reader.getHeader().getSamples();
+			sampleColumns = reader.getSelectedSampleColumns();
+			numFileSamples = reader.getFileSamples().size();
+			genotypesStart = chunk.getEntryStart(chunk.genotypesStart, k);
+			int numAlleles = variant.getAlleles().length;
+			valuesStarts = new int [storedFields.length];
+			int start = chunk.getEntryStart(chunk.valuesStart, k);
+			for(int f=0;f<storedFields.length;f++) {
+				valuesStarts[f] = -1;
+				if(storedFields[f]==VCFRecord.FORMAT_IDX_GT) continue;
+				valuesStarts[f] = start;
+				int width = chunk.buffer.get(start);
+				start+=1+width*numFileSamples*VCFBinaryFileWriter.getNumValues(storedFields[f], numAlleles);
+			}
+		}
+
+		@Override
+		protected CalledGenomicVariant decodeCall(int i) {
+			int column = (sampleColumns!=null)?sampleColumns[i]:i;
+			int numAlleles = variant.getAlleles().length;
+			//Missing GT field
+			byte [] genotypeAlleles = {-1};
+			boolean phased = false;
+			int [] allCounts = null;
+			int [] counts = null;
+			Short genotypeQuality = null;
+			Integer totalReadDepth = null;
+			int [] allelesCopyNumber = null;
+			for(int f=0;f<storedFields.length;f++) {
+				int formatIdx = inputFormat[f];
+				if(formatIdx<0) continue;
+				if(formatIdx==VCFRecord.FORMAT_IDX_GT) {
+					genotypeAlleles = decodeGenotypeAlleles(column);
+					phased = isPhased(column);
+					continue;
+				}
+				int [] values = decodeValues(valuesStarts[f], column, VCFBinaryFileWriter.getNumValues(formatIdx, numAlleles));
+				boolean missing = values[0]==VCFBinaryFileWriter.MISSING_VALUE;
+				if(formatIdx==VCFRecord.FORMAT_IDX_GQ && !missing) genotypeQuality = (short)values[0];
+				else if(formatIdx==VCFRecord.FORMAT_IDX_DP && !missing) totalReadDepth = values[0];
+				else if(formatIdx==VCFRecord.FORMAT_IDX_ADP) counts = values;
+				else if(formatIdx==VCFRecord.FORMAT_IDX_BSDP) allCounts = values;
+				else if(formatIdx==VCFRecord.FORMAT_IDX_ACN && !missing && variant.getType() != GenomicVariant.TYPE_CNV) allelesCopyNumber = values;
+			}
+			return reader.createCalledVariant(variant, samples.get(i), genotypeAlleles, phased, allCounts, counts, null, genotypeQuality, totalReadDepth, allelesCopyNumber);
+		}
+		private byte [] decodeGenotypeAlleles(int column) {
+			ByteBuffer buffer = chunk.buffer;
+			int width = buffer.getShort(genotypesStart) & 0xffff;
+			int bits = buffer.get(genotypesStart+2);
+			int allelesPerByte = 8/bits;
+			int mask = (1<<bits)-1;
+			int packedStart = genotypesStart+3;
+			byte [] alleles = new byte [width];
+			int n = 0;
+			for(int j=0;j<width;j++) {
+				int entry = column*width+j;
+				int code = (buffer.get(packedStart+entry/allelesPerByte)>>((entry%allelesPerByte)*bits)) & mask;
+				//Absent alleles are always at the end
+				if(code==0) break;
+				alleles[n++] = (byte)(code-2);
+			}
+			return (n<width)?Arrays.copyOf(alleles, n):alleles;
+		}
+		private boolean isPhased(int column) {
+			ByteBuffer buffer = chunk.buffer;
+			int width = buffer.getShort(genotypesStart) & 0xffff;
+			int allelesPerByte = 8/buffer.get(genotypesStart+2);
+			int phasingStart = genotypesStart+3+(numFileSamples*width+allelesPerByte-1)/allelesPerByte;
+			return ((buffer.get(phasingStart+column/8)>>(column%8)) & 1) != 0;
+		}
+		private int [] decodeValues(int start, int column, int numValues) {
+			ByteBuffer buffer = chunk.buffer;
+			int width = buffer.get(start);
+			int [] answer = new int [numValues];
+			int valueStart = start+1+width*column*numValues;
+			for(int j=0;j<numValues;j++) {
+				int pos = valueStart+j*width;
+				int v;
+				if(width==1) {
+					v = buffer.get(pos) & 0xff;
+					if(v==0xff) v = VCFBinaryFileWriter.MISSING_VALUE;
+				} else if (width==2) {
+					v = buffer.getShort(pos) & 0xffff;
+					if(v==0xffff) v = VCFBinaryFileWriter.MISSING_VALUE;
+				} else {
+					v = buffer.getInt(pos);
+				}
+				answer[j] = v;
+			}
+			return answer;
+		}
+	}
+}
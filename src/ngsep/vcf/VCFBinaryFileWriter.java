@@ -0,0 +1,374 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import ngsep.variants.CalledGenomicVariant;
+import ngsep.variants.GenomicVariant;
+import ngsep.variants.Sample;
+import ngsep.variants.VariantCallReport;
+
+/**
+ * Writer of the columnar binary format for genotyped variants read back by VCFFileReader.
+ * Records are stored in chunks that never span two sequences. Within a chunk, each column
+ * (positions, site fields, FORMAT, genotypes and numeric format fields) is stored contiguously.
+ * Genotypes are packed with 2, 4 or 8 bits per called allele depending on the number of alleles.
+ * Besides GT, only the format fields GQ and ACN and optionally the read depth fields DP, ADP and BSDP are stored.
+ * The file ends with a table of chunks used to query regions.
+ * @author Jorge Duitama
+ */
+public class VCFBinaryFileWriter implements Closeable {
+	public static final byte [] MAGIC = "NGSEPVCB".getBytes(StandardCharsets.US_ASCII);
+	public static final int VERSION = 1;
+	public static final int DEF_MAX_CHUNK_BYTES = 1<<26;
+	//Value representing missing numbers
+	static final int MISSING_VALUE = -1;
+
+	private String filename;
+	private DataOutputStream out;
+	//Bytes written to the file
+	private long offset = 0;
+	private List<Sample> samples;
+	private boolean storeDepths = false;
+	private int maxChunkBytes = DEF_MAX_CHUNK_BYTES;
+	private VCFFileWriter siteEncoder = new VCFFileWriter();
+	private List<ChunkEntry> chunks = new ArrayList<>();
+
+	//Columns of the current chunk
+	private ChunkEntry chunk = null;
+	private ByteArrayOutputStream firstsBytes;
+	private ByteArrayOutputStream lastsBytes;
+	private DataOutputStream firsts;
+	private DataOutputStream lasts;
+	private Column sites;
+	private Column formats;
+	private Column genotypes;
+	private Column values;
+
+	/**
+	 * Creates a new writer and writes the header of the file
+	 * @param filename Name of the binary file
+	 * @param header Header of the VCF records that will be written
+	 * @throws IOException If the file can not be created
+	 */
+	public VCFBinaryFileWriter(String filename, VCFFileHeader header) throws IOException {
+		this.filename = filename;
+		samples = header.getSamples();
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1<<16));
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		try (PrintStream headerOut = new PrintStream(headerBytes)) {
+			header.print(headerOut);
+		}
+		out.write(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(headerBytes.size());
+		headerBytes.writeTo(out);
+		offset = MAGIC.length+8+headerBytes.size();
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+	/**
+	 * @return boolean true if the read depth fields DP, ADP and BSDP are stored
+	 */
+	public boolean isStoreDepths() {
+		return storeDepths;
+	}
+	public void setStoreDepths(boolean storeDepths) {
+		this.storeDepths = storeDepths;
+	}
+	public int getMaxChunkBytes() {
+		return maxChunkBytes;
+	}
+	public void setMaxChunkBytes(int maxChunkBytes) {
+		if(maxChunkBytes<=0) throw new IllegalArgumentException("The maximum size of a chunk must be positive. Given: "+maxChunkBytes);
+		this.maxChunkBytes = maxChunkBytes;
+	}
+
+	/**
+	 * Adds a record to the file. The calls of the record are decoded if needed
+	 * @param record Record to store. It must have one call for each sample of the header
+	 * @throws IOException If the record can not be written
+	 */
+	public void addRecord(VCFRecord record) throws IOException {
+		List<CalledGenomicVariant> calls = record.getCalls();
+		if(calls.size()!=samples.size()) throw new IOException("Record at "+record.getSequenceName()+":"+record.getFirst()+" has "+calls.size()+" calls but the header has "+samples.size()+" samples");
+		GenomicVariant var = record.getVariant();
+		if(chunk!=null && (!chunk.sequenceName.equals(var.getSequenceName()) || chunkBytes()>=maxChunkBytes)) flushChunk();
+		if(chunk==null) startChunk(var.getSequenceName());
+		chunk.numVariants++;
+		chunk.first = Math.min(chunk.first, var.getFirst());
+		chunk.last = Math.max(chunk.last, var.getLast());
+		firsts.writeInt(var.getFirst());
+		lasts.writeInt(var.getLast());
+		sites.add(siteEncoder.encodeSiteColumns(record));
+		//The format is selected after decoding the calls because it may change to include copy numbers
+		int [] format = selectFormat(record.getFieldsFormat());
+		StringBuilder formatStr = new StringBuilder();
+		for(int i=0;i<format.length;i++) {
+			if(i>0) formatStr.append(':');
+			formatStr.append(VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[format[i]]);
+		}
+		formats.add(formatStr.toString().getBytes(StandardCharsets.US_ASCII));
+		genotypes.startEntry();
+		encodeGenotypes(var, calls, genotypes.data);
+		values.startEntry();
+		for(int f:format) {
+			if(f!=VCFRecord.FORMAT_IDX_GT) encodeValues(var, calls, f, values.data);
+		}
+	}
+	private int [] selectFormat(int [] recordFormat) {
+		List<Integer> selected = new ArrayList<>();
+		for(int f:recordFormat) {
+			boolean depthField = f==VCFRecord.FORMAT_IDX_DP || f==VCFRecord.FORMAT_IDX_ADP || f==VCFRecord.FORMAT_IDX_BSDP;
+			if(f==VCFRecord.FORMAT_IDX_GT || f==VCFRecord.FORMAT_IDX_GQ || f==VCFRecord.FORMAT_IDX_ACN || (storeDepths && depthField)) selected.add(f);
+		}
+		int [] answer = new int [selected.size()];
+		for(int i=0;i<answer.length;i++) answer[i] = selected.get(i);
+		return answer;
+	}
+
+	/**
+	 * Encodes the alleles of the GT field of each call as written by VCFFileWriter
+	 * Layout: ploidy width (short), bits per allele (byte), packed alleles of each sample, phasing bit of each sample
+	 */
+	private void encodeGenotypes(GenomicVariant var, List<CalledGenomicVariant> calls, DataOutputStream data) throws IOException {
+		int numSamples = calls.size();
+		byte [][] alleles = new byte[numSamples][];
+		boolean [] phased = new boolean [numSamples];
+		int width = 0;
+		for(int i=0;i<numSamples;i++) {
+			CalledGenomicVariant call = calls.get(i);
+			alleles[i] = getGenotypeAlleles(call, samples.get(i).getNormalPloidy());
+			phased[i] = alleles[i].length>1 && call.isPhased() && call.getIndexesCalledAlleles().length>0;
+			width = Math.max(width, alleles[i].length);
+		}
+		int bits = getBitsPerAllele(var.getAlleles().length);
+		int allelesPerByte = 8/bits;
+		data.writeShort(width);
+		data.writeByte(bits);
+		byte [] packed = new byte [(numSamples*width+allelesPerByte-1)/allelesPerByte];
+		for(int i=0;i<numSamples;i++) {
+			for(int j=0;j<alleles[i].length;j++) {
+				int entry = i*width+j;
+				//Code zero is left for absent alleles of samples with lower ploidy
+				int code = alleles[i][j]+2;
+				packed[entry/allelesPerByte] |= code<<((entry%allelesPerByte)*bits);
+			}
+		}
+		data.write(packed);
+		byte [] phasing = new byte [(numSamples+7)/8];
+		for(int i=0;i<numSamples;i++) {
+			if(phased[i]) phasing[i/8] |= 1<<(i%8);
+		}
+		data.write(phasing);
+	}
+	static int getBitsPerAllele(int numAlleles) {
+		if(numAlleles+2<=4) return 2;
+		if(numAlleles+2<=16) return 4;
+		return 8;
+	}
+	/**
+	 * Calculates the allele indexes of the GT field written by VCFFileWriter for the given call.
+	 * Phased homozygous calls keep one allele per copy
+	 * @param call Genotype call
+	 * @param ploidy Normal ploidy of the sample
+	 * @return byte[] Allele indexes. -1 for missing alleles
+	 */
+	private byte [] getGenotypeAlleles(CalledGenomicVariant call, short ploidy) {
+		byte [] idxsCalledAlleles = call.getIndexesCalledAlleles();
+		if (idxsCalledAlleles.length == 0) {
+			return (ploidy>1)?new byte[] {-1,-1}:new byte[] {-1};
+		}
+		if (idxsCalledAlleles.length == 1) {
+			int n = 1;
+			//Phasing is loaded only if the number of alleles is equal to the copy number
+			if(call.isPhased()) n = Math.max(1, (int)call.getCopyNumber());
+			else if (ploidy>1) n = 2;
+			byte [] answer = new byte[n];
+			for(int i=0;i<n;i++) answer[i] = idxsCalledAlleles[0];
+			return answer;
+		}
+		if(call.isPhased()) return call.getIndexesPhasedAlleles();
+		return idxsCalledAlleles;
+	}
+
+	/**
+	 * Encodes the values of one numeric format field for all calls with the values printed by VCFFileWriter.
+	 * Layout: bytes per value (1, 2 or 4) and the values of each sample. The largest value for the width represents a missing value
+	 */
+	private void encodeValues(GenomicVariant var, List<CalledGenomicVariant> calls, int formatIdx, DataOutputStream data) throws IOException {
+		int numAlleles = var.getAlleles().length;
+		int numValues = getNumValues(formatIdx, numAlleles);
+		int [] fieldValues = new int [calls.size()*numValues];
+		for(int i=0;i<calls.size();i++) {
+			loadValues(calls.get(i), formatIdx, fieldValues, i*numValues, numValues);
+		}
+		int min = 0;
+		int max = 0;
+		for(int v:fieldValues) {
+			if(v==MISSING_VALUE) continue;
+			min = Math.min(min, v);
+			max = Math.max(max, v);
+		}
+		int width = 4;
+		if(min>=0 && max<0xff) width = 1;
+		else if (min>=0 && max<0xffff) width = 2;
+		data.writeByte(width);
+		for(int v:fieldValues) {
+			if(width==1) data.writeByte(v);
+			else if (width==2) data.writeShort(v);
+			else data.writeInt(v);
+		}
+	}
+	static int getNumValues(int formatIdx, int numAlleles) {
+		if(formatIdx == VCFRecord.FORMAT_IDX_ADP || formatIdx == VCFRecord.FORMAT_IDX_ACN) return numAlleles;
+		if(formatIdx == VCFRecord.FORMAT_IDX_BSDP) return 4;
+		return 1;
+	}
+	private void loadValues(CalledGenomicVariant call, int formatIdx, int [] fieldValues, int start, int numValues) {
+		if(formatIdx == VCFRecord.FORMAT_IDX_GQ) {
+			fieldValues[start] = call.getGenotypeQuality();
+		} else if (formatIdx == VCFRecord.FORMAT_IDX_DP) {
+			fieldValues[start] = call.getTotalReadDepth();
+		} else if (formatIdx == VCFRecord.FORMAT_IDX_ADP) {
+			VariantCallReport report = call.getCallReport();
+			String [] alleles = call.getAlleles();
+			for(int j=0;j<numValues;j++) {
+				fieldValues[start+j] = (report!=null && report.countsPresent())?report.getCount(alleles[j]):0;
+			}
+		} else if (formatIdx == VCFRecord.FORMAT_IDX_BSDP) {
+			int [] allCounts = call.getAllCounts();
+			for(int j=0;j<numValues;j++) {
+				fieldValues[start+j] = (allCounts!=null)?allCounts[j]:0;
+			}
+		} else if (formatIdx == VCFRecord.FORMAT_IDX_ACN) {
+			short totalCopyNumber = call.getCopyNumber();
+			short [] allelesCopyNumber = (totalCopyNumber>0)?call.getAllelesCopyNumber():null;
+			for(int j=0;j<numValues;j++) {
+				if(allelesCopyNumber==null) fieldValues[start+j] = MISSING_VALUE;
+				else if(j==0 && call.isUndecided()) fieldValues[start+j] = totalCopyNumber;
+				else fieldValues[start+j] = allelesCopyNumber[j];
+			}
+		}
+	}
+
+	private int chunkBytes() {
+		return firstsBytes.size()+lastsBytes.size()+sites.size()+formats.size()+genotypes.size()+values.size();
+	}
+	private void startChunk(String sequenceName) {
+		chunk = new ChunkEntry();
+		chunk.sequenceName = sequenceName;
+		chunk.offset = offset;
+		firstsBytes = new ByteArrayOutputStream();
+		lastsBytes = new ByteArrayOutputStream();
+		firsts = new DataOutputStream(firstsBytes);
+		lasts = new DataOutputStream(lastsBytes);
+		sites = new Column();
+		formats = new Column();
+		genotypes = new Column();
+		values = new Column();
+	}
+	private void flushChunk() throws IOException {
+		out.writeInt(chunk.numVariants);
+		firstsBytes.writeTo(out);
+		lastsBytes.writeTo(out);
+		sites.writeTo(out);
+		formats.writeTo(out);
+		genotypes.writeTo(out);
+		values.writeTo(out);
+		//Each column of entries includes one extra offset
+		chunk.length = 4+firstsBytes.size()+lastsBytes.size()+sites.size()+formats.size()+genotypes.size()+values.size()+16;
+		offset+=chunk.length;
+		chunks.add(chunk);
+		chunk = null;
+	}
+
+	/**
+	 * Writes the current chunk and the table of chunks
+	 */
+	@Override
+	public void close() throws IOException {
+		if(out==null) return;
+		try {
+			if(chunk!=null) flushChunk();
+			long tableOffset = offset;
+			out.writeInt(chunks.size());
+			for(ChunkEntry entry:chunks) {
+				byte [] name = entry.sequenceName.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(name.length);
+				out.write(name);
+				out.writeInt(entry.first);
+				out.writeInt(entry.last);
+				out.writeInt(entry.numVariants);
+				out.writeLong(entry.offset);
+				out.writeLong(entry.length);
+			}
+			out.writeLong(tableOffset);
+		} finally {
+			out.close();
+			out = null;
+		}
+	}
+
+	/**
+	 * Column of variable length entries. Offsets of the entries are written before the data
+	 */
+	private static class Column {
+		private ByteArrayOutputStream offsetsBytes = new ByteArrayOutputStream();
+		private ByteArrayOutputStream dataBytes = new ByteArrayOutputStream();
+		private DataOutputStream offsets = new DataOutputStream(offsetsBytes);
+		private DataOutputStream data = new DataOutputStream(dataBytes);
+		void startEntry() throws IOException {
+			offsets.writeInt(data.size());
+		}
+		void add(byte [] entry) throws IOException {
+			startEntry();
+			data.write(entry);
+		}
+		int size() {
+			return offsetsBytes.size()+dataBytes.size();
+		}
+		void writeTo(DataOutputStream out) throws IOException {
+			offsetsBytes.writeTo(out);
+			out.writeInt(dataBytes.size());
+			dataBytes.writeTo(out);
+		}
+	}
+	private static class ChunkEntry {
+		private String sequenceName;
+		private int first = Integer.MAX_VALUE;
+		private int last = 0;
+		private int numVariants = 0;
+		private long offset;
+		private long length;
+	}
+}
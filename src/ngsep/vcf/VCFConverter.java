@@ -24,6 +24,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -38,6 +40,7 @@ import ngsep.sequences.QualifiedSequence;
 import ngsep.sequences.io.FastaSequencesHandler;
 import ngsep.variants.CalledGenomicVariant;
 import ngsep.variants.GenomicVariant;
+import ngsep.variants.GenotypeMatrix;
 import ngsep.variants.SNV;
 import ngsep.variants.Sample;
 import ngsep.variants.io.SimpleSamplesFileHandler;
@@ -46,6 +49,16 @@ public class VCFConverter {
 	
 	// Constants for default values
 	
+	//Genotype classes stored in the matrix used for formats that require transposition
+	private static final byte GT_HOMREF = 0;
+	private static final byte GT_HETEROZYGOUS = 1;
+	private static final byte GT_HOMALT = 2;
+	private static final byte GT_UNDECIDED = 3;
+	private static final byte GT_PHASED_01 = 4;
+	private static final byte GT_PHASED_10 = 5;
+	//Maximum memory used to load genotypes of blocks of samples from the matrix
+	private static final long MAX_MEMORY_SAMPLES_BLOCK = Runtime.getRuntime().maxMemory()/8;
+	
 	// Logging and progress
 	private Logger log = Logger.getLogger(VCFConverter.class.getName());
 	private ProgressNotifier progressNotifier=null;
@@ -394,272 +407,294 @@ public class VCFConverter {
 		//Load the matrix if at least one format need the matrix to be transposed
 		boolean loadMatrix = printFasta || printStructure || printrrBLUP || printSpagedi || printEmma || printPlink || printHaploview || printPowerMarker || printFlapjack || printEigensoft || printDarwin || printFineStructure;
 		boolean loadMatrixSeqName = printPhase;
-		List<List<CalledGenomicVariant>> callsPerVariant = new ArrayList<List<CalledGenomicVariant>>();
+		//Variants and genotype classes (one row per variant) for formats that require transposition
+		List<GenomicVariant> variants = new ArrayList<GenomicVariant>();
+		GenotypeMatrix genotypes = null;
+		//Variants in which the number of calls does not match the number of samples
+		BitSet incompleteVariants = new BitSet();
 		List<String> sampleIds = null;
 		try {
-			if(log!=null)reader.setLog(log);
-			if(!printGWASPoly) reader.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
-			VCFFileHeader header = reader.getHeader();
-			sampleIds = header.getSampleIds();
-			Iterator<VCFRecord> it = reader.iterator();
-			//Print header for formats that do not need transposition
-			if(printMatrix) {
-				outMatrix = new PrintStream(prefix+"_genotypes.txt");
-				printMatrixHeader (sampleIds,outMatrix);
-			}
-			if(printHapmap) {
-				outHapmap = new PrintStream(prefix+"_hmp.txt");
-				printHapmapHeader (sampleIds,outHapmap);
-			}
-			if(printGWASPoly) {
-				outGWASPoly = new PrintStream(prefix+"_GWASPoly.txt");
-				printGWASPolyHeader (sampleIds,outGWASPoly);
-			}
-			Map<String, List<Integer>> groupsWithSampleIdxs = null;
-			if(printTreeMix) {
-				outTreemix = new PrintStream(prefix+"_treemix.txt");
-				SimpleSamplesFileHandler samplesFH = new SimpleSamplesFileHandler();
-				Map<String,Sample> samplesMap = samplesFH.loadSamplesAsMap(populationFile);
-				if(samplesMap.size()==0)throw new IOException("The populations file does not contain any sample");
-				groupsWithSampleIdxs = Sample.getGroupsWithSampleIdxs(samplesMap, sampleIds);
-				
-				if(groupsWithSampleIdxs.size()==0)throw new IOException("The populations file does not contain a group id for any sample");
-				printTreeMixHeader (groupsWithSampleIdxs.keySet(),outTreemix);
-			}
-
-			int ip1=-1;
-			int ip2=-1;
-			if(printJoinMap){
-				if(idParent1==null) throw new IOException("Id parent 1 is mandatory for conversion to JoinMap");
-				if(idParent2==null) throw new IOException("Id parent 2 is mandatory for conversion to JoinMap");
-				ip1=header.getIndexSampleId(idParent1);
-				if(ip1==-1) throw new IOException("Id parent "+idParent1+" not found in vcf file");
-				ip2=header.getIndexSampleId(idParent2);
-				if(ip2==-1) throw new IOException("Id parent "+idParent2+" not found in vcf file");
-				if(ip1 == ip2) throw new IOException("The two parents must be different");
-				outJoinMap=new PrintStream(prefix+"_joinmap.txt");
-				printJoinMapHeader(sampleIds, outJoinMap, ip1, ip2);		
-			}
+			try {
+				if(log!=null)reader.setLog(log);
+				if(!printGWASPoly) reader.setLoadMode(VCFFileReader.LOAD_MODE_MINIMAL);
+				VCFFileHeader header = reader.getHeader();
+				sampleIds = header.getSampleIds();
+				Iterator<VCFRecord> it = reader.iterator();
+				//Print header for formats that do not need transposition
+				if(printMatrix) {
+					outMatrix = new PrintStream(prefix+"_genotypes.txt");
+					printMatrixHeader (sampleIds,outMatrix);
+				}
+				if(printHapmap) {
+					outHapmap = new PrintStream(prefix+"_hmp.txt");
+					printHapmapHeader (sampleIds,outHapmap);
+				}
+				if(printGWASPoly) {
+					outGWASPoly = new PrintStream(prefix+"_GWASPoly.txt");
+					printGWASPolyHeader (sampleIds,outGWASPoly);
+				}
+				Map<String, List<Integer>> groupsWithSampleIdxs = null;
+				if(printTreeMix) {
+					outTreemix = new PrintStream(prefix+"_treemix.txt");
+					SimpleSamplesFileHandler samplesFH = new SimpleSamplesFileHandler();
+					Map<String,Sample> samplesMap = samplesFH.loadSamplesAsMap(populationFile);
+					if(samplesMap.size()==0)throw new IOException("The populations file does not contain any sample");
+					groupsWithSampleIdxs = Sample.getGroupsWithSampleIdxs(samplesMap, sampleIds);
 					
-			int n=0;
-			while(it.hasNext()) {
-				VCFRecord record = it.next();
-				List<CalledGenomicVariant> calls = record.getCalls();
-				//Adds the calls for the new variant if needed
-				if(loadMatrix) callsPerVariant.add(calls);
-				//PHASE converter. Loads the variants only for the sequence name requested by the user
-				else if (loadMatrixSeqName && record.getVariant().getSequenceName().equals(sequenceName)) callsPerVariant.add(calls); 
-				//Print genotypes for the current variant for formats that do not need transposition
-				if(outMatrix!=null)printGenotypesMatrix(record,outMatrix);
-				if(outHapmap!=null)printHapmap(record,outHapmap);
-				if(outGWASPoly!=null)printGWASPoly(record,outGWASPoly,(n+1));
-				if(outTreemix!=null && record.getVariant().isBiallelic()) printTreeMix(groupsWithSampleIdxs,record.getCalls(),outTreemix);
-				if(outJoinMap!=null)printJoinMap(record, outJoinMap, ip1, ip2);
-				n++;
-				if (progressNotifier!=null && n%1000==0) {
-					int progress = n/1000;
-					if (!progressNotifier.keepRunning(progress)) {
-						return;
+					if(groupsWithSampleIdxs.size()==0)throw new IOException("The populations file does not contain a group id for any sample");
+					printTreeMixHeader (groupsWithSampleIdxs.keySet(),outTreemix);
+				}
+	
+				int ip1=-1;
+				int ip2=-1;
+				if(printJoinMap){
+					if(idParent1==null) throw new IOException("Id parent 1 is mandatory for conversion to JoinMap");
+					if(idParent2==null) throw new IOException("Id parent 2 is mandatory for conversion to JoinMap");
+					ip1=header.getIndexSampleId(idParent1);
+					if(ip1==-1) throw new IOException("Id parent "+idParent1+" not found in vcf file");
+					ip2=header.getIndexSampleId(idParent2);
+					if(ip2==-1) throw new IOException("Id parent "+idParent2+" not found in vcf file");
+					if(ip1 == ip2) throw new IOException("The two parents must be different");
+					outJoinMap=new PrintStream(prefix+"_joinmap.txt");
+					printJoinMapHeader(sampleIds, outJoinMap, ip1, ip2);		
+				}
+				byte [] genotypeCodes = null;
+				if(loadMatrix || loadMatrixSeqName) {
+					//Phased heterozygous calls are only needed for fineStructure
+					genotypes = new GenotypeMatrix(sampleIds.size(), printFineStructure?4:2);
+					genotypeCodes = new byte[sampleIds.size()];
+				}
+				int n=0;
+				while(it.hasNext()) {
+					VCFRecord record = it.next();
+					//Adds the calls for the new variant if needed
+					//PHASE converter. Loads the variants only for the sequence name requested by the user
+					if(loadMatrix || (loadMatrixSeqName && record.getVariant().getSequenceName().equals(sequenceName))) {
+						if(record.getNumCalls()!=genotypeCodes.length) incompleteVariants.set(variants.size());
+						variants.add(record.getVariant());
+						addGenotypes(record, genotypes, genotypeCodes);
+					}
+					//Print genotypes for the current variant for formats that do not need transposition
+					if(outMatrix!=null)printGenotypesMatrix(record,outMatrix);
+					if(outHapmap!=null)printHapmap(record,outHapmap);
+					if(outGWASPoly!=null)printGWASPoly(record,outGWASPoly,(n+1));
+					if(outTreemix!=null && record.getVariant().isBiallelic()) printTreeMix(groupsWithSampleIdxs,record.getCalls(),outTreemix);
+					if(outJoinMap!=null)printJoinMap(record, outJoinMap, ip1, ip2);
+					n++;
+					if (progressNotifier!=null && n%1000==0) {
+						int progress = n/1000;
+						if (!progressNotifier.keepRunning(progress)) {
+							return;
+						}
 					}
 				}
+			} finally {
+				if(outMatrix!=null) {
+					outMatrix.flush();
+					outMatrix.close();
+				}
+				if(outHapmap!=null) {
+					outHapmap.flush();
+					outHapmap.close();
+				}
+				if(outGWASPoly!=null) {
+					outGWASPoly.flush();
+					outGWASPoly.close();
+				}
+				if (outTreemix!=null) {
+					outTreemix.flush();
+					outTreemix.close();
+				}
+				if (outJoinMap!=null) {
+					outJoinMap.flush();
+					outJoinMap.close();
+				}
 			}
+			
+			if(!loadMatrix && !loadMatrixSeqName) return;
+			System.out.println("Loaded "+variants.size()+" calls");
+			//Print formats that require transposition
+			if(printFasta) printFasta(sampleIds,variants,genotypes,prefix+"_aln.fa");
+			if(printDarwin)printDarwin(sampleIds, variants, genotypes, prefix);
+			if(printStructure) printStructure(sampleIds,variants,genotypes,prefix+"_structure.in");
+			if(printrrBLUP) printrrBLUP(sampleIds,variants,genotypes,prefix);
+			if(printSpagedi) printSpagedi(sampleIds, variants, genotypes, prefix+"_spagedi.in");
+			if(printEmma) printEmma(variants, genotypes, prefix+"_emma.in");
+			if(printPlink) printPlink(sampleIds,variants,genotypes,prefix+"_plink",true);
+			if(printHaploview) printPlink(sampleIds,variants,genotypes,prefix+"_haploview",false);
+			if(printPowerMarker) printPowerMarker(sampleIds,variants,genotypes,prefix);
+			if(printFlapjack) printFlapjack(sampleIds,variants,genotypes,prefix);
+			if(printEigensoft) printEigensoft(sampleIds,variants,genotypes,prefix);
+			if(printPhase) printPhase(sampleIds,variants,genotypes,prefix+"_"+sequenceName+"_phase.inp");
+			if(printFineStructure) printFineStructure(sampleIds.size(),variants,genotypes,incompleteVariants,prefix+"_fs_"+sequenceName+".phase");
 		} finally {
-			if(outMatrix!=null) {
-				outMatrix.flush();
-				outMatrix.close();
-			}
-			if(outHapmap!=null) {
-				outHapmap.flush();
-				outHapmap.close();
-			}
-			if(outGWASPoly!=null) {
-				outGWASPoly.flush();
-				outGWASPoly.close();
-			}
-			if (outTreemix!=null) {
-				outTreemix.flush();
-				outTreemix.close();
-			}
-			if (outJoinMap!=null) {
-				outJoinMap.flush();
-				outJoinMap.close();
-			}
+			if(genotypes!=null) genotypes.close();
 		}
-		
-		
-		
-		if(!loadMatrix && !loadMatrixSeqName) return;
-		System.out.println("Loaded "+callsPerVariant.size()+" calls");
-		//Print formats that require transposition
-		if(printFasta) printFasta(sampleIds,callsPerVariant,prefix+"_aln.fa");
-		if(printDarwin)printDarwin(sampleIds, callsPerVariant, prefix);
-		if(printStructure) printStructure(sampleIds,callsPerVariant,prefix+"_structure.in");
-		if(printrrBLUP) printrrBLUP(sampleIds,callsPerVariant,prefix);
-		if(printSpagedi) printSpagedi(sampleIds, callsPerVariant, prefix+"_spagedi.in");
-		if(printEmma) printEmma(callsPerVariant, prefix+"_emma.in");
-		if(printPlink) printPlink(sampleIds,callsPerVariant,prefix+"_plink",true);
-		if(printHaploview) printPlink(sampleIds,callsPerVariant,prefix+"_haploview",false);
-		if(printPowerMarker) printPowerMarker(sampleIds,callsPerVariant,prefix);
-		if(printFlapjack) printFlapjack(sampleIds,callsPerVariant,prefix);
-		if(printEigensoft) printEigensoft(sampleIds,callsPerVariant,prefix);
-		if(printPhase) printPhase(sampleIds,callsPerVariant,prefix+"_"+sequenceName+"_phase.inp");
-		if(printFineStructure) printFineStructure(sampleIds.size(),callsPerVariant,prefix+"_fs_"+sequenceName+".phase");
 	}
 	
-	private void printFlapjack(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outPrefix) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i));
-		
-		PrintStream outMap = new PrintStream(outPrefix+"_flapjack.map");
-		PrintStream outGenotypes = new PrintStream(outPrefix+"_flapjack.gen");
-		outMap.println("# fjFile = MAP");
-		outGenotypes.println("# fjFile = GENOTYPE");
-		int snpId=1;
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				
-				String [] alleles = calledVar.getCalledAlleles(); 
-				String allele = "-";
-				if(!calledVar.isUndecided()) {
-					if(alleles.length>=2) {
-						allele = ""+alleles[0]+"/"+alleles[1];
-					} else {
-						allele = ""+alleles[0];
-					}
-				}
-				sequences[i].append("\t"+allele);
-				if(i==0) {
-					String markerId = "Marker"+snpId;
-					outMap.println(markerId+"\t"+calledVar.getSequenceName()+"\t"+calledVar.getFirst());
-					outGenotypes.print("\t"+markerId);
-					snpId++;
-				}
+	private void addGenotypes(VCFRecord record, GenotypeMatrix genotypes, byte [] codes) throws IOException {
+		boolean keepPhase = genotypes.getMaxValue()>=GT_PHASED_10;
+		int n = Math.min(codes.length, record.getNumCalls());
+		for(int i=0;i<n;i++) codes[i] = encodeGenotype(record.getCall(i), keepPhase);
+		for(int i=n;i<codes.length;i++) codes[i] = GT_UNDECIDED;
+		genotypes.addRow(codes);
+	}
+	
+	private static byte encodeGenotype(CalledGenomicVariant call, boolean keepPhase) {
+		if(call.isUndecided()) return GT_UNDECIDED;
+		if(call.isHeterozygous()) {
+			byte [] idxsPhasedAlleles = keepPhase?call.getIndexesPhasedAlleles():null;
+			if(idxsPhasedAlleles!=null && idxsPhasedAlleles.length==2) {
+				if(idxsPhasedAlleles[0]==0 && idxsPhasedAlleles[1]==1) return GT_PHASED_01;
+				if(idxsPhasedAlleles[0]==1 && idxsPhasedAlleles[1]==0) return GT_PHASED_10;
 			}
+			return GT_HETEROZYGOUS;
 		}
-		outGenotypes.println();
-		for(int i=0;i<sequences.length;i++) {
-			outGenotypes.println(sequences[i].toString());
+		if(call.isHomozygousReference()) return GT_HOMREF;
+		return GT_HOMALT;
+	}
+	
+	private static boolean isHeterozygous(byte code) {
+		return code==GT_HETEROZYGOUS || code==GT_PHASED_01 || code==GT_PHASED_10;
+	}
+	
+	/**
+	 * Calls the given printer for each sample with the genotype classes of the sample for all variants.
+	 * Samples are loaded in blocks to read the matrix only a few times
+	 * @param genotypes Matrix of genotype classes
+	 * @param printer Printer of the genotypes of one sample
+	 * @throws IOException If the matrix can not be read
+	 */
+	private void forEachSample(GenotypeMatrix genotypes, SampleGenotypesPrinter printer) throws IOException {
+		int numSamples = genotypes.getNumColumns();
+		int blockSize = genotypes.getColumnsBlockSize(MAX_MEMORY_SAMPLES_BLOCK);
+		for(int first=0;first<numSamples;first+=blockSize) {
+			int blockSamples = Math.min(blockSize, numSamples-first);
+			byte [][] block = genotypes.getColumns(first, blockSamples);
+			for(int j=0;j<blockSamples;j++) printer.print(first+j, block[j]);
 		}
-		outMap.flush();
-		outMap.close();
-		outGenotypes.flush();
-		outGenotypes.close();	
 	}
 	
-	private void printPowerMarker(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outPrefix) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i));
-		
-		PrintStream out = new PrintStream(outPrefix+"_powermarker.in");
-		PrintStream outSNPs = new PrintStream(outPrefix+"_powermarker.snp");
-		out.print("Sample");
-		int snpId=1;
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele = "-9\t-9";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele = "0\t1";
-					} else if (calledVar.isHomozygousReference()) {
-						allele = "0\t0";
-					} else {
-						allele = "1\t1";
-					}
-				}
-				sequences[i].append("\t"+allele);
-				if(i==0) {
-					out.print("\t"+snpId+"\t"+snpId);
-					outSNPs.println(snpId+"\t"+calledVar.getSequenceName()+"\t"+calledVar.getFirst());
-					snpId++;
-				}
+	private interface SampleGenotypesPrinter {
+		public void print(int sampleIdx, byte [] codes) throws IOException;
+	}
+	
+	private void printFlapjack(List<String> sampleIds, List<GenomicVariant> variants, GenotypeMatrix genotypes, String outPrefix) throws IOException {
+		try (PrintStream outMap = new PrintStream(outPrefix+"_flapjack.map");
+			 PrintStream outGenotypes = new PrintStream(outPrefix+"_flapjack.gen")) {
+			outMap.println("# fjFile = MAP");
+			outGenotypes.println("# fjFile = GENOTYPE");
+			int snpId=1;
+			for(GenomicVariant variant:variants) {
+				if(sampleIds.size()==0 || !variant.isBiallelic()) continue;
+				String markerId = "Marker"+snpId;
+				outMap.println(markerId+"\t"+variant.getSequenceName()+"\t"+variant.getFirst());
+				outGenotypes.print("\t"+markerId);
+				snpId++;
 			}
+			outGenotypes.println();
+			forEachSample(genotypes, (i,codes) -> {
+				StringBuilder line = new StringBuilder(sampleIds.get(i));
+				for(int k=0;k<codes.length;k++) {
+					GenomicVariant variant = variants.get(k);
+					if(!variant.isBiallelic()) continue;
+					String [] alleles = variant.getAlleles();
+					String allele = "-";
+					if(isHeterozygous(codes[k])) allele = alleles[0]+"/"+alleles[1];
+					else if (codes[k]==GT_HOMREF) allele = alleles[0];
+					else if (codes[k]==GT_HOMALT) allele = alleles[1];
+					line.append("\t"+allele);
+				}
+				outGenotypes.println(line.toString());
+			});
 		}
-		out.println();
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
-		}
-		out.flush();
-		out.close();
-		outSNPs.flush();
-		outSNPs.close();
-		
 	}
-	private void printPlink(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String prefix, boolean includeChrInMap) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i)+"\t"+sampleIds.get(i)+"\t0\t0\t0\t0");
-		PrintStream outMap;
-		if(includeChrInMap) outMap = new PrintStream(prefix+".map");
-		else outMap = new PrintStream(prefix+".info");
-		String currentChr = null;
-		int chrN = 0;
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()==0) continue;
-			CalledGenomicVariant firstCall = callsVariant.get(0);
-			if(!firstCall.isBiallelic() || !firstCall.isSNV() ) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				if(i==0) {
-					String seqName = calledVar.getSequenceName();
-					if(!seqName.equals(currentChr)) {
-						chrN++;
-						currentChr = seqName;
-					}
-					if(includeChrInMap) outMap.print(""+chrN+"\t");
-					outMap.println(calledVar.getSequenceName()+"_"+calledVar.getFirst()+"\t"+calledVar.getFirst());
+	
+	private void printPowerMarker(List<String> sampleIds, List<GenomicVariant> variants, GenotypeMatrix genotypes, String outPrefix) throws IOException {
+		try (PrintStream out = new PrintStream(outPrefix+"_powermarker.in");
+			 PrintStream outSNPs = new PrintStream(outPrefix+"_powermarker.snp")) {
+			out.print("Sample");
+			int snpId=1;
+			for(GenomicVariant variant:variants) {
+				if(sampleIds.size()==0 || !variant.isBiallelic()) continue;
+				out.print("\t"+snpId+"\t"+snpId);
+				outSNPs.println(snpId+"\t"+variant.getSequenceName()+"\t"+variant.getFirst());
+				snpId++;
+			}
+			out.println();
+			forEachSample(genotypes, (i,codes) -> {
+				StringBuilder line = new StringBuilder(sampleIds.get(i));
+				for(int k=0;k<codes.length;k++) {
+					if(!variants.get(k).isBiallelic()) continue;
+					line.append("\t"+getAlleleCodes(codes[k], "-9\t-9", "0\t1", "0\t0", "1\t1"));
 				}
-				String [] calledAlleles = calledVar.getCalledAlleles(); 
-				String allele = "0 0";
-				if(!calledVar.isUndecided()) {
-					if(calledAlleles.length>=2) {
-						allele = ""+calledAlleles[0]+" "+calledAlleles[1];
-					} else {
-						allele = ""+calledAlleles[0]+" "+calledAlleles[0];
-					}
+				out.println(line.toString());
+			});
+		}
+	}
+	
+	/**
+	 * Selects the text representing the given genotype class
+	 */
+	private static String getAlleleCodes(byte code, String undecided, String heterozygous, String homozygousReference, String homozygousAlternative) {
+		if(code==GT_UNDECIDED) return undecided;
+		if(isHeterozygous(code)) return heterozygous;
+		if(code==GT_HOMREF) return homozygousReference;
+		return homozygousAlternative;
+	}
+	
+	private void printPlink(List<String> sampleIds, List<GenomicVariant> variants, GenotypeMatrix genotypes, String prefix, boolean includeChrInMap) throws IOException {
+		boolean [] selected = new boolean[variants.size()];
+		try (PrintStream outMap = new PrintStream(prefix+(includeChrInMap?".map":".info"))) {
+			String currentChr = null;
+			int chrN = 0;
+			for(int k=0;k<selected.length;k++) {
+				GenomicVariant variant = variants.get(k);
+				if(sampleIds.size()==0 || !variant.isBiallelic() || !variant.isSNV()) continue;
+				selected[k] = true;
+				String seqName = variant.getSequenceName();
+				if(!seqName.equals(currentChr)) {
+					chrN++;
+					currentChr = seqName;
 				}
-				sequences[i].append("\t"+allele);
+				if(includeChrInMap) outMap.print(""+chrN+"\t");
+				outMap.println(variant.getSequenceName()+"_"+variant.getFirst()+"\t"+variant.getFirst());
 			}
 		}
-		outMap.flush();
-		outMap.close();
-		PrintStream out = new PrintStream(prefix+".ped");
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
+		try (PrintStream out = new PrintStream(prefix+".ped")) {
+			forEachSample(genotypes, (i,codes) -> {
+				StringBuilder line = new StringBuilder(sampleIds.get(i)+"\t"+sampleIds.get(i)+"\t0\t0\t0\t0");
+				for(int k=0;k<codes.length;k++) {
+					if(!selected[k]) continue;
+					String [] alleles = variants.get(k).getAlleles();
+					line.append("\t"+getAlleleCodes(codes[k], "0 0", alleles[0]+" "+alleles[1], alleles[0]+" "+alleles[0], alleles[1]+" "+alleles[1]));
+				}
+				out.println(line.toString());
+			});
 		}
-		out.flush();
-		out.close();
-		
 	}
-	private void printEigensoft(List<String> sampleIds, List<List<CalledGenomicVariant>> selectedCalls, String outPrefix) throws IOException {
-		PrintStream outGenotype = new PrintStream(outPrefix+"_eigensoft.geno");
-		PrintStream outSNP = new PrintStream(outPrefix+"_eigensoft.snp");
-		int chrNum = 0;
-		String lastChr = "";
-		for(List<CalledGenomicVariant> varCalls:selectedCalls) {
-			if(varCalls.size()>0 && !varCalls.get(0).isBiallelic()) continue;
-			for(int i=0;i<varCalls.size();i++) {
-				CalledGenomicVariant calledVar =varCalls.get(i);
-				if(calledVar.isUndecided()) outGenotype.print("9");
-				else if (calledVar.isHomozygousReference()) outGenotype.print("2");
-				else if (calledVar.isHeterozygous()) outGenotype.print("1");
-				else outGenotype.print("0");
-				if(i==0) {
-					if(!lastChr.equals(calledVar.getSequenceName())) {
-						chrNum++;
-						lastChr = calledVar.getSequenceName();
-					}
-					outSNP.printf("%30s %20d      0.0%20d %1s %1s\n",calledVar.getSequenceName()+"_"+calledVar.getFirst(),chrNum,calledVar.getFirst(),calledVar.getReference(),calledVar.getAlleles()[1]);
+	private void printEigensoft(List<String> sampleIds, List<GenomicVariant> variants, GenotypeMatrix genotypes, String outPrefix) throws IOException {
+		try (PrintStream outGenotype = new PrintStream(outPrefix+"_eigensoft.geno");
+			 PrintStream outSNP = new PrintStream(outPrefix+"_eigensoft.snp")) {
+			int chrNum = 0;
+			String lastChr = "";
+			byte [] codes = new byte[sampleIds.size()];
+			StringBuilder line = new StringBuilder();
+			for(int k=0;k<variants.size();k++) {
+				GenomicVariant variant = variants.get(k);
+				if(codes.length>0 && !variant.isBiallelic()) continue;
+				genotypes.getRow(k, codes);
+				line.setLength(0);
+				for(int i=0;i<codes.length;i++) line.append(getAlleleCodes(codes[i], "9", "1", "2", "0"));
+				outGenotype.println(line.toString());
+				if(codes.length==0) continue;
+				if(!lastChr.equals(variant.getSequenceName())) {
+					chrNum++;
+					lastChr = variant.getSequenceName();
 				}
+				outSNP.printf("%30s %20d      0.0%20d %1s %1s\n",variant.getSequenceName()+"_"+variant.getFirst(),chrNum,variant.getFirst(),variant.getReference(),variant.getAlleles()[1]);
 			}
-			outGenotype.println();
 		}
-		outGenotype.flush();
-		outGenotype.close();
-		outSNP.flush();
-		outSNP.close();
 		PrintStream outInd = new PrintStream(outPrefix+"_eigensoft.ind");
 		for(String sampleId:sampleIds) {
 			outInd.printf("%39s U Control\n", sampleId);
@@ -667,59 +702,41 @@ public class VCFConverter {
 		outInd.flush();
 		outInd.close();
 	}
-	private void printEmma(List<List<CalledGenomicVariant>> selectedCalls, String outFile) throws IOException {
-		PrintStream out = new PrintStream(outFile);
-		for(List<CalledGenomicVariant> varCalls:selectedCalls) {
-			if(varCalls.size()>0 && !varCalls.get(0).isBiallelic()) continue;
-			for(int i=0;i<varCalls.size();i++) {
-				if(i>0) out.print("\t");
-				CalledGenomicVariant calledVar =varCalls.get(i);
-				if(calledVar.isUndecided()) out.print("NA");
-				else if (calledVar.isHomozygousReference()) out.print("0");
-				else if (calledVar.isHeterozygous()) out.print("0.5");
-				else out.print("1");
+	private void printEmma(List<GenomicVariant> variants, GenotypeMatrix genotypes, String outFile) throws IOException {
+		try (PrintStream out = new PrintStream(outFile)) {
+			byte [] codes = new byte[genotypes.getNumColumns()];
+			StringBuilder line = new StringBuilder();
+			for(int k=0;k<variants.size();k++) {
+				if(codes.length>0 && !variants.get(k).isBiallelic()) continue;
+				genotypes.getRow(k, codes);
+				line.setLength(0);
+				for(int i=0;i<codes.length;i++) {
+					if(i>0) line.append("\t");
+					line.append(getAlleleCodes(codes[i], "NA", "0.5", "0", "1"));
+				}
+				out.println(line.toString());
 			}
-			out.println();
 		}
-		out.flush();
-		out.close();
-		
 	}
-	private void printSpagedi(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outFile) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i));
-		
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele = "0,0";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele = "1,2";
-					} else if (calledVar.isHomozygousReference()) {
-						allele = "1,1";
-					} else {
-						allele = "2,2";
-					}
-				}
-				sequences[i].append("\t"+allele);
+	private void printSpagedi(List<String> sampleIds, List<GenomicVariant> variants, GenotypeMatrix genotypes, String outFile) throws IOException {
+		try (PrintStream out = new PrintStream(outFile)) {
+			out.println(""+sampleIds.size()+"\t0\t0\t"+variants.size()+"\t1\t2");
+			out.println("0");
+			out.print("Ind");
+			for(int i=0;i<variants.size();i++) {
+				out.print("\tSNP_"+(i+1));
 			}
+			out.println();
+			forEachSample(genotypes, (i,codes) -> {
+				StringBuilder line = new StringBuilder(sampleIds.get(i));
+				for(int k=0;k<codes.length;k++) {
+					if(!variants.get(k).isBiallelic()) continue;
+					line.append("\t"+getAlleleCodes(codes[k], "0,0", "1,2", "1,1", "2,2"));
+				}
+				out.println(line.toString());
+			});
+			out.println("END");
 		}
-		PrintStream out = new PrintStream(outFile);
-		out.println(""+sampleIds.size()+"\t0\t0\t"+calls.size()+"\t1\t2");
-		out.println("0");
-		out.print("Ind");
-		for(int i=0;i<calls.size();i++) {
-			out.print("\tSNP_"+(i+1));
-		}
-		out.println();
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
-		}
-		out.println("END");
-		out.flush();
-		out.close();
 	}
 	
 	private void printMatrixHeader(List<String> sampleIds, PrintStream out) {
@@ -819,36 +836,20 @@ public class VCFConverter {
 		out.println();
 	}
 		
-	private void printStructure(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outFile) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i));
-		
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele = "-9 -9";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele = "0 1";
-					} else if (calledVar.isHomozygousReference()) {
-						allele = "0 0";
-					} else {
-						allele = "1 1";
-					}
+	private void printStructure(List<String> sampleIds, List<GenomicVariant> variants, GenotypeMatrix genotypes, String outFile) throws IOException {
+		try (PrintStream out = new PrintStream(outFile)) {
+			forEachSample(genotypes, (i,codes) -> {
+				StringBuilder line = new StringBuilder(sampleIds.get(i));
+				for(int k=0;k<codes.length;k++) {
+					if(!variants.get(k).isBiallelic()) continue;
+					line.append(" "+getAlleleCodes(codes[k], "-9 -9", "0 1", "0 0", "1 1"));
 				}
-				sequences[i].append(" "+allele);
-			}
-		}
-		PrintStream out = new PrintStream(outFile);
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
+				out.println(line.toString());
+			});
 		}
-		out.flush();
-		out.close();
 	}
 	
-	private void printrrBLUP(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String prefix) throws IOException {
+	private void printrrBLUP(List<String> sampleIds, List<GenomicVariant> variants, GenotypeMatrix genotypes, String prefix) throws IOException {
 		String outFile = prefix+"_rrBLUP.in";
 		String outSamples = prefix+"_rrBLUP_samples.txt";
 		PrintStream outS = new PrintStream(outSamples);
@@ -857,95 +858,53 @@ public class VCFConverter {
 		}
 		outS.flush();
 		outS.close();
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder();
-		
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele = "NA";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele = "0";
-					} else if (calledVar.isHomozygousReference()) {
-						allele = "1";
-					} else {
-						allele = "-1";
-					}
+		try (PrintStream out = new PrintStream(outFile)) {
+			forEachSample(genotypes, (i,codes) -> {
+				StringBuilder line = new StringBuilder();
+				for(int k=0;k<codes.length;k++) {
+					if(!variants.get(k).isBiallelic()) continue;
+					line.append(" ");
+					line.append(getAlleleCodes(codes[k], "NA", "0", "1", "-1"));
 				}
-				if(i>=0) sequences[i].append(" ");
-				sequences[i].append(allele);
-			}
-		}
-		PrintStream out = new PrintStream(outFile);
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
+				out.println(line.toString());
+			});
 		}
-		out.flush();
-		out.close();
 	}
 	
-	private void printFasta(List<String> sampleIds, List<List<CalledGenomicVariant>> calls, String outFile) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder();
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String [] alleles = calledVar.getAlleles();
-				char call = 'N';
-				if(calledVar.isHomozygousReference()) {
-					call = alleles[0].charAt(0);
-				} else if (calledVar.isHomozygous()) {
-					call = alleles[1].charAt(0);
-				} 
-				sequences[i].append(call);
-			}
-		}
+	private void printFasta(List<String> sampleIds, List<GenomicVariant> variants, GenotypeMatrix genotypes, String outFile) throws IOException {
 		FastaSequencesHandler handler = new FastaSequencesHandler();
-		List<QualifiedSequence> seqsList = new ArrayList<QualifiedSequence>();
-		for(int i=0;i<sequences.length;i++) {
-			String seqId = sampleIds.get(i);
-			DNAMaskedSequence seq = new DNAMaskedSequence(sequences[i].toString());
-			seqsList.add(new QualifiedSequence(seqId, seq));
+		try (PrintStream out = new PrintStream(outFile)) {
+			forEachSample(genotypes, (i,codes) -> {
+				StringBuilder sequence = new StringBuilder();
+				for(int k=0;k<codes.length;k++) {
+					GenomicVariant variant = variants.get(k);
+					if(!variant.isBiallelic()) continue;
+					String [] alleles = variant.getAlleles();
+					char call = 'N';
+					if(codes[k]==GT_HOMREF) {
+						call = alleles[0].charAt(0);
+					} else if (codes[k]==GT_HOMALT) {
+						call = alleles[1].charAt(0);
+					}
+					sequence.append(call);
+				}
+				DNAMaskedSequence seq = new DNAMaskedSequence(sequence.toString());
+				handler.saveSequences(Collections.singletonList(new QualifiedSequence(sampleIds.get(i), seq)), out, 100);
+			});
 		}
-		PrintStream out = new PrintStream(outFile);
-		handler.saveSequences(seqsList, out, 100);
-		out.flush();
-		out.close();
 	}
 	
-	private void printPhase(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outFile) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[2*sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder();
+	private void printPhase(List<String> sampleIds, List<GenomicVariant> variants, GenotypeMatrix genotypes, String outFile) throws IOException {
+		boolean [] selected = new boolean[variants.size()];
 		StringBuilder linePositions = new StringBuilder("P");
 		int nSites =0;
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()>0 && !callsVariant.get(0).isBiallelic()) continue;
-			GenomicVariant variant = callsVariant.get(0);
+		for(int k=0;k<selected.length;k++) {
+			GenomicVariant variant = variants.get(k);
+			if(!variant.isBiallelic()) continue;
 			if(!variant.getSequenceName().equals(sequenceName)) continue;
+			selected[k] = true;
 			nSites++;
 			linePositions.append(" "+variant.getFirst());
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele1 = "?";
-				String allele2 = "?";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele1 = "0";
-						allele2 = "1";
-					} else if (calledVar.isHomozygousReference()) {
-						allele1 = "0";
-						allele2 = "0";
-					} else {
-						allele1 = "1";
-						allele2 = "1";
-					}
-				}
-				sequences[2*i].append(allele1);
-				sequences[2*i+1].append(allele2);
-			}
 		}
 		if(nSites==0) throw new IOException("No biallelic variants found for the given sequence name");
 		try (PrintStream out = new PrintStream(outFile)) {
@@ -954,56 +913,36 @@ public class VCFConverter {
 			out.println(linePositions);
 			for(int i=0;i<nSites;i++) out.print("S");
 			out.println();
-			for(int i=0;i<sampleIds.size();i++) {
+			forEachSample(genotypes, (i,codes) -> {
+				StringBuilder allele1 = new StringBuilder();
+				StringBuilder allele2 = new StringBuilder();
+				for(int k=0;k<codes.length;k++) {
+					if(!selected[k]) continue;
+					allele1.append(getAlleleCodes(codes[k], "?", "0", "0", "1"));
+					allele2.append(getAlleleCodes(codes[k], "?", "1", "0", "1"));
+				}
 				out.println("#"+sampleIds.get(i));
-				out.println(sequences[2*i].toString());
-				out.println(sequences[2*i+1].toString());
-			}
+				out.println(allele1.toString());
+				out.println(allele2.toString());
+			});
 		}
 	}
 	
-	private void printFineStructure(int numSamples, List<List<CalledGenomicVariant>> calls, String outFile) throws IOException {
-		//log.info("Converting to fineStructure. Variants: "+calls.size()+" samples: "+numSamples);
-		StringBuilder [] sequences = new StringBuilder[2*numSamples];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder();
+	private void printFineStructure(int numSamples, List<GenomicVariant> variants, GenotypeMatrix genotypes, BitSet incompleteVariants, String outFile) throws IOException {
+		//log.info("Converting to fineStructure. Variants: "+variants.size()+" samples: "+numSamples);
+		boolean [] selected = new boolean[variants.size()];
 		StringBuilder linePositions = new StringBuilder("P");
 		int nSites =0;
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			if(callsVariant.size()==0 || !callsVariant.get(0).isBiallelic()) continue;
-			GenomicVariant variant = callsVariant.get(0);
+		for(int k=0;k<selected.length;k++) {
+			GenomicVariant variant = variants.get(k);
+			if(numSamples==0 || !variant.isBiallelic()) continue;
 			if(!variant.getSequenceName().equals(sequenceName)) continue;
-			if(callsVariant.size()!=numSamples) {
+			if(incompleteVariants.get(k)) {
 				log.warning("Number of samples for variant "+variant.getSequenceName()+":"+variant.getFirst()+" does not match expected number: "+numSamples);
 				continue;
 			}
+			selected[k] = true;
 			linePositions.append(" "+variant.getFirst());
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				byte [] idxsPhasedAlleles = calledVar.getIndexesPhasedAlleles();
-				String allele1 = "0";
-				String allele2 = "0";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						if(idxsPhasedAlleles!=null && idxsPhasedAlleles.length==2) {
-							allele1 = ""+idxsPhasedAlleles[0];
-							allele2 = ""+idxsPhasedAlleles[1];
-						} else {
-							log.warning("Unphased heterozygous call at variant at "+variant.getSequenceName()+":"+variant.getFirst()+" indivudual: "+i);
-							allele1 = "0";
-							allele2 = "1";
-						}
-		
-					} else if (!calledVar.isHomozygousReference()) {
-						allele1 = "1";
-						allele2 = "1";
-					}
-				} else {
-					log.warning("Imputing reference genotype for undecided call at variant at "+variant.getSequenceName()+":"+variant.getFirst()+" indivudual: "+i);
-				}
-				sequences[2*i].append(allele1);
-				sequences[2*i+1].append(allele2);
-			}
-			
 			nSites++;
 		}
 		if(nSites==0) throw new IOException("No biallelic variants found for the given sequence name");
@@ -1011,10 +950,24 @@ public class VCFConverter {
 			out.println(2*numSamples);
 			out.println(nSites);
 			out.println(linePositions);
-			for(int i=0;i<numSamples;i++) {
-				out.println(sequences[2*i].toString());
-				out.println(sequences[2*i+1].toString());
-			}
+			forEachSample(genotypes, (i,codes) -> {
+				StringBuilder allele1 = new StringBuilder();
+				StringBuilder allele2 = new StringBuilder();
+				for(int k=0;k<codes.length;k++) {
+					if(!selected[k]) continue;
+					GenomicVariant variant = variants.get(k);
+					byte code = codes[k];
+					if(code==GT_UNDECIDED) {
+						log.warning("Imputing reference genotype for undecided call at variant at "+variant.getSequenceName()+":"+variant.getFirst()+" indivudual: "+i);
+					} else if (code==GT_HETEROZYGOUS) {
+						log.warning("Unphased heterozygous call at variant at "+variant.getSequenceName()+":"+variant.getFirst()+" indivudual: "+i);
+					}
+					allele1.append(code==GT_PHASED_10 || code==GT_HOMALT?"1":"0");
+					allele2.append(code==GT_UNDECIDED || code==GT_HOMREF || code==GT_PHASED_10?"0":"1");
+				}
+				out.println(allele1.toString());
+				out.println(allele2.toString());
+			});
 		}
 	}
 	
@@ -1055,43 +1008,27 @@ public class VCFConverter {
 
 	
 	
-	private void printDarwin(List<String> sampleIds,List<List<CalledGenomicVariant>> calls, String outPrefix) throws IOException {
-		StringBuilder [] sequences = new StringBuilder[sampleIds.size()];
-		for(int i=0;i<sequences.length;i++) sequences[i] = new StringBuilder(sampleIds.get(i));
-		PrintStream out = new PrintStream(outPrefix+"_Darwin.in");
-		PrintStream outSNPs = new PrintStream(outPrefix+"_Darwin.snp");
-		out.println(sampleIds.size()+"\t"+(2*calls.size()));
-		out.print("N");
-		int snpId=1;
-		for(List<CalledGenomicVariant> callsVariant:calls) {
-			for(int i=0;i<callsVariant.size();i++) {
-				CalledGenomicVariant calledVar = callsVariant.get(i);
-				String allele = "-9\t-9";
-				if(!calledVar.isUndecided()) {
-					if(calledVar.isHeterozygous()) {
-						allele = "0\t1";
-					} else if (calledVar.isHomozygousReference()) {
-						allele = "0\t0";
-					} else {
-						allele = "1\t1";
-					}
-				}
-				sequences[i].append("\t"+allele);
-				if(i==0) {
-					out.print("\t"+snpId+"\t"+snpId);
-					outSNPs.println(snpId+"\t"+calledVar.getSequenceName()+"\t"+calledVar.getFirst());
-					snpId++;
-				}
+	private void printDarwin(List<String> sampleIds, List<GenomicVariant> variants, GenotypeMatrix genotypes, String outPrefix) throws IOException {
+		try (PrintStream out = new PrintStream(outPrefix+"_Darwin.in");
+			 PrintStream outSNPs = new PrintStream(outPrefix+"_Darwin.snp")) {
+			out.println(sampleIds.size()+"\t"+(2*variants.size()));
+			out.print("N");
+			int snpId=1;
+			for(GenomicVariant variant:variants) {
+				if(sampleIds.size()==0) break;
+				out.print("\t"+snpId+"\t"+snpId);
+				outSNPs.println(snpId+"\t"+variant.getSequenceName()+"\t"+variant.getFirst());
+				snpId++;
 			}
+			out.println();
+			forEachSample(genotypes, (i,codes) -> {
+				StringBuilder line = new StringBuilder(sampleIds.get(i));
+				for(int k=0;k<codes.length;k++) {
+					line.append("\t"+getAlleleCodes(codes[k], "-9\t-9", "0\t1", "0\t0", "1\t1"));
+				}
+				out.println(line.toString());
+			});
 		}
-		out.println();
-		for(int i=0;i<sequences.length;i++) {
-			out.println(sequences[i].toString());
-		}
-		out.flush();
-		out.close();
-		outSNPs.flush();
-		outSNPs.close();
 	}
 	
 	
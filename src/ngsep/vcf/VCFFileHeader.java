@@ -169,6 +169,17 @@ public class VCFFileHeader {
 		}
 	}
 	
+	/**
+	 * Replaces the samples of this header
+	 * @param samples New list of samples
+	 */
+	public void setSamples (List<Sample> samples) {
+		this.samples = new ArrayList<Sample>(samples);
+		samplesIndexMap = new TreeMap<String, Integer>();
+		for(int i=0;i<this.samples.size();i++) {
+			samplesIndexMap.put(this.samples.get(i).getId(), i);
+		}
+	}
 	public void addSamples (List<Sample> samples) {
 		for(Sample sample:samples) {
 			addSample(sample, false);
@@ -19,6 +19,7 @@
  *******************************************************************************/
 package ngsep.vcf;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
@@ -26,15 +27,40 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.Block;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndex;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import ngsep.genome.GenomicRegion;
+import ngsep.genome.GenomicRegionImpl;
+import ngsep.genome.GenomicRegionPositionComparator;
+import ngsep.main.OptionValuesDecoder;
 import ngsep.main.io.ConcatGZIPInputStream;
 import ngsep.main.io.ParseUtils;
 import ngsep.sequences.DNASequence;
@@ -60,15 +86,36 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 	public static final int LOAD_MODE_COPY_NUMBER = 2;
 	public static final int LOAD_MODE_MINIMAL = 3;
 	
+	public static final int DEF_NUM_THREADS = 1;
+	//Limits of the batches of lines decoded by each thread
+	private static final int MAX_LINES_BATCH = 1000;
+	private static final int MAX_CHARS_BATCH = 4000000;
+	private static final List<String> END_OF_LINES = new ArrayList<>(0);
+	private static final long DECODERS_KEEP_ALIVE_SECONDS = 10;
+	//Number of threads of new readers. It can be changed for all commands with the global option -t
+	private static volatile int defaultNumThreads = DEF_NUM_THREADS;
+	
 	
 	
 	private BufferedReader in;
+	//File of the reader. Null if the reader was created from a stream
+	private File file = null;
+	private TabixIndex index = null;
+	//Reader of files written by VCFBinaryFileWriter. Null for VCF files
+	private VCFBinaryFileReader binaryReader = null;
+	private List<RegionsVCFFileIterator> queryIterators = new ArrayList<>();
 	private QualifiedSequenceList sequences = new QualifiedSequenceList();
 	private VCFFileHeader header = new VCFFileHeader();
 	
-	private VCFFileIterator currentIterator = null;
+	private Iterator<VCFRecord> currentIterator = null;
 	
 	private int loadMode = LOAD_MODE_CALLINFO;
+	private int numThreads = defaultNumThreads;
+	
+	//Samples in the columns of the file
+	private List<Sample> fileSamples;
+	//Columns of the samples to load. Null if all samples are loaded
+	private int [] selectedSampleColumns = null;
 	
 	public VCFFileReader (String filename) throws IOException {
 		init(null,new File(filename));
@@ -96,6 +143,35 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		this.loadMode = loadMode;
 	}
 	
+	public static int getDefaultNumThreads() {
+		return defaultNumThreads;
+	}
+	/**
+	 * Changes the number of threads used to decode records by readers created after this call
+	 * @param numThreads Default number of threads to decode records
+	 */
+	public static void setDefaultNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads should be a positive number. Given: "+numThreads);
+		defaultNumThreads = numThreads;
+	}
+	public static void setDefaultNumThreads(String value) {
+		setDefaultNumThreads((int)OptionValuesDecoder.decode(value, Integer.class));
+	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	/**
+	 * Changes the number of threads used to decode records. If larger than one, lines are read in a separate thread
+	 * and batches of lines are decoded in parallel, including the genotype calls. Records are returned in the order of the file
+	 * @param numThreads Number of threads to decode records. If one, records are decoded in the thread of the iterator
+	 */
+	public void setNumThreads(int numThreads) {
+		if(numThreads<1) throw new IllegalArgumentException("Number of threads should be a positive number. Given: "+numThreads);
+		if (currentIterator != null) throw new IllegalStateException("The number of threads can not be changed after the iteration started");
+		this.numThreads = numThreads;
+	}
+	
 	public QualifiedSequenceList getSequences() {
 		return sequences;
 	}
@@ -105,11 +181,163 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 	public List<String> getSampleIds() {
 		return header.getSampleIds();
 	}
+	/**
+	 * Restricts the genotype calls of each record to the given samples. Columns of other samples are never decoded.
+	 * The samples of the header are updated to include only the selected samples in the order of the file
+	 * @param sampleIds Ids of the samples to load. If null, all samples are loaded
+	 */
+	public void setSelectedSamples(Set<String> sampleIds) {
+		if (currentIterator != null) throw new IllegalStateException("Samples can not be selected after the iteration started");
+		if(sampleIds == null) {
+			selectedSampleColumns = null;
+			header.setSamples(fileSamples);
+			return;
+		}
+		List<Sample> selectedSamples = new ArrayList<Sample>();
+		List<Integer> columns = new ArrayList<Integer>();
+		for(int i=0;i<fileSamples.size();i++) {
+			Sample s = fileSamples.get(i);
+			if(sampleIds.contains(s.getId())) {
+				selectedSamples.add(s);
+				columns.add(i);
+			}
+		}
+		selectedSampleColumns = new int [columns.size()];
+		for(int i=0;i<selectedSampleColumns.length;i++) selectedSampleColumns[i] = columns.get(i);
+		header.setSamples(selectedSamples);
+	}
+	List<Sample> getFileSamples() {
+		return fileSamples;
+	}
+	int [] getSelectedSampleColumns() {
+		return selectedSampleColumns;
+	}
 	
 
 	@Override
 	public void close() throws IOException {
-		in.close();		
+		if(currentIterator instanceof ParallelVCFFileIterator) ((ParallelVCFFileIterator)currentIterator).stop();
+		for(RegionsVCFFileIterator it:new ArrayList<>(queryIterators)) it.close();
+		in.close();
+		if(binaryReader!=null) binaryReader.close();
+	}
+	
+	/**
+	 * @return boolean true if the reader was created from a file compressed in BGZF format having a tabix index or from a binary file
+	 */
+	public boolean isIndexed() {
+		if(binaryReader!=null || index!=null) return true;
+		if(file==null || !getIndexFile().exists()) return false;
+		//Files compressed with plain gzip can have a stale index but they can not be queried
+		try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+			return BlockCompressedInputStream.isValidFile(is);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	private File getIndexFile() {
+		return new File(file.getPath()+VCFIndexedFileWriter.INDEX_EXTENSION);
+	}
+	
+	/**
+	 * Creates an iterator over the records overlapping the given region.
+	 * The file must be compressed in BGZF format and have a tabix index (.tbi)
+	 * @param sequenceName Name of the sequence of the region
+	 * @param first First position of the region
+	 * @param last Last position of the region
+	 * @return Iterator<VCFRecord> Records overlapping the region
+	 * @throws IOException If the index can not be loaded
+	 */
+	public Iterator<VCFRecord> query(String sequenceName, int first, int last) throws IOException {
+		List<GenomicRegion> regions = new ArrayList<>();
+		regions.add(new GenomicRegionImpl(sequenceName, first, last));
+		return query(regions);
+	}
+	
+	/**
+	 * Creates an iterator over the records overlapping the given regions. Only the BGZF blocks covering the regions are read.
+	 * For binary files, only the chunks covering the regions are read.
+	 * Overlapping regions are merged and each record is returned once. Records of each sequence are returned sorted by position.
+	 * Sequences are visited in the order of the sequences of this reader (see getSequences). Other sequences are visited
+	 * in the order of the file, so that records are returned in the same order of a complete iteration over the file
+	 * @param regions Regions to query
+	 * @return Iterator<VCFRecord> Records overlapping at least one of the regions
+	 * @throws IOException If the index can not be loaded
+	 */
+	public Iterator<VCFRecord> query(List<? extends GenomicRegion> regions) throws IOException {
+		if (in == null) throw new IllegalStateException("File reader is closed");
+		if(binaryReader!=null) return binaryReader.iterator(this, mergeRegions(regions, binaryReader.getSequenceNames()));
+		TabixIndex tabixIndex = loadIndex();
+		RegionsVCFFileIterator it = new RegionsVCFFileIterator(tabixIndex, mergeRegions(regions, tabixIndex.getSequenceNames()));
+		queryIterators.add(it);
+		return it;
+	}
+	
+	private TabixIndex loadIndex() throws IOException {
+		if(index!=null) return index;
+		if(file==null) throw new IOException("Regions can only be queried on VCF files. Streams can not be queried");
+		File indexFile = getIndexFile();
+		if(!indexFile.exists()) throw new IOException("Tabix index "+indexFile.getPath()+" not found. It can be created for files compressed in BGZF format");
+		index = new TabixIndex(indexFile);
+		return index;
+	}
+	
+	private List<GenomicRegion> mergeRegions(List<? extends GenomicRegion> regions, List<String> fileSequenceNames) {
+		Map<String,List<GenomicRegion>> regionsBySequence = new LinkedHashMap<>();
+		for(QualifiedSequence seq:sequences) regionsBySequence.put(seq.getName(), null);
+		for(String sequenceName:fileSequenceNames) regionsBySequence.putIfAbsent(sequenceName, null);
+		for(GenomicRegion r:regions) {
+			List<GenomicRegion> seqRegions = regionsBySequence.get(r.getSequenceName());
+			if(seqRegions==null) {
+				seqRegions = new ArrayList<>();
+				regionsBySequence.put(r.getSequenceName(), seqRegions);
+			}
+			seqRegions.add(r);
+		}
+		List<GenomicRegion> answer = new ArrayList<>();
+		for(List<GenomicRegion> seqRegions:regionsBySequence.values()) {
+			if(seqRegions==null) continue;
+			Collections.sort(seqRegions, GenomicRegionPositionComparator.getInstance());
+			GenomicRegionImpl current = null;
+			for(GenomicRegion r:seqRegions) {
+				if(current!=null && r.getFirst()<=current.getLast()+1) {
+					if(r.getLast()>current.getLast()) current.setLast(r.getLast());
+				} else {
+					current = new GenomicRegionImpl(r.getSequenceName(), r.getFirst(), r.getLast());
+					answer.add(current);
+				}
+			}
+		}
+		return answer;
+	}
+	
+	/**
+	 * Creates a tabix index for the file of this reader. The file must be compressed in BGZF format and sorted by sequence and position.
+	 * The index is saved in a file with the same name and the extension .tbi
+	 * @throws IOException If the file is not compressed in BGZF format or if the records are not sorted
+	 */
+	public void createIndex() throws IOException {
+		if(file==null || binaryReader!=null) throw new IOException("Indexes can only be created for VCF files");
+		try (InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+			if(!BlockCompressedInputStream.isValidFile(is)) throw new IOException("File "+file.getPath()+" is not compressed in BGZF format and can not be indexed");
+		}
+		TabixIndexCreator creator = new TabixIndexCreator(TabixFormat.VCF);
+		try (BlockCompressedInputStream stream = new BlockCompressedInputStream(file)) {
+			while(true) {
+				long pointer = stream.getFilePointer();
+				String line = stream.readLine();
+				if(line==null) break;
+				if(line.startsWith("#")) continue;
+				VCFRecord record = loadVCFRecord(line);
+				if(record==null) continue;
+				GenomicVariant var = record.getVariant();
+				creator.addFeature(new SimpleFeature(var.getSequenceName(), var.getFirst(), var.getLast()), pointer);
+			}
+			index = (TabixIndex)creator.finalizeIndex(stream.getFilePointer());
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Can not create index for "+file.getPath()+". "+e.getMessage(), e);
+		}
+		index.write(Paths.get(getIndexFile().getPath()));
 	}
 	
 	
@@ -122,21 +350,29 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
         if (currentIterator != null) {
             throw new IllegalStateException("Iteration in progress");
         }
-        currentIterator = new VCFFileIterator(); 
+        if(binaryReader!=null) currentIterator = binaryReader.iterator(this, null);
+        else if(numThreads>1) currentIterator = new ParallelVCFFileIterator();
+        else currentIterator = new VCFFileIterator(); 
 		return currentIterator;
 	}
 	
 	private void init (InputStream stream, File file) throws IOException {
 		if (stream != null && file != null) throw new IllegalArgumentException("Stream and file are mutually exclusive");
-		if(file!=null) {
+		if(file!=null && VCFBinaryFileReader.isBinaryFile(file)) {
+			this.file = file;
+			binaryReader = new VCFBinaryFileReader(file);
+			in = new BufferedReader(new StringReader(binaryReader.getHeaderText()));
+		} else if(file!=null) {
+			this.file = file;
 			stream = new FileInputStream(file);
 			if(file.getName().endsWith(".gz")) {
 				stream = new ConcatGZIPInputStream(stream);
 			}
 		}
-		in = new BufferedReader(new InputStreamReader(stream));
+		if(binaryReader==null) in = new BufferedReader(new InputStreamReader(stream));
 		String samplesLine = loadHeader();
 		header.loadSampleIds(samplesLine);
+		fileSamples = header.getSamples();
 	}
 	
 	private String loadHeader() throws IOException {
@@ -149,54 +385,121 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 	}
 	
 	
+	/**
+	 * Finds the sequence of the given line registering its name if it is new.
+	 * Sequences must be looked up in the order of the file
+	 * @param line VCF record line
+	 * @return QualifiedSequence Sequence of the record or null if the line is not valid
+	 */
+	private QualifiedSequence lookupSequence (String line) {
+		//Invalid lines are reported while loading the record
+		int end = -1;
+		for(int i=0;i<7;i++) {
+			end = line.indexOf('\t', end+1);
+			if(end<0) return null;
+		}
+		int firstTab = line.indexOf('\t');
+		String sequenceName = line.substring(0, firstTab);
+		try {
+			return sequences.addOrLookupName(sequenceName);
+		} catch (RuntimeException e) {
+			log.severe("Can not load genomic variant at "+sequenceName+":"+line.substring(firstTab+1, line.indexOf('\t', firstTab+1))+". Unrecognized sequence name. "+e.getMessage());
+			return null;
+		}
+	}
+	
 	private VCFRecord loadVCFRecord (String line) {
-		String [] items = ParseUtils.parseString(line,'\t');
+		return loadVCFRecord(line, lookupSequence(line));
+	}
+	
+	private VCFRecord loadVCFRecord (String line, QualifiedSequence seq) {
+		//Sample columns are split only if they are present. Calls are decoded when requested
+		int samplesStart = -1;
+		for(int i=0;i<9;i++) {
+			samplesStart = line.indexOf('\t', samplesStart+1);
+			if(samplesStart<0) break;
+		}
+		String [] items = ParseUtils.parseString(samplesStart<0?line:line.substring(0, samplesStart),'\t');
 		if(items.length<8) {
 			log.severe("Could not load line: "+line+". VCF records must have at least 8 columns");
 			return null;
 		}
-		GenomicVariant variant = loadGenomicVariant(items);
+		//Errors looking up the sequence are already reported
+		if(seq == null) return null;
+		GenomicVariant variant = loadGenomicVariant(items, seq);
 		if(variant == null) return null;
 		List<String> filters = loadFilters(items[6]);
 		List<GenomicVariantAnnotation> infoFields = loadInfoField(variant, items[7]);
 		
 		//if(variant.getType() == GenomicVariant.TYPE_UNDETERMINED && items[3].length()>1) variant.setType(GenomicVariant.TYPE_INDEL);
-		List<CalledGenomicVariant> calls = new ArrayList<CalledGenomicVariant>();
 		List<Sample> samples = header.getSamples();
 		
 		if(items.length==8) {
-			if (samples.size()>0) {
+			if (fileSamples.size()>0) {
 				log.severe("Can not load genomic variant at "+items[0]+":"+items[1]+". Number of genotyped samples does not coincide with number of samples in the header");
 				return null;
 			}
-			return new VCFRecord(variant, filters, infoFields, new int [0], calls, header);
+			return new VCFRecord(variant, filters, infoFields, new int [0], new ArrayList<CalledGenomicVariant>(), header);
 		}
 		//If genotype information is present
 		int[] formatInput = loadInputFormat(items[8]);
-		if(items.length-9!=samples.size()) {
+		String samplesData = "";
+		int numColumns = 0;
+		if(samplesStart>=0) {
+			samplesData = line.substring(samplesStart+1);
+			numColumns = 1;
+			for(int i=samplesData.indexOf('\t');i>=0;i=samplesData.indexOf('\t', i+1)) numColumns++;
+		}
+		if(numColumns!=fileSamples.size()) {
 			log.severe("Can not load genomic variant at "+items[0]+":"+items[1]+". Number of genotyped samples does not coincide with number of samples in the header");
 			return null;
 		}
-		boolean nonDefaultCN = false;
-		for(int i=9;i<items.length;i++) {
-			String [] itemsSample = ParseUtils.parseString(items[i], ':');
-			Sample s = samples.get(i-9);
-			CalledGenomicVariant call = loadCalledVariant(variant,formatInput,itemsSample,s); 
-			calls.add(call);
-			if(call.getCopyNumber()!=CalledGenomicVariant.DEFAULT_PLOIDY) nonDefaultCN = true;
+		//Limits of the columns of the samples to load
+		int [] columnStarts = new int [numColumns];
+		int [] columnEnds = new int [numColumns];
+		int start = 0;
+		for(int i=0;i<numColumns;i++) {
+			int end = samplesData.indexOf('\t', start);
+			if(end<0) end = samplesData.length();
+			columnStarts[i] = start;
+			columnEnds[i] = end;
+			start = end+1;
 		}
-		int [] formatLoad = makeLoadFormat (formatInput,loadMode!=LOAD_MODE_MINIMAL && nonDefaultCN && variant.getType()<=GenomicVariant.TYPE_STR);	
-		return new VCFRecord(variant, filters, infoFields, formatLoad, calls, header);
+		if(selectedSampleColumns!=null) {
+			int [] selectedStarts = new int [selectedSampleColumns.length];
+			int [] selectedEnds = new int [selectedSampleColumns.length];
+			for(int i=0;i<selectedSampleColumns.length;i++) {
+				selectedStarts[i] = columnStarts[selectedSampleColumns[i]];
+				selectedEnds[i] = columnEnds[selectedSampleColumns[i]];
+			}
+			columnStarts = selectedStarts;
+			columnEnds = selectedEnds;
+		}
+		VCFGenotypeColumns genotypeColumns = new VCFTextGenotypeColumns(this, variant, formatInput, samples, samplesData, columnStarts, columnEnds);
+		return createRecord(variant, filters, infoFields, formatInput, genotypeColumns);
 	}
 	
-	private GenomicVariant loadGenomicVariant(String[] items) {
-		QualifiedSequence seq;
-		try {
-			seq = sequences.addOrLookupName(items[0]);
-		} catch (RuntimeException e) {
-			log.severe("Can not load genomic variant at "+items[0]+":"+items[1]+". Unrecognized sequence name. "+e.getMessage());
-			return null;
+	/**
+	 * Creates a record with genotype columns that are decoded when the calls are requested
+	 * @param variant Variant of the record
+	 * @param filters Filters of the record
+	 * @param infoFields Annotations of the INFO field
+	 * @param formatInput Indexes of the known format fields in the FORMAT column. -1 for fields that are not loaded
+	 * @param genotypeColumns Genotype columns of the record
+	 * @return VCFRecord New record
+	 */
+	VCFRecord createRecord(GenomicVariant variant, List<String> filters, List<GenomicVariantAnnotation> infoFields, int [] formatInput, VCFGenotypeColumns genotypeColumns) {
+		int [] formatLoad = makeLoadFormat (formatInput,false);
+		//Copy number is forced if it was originally on the genotype information. This is known only after decoding the calls
+		int [] formatLoadCN = null;
+		if(loadMode!=LOAD_MODE_MINIMAL && variant.getType()<=GenomicVariant.TYPE_STR) {
+			formatLoadCN = makeLoadFormat (formatInput,true);
+			if(Arrays.equals(formatLoad, formatLoadCN)) formatLoadCN = null;
 		}
+		return new VCFRecord(variant, filters, infoFields, formatLoad, formatLoadCN, genotypeColumns, header);
+	}
+	
+	GenomicVariant loadGenomicVariant(String[] items, QualifiedSequence seq) {
 		int position;
 		try {
 			position = Integer.parseInt(items[1]);
@@ -253,12 +556,12 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 			return variant;
 		}
 	}
-	private List<String> loadFilters(String filtersField) {
+	List<String> loadFilters(String filtersField) {
 		//TODO: Improve memory usage
 		if(NO_INFO_CHAR.equals(filtersField)) return new ArrayList<String>();
  		return Arrays.asList(ParseUtils.parseString(filtersField, ';'));
 	}
-	private List<GenomicVariantAnnotation> loadInfoField (GenomicVariant variant,String infoField) {
+	List<GenomicVariantAnnotation> loadInfoField (GenomicVariant variant,String infoField) {
 		List<GenomicVariantAnnotation> annotations = new ArrayList<GenomicVariantAnnotation>();
 		if(NO_INFO_CHAR.equals(infoField)) return annotations;
 		String [] infoItems = ParseUtils.parseStringWithText(infoField, ';','\"');
@@ -291,7 +594,7 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		return annotations;
 	}
 	
-	private int[] loadInputFormat(String formatStr) {
+	int[] loadInputFormat(String formatStr) {
 		String [] itemsFormat = ParseUtils.parseString(formatStr, ':');
 		int [] answer = new int [itemsFormat.length];
 		Arrays.fill(answer, -1);
@@ -306,7 +609,7 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		}
 		return answer;
 	}
-	private CalledGenomicVariant loadCalledVariant(GenomicVariant variant,int [] format, String[] itemsSample, Sample sample) {
+	CalledGenomicVariant loadCalledVariant(GenomicVariant variant,int [] format, String[] itemsSample, Sample sample) {
 		String sampleId = sample.getId();
 		if(itemsSample.length>format.length) {
 			log.severe("Can not load genotype of sample "+sampleId+" for genomic variant at "+variant.getSequenceName()+":"+variant.getFirst()+". Sample information does not match format");
@@ -323,36 +626,86 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 		//Load genotype field
 		String [] alleles = variant.getAlleles();
 		int numAlleles = alleles.length;
-		//Load called alleles with copy number if present
 		String genotypeStr=knownItemsSample[VCFRecord.FORMAT_IDX_GT];
 		if(genotypeStr==null) genotypeStr = ".";
 		String [] callItems = ParseUtils.parseString(genotypeStr, '|', '/');
 		boolean phased = callItems.length>1 && genotypeStr.charAt(callItems[0].length())=='|';
-		short [] allelesCNG = new short[numAlleles];
-		byte [] phasedAlleles = new byte[callItems.length];
-		short totalCNG = (short)Math.min(CalledGenomicVariant.MAX_PLOIDY_SAMPLE, callItems.length);
-		Arrays.fill(allelesCNG, (short)0);
-		Set<Byte> uniqueAlleles = new TreeSet<Byte>();
+		byte [] genotypeAlleles = new byte[callItems.length];
 		for(int j=0;j<callItems.length;j++)  {
+			genotypeAlleles[j] = -1;
 			if(callItems[j].length()>0 && callItems[j].charAt(0)!='.') {
 				byte nextAlleleId;
 				try {
 					nextAlleleId = Byte.parseByte(callItems[j]);
 				} catch (NumberFormatException e) {
 					log.severe("Can not load genotype of sample "+sampleId+" for genomic variant at "+variant.getSequenceName()+":"+variant.getFirst()+". Called allele "+callItems[j]+" is not a number");
-					uniqueAlleles.clear();
+					Arrays.fill(genotypeAlleles, (byte)-1);
 					break;
 				}
 				if(nextAlleleId<0 || nextAlleleId>=numAlleles) {
 					log.severe("Can not load genotype of sample "+sampleId+" for genomic variant at "+variant.getSequenceName()+":"+variant.getFirst()+". Inconsistent called allele "+nextAlleleId+" for the total number of alleles: "+numAlleles);
-					uniqueAlleles.clear();
+					Arrays.fill(genotypeAlleles, (byte)-1);
 					break;
 				}
-				uniqueAlleles.add(nextAlleleId);
-				allelesCNG[nextAlleleId]++;
-				phasedAlleles [j] = nextAlleleId;
+				genotypeAlleles[j] = nextAlleleId;
 			}
 		}
+		//Load variant-specific optional information 
+		int [] allCounts = loadCounts(knownItemsSample[VCFRecord.FORMAT_IDX_BSDP],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_BSDP],sampleId,variant,4);
+		int [] counts = loadCounts(knownItemsSample[VCFRecord.FORMAT_IDX_ADP],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_ADP],sampleId,variant,alleles.length);
+		double [][] logConditionals = loadConditionals (numAlleles,knownItemsSample[VCFRecord.FORMAT_IDX_PL],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_PL],sampleId,variant,callItems.length==1,true);
+		if(logConditionals==null) logConditionals = loadConditionals (numAlleles,knownItemsSample[VCFRecord.FORMAT_IDX_GL],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_GL],sampleId,variant,callItems.length==1,false);
+		//Allowed real numbers in this field to be able to load freebayes GQ fields
+		Double v = loadSingleNumber(knownItemsSample[VCFRecord.FORMAT_IDX_GQ],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_GQ],sampleId,variant, false);
+		Short genotypeQuality = (v!=null)?v.shortValue():null;
+		v = loadSingleNumber(knownItemsSample[VCFRecord.FORMAT_IDX_DP],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_DP],sampleId,variant, true);
+		Integer totalReadDepth = (v!=null)?v.intValue():null;
+		int [] allelesCopyNumber = null;
+		if(variant.getType() != GenomicVariant.TYPE_CNV) allelesCopyNumber = loadCounts(knownItemsSample[VCFRecord.FORMAT_IDX_ACN],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_ACN],sampleId,variant,alleles.length);
+		CalledGenomicVariant answer = createCalledVariant(variant, sample, genotypeAlleles, phased, allCounts, counts, logConditionals, genotypeQuality, totalReadDepth, allelesCopyNumber);
+		if (answer instanceof CalledCNV) {
+			CalledCNV cnv = (CalledCNV) answer;
+			v = loadSingleNumber(knownItemsSample[VCFRecord.FORMAT_IDX_RNC],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_RNC],sampleId,variant, false);
+			if(v!=null) cnv.setNumCopies(v.floatValue(),false);
+			v = loadSingleNumber(knownItemsSample[VCFRecord.FORMAT_IDX_NTADF],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_NTADF],sampleId,variant, true);
+			if(v!=null) cnv.setTandemFragments(v.intValue());
+			v = loadSingleNumber(knownItemsSample[VCFRecord.FORMAT_IDX_NTRDF],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_NTRDF],sampleId,variant, true);
+			if(v!=null) cnv.setTransDupFragments(v.intValue());
+			String textGen = knownItemsSample[VCFRecord.FORMAT_IDX_TGEN];
+			if(textGen!=null) cnv.setTextGenotype(textGen);
+		}
+		return answer;
+	}
+	/**
+	 * Creates a genotype call from the values of the format fields already decoded
+	 * @param variant Variant of the call
+	 * @param sample Sample of the call
+	 * @param genotypeAlleles Allele indexes in the order of the GT field. -1 for missing alleles
+	 * @param phased True if the alleles of the GT field are phased
+	 * @param allCounts Read depth of the four nucleotides (BSDP field). Null if not available
+	 * @param counts Read depth of each allele (ADP field). Null if not available
+	 * @param logConditionals Genotype log likelihoods. Null if not available
+	 * @param genotypeQuality Genotype quality. Null if not available
+	 * @param totalReadDepth Total read depth. Null if not available
+	 * @param allelesCopyNumber Copy number of each allele (ACN field). Null if not available
+	 * @return CalledGenomicVariant Call consistent with the variant type
+	 */
+	CalledGenomicVariant createCalledVariant(GenomicVariant variant, Sample sample, byte [] genotypeAlleles, boolean phased, int [] allCounts, int [] counts, double [][] logConditionals, Short genotypeQuality, Integer totalReadDepth, int [] allelesCopyNumber) {
+		String sampleId = sample.getId();
+		String [] alleles = variant.getAlleles();
+		int numAlleles = alleles.length;
+		//Load called alleles with copy number if present
+		short [] allelesCNG = new short[numAlleles];
+		byte [] phasedAlleles = new byte[genotypeAlleles.length];
+		short totalCNG = (short)Math.min(CalledGenomicVariant.MAX_PLOIDY_SAMPLE, genotypeAlleles.length);
+		Set<Byte> uniqueAlleles = new TreeSet<Byte>();
+		for(int j=0;j<genotypeAlleles.length;j++)  {
+			byte nextAlleleId = genotypeAlleles[j];
+			if(nextAlleleId<0) continue;
+			uniqueAlleles.add(nextAlleleId);
+			allelesCNG[nextAlleleId]++;
+			phasedAlleles [j] = nextAlleleId;
+		}
 		byte [] calledAlleleIds = new byte[uniqueAlleles.size()];
 		if(calledAlleleIds.length==0) phased = false;
 		Iterator<Byte> it = uniqueAlleles.iterator();
@@ -365,11 +718,6 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 			log.severe("Can not load genotype of sample "+sampleId+" for genomic variant at "+variant.getSequenceName()+":"+variant.getFirst()+". More called alleles than total alleles");
 			calledAlleleIds = new byte[0];
 		}
-		//Load variant-specific optional information 
-		int [] allCounts = loadCounts(knownItemsSample[VCFRecord.FORMAT_IDX_BSDP],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_BSDP],sampleId,variant,4);
-		int [] counts = loadCounts(knownItemsSample[VCFRecord.FORMAT_IDX_ADP],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_ADP],sampleId,variant,alleles.length);
-		double [][] logConditionals = loadConditionals (numAlleles,knownItemsSample[VCFRecord.FORMAT_IDX_PL],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_PL],sampleId,variant,callItems.length==1,true);
-		if(logConditionals==null) logConditionals = loadConditionals (numAlleles,knownItemsSample[VCFRecord.FORMAT_IDX_GL],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_GL],sampleId,variant,callItems.length==1,false);
 		//Create object consistent with the variant information
 		CalledGenomicVariant answer = null;
 		if(variant instanceof SNV) {
@@ -386,22 +734,12 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 			}
 			if(logConditionals!=null) snv.setRefAltGenotypeLogConditionals(logConditionals);
 		} else if (variant.getType() == GenomicVariant.TYPE_CNV) {
-			CalledCNV cnv;
 			if (calledAlleleIds.length==1) {
 				//If the genotype field is not empty, then it is interpreted as the number of copies
-				cnv = new CalledCNV(variant, (byte)calledAlleleIds[0]);
+				answer = new CalledCNV(variant, (byte)calledAlleleIds[0]);
 			} else {
-				cnv = new CalledCNV(variant);
+				answer = new CalledCNV(variant);
 			}
-			answer = cnv;
-			Double v = loadSingleNumber(knownItemsSample[VCFRecord.FORMAT_IDX_RNC],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_RNC],sampleId,variant, false);
-			if(v!=null) cnv.setNumCopies(v.floatValue(),false);
-			v = loadSingleNumber(knownItemsSample[VCFRecord.FORMAT_IDX_NTADF],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_NTADF],sampleId,variant, true);
-			if(v!=null) cnv.setTandemFragments(v.intValue());
-			v = loadSingleNumber(knownItemsSample[VCFRecord.FORMAT_IDX_NTRDF],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_NTRDF],sampleId,variant, true);
-			if(v!=null) cnv.setTransDupFragments(v.intValue());
-			String textGen = knownItemsSample[VCFRecord.FORMAT_IDX_TGEN];
-			if(textGen!=null) cnv.setTextGenotype(textGen);
 		} else {
 			CalledGenomicVariantImpl cv = new CalledGenomicVariantImpl(variant, calledAlleleIds);
 			answer = cv;
@@ -409,21 +747,17 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 			cv.setCallReport(new VariantCallReport(alleles, counts, logConditionals));
 		}
 		answer.setSampleId(sampleId);
-		//Allowed real numbers in this field to be able to load freebayes GQ fields
-		Double v = loadSingleNumber(knownItemsSample[VCFRecord.FORMAT_IDX_GQ],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_GQ],sampleId,variant, false);
-		if(v!=null) answer.setGenotypeQuality(v.shortValue());
-		v = loadSingleNumber(knownItemsSample[VCFRecord.FORMAT_IDX_DP],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_DP],sampleId,variant, true);
-		if(v!=null) answer.setTotalReadDepth(v.intValue());
+		if(genotypeQuality!=null) answer.setGenotypeQuality(genotypeQuality);
+		if(totalReadDepth!=null) answer.setTotalReadDepth(totalReadDepth);
 		//Load alleles copy number
 		if(variant.getType() != GenomicVariant.TYPE_CNV) {
 			short [] allelesCN = null;
-			int [] countsA = loadCounts(knownItemsSample[VCFRecord.FORMAT_IDX_ACN],VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[VCFRecord.FORMAT_IDX_ACN],sampleId,variant,alleles.length);
 			int totalCopyNumber = 0;
-			if(countsA!=null) {
-				allelesCN = new short [countsA.length];		
-				for(int j=0;j<countsA.length;j++) {
-					allelesCN[j] = (short)countsA[j];
-					totalCopyNumber += countsA[j];
+			if(allelesCopyNumber!=null) {
+				allelesCN = new short [allelesCopyNumber.length];		
+				for(int j=0;j<allelesCopyNumber.length;j++) {
+					allelesCN[j] = (short)allelesCopyNumber[j];
+					totalCopyNumber += allelesCopyNumber[j];
 				}
 				if(totalCopyNumber>CalledGenomicVariant.MAX_PLOIDY_SAMPLE) {
 					log.severe("Can not load alleles copy number for sample "+sampleId+" at genomic variant "+variant.getSequenceName()+":"+variant.getFirst()+". Total copy number is larger than the maximum allowed value "+CalledGenomicVariant.MAX_PLOIDY_SAMPLE);
@@ -646,5 +980,292 @@ public class VCFFileReader implements Iterable<VCFRecord>,Closeable {
 			throw new UnsupportedOperationException("Remove not supported by VCFFileIterator");
 		}
 	}
+	
+	/**
+	 * Iterator that reads only the BGZF blocks covering a list of sorted non overlapping regions
+	 */
+	private class RegionsVCFFileIterator implements Iterator<VCFRecord>, Closeable {
+		private TabixIndex regionsIndex;
+		private List<GenomicRegion> regions;
+		private BlockCompressedInputStream stream;
+		private int regionIdx = -1;
+		private GenomicRegion region = null;
+		private GenomicRegion previousRegion = null;
+		private List<Block> blocks = null;
+		private int blockIdx = 0;
+		//Virtual file pointer of the end of the current block. -1 if there is no current block
+		private long blockEnd = -1;
+		private VCFRecord nextRecord;
+		public RegionsVCFFileIterator(TabixIndex regionsIndex, List<GenomicRegion> regions) throws IOException {
+			this.regionsIndex = regionsIndex;
+			this.regions = regions;
+			stream = new BlockCompressedInputStream(file);
+			nextRecord = loadRecord();
+		}
+		@Override
+		public boolean hasNext() {
+			return nextRecord!=null;
+		}
+
+		@Override
+		public VCFRecord next() {
+			if(nextRecord==null) throw new NoSuchElementException();
+			VCFRecord answer = nextRecord;
+			nextRecord = loadRecord();
+			return answer;
+		}
+		
+		private VCFRecord loadRecord() {
+			try {
+				while(true) {
+					if(blockEnd<0 || stream.getFilePointer()>=blockEnd) {
+						if(!nextBlock()) {
+							close();
+							return null;
+						}
+					}
+					String line = stream.readLine();
+					if(line==null) {
+						blockEnd = -1;
+						continue;
+					}
+					if(line.startsWith("#")) continue;
+					VCFRecord record = loadVCFRecord(line);
+					if(record==null) continue;
+					GenomicVariant var = record.getVariant();
+					if(!var.getSequenceName().equals(region.getSequenceName())) continue;
+					if(var.getFirst()>region.getLast()) {
+						//Records are sorted. Other blocks of this region do not overlap the region
+						blockIdx = blocks.size();
+						blockEnd = -1;
+						continue;
+					}
+					if(var.getLast()<region.getFirst()) continue;
+					//Records overlapping the previous region were already returned
+					if(previousRegion!=null && previousRegion.getSequenceName().equals(region.getSequenceName()) && var.getFirst()<=previousRegion.getLast()) continue;
+					return record;
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		private boolean nextBlock() throws IOException {
+			while(blocks==null || blockIdx>=blocks.size()) {
+				regionIdx++;
+				if(regionIdx>=regions.size()) return false;
+				previousRegion = region;
+				region = regions.get(regionIdx);
+				blocks = regionsIndex.getBlocks(region.getSequenceName(), region.getFirst(), region.getLast());
+				blockIdx = 0;
+			}
+			Block block = blocks.get(blockIdx);
+			blockIdx++;
+			stream.seek(block.getStartPosition());
+			blockEnd = block.getEndPosition();
+			return true;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			queryIterators.remove(this);
+			stream.close();
+		}
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Remove not supported by RegionsVCFFileIterator");
+		}
+	}
+	
+	/**
+	 * Iterator that reads batches of lines in a separate thread and decodes them in parallel.
+	 * Sequences of the lines are resolved in the thread of the iterator, following the order of the file.
+	 * Then, batches are decoded by a pool of threads and returned in the order of the file.
+	 * Genotype calls are also decoded by the pool because all load modes decode at least the GT field.
+	 * Decoded calls are kept in the genotype columns, so records behave as records of the sequential iterator
+	 */
+	private class ParallelVCFFileIterator implements Iterator<VCFRecord> {
+		private ThreadPoolExecutor decoders;
+		private LinesReader linesReader;
+		private Thread linesReaderThread;
+		private Deque<Future<List<VCFRecord>>> pendingBatches = new ArrayDeque<>();
+		private boolean inputFinished = false;
+		private Iterator<VCFRecord> currentBatch = Collections.emptyIterator();
+		private VCFRecord nextRecord;
+		private boolean finished = false;
+		
+		public ParallelVCFFileIterator() {
+			decoders = new ThreadPoolExecutor(numThreads, numThreads, DECODERS_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (r)-> {
+				Thread t = new Thread(r, "VCFRecordsDecoder");
+				t.setDaemon(true);
+				return t;
+			});
+			//Threads of an iterator that is neither finished nor closed end after some time without work
+			decoders.allowCoreThreadTimeOut(true);
+			linesReader = new LinesReader(in, 2*numThreads, this);
+			linesReaderThread = new Thread(linesReader, "VCFLinesReader");
+			linesReaderThread.setDaemon(true);
+			linesReaderThread.start();
+			nextRecord = loadRecord();
+		}
+		@Override
+		public boolean hasNext() {
+			return nextRecord!=null;
+		}
+
+		@Override
+		public VCFRecord next() {
+			if(nextRecord==null) throw new NoSuchElementException();
+			VCFRecord answer = nextRecord;
+			nextRecord = loadRecord();
+			return answer;
+		}
+		
+		private VCFRecord loadRecord() {
+			try {
+				while(!currentBatch.hasNext()) {
+					if(finished) return null;
+					submitBatches();
+					if(pendingBatches.isEmpty()) {
+						stop();
+						return null;
+					}
+					currentBatch = pendingBatches.removeFirst().get().iterator();
+				}
+				return currentBatch.next();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				stop();
+				throw new RuntimeException("Interrupted while waiting for VCF records",e);
+			} catch (ExecutionException e) {
+				stop();
+				Throwable cause = e.getCause();
+				if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+				throw new RuntimeException(cause);
+			} catch (RuntimeException e) {
+				stop();
+				throw e;
+			}
+		}
+		
+		/**
+		 * Submits the batches of lines already read up to the maximum number of pending batches.
+		 * Waits for a new batch only if there are no pending batches
+		 * @throws InterruptedException If the thread is interrupted while waiting
+		 */
+		private void submitBatches() throws InterruptedException {
+			while(!inputFinished && pendingBatches.size()<2*numThreads) {
+				List<String> lines = pendingBatches.isEmpty()?linesReader.take():linesReader.poll();
+				if(lines==null) return;
+				if(lines==END_OF_LINES) {
+					inputFinished = true;
+					return;
+				}
+				//Sequences are registered in this thread because they can be queried through getSequences
+				List<QualifiedSequence> lineSequences = new ArrayList<>(lines.size());
+				for(String line:lines) lineSequences.add(lookupSequence(line));
+				pendingBatches.addLast(decoders.submit(()->decodeBatch(lines, lineSequences)));
+			}
+		}
+		
+		private List<VCFRecord> decodeBatch(List<String> lines, List<QualifiedSequence> lineSequences) {
+			List<VCFRecord> records = new ArrayList<>(lines.size());
+			for(int i=0;i<lines.size();i++) {
+				VCFRecord record = loadVCFRecord(lines.get(i), lineSequences.get(i));
+				if(record == null) continue;
+				record.decodeGenotypeColumns();
+				records.add(record);
+			}
+			return records;
+		}
+		/**
+		 * Stops the threads reading and decoding records
+		 */
+		public void stop() {
+			finished = true;
+			currentBatch = Collections.emptyIterator();
+			pendingBatches.clear();
+			linesReader.stop();
+			linesReaderThread.interrupt();
+			decoders.shutdownNow();
+		}
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Remove not supported by VCFFileIterator");
+		}
+	}
+	
+	/**
+	 * Reads batches of lines and passes them through a bounded queue. It does not keep a strong reference
+	 * to the iterator receiving the lines. Hence, if the iterator is discarded without being closed, the reading stops
+	 */
+	private static class LinesReader implements Runnable {
+		private BufferedReader in;
+		private BlockingQueue<List<String>> queue;
+		private WeakReference<Object> consumer;
+		private volatile boolean stopped = false;
+		private volatile IOException error = null;
+		
+		public LinesReader(BufferedReader in, int capacity, Object consumer) {
+			this.in = in;
+			this.queue = new ArrayBlockingQueue<>(capacity);
+			this.consumer = new WeakReference<>(consumer);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				List<String> lines = new ArrayList<>();
+				int chars = 0;
+				String line = in.readLine();
+				while(line!=null) {
+					lines.add(line);
+					chars+=line.length();
+					if(lines.size()==MAX_LINES_BATCH || chars>=MAX_CHARS_BATCH) {
+						if(!put(lines)) return;
+						lines = new ArrayList<>();
+						chars = 0;
+					}
+					line = in.readLine();
+				}
+				if(lines.size()>0 && !put(lines)) return;
+			} catch (IOException e) {
+				error = e;
+			} catch (InterruptedException e) {
+				//The iteration was stopped
+				return;
+			}
+			try {
+				put(END_OF_LINES);
+			} catch (InterruptedException e) {
+				//The iteration was stopped
+			}
+		}
+		
+		private boolean put(List<String> lines) throws InterruptedException {
+			while(!queue.offer(lines, 1, TimeUnit.SECONDS)) {
+				if(stopped || consumer.get()==null) return false;
+			}
+			return !stopped;
+		}
+		
+		public List<String> take() throws InterruptedException {
+			return checkError(queue.take());
+		}
+		
+		public List<String> poll() {
+			return checkError(queue.poll());
+		}
+		
+		private List<String> checkError(List<String> lines) {
+			if(lines==END_OF_LINES && error!=null) throw new RuntimeException("Error reading VCF lines", error);
+			return lines;
+		}
+		
+		public void stop() {
+			stopped = true;
+			queue.clear();
+		}
+	}
 
 }
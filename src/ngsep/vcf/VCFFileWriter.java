@@ -20,7 +20,9 @@
 package ngsep.vcf;
 
 import java.io.PrintStream;
-import java.text.DecimalFormat;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -35,129 +37,167 @@ import ngsep.variants.Sample;
 import ngsep.variants.VariantCallReport;
 
 public class VCFFileWriter {
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+	//Values with larger magnitude are formatted through ParseUtils.ENGLISHFMT
+	private static final double MAX_FAST_DECIMAL = 1e9;
+	
+	//Reusable buffer with the encoded line of the current record
+	private byte [] buffer = new byte[1024];
+	private int length = 0;
 	
 	public void printVCFRecords (List<VCFRecord> records, PrintStream out) {
 		for(VCFRecord record:records) {
 			printVCFRecord(record, out);
 		}
 	}
-	public void printVCFRecord (VCFRecord record, PrintStream out) {
-		GenomicVariant var = record.getVariant();
-		//Add type as annotation if still not added
-		byte type = var.getType();
-		String typeName = GenomicVariantImpl.getVariantTypeName(var.getType());
-		if(type!=GenomicVariant.TYPE_UNDETERMINED && type!=GenomicVariant.TYPE_BIALLELIC_SNV && typeName!=null) record.addAnnotation(new GenomicVariantAnnotation(var, GenomicVariantAnnotation.ATTRIBUTE_TYPE, typeName));
-		printBasicVariantInfo(var, out);
-		printFilters(record.getFilters(),out);
-		printInfoField(record.getInfoFields(), out);
+	/**
+	 * Prints the given record. The line is encoded in a reusable buffer and written to the stream in a single call
+	 * @param record VCF record to print
+	 * @param out Stream to print the record
+	 */
+	public synchronized void printVCFRecord (VCFRecord record, PrintStream out) {
+		length = 0;
+		encodeVCFRecord(record);
+		append(LINE_SEPARATOR);
+		out.write(buffer, 0, length);
+	}
+	/**
+	 * Encodes the columns of the given record from the sequence name to the INFO field
+	 * @param record VCF record to encode
+	 * @return byte[] Text of the columns separated by tabs encoded with the default charset
+	 */
+	synchronized byte [] encodeSiteColumns(VCFRecord record) {
+		length = 0;
+		encodeSiteColumnsInternal(record);
+		return Arrays.copyOf(buffer, length);
+	}
+	private void encodeVCFRecord (VCFRecord record) {
+		encodeSiteColumnsInternal(record);
 		List<CalledGenomicVariant> calls = record.getCalls();
 		if(calls.size()>0) {
 			int [] outFormat = record.getFieldsFormat();
-			printGenotypeFormat(out,outFormat);
+			encodeGenotypeFormat(outFormat);
 			//Genotype
 			List<Sample> samples = null;
 			if(record.getHeader()!=null) samples = record.getHeader().getSamples();
 			for(int i=0;i<calls.size();i++) {
 				short ploidy = GenomicVariant.DEFAULT_PLOIDY;
 				if(samples!=null) ploidy = samples.get(i).getNormalPloidy();
-				printGenotypeInfo(calls.get(i), out, outFormat,ploidy);
+				encodeGenotypeInfo(calls.get(i), outFormat,ploidy);
 			}
 		}
-		
-		out.println();
 	}
 	
-	private void printFilters(List<String> filters, PrintStream out) {
-		out.print("\t");
+	private void encodeSiteColumnsInternal(VCFRecord record) {
+		GenomicVariant var = record.getVariant();
+		//Add type as annotation if still not added
+		byte type = var.getType();
+		String typeName = GenomicVariantImpl.getVariantTypeName(var.getType());
+		if(type!=GenomicVariant.TYPE_UNDETERMINED && type!=GenomicVariant.TYPE_BIALLELIC_SNV && typeName!=null) record.addAnnotation(new GenomicVariantAnnotation(var, GenomicVariantAnnotation.ATTRIBUTE_TYPE, typeName));
+		encodeBasicVariantInfo(var);
+		encodeFilters(record.getFilters());
+		encodeInfoField(record.getInfoFields());
+	}
+	
+	private void encodeFilters(List<String> filters) {
+		append('\t');
 		if(filters==null || filters.size()==0) {
-			out.print(VCFFileReader.NO_INFO_CHAR);
+			append(VCFFileReader.NO_INFO_CHAR);
 			return;
 		}
 		boolean printed = false;
 		for(String filter:filters) {
-			if(printed) out.print(";");
+			if(printed) append(';');
 			printed = true;
-			out.print(filter);
+			append(filter);
 		}
 	}
-	private void printBasicVariantInfo(GenomicVariant var,PrintStream out) {
-		out.print(var.getSequenceName()+"\t");
-		out.print(var.getFirst()+"\t");
+	private void encodeBasicVariantInfo(GenomicVariant var) {
+		append(var.getSequenceName());
+		append('\t');
+		append(var.getFirst());
+		append('\t');
 		String id = var.getId();
 		if(id==null) {
 			id = VCFFileReader.NO_INFO_CHAR;
 		}
-		out.print(id+"\t");
+		append(id);
+		append('\t');
 		
 		String [] alleles = var.getAlleles();
-		out.print(alleles[0]+"\t");
-		if(alleles.length==1) out.print(VCFFileReader.NO_INFO_CHAR);
+		append(alleles[0]);
+		append('\t');
+		if(alleles.length==1) append(VCFFileReader.NO_INFO_CHAR);
 		else {
 			//Starts at 1 to ignore the reference allele
 			for(int i=1;i<alleles.length;i++) {
-				if(i>1) out.print(",");
-				out.print(alleles[i]);
+				if(i>1) append(',');
+				append(alleles[i]);
 			}
 		}
-		out.print("\t");
-		out.print(var.getVariantQS());
+		append('\t');
+		append(var.getVariantQS());
 	}
-	private void printInfoField(List<GenomicVariantAnnotation> info, PrintStream out) {
-		out.print("\t");
-		DecimalFormat fmt = ParseUtils.ENGLISHFMT;
+	private void encodeInfoField(List<GenomicVariantAnnotation> info) {
+		append('\t');
 		boolean printed = false;
 		for(GenomicVariantAnnotation ann:info) {
 			Object value = ann.getValue();
 			if(value == null) continue;
 			if(value instanceof Boolean) {
 				if((Boolean) value) {
-					if(printed) out.print(";");
+					if(printed) append(';');
 					printed = true;
-					out.print(ann.getAttribute());
+					append(ann.getAttribute());
 				}
 			} else if (value instanceof Collection<?>) {
 				Collection<?> values = (Collection<?>)value;
 				if(values.size()>0) {
-					if(printed) out.print(";");
+					if(printed) append(';');
 					printed = true;
-					out.print(ann.getAttribute()+"=");
+					append(ann.getAttribute());
+					append('=');
 				}
 				Iterator<?> it = values.iterator();
 				for(int i=0;it.hasNext();i++) {
 					Object o = it.next();
-					if(i>0) out.print(",");
+					if(i>0) append(',');
 					if(o instanceof Double) {
-						out.print(fmt.format(o));
+						appendDecimal((Double)o);
 					} else {
-						out.print(o.toString());
+						append(o.toString());
 					}
 					
 				}
 			} else if (value instanceof Double) {
-				if(printed) out.print(";");
+				if(printed) append(';');
 				printed = true;
 				double valN = (Double)value;
-				out.print(ann.getAttribute()+"="+fmt.format(valN));
+				append(ann.getAttribute());
+				append('=');
+				appendDecimal(valN);
 			} else {
-				if(printed) out.print(";");
+				if(printed) append(';');
 				printed = true;
-				out.print(ann.getAttribute()+"="+ann.getValue().toString());
+				append(ann.getAttribute());
+				append('=');
+				append(ann.getValue().toString());
 			}
 		}
-		if(!printed) out.print(VCFFileReader.NO_INFO_CHAR);
+		if(!printed) append(VCFFileReader.NO_INFO_CHAR);
 	}
-	private void printGenotypeFormat(PrintStream out, int [] format) {
+	private void encodeGenotypeFormat(int [] format) {
 		//Genotype format
-		out.print("\t");
+		append('\t');
 		for(int f=0;f<format.length;f++) {
-			if(f>0) out.print(":");
+			if(f>0) append(':');
 			int formatIdx = format[f];
 			String formatName = VCFRecord.KNOWN_FORMAT_FIELDS_ARRAY[formatIdx];
-			out.print(formatName);
+			append(formatName);
 		}
 	}
-	private void printGenotypeInfo(CalledGenomicVariant var, PrintStream out, int [] format, short ploidy) {
-		out.print("\t");
+	private void encodeGenotypeInfo(CalledGenomicVariant var, int [] format, short ploidy) {
+		append('\t');
 		String[] alleles = var.getAlleles();
 		VariantCallReport report = var.getCallReport();
 		CalledCNV cnv = null;
@@ -166,26 +206,30 @@ public class VCFFileWriter {
 		}
 		byte [] idxsCalledAlleles = var.getIndexesCalledAlleles();
 		for(int f=0;f<format.length;f++) {
-			if(f>0) out.print(":");
+			if(f>0) append(':');
 			int formatIdx = format[f];
 			if(formatIdx == VCFRecord.FORMAT_IDX_GT) {
 				boolean phased = var.isPhased();
 				if (idxsCalledAlleles.length == 0) {
 					//Undecided call
-					out.print(".");
-					if(ploidy>1) out.print ("/."); 
+					append('.');
+					if(ploidy>1) append("/."); 
 					/*for(int i=1;i<ploidy;i++) {
-						out.print ("/.");
+						append("/.");
 					}*/
 				} else if(idxsCalledAlleles.length == 1) {
 					//Homozygous call
 					int idAllele = idxsCalledAlleles[0];
-					out.print(""+idAllele);
+					append(idAllele);
 					if(phased) {
 						for(int i=1;i<ploidy;i++) {
-							out.print ("|"+idAllele);
+							append('|');
+							append(idAllele);
 						}
-					} else if(ploidy>1) out.print ("/"+idAllele);
+					} else if(ploidy>1) {
+						append('/');
+						append(idAllele);
+					}
 				} else {
 					//Heterozygous call
 					byte [] finalAlleles = idxsCalledAlleles;
@@ -193,8 +237,8 @@ public class VCFFileWriter {
 					for(int i=0;i<finalAlleles.length;i++) {
 						//Since v2.1.4, alleles are not explicitly written with copy number anymore. Allele copy numbers are saved in the new format field Local Allele Copy Numbers (ACN)
 						int idAllele = finalAlleles[i];
-						if(i>0) out.print((phased?"|":"/"));
-						out.print(""+idAllele);
+						if(i>0) append(phased?'|':'/');
+						append(idAllele);
 					}
 				}
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_PL) {
@@ -202,12 +246,12 @@ public class VCFFileWriter {
 				
 				for(int j=0;j<alleles.length;j++) {
 					for(int i=0;i<=j;i++) {
-						if(i>0 || j>0) out.print (",");
+						if(i>0 || j>0) append(',');
 						int condPhred = 0;
 						if(report!=null && report.logConditionalsPresent()) {
 							condPhred = (int) Math.round(-10*report.getLogConditionalProbability(alleles[i], alleles[j]));
 						}
-						out.print(condPhred);
+						append(condPhred);
 					}
 				}
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_GL) {
@@ -215,97 +259,173 @@ public class VCFFileWriter {
 				
 				for(int j=0;j<alleles.length;j++) {
 					for(int i=0;i<=j;i++) {
-						if(i>0 || j>0) out.print (",");
+						if(i>0 || j>0) append(',');
 						double logCond = 0;
 						if(report!=null && report.logConditionalsPresent()) {
 							logCond = report.getLogConditionalProbability(alleles[i], alleles[j]);
 						}
-						out.print(ParseUtils.ENGLISHFMT.format(logCond));
+						appendDecimal(logCond);
 					}
 				}
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_GQ) {
 				//Phred of the genotype posterior
-				out.print(var.getGenotypeQuality());
+				append(var.getGenotypeQuality());
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_ACN) {
 				//Local alleles copy number
 				short totalCopyNumber = var.getCopyNumber();
 				if(totalCopyNumber == 0) {
-					out.print(VCFFileReader.NO_INFO_CHAR);
+					append(VCFFileReader.NO_INFO_CHAR);
 					continue;
 				}
 				short [] varAllelesCopyNumber = var.getAllelesCopyNumber();
 				if(var.isUndecided()) varAllelesCopyNumber[0] = totalCopyNumber;
 				for(int j=0;j<varAllelesCopyNumber.length;j++) {
-					if(j>0) out.print (",");
-					out.print(""+varAllelesCopyNumber[j]);
+					if(j>0) append(',');
+					append(varAllelesCopyNumber[j]);
 				}
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_DP) {
 				//Read depth
-				out.print(var.getTotalReadDepth());
+				append(var.getTotalReadDepth());
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_ADP) {
 				if(report!=null && report.countsPresent()) {
 					for(int i=0;i<alleles.length;i++) {
-						if(i>0) out.print(",");
-						out.print(report.getCount(alleles[i]));
+						if(i>0) append(',');
+						append(report.getCount(alleles[i]));
 					}
 				} else {
 					for(int i=0;i<alleles.length;i++) {
-						if(i>0) out.print(",");
-						out.print("0");
+						if(i>0) append(',');
+						append('0');
 					}
 				}
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_BSDP) {
 				if(var==null) {
-					out.print(VCFFileReader.NO_INFO_CHAR);
+					append(VCFFileReader.NO_INFO_CHAR);
 					continue;
 				}
 				int [] allCounts = var.getAllCounts();
 				if(allCounts == null) {
-					out.print("0,0,0,0");
+					append("0,0,0,0");
 					continue;
 				}
 				for(int i=0;i<allCounts.length;i++) {
-					if(i>0) out.print(",");
-					out.print(allCounts[i]);
+					if(i>0) append(',');
+					append(allCounts[i]);
 				}
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_RNC) {
 				//Num copies
 				if(cnv==null) {
-					out.print(VCFFileReader.NO_INFO_CHAR);
+					append(VCFFileReader.NO_INFO_CHAR);
 					continue;
 				}
-				out.print(ParseUtils.ENGLISHFMT.format(cnv.getNumCopies()));
+				appendDecimal(cnv.getNumCopies());
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_NTADF) {
 				//Num tandem duplication fragments
 				if(cnv==null) {
-					out.print(VCFFileReader.NO_INFO_CHAR);
+					append(VCFFileReader.NO_INFO_CHAR);
 					continue;
 				}
-				out.print(cnv.getTandemFragments());
+				append(cnv.getTandemFragments());
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_NTRDF) {
 				//Num trans duplication fragments
 				if(cnv==null) {
-					out.print(VCFFileReader.NO_INFO_CHAR);
+					append(VCFFileReader.NO_INFO_CHAR);
 					continue;
 				}
-				out.print(cnv.getTransDupFragments());
+				append(cnv.getTransDupFragments());
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_TGEN) {
 				//Text genotype
 				if(cnv==null) {
-					out.print(VCFFileReader.NO_INFO_CHAR);
+					append(VCFFileReader.NO_INFO_CHAR);
 					continue;
 				}
-				out.print(cnv.getTextGenotype());
+				append(cnv.getTextGenotype());
 			} else if (formatIdx == VCFRecord.FORMAT_IDX_NSF) {
 				//TODO: NSF is more for SVs than for only CNVs
 				if(cnv==null) {
-					out.print(VCFFileReader.NO_INFO_CHAR);
+					append(VCFFileReader.NO_INFO_CHAR);
 					continue;
 				}
-				out.print(cnv.getTotalReadDepth());
+				append(cnv.getTotalReadDepth());
 			} 
 		}
 	}
+	private void append(char c) {
+		if(c>=128) {
+			append(String.valueOf(c));
+			return;
+		}
+		if(length==buffer.length) buffer = Arrays.copyOf(buffer, 2*buffer.length);
+		buffer[length++] = (byte)c;
+	}
+	private void append(String str) {
+		//Same output of PrintStream.print for null objects
+		if(str==null) str = "null";
+		int n = str.length();
+		ensureCapacity(length+n);
+		for(int i=0;i<n;i++) {
+			char c = str.charAt(i);
+			if(c>=128) {
+				//Non ASCII text is encoded with the default charset, as done by PrintStream
+				appendBytes(str.substring(i).getBytes());
+				return;
+			}
+			buffer[length++] = (byte)c;
+		}
+	}
+	private void appendBytes(byte [] bytes) {
+		ensureCapacity(length+bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length+=bytes.length;
+	}
+	private void append(long number) {
+		if(number==Long.MIN_VALUE) {
+			append(Long.toString(number));
+			return;
+		}
+		if(number<0) {
+			append('-');
+			number = -number;
+		}
+		int digits = 1;
+		for(long n = number/10;n>0;n/=10) digits++;
+		ensureCapacity(length+digits);
+		for(int i=length+digits-1;i>=length;i--) {
+			buffer[i] = (byte)('0'+number%10);
+			number/=10;
+		}
+		length+=digits;
+	}
+	/**
+	 * Appends the given number with the same format of ParseUtils.ENGLISHFMT (one or two decimals, half even rounding)
+	 * @param value Number to append
+	 */
+	private void appendDecimal(double value) {
+		boolean negative = value<0 || (value==0 && 1/value<0);
+		double abs = Math.abs(value);
+		if(Double.isNaN(value) || abs>=MAX_FAST_DECIMAL) {
+			append(ParseUtils.ENGLISHFMT.format(value));
+			return;
+		}
+		double scaled = abs*100;
+		long rounded = Math.round(scaled);
+		//Close to a tie, the rounding depends on the exact binary value
+		if(Math.abs(scaled-Math.floor(scaled)-0.5)<1e-3) rounded = new BigDecimal(abs).setScale(2, RoundingMode.HALF_EVEN).unscaledValue().longValue();
+		if(negative && rounded==0) {
+			//Negative zero keeps the sign in DecimalFormat
+			append(ParseUtils.ENGLISHFMT.format(value));
+			return;
+		}
+		if(negative) append('-');
+		append(rounded/100);
+		append('.');
+		int decimals = (int)(rounded%100);
+		append((char)('0'+decimals/10));
+		if(decimals%10!=0) append((char)('0'+decimals%10));
+	}
+	private void ensureCapacity(int capacity) {
+		if(capacity>buffer.length) buffer = Arrays.copyOf(buffer, Math.max(capacity, 2*buffer.length));
+	}
 	public void printHeader(VCFFileHeader header, PrintStream out) {
 		header.print(out);
 	}
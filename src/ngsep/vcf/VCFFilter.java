@@ -27,6 +27,7 @@ import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -507,22 +508,38 @@ public class VCFFilter {
 		List<Sample> inSamples = header.getSamples();
 		Set<String> inSampleIdsWithHeader = header.getSamplesWithHeaderLine().keySet();
 		boolean [] selectedSamples = calculateSelectedSamples (inSamples); 
+		Set<String> outSampleIds = new HashSet<String>();
+		boolean samplesRemoved = false;
 		for(int i=0;i<selectedSamples.length;i++) {
 			Sample s = inSamples.get(i);
-			if(selectedSamples[i]) outHeader.addSample(s,inSampleIdsWithHeader.contains(s.getId()));
+			if(selectedSamples[i]) {
+				outHeader.addSample(s,inSampleIdsWithHeader.contains(s.getId()));
+				outSampleIds.add(s.getId());
+			} else {
+				samplesRemoved = true;
+			}
 		}
+		//Genotypes of removed samples are not decoded
+		if(samplesRemoved) reader.setSelectedSamples(outSampleIds);
 		writer.printHeader(outHeader, out);
-		Iterator<VCFRecord> it = reader.iterator();
+		Iterator<VCFRecord> it;
+		if(regionsToSelect!=null && reader.isIndexed()) {
+			//Only the blocks of the file covering the regions to select are read
+			if(log!=null) log.info("Querying regions to select through the tabix index of the input file");
+			it = reader.query(regionsToSelect.asList());
+		} else {
+			it = reader.iterator();
+		}
 		int lastPos = -minDistance;
 		String lastSeqName = null;
 		VCFRecord lastRecord = null;
 		int n=0;
 		while (it.hasNext()) {
-			VCFRecord record = it.next();
-			VCFRecord vr = filterSamplesAndGenotypes(record, selectedSamples, outHeader);
+			//Genotypes are decoded and filtered only for records passing the distance filter
+			VCFRecord vr = it.next();
 			GenomicVariant gv = vr.getVariant();
 			if (!gv.getSequenceName().equals(lastSeqName)) {
-				if (passFilters(lastRecord)) writer.printVCFRecord(lastRecord, out);
+				printIfPassFilters(lastRecord, samplesRemoved, outHeader, writer, out);
 				lastRecord = vr;
 				lastSeqName = gv.getSequenceName();
 				lastPos = gv.getLast();
@@ -531,7 +548,7 @@ public class VCFFilter {
 			// Distance filter
 			int first = gv.getFirst();
 			if (minDistance <= 0 || first - lastPos > minDistance) {
-				if (passFilters(lastRecord)) writer.printVCFRecord(lastRecord, out);
+				printIfPassFilters(lastRecord, samplesRemoved, outHeader, writer, out);
 				lastRecord = vr;
 			} else {
 				lastRecord = null;
@@ -547,9 +564,15 @@ public class VCFFilter {
 				}
 			}
 		}
-		if (passFilters(lastRecord)) writer.printVCFRecord(lastRecord, out);
+		printIfPassFilters(lastRecord, samplesRemoved, outHeader, writer, out);
 		out.flush();
     }
+	
+	private void printIfPassFilters(VCFRecord record, boolean samplesRemoved, VCFFileHeader outHeader, VCFFileWriter writer, PrintStream out) {
+		if(record == null) return;
+		VCFRecord vr = filterGenotypes(record, samplesRemoved, outHeader);
+		if (passFilters(vr)) writer.printVCFRecord(vr, out);
+	}
 
 	private boolean[] calculateSelectedSamples(List<Sample> inSamples) {
 		boolean[]  answer = new boolean[inSamples.size()];
@@ -684,14 +707,29 @@ public class VCFFilter {
     			recalCNVs = true;
     			continue; 
     		}
+    		newList.add(cv);
+    	}
+    	return filterGenotypes(record, newList, recalCNVs, outHeader);
+    }
+    /**
+     * Filters the genotypes of a record whose calls include only the output samples
+     * @param record with calls only for the samples of the output header
+     * @param samplesRemoved Tells if the input file had samples that were removed
+     * @param outHeader Header of the output file
+     * @return VCFRecord New record with filtered genotypes
+     */
+    private VCFRecord filterGenotypes(VCFRecord record, boolean samplesRemoved, VCFFileHeader outHeader) {
+    	return filterGenotypes(record, record.getCalls(), samplesRemoved, outHeader);
+    }
+    private VCFRecord filterGenotypes(VCFRecord record, List<CalledGenomicVariant> calls, boolean recalCNVs, VCFFileHeader outHeader) {
+    	for (CalledGenomicVariant cv:calls) {
     		short q = cv.getGenotypeQuality();
     		int depth = cv.getTotalReadDepth();
     		if (q < minGenotypeQuality || depth < minReadDepth) {
     			cv.makeUndecided();
     		}
-    		newList.add(cv);
     	}
-    	VCFRecord newRecord = new VCFRecord(record.getVariant(),record.getFilters(), record.getInfoFields(), record.getFieldsFormat(), newList, outHeader);
+    	VCFRecord newRecord = new VCFRecord(record.getVariant(),record.getFilters(), record.getInfoFields(), record.getFieldsFormat(), calls, outHeader);
     	if(recalCNVs) updateSamplesWithCNVs(newRecord, outHeader.getSamples());
     	return newRecord;
     }
@@ -30,6 +30,7 @@ import java.util.logging.Logger;
 
 import ngsep.genome.ReferenceGenome;
 import ngsep.main.CommandsDescriptor;
+import ngsep.main.LoadedObjectsCache;
 import ngsep.main.OptionValuesDecoder;
 import ngsep.main.ProgressNotifier;
 import ngsep.transcriptome.Transcriptome;
@@ -253,10 +254,13 @@ public class VCFFunctionalAnnotator {
 		handler.loadSequences(transcriptome, transcriptomeCDNA);
 	}
 	public void loadMap(String transcriptomeMap, ReferenceGenome genome) throws IOException {
-		GFF3TranscriptomeHandler handler = new GFF3TranscriptomeHandler(genome.getSequencesMetadata());
-		handler.setLog(log);
-		transcriptome = handler.loadMap(transcriptomeMap);
-		transcriptome.fillSequenceTranscripts(genome, log);
+		transcriptome = LoadedObjectsCache.getOrLoad(Transcriptome.class, transcriptomeMap, ()-> {
+			GFF3TranscriptomeHandler handler = new GFF3TranscriptomeHandler(genome.getSequencesMetadata());
+			handler.setLog(log);
+			Transcriptome answer = handler.loadMap(transcriptomeMap);
+			answer.fillSequenceTranscripts(genome, log);
+			return answer;
+		}, genome);
 	}
 	public void annotate(String variantsFile,String outputFile) throws IOException {
 		try (VCFFileReader in = new VCFFileReader(variantsFile);
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ngsep.variants.CalledGenomicVariant;
+
+/**
+ * Genotype columns of a VCF record kept in their stored representation.
+ * The call of each sample is decoded the first time it is requested
+ * @author Jorge Duitama
+ */
+abstract class VCFGenotypeColumns {
+	private CalledGenomicVariant [] calls;
+	private boolean nonDefaultCopyNumber = false;
+
+	/**
+	 * Creates the columns of one record
+	 * @param numSamples Number of samples with genotype calls
+	 */
+	VCFGenotypeColumns(int numSamples) {
+		calls = new CalledGenomicVariant[numSamples];
+	}
+	/**
+	 * @return int Number of samples
+	 */
+	int size() {
+		return calls.length;
+	}
+	/**
+	 * Returns the call of the sample with the given index decoding it if needed
+	 * @param i Index of the sample
+	 * @return CalledGenomicVariant Call of the sample
+	 */
+	CalledGenomicVariant getCall(int i) {
+		CalledGenomicVariant call = calls[i];
+		if(call == null) {
+			call = decodeCall(i);
+			if(call.getCopyNumber()!=CalledGenomicVariant.DEFAULT_PLOIDY) nonDefaultCopyNumber = true;
+			calls[i] = call;
+		}
+		return call;
+	}
+	/**
+	 * Decodes the call of one sample from the stored representation
+	 * @param i Index of the sample
+	 * @return CalledGenomicVariant Call of the sample
+	 */
+	protected abstract CalledGenomicVariant decodeCall(int i);
+	/**
+	 * Decodes the calls of all samples keeping them in their columns
+	 */
+	void decodeAll() {
+		for(int i=0;i<calls.length;i++) getCall(i);
+	}
+	/**
+	 * Decodes the calls of all samples
+	 * @return List<CalledGenomicVariant> calls in the order of the samples
+	 */
+	List<CalledGenomicVariant> getCalls() {
+		List<CalledGenomicVariant> answer = new ArrayList<>(calls.length);
+		for(int i=0;i<calls.length;i++) answer.add(getCall(i));
+		return answer;
+	}
+	/**
+	 * @return boolean true if at least one of the decoded calls has a copy number different than the default ploidy
+	 */
+	boolean hasNonDefaultCopyNumber() {
+		return nonDefaultCopyNumber;
+	}
+}
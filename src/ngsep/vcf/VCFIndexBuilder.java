@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import ngsep.main.CommandsDescriptor;
+import ngsep.main.ProgressNotifier;
+
+/**
+ * Script to create a tabix index for a VCF file compressed in BGZF format.
+ * The index allows VCFFileReader to query genomic regions without reading the complete file
+ * @author Jorge Duitama
+ *
+ */
+public class VCFIndexBuilder {
+
+	// Logging and progress
+	private Logger log = Logger.getLogger(VCFIndexBuilder.class.getName());
+	private ProgressNotifier progressNotifier=null;
+	
+	// Parameters
+	private String inputFile = null;
+	
+	// Get and set methods
+	
+	public Logger getLog() {
+		return log;
+	}
+	public void setLog(Logger log) {
+		this.log = log;
+	}
+
+	public ProgressNotifier getProgressNotifier() {
+		return progressNotifier;
+	}
+	public void setProgressNotifier(ProgressNotifier progressNotifier) {
+		this.progressNotifier = progressNotifier;
+	}
+
+	public String getInputFile() {
+		return inputFile;
+	}
+	public void setInputFile(String inputFile) {
+		this.inputFile = inputFile;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		VCFIndexBuilder instance = new VCFIndexBuilder();
+		CommandsDescriptor.getInstance().loadOptions(instance, args);
+		instance.run();
+	}
+	
+	public void run() throws IOException {
+		if (inputFile == null) throw new IOException("The input file is a required parameter");
+		log.info("Input file: "+inputFile);
+		try (VCFFileReader in = new VCFFileReader(inputFile)) {
+			in.setLog(log);
+			in.createIndex();
+		}
+		log.info("Created index "+inputFile+".tbi");
+	}
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import ngsep.main.io.BGZFOutputStream;
+import ngsep.variants.GenomicVariant;
+
+/**
+ * Writer of VCF files compressed in BGZF format. Records printed to the stream of this writer
+ * are added to a tabix index, which is saved with the extension .tbi when the writer is closed.
+ * Records must be sorted by sequence and position.
+ * @author Jorge Duitama
+ */
+public class VCFIndexedFileWriter extends VCFFileWriter implements Closeable {
+	public static final String INDEX_EXTENSION = ".tbi";
+
+	private String filename;
+	private BGZFOutputStream bgzfStream;
+	private PrintStream out;
+	private TabixIndexCreator indexCreator = new TabixIndexCreator(TabixFormat.VCF);
+	//Records already printed whose BGZF block has not been written
+	private Deque<PendingRecord> pendingRecords = new ArrayDeque<>();
+
+	/**
+	 * Creates a writer compressing blocks with BGZFOutputStream.DEF_NUM_THREADS threads
+	 * @param filename Name of the output file. Usually with extension .vcf.gz
+	 * @throws IOException If the file can not be created
+	 */
+	public VCFIndexedFileWriter(String filename) throws IOException {
+		this(filename, BGZFOutputStream.DEF_NUM_THREADS);
+	}
+	/**
+	 * Creates a new writer
+	 * @param filename Name of the output file. Usually with extension .vcf.gz
+	 * @param numThreads Number of threads compressing BGZF blocks
+	 * @throws IOException If the file can not be created
+	 */
+	public VCFIndexedFileWriter(String filename, int numThreads) throws IOException {
+		this.filename = filename;
+		bgzfStream = new BGZFOutputStream(new FileOutputStream(filename), numThreads);
+		out = new PrintStream(bgzfStream);
+	}
+	/**
+	 * @return PrintStream Stream writing to the compressed file. Only records printed to this stream are indexed
+	 */
+	public PrintStream getOutputStream() {
+		return out;
+	}
+	/**
+	 * @return String Name of the index file
+	 */
+	public String getIndexFilename() {
+		return filename+INDEX_EXTENSION;
+	}
+
+	@Override
+	public synchronized void printVCFRecord(VCFRecord record, PrintStream out) {
+		if(out!=this.out) {
+			super.printVCFRecord(record, out);
+			return;
+		}
+		//PrintStream passes printed text to the compressed stream without buffering
+		long position = bgzfStream.getPosition();
+		super.printVCFRecord(record, out);
+		GenomicVariant var = record.getVariant();
+		pendingRecords.add(new PendingRecord(new SimpleFeature(var.getSequenceName(), var.getFirst(), var.getLast()), position));
+		indexWrittenRecords();
+	}
+
+	private void indexWrittenRecords() {
+		while(!pendingRecords.isEmpty()) {
+			PendingRecord next = pendingRecords.peekFirst();
+			long pointer = bgzfStream.getVirtualFilePointer(next.position);
+			if(pointer<0) break;
+			indexCreator.addFeature(next.feature, pointer);
+			pendingRecords.removeFirst();
+		}
+	}
+
+	/**
+	 * Finishes the compressed file and writes the index
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(indexCreator==null) return;
+		out.close();
+		if(out.checkError()) throw new IOException("Error writing VCF file "+filename);
+		indexWrittenRecords();
+		Index index = indexCreator.finalizeIndex(bgzfStream.getVirtualFilePointer(bgzfStream.getPosition()));
+		indexCreator = null;
+		index.write(Paths.get(getIndexFilename()));
+	}
+
+	private static class PendingRecord {
+		private SimpleFeature feature;
+		private long position;
+		public PendingRecord(SimpleFeature feature, long position) {
+			this.feature = feature;
+			this.position = position;
+		}
+	}
+}
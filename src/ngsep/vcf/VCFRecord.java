@@ -166,7 +166,11 @@ public class VCFRecord implements GenomicRegion {
 	private Set<String> filters = new TreeSet<String>();
 	private Map<String,GenomicVariantAnnotation> infoFields = new LinkedHashMap<String, GenomicVariantAnnotation>();
 	private List<CalledGenomicVariant> calls;
+	//Raw genotype columns of records loaded from files. Null if the calls are already decoded
+	private VCFGenotypeColumns genotypeColumns = null;
 	private int [] fieldsFormat;
+	//Format to use if a decoded call has a copy number different than the default ploidy
+	private int [] fieldsFormatNonDefaultCN = null;
 	private VCFFileHeader header;
 	public VCFRecord(GenomicVariant variant, List<String> filters,List<GenomicVariantAnnotation> infoFields, int [] format, List<CalledGenomicVariant> calls, VCFFileHeader header) {
 		this.variant = variant;
@@ -177,6 +181,22 @@ public class VCFRecord implements GenomicRegion {
 		this.header = header;
 	}
 
+	/**
+	 * Creates a record whose calls are decoded from the given genotype columns only when they are requested
+	 * @param variant Variant of the record
+	 * @param filters Filters of the record
+	 * @param infoFields INFO fields of the record
+	 * @param format Format fields to write the calls
+	 * @param formatNonDefaultCN Format fields to write the calls if some call has a copy number different than the default ploidy. Null if the format does not depend on the calls
+	 * @param genotypeColumns Raw genotype columns of the record
+	 * @param header Header of the file
+	 */
+	VCFRecord(GenomicVariant variant, List<String> filters,List<GenomicVariantAnnotation> infoFields, int [] format, int [] formatNonDefaultCN, VCFGenotypeColumns genotypeColumns, VCFFileHeader header) {
+		this(variant, filters, infoFields, format, null, header);
+		this.fieldsFormatNonDefaultCN = formatNonDefaultCN;
+		this.genotypeColumns = genotypeColumns;
+	}
+
 	public VCFRecord(GenomicVariant variant, int [] format, List<CalledGenomicVariant> calls, VCFFileHeader header) {
 		super();
 		this.variant = variant;
@@ -232,9 +252,42 @@ public class VCFRecord implements GenomicRegion {
 	public GenomicVariantAnnotation getInfoField(String key) {
 		return infoFields.get(key);
 	}
+	/**
+	 * Returns the genotype calls of this record. If the record was loaded from a file, the calls of all samples are decoded
+	 * @return List<CalledGenomicVariant> Calls in the order of the samples of the header
+	 */
 	public List<CalledGenomicVariant> getCalls() {
+		if(genotypeColumns!=null) {
+			calls = genotypeColumns.getCalls();
+			if(fieldsFormatNonDefaultCN!=null && genotypeColumns.hasNonDefaultCopyNumber()) fieldsFormat = fieldsFormatNonDefaultCN;
+			fieldsFormatNonDefaultCN = null;
+			genotypeColumns = null;
+		}
 		return calls;
 	}
+	/**
+	 * Decodes the genotype calls of a record loaded from a file without changing the record.
+	 * Used to decode calls in a thread different than the thread consuming the record
+	 */
+	void decodeGenotypeColumns() {
+		if(genotypeColumns!=null) genotypeColumns.decodeAll();
+	}
+	/**
+	 * Returns the genotype call of one sample. If the record was loaded from a file, only the call of the given sample is decoded
+	 * @param sampleIndex Index of the sample in the header
+	 * @return CalledGenomicVariant Call of the given sample
+	 */
+	public CalledGenomicVariant getCall(int sampleIndex) {
+		if(genotypeColumns!=null) return genotypeColumns.getCall(sampleIndex);
+		return calls.get(sampleIndex);
+	}
+	/**
+	 * @return int Number of genotype calls of this record
+	 */
+	public int getNumCalls() {
+		if(genotypeColumns!=null) return genotypeColumns.size();
+		return calls.size();
+	}
 	public void addFilter(String filter) {
 		filters.add(filter);
 	}
@@ -248,10 +301,13 @@ public class VCFRecord implements GenomicRegion {
 		infoFields.remove(key);
 	}
 	public int[] getFieldsFormat() {
+		//The format depends on the copy number of the calls
+		if(fieldsFormatNonDefaultCN!=null) getCalls();
 		return fieldsFormat;
 	}
 	public void setFieldsFormat(int[] fieldsFormat) {
 		this.fieldsFormat = fieldsFormat;
+		fieldsFormatNonDefaultCN = null;
 	}
 	public VCFFileHeader getHeader() {
 		return header;
@@ -280,6 +336,7 @@ public class VCFRecord implements GenomicRegion {
 		return answer.toString();
 	}
 	public void updateDiversityStatistics() {
+    	List<CalledGenomicVariant> calls = getCalls();
     	if(calls.size()==0) return;
     	DiversityStatistics divStats = DiversityStatistics.calculateDiversityStatistics(calls, false);
         int numCalledAlleles = divStats.getNumCalledAlleles();
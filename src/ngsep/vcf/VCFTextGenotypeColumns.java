@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * NGSEP - Next Generation Sequencing Experience Platform
+ * Copyright 2016 Jorge Duitama
+ *
+ * This file is part of NGSEP.
+ *
+ *     NGSEP is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     NGSEP is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with NGSEP.  If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package ngsep.vcf;
+
+import java.util.List;
+
+import ngsep.main.io.ParseUtils;
+import ngsep.variants.CalledGenomicVariant;
+import ngsep.variants.GenomicVariant;
+import ngsep.variants.Sample;
+
+/**
+ * Genotype columns of a VCF record kept as raw text.
+ * The call of each sample is decoded by the reader the first time it is requested
+ * @author Jorge Duitama
+ */
+class VCFTextGenotypeColumns extends VCFGenotypeColumns {
+	private VCFFileReader reader;
+	private GenomicVariant variant;
+	private int [] inputFormat;
+	private List<Sample> samples;
+	private String data;
+	private int [] starts;
+	private int [] ends;
+
+	/**
+	 * Creates the columns of one record
+	 * @param reader Reader used to decode the calls
+	 * @param variant Variant of the record
+	 * @param inputFormat Indexes of the known format fields in the FORMAT column. -1 for fields that are not loaded
+	 * @param samples Samples of the calls that can be decoded
+	 * @param data Text of the sample columns
+	 * @param starts Start in the data of the column of each sample
+	 * @param ends End (exclusive) in the data of the column of each sample
+	 */
+	VCFTextGenotypeColumns(VCFFileReader reader, GenomicVariant variant, int [] inputFormat, List<Sample> samples, String data, int [] starts, int [] ends) {
+		super(samples.size());
+		this.reader = reader;
+		this.variant = variant;
+		this.inputFormat = inputFormat;
+		this.samples = samples;
+		this.data = data;
+		this.starts = starts;
+		this.ends = ends;
+	}
+	@Override
+	protected CalledGenomicVariant decodeCall(int i) {
+		String [] itemsSample = ParseUtils.parseString(data.substring(starts[i], ends[i]), ':');
+		return reader.loadCalledVariant(variant, inputFormat, itemsSample, samples.get(i));
+	}
+}
@@ -0,0 +1,107 @@
+package ngsep.clustering.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.clustering.DistanceMatrix;
+import ngsep.clustering.PackedDistanceMatrix;
+
+public class PackedDistanceMatrixTest extends TestCase {
+	
+	public void testIndexing() {
+		int n = 7;
+		double [][] D = createMatrix(n, 3);
+		PackedDistanceMatrix packed = new PackedDistanceMatrix(new DistanceMatrix(createIds(n), D));
+		assertEquals(n, packed.getNumActive());
+		for(int i=0;i<n;i++) {
+			assertEquals(i, packed.getSlot(i));
+			for(int j=0;j<n;j++) {
+				assertEquals(D[i][j], packed.getDistance(i, j));
+			}
+		}
+		packed.setDistance(5, 2, 100);
+		assertEquals(100.0, packed.getDistance(2, 5));
+		packed.setDistance(1, 6, 200);
+		assertEquals(200.0, packed.getDistance(6, 1));
+		//Other cells are not modified
+		assertEquals(D[2][6], packed.getDistance(6, 2));
+		assertEquals(D[1][5], packed.getDistance(5, 1));
+		try {
+			packed.setDistance(3, 3, 1);
+			fail("Distance of a node to itself should not be changed");
+		} catch (IllegalArgumentException e) {
+			//Expected
+		}
+	}
+	
+	public void testActiveNodes() {
+		int n = 6;
+		double [][] D = createMatrix(n, 5);
+		PackedDistanceMatrix packed = new PackedDistanceMatrix(new DistanceMatrix(createIds(n), D));
+		packed.removeActive(new boolean [] {false, true, false, false, true, false});
+		assertEquals(4, packed.getNumActive());
+		int [] expectedSlots = {0, 2, 3, 5};
+		for(int i=0;i<expectedSlots.length;i++) assertEquals(expectedSlots[i], packed.getSlot(i));
+		packed.addActive(4);
+		assertEquals(5, packed.getNumActive());
+		assertEquals(4, packed.getSlot(4));
+		//Row sums only include active nodes
+		double [] sums = packed.calculateRowSums();
+		int [] activeSlots = {0, 2, 3, 5, 4};
+		assertEquals(activeSlots.length, sums.length);
+		for(int i=0;i<activeSlots.length;i++) {
+			double expected = 0;
+			for(int j=0;j<activeSlots.length;j++) expected+=D[activeSlots[i]][activeSlots[j]];
+			assertEquals(expected, sums[i], 1e-9);
+		}
+	}
+	
+	public void testMinimumPair() {
+		int n = 300;
+		double [][] D = createMatrix(n, 7);
+		D[120][37] = D[37][120] = -1;
+		PackedDistanceMatrix packed = new PackedDistanceMatrix(new DistanceMatrix(createIds(n), D));
+		int [] pair = packed.findMinimumPair((s1,s2,d)->d);
+		assertEquals(37, pair[0]);
+		assertEquals(120, pair[1]);
+		//Positions change after removing nodes
+		boolean [] removed = new boolean[n];
+		removed[10] = removed[50] = true;
+		packed.removeActive(removed);
+		pair = packed.findMinimumPair((s1,s2,d)->d);
+		assertEquals(36, pair[0]);
+		assertEquals(118, pair[1]);
+		//Parallel scans give the same results
+		packed.setNumThreads(3);
+		try {
+			int [] pair2 = packed.findMinimumPair((s1,s2,d)->d);
+			assertEquals(pair[0], pair2[0]);
+			assertEquals(pair[1], pair2[1]);
+			double [] sums = packed.calculateRowSums();
+			packed.setNumThreads(1);
+			double [] sums2 = packed.calculateRowSums();
+			for(int i=0;i<sums.length;i++) assertEquals(sums2[i], sums[i]);
+		} finally {
+			packed.close();
+		}
+	}
+	
+	private static double [][] createMatrix(int n, long seed) {
+		Random random = new Random(seed);
+		double [][] D = new double[n][n];
+		for(int i=0;i<n;i++) {
+			for(int j=0;j<i;j++) {
+				D[i][j] = D[j][i] = random.nextDouble();
+			}
+		}
+		return D;
+	}
+	
+	private static List<String> createIds(int n) {
+		List<String> ids = new ArrayList<>(n);
+		for(int i=0;i<n;i++) ids.add("S"+i);
+		return ids;
+	}
+}
@@ -0,0 +1,174 @@
+package ngsep.graphs.test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+import ngsep.graphs.CompressedSparseMatrix;
+import ngsep.graphs.MCLJob;
+
+public class CompressedSparseMatrixTest extends TestCase {
+	
+	public void testFromDense() {
+		double [][] dense = {
+			{0, 1.5, 0, 2},
+			{0, 0, 0, 0},
+			{3, 0, 4, 0}
+		};
+		CompressedSparseMatrix matrix = CompressedSparseMatrix.fromDense(dense);
+		assertEquals(3, matrix.getNumRows());
+		assertEquals(4, matrix.getNumColumns());
+		assertEquals(4, matrix.getNumEntries());
+		assertEquals(matrix.getRowStart(1), matrix.getRowEnd(1));
+		assertDense(dense, matrix);
+		CompressedSparseMatrix transpose = matrix.transpose();
+		assertEquals(4, transpose.getNumRows());
+		assertEquals(3, transpose.getNumColumns());
+		for(int i=0;i<dense.length;i++) {
+			for(int j=0;j<dense[0].length;j++) assertEquals(dense[i][j], transpose.get(j, i));
+		}
+		assertSortedColumns(transpose);
+	}
+	
+	public void testFromEntries() {
+		int [] rows = {2, 0, 2, 0, 2};
+		int [] columns = {1, 3, 0, 0, 1};
+		double [] values = {5, 1, 2, 3, 7};
+		CompressedSparseMatrix matrix = CompressedSparseMatrix.fromEntries(3, 4, rows, columns, values, values.length);
+		//Repeated entries keep the last value
+		assertEquals(4, matrix.getNumEntries());
+		assertDense(new double [][] {{3, 0, 0, 1}, {0, 0, 0, 0}, {2, 7, 0, 0}}, matrix);
+		assertSortedColumns(matrix);
+		try {
+			CompressedSparseMatrix.fromEntries(3, 4, new int [] {3}, new int [] {0}, new double [] {1}, 1);
+			fail("Entries out of the matrix should not be accepted");
+		} catch (IndexOutOfBoundsException e) {
+			//Expected
+		}
+	}
+	
+	public void testMultiply() {
+		double [][] a = createSparseDense(40, 30, 0.2, 1);
+		double [][] b = createSparseDense(30, 50, 0.2, 2);
+		double [][] expected = new double[a.length][b[0].length];
+		for(int i=0;i<a.length;i++) {
+			for(int j=0;j<b[0].length;j++) {
+				for(int k=0;k<b.length;k++) expected[i][j]+=a[i][k]*b[k][j];
+			}
+		}
+		CompressedSparseMatrix sa = CompressedSparseMatrix.fromDense(a);
+		CompressedSparseMatrix sb = CompressedSparseMatrix.fromDense(b);
+		CompressedSparseMatrix product = sa.multiply(sb, 0, null, 1);
+		assertEquals(a.length, product.getNumRows());
+		assertEquals(b[0].length, product.getNumColumns());
+		assertDense(expected, product, 1e-12);
+		assertSortedColumns(product);
+		//Pruning removes entries smaller or equal than the threshold
+		double threshold = 0.3;
+		CompressedSparseMatrix pruned = sa.multiply(sb, threshold, null, 1);
+		for(int i=0;i<expected.length;i++) {
+			for(int j=0;j<expected[0].length;j++) {
+				double value = expected[i][j]>threshold?expected[i][j]:0;
+				assertEquals(value, pruned.get(i, j), 1e-12);
+			}
+		}
+		//Multithreaded multiplication produces the same matrix
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try {
+			CompressedSparseMatrix parallel = sa.multiply(sb, threshold, pool, 3);
+			assertEquals(pruned.getNumEntries(), parallel.getNumEntries());
+			for(int k=0;k<pruned.getNumEntries();k++) {
+				assertEquals(pruned.getColumn(k), parallel.getColumn(k));
+				assertEquals(pruned.getValue(k), parallel.getValue(k));
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		try {
+			sa.multiply(sa, 0, null, 1);
+			fail("Matrices with incompatible dimensions should not be multiplied");
+		} catch (IllegalArgumentException e) {
+			//Expected
+		}
+	}
+	
+	public void testMCL() {
+		//Clusters calculated with the implementation of MCL on dense matrices
+		double [][] complex = {
+			{0, 0.33f, 0.34f, 0.33f, 0, 0, 0, 0},
+			{0.5f, 0, 0.5f, 0, 0, 0, 0, 0},
+			{0.399f, 0.3f, 0, 0.3f, 0.001f, 0, 0, 0},
+			{0.5f, 0, 0.5f, 0, 0, 0, 0, 0},
+			{0, 0, 0.001f, 0, 0, 0.3f, 0.3f, 0.399f},
+			{0, 0, 0, 0, 0.5f, 0, 0, 0.5f},
+			{0, 0, 0, 0, 0.5f, 0, 0, 0.5f},
+			{0, 0, 0, 0, 0.34f, 0.33f, 0.33f, 0},
+		};
+		assertClusters(complex, new int [][] {{0, 1, 2, 3}, {4, 5, 6, 7}});
+		double [][] blocks = new double[12][12];
+		int [][] expected = {{0, 1, 2, 3}, {4, 5, 6, 7, 8}, {9, 10, 11}};
+		Random random = new Random(11);
+		for(int [] block:expected) {
+			for(int i:block) {
+				for(int j:block) {
+					if(i<j) blocks[i][j] = blocks[j][i] = 0.5+random.nextDouble();
+				}
+			}
+		}
+		blocks[3][4] = blocks[4][3] = 0.001;
+		blocks[8][9] = blocks[9][8] = 0.001;
+		blocks[1][10] = blocks[10][1] = 0.001;
+		assertClusters(blocks, expected);
+		MCLJob job = new MCLJob(blocks);
+		job.setNumThreads(2);
+		job.run();
+		assertClusters(expected, job.getResults());
+	}
+	
+	private static void assertClusters(double [][] matrix, int [][] expected) {
+		MCLJob job = new MCLJob(matrix);
+		job.run();
+		assertClusters(expected, job.getResults());
+	}
+	
+	private static void assertClusters(int [][] expected, List<List<Integer>> clusters) {
+		assertEquals(expected.length, clusters.size());
+		for(int i=0;i<expected.length;i++) {
+			List<Integer> cluster = clusters.get(i);
+			assertEquals(expected[i].length, cluster.size());
+			for(int j=0;j<expected[i].length;j++) assertEquals(expected[i][j], cluster.get(j).intValue());
+		}
+	}
+	
+	private static void assertDense(double [][] expected, CompressedSparseMatrix matrix) {
+		assertDense(expected, matrix, 0);
+	}
+	
+	private static void assertDense(double [][] expected, CompressedSparseMatrix matrix, double delta) {
+		for(int i=0;i<expected.length;i++) {
+			for(int j=0;j<expected[i].length;j++) assertEquals(expected[i][j], matrix.get(i, j), delta);
+		}
+	}
+	
+	private static void assertSortedColumns(CompressedSparseMatrix matrix) {
+		for(int i=0;i<matrix.getNumRows();i++) {
+			for(int k=matrix.getRowStart(i)+1;k<matrix.getRowEnd(i);k++) {
+				assertTrue(matrix.getColumn(k-1)<matrix.getColumn(k));
+			}
+		}
+	}
+	
+	private static double [][] createSparseDense(int rows, int columns, double density, long seed) {
+		Random random = new Random(seed);
+		double [][] matrix = new double[rows][columns];
+		for(int i=0;i<rows;i++) {
+			for(int j=0;j<columns;j++) {
+				if(random.nextDouble()<density) matrix[i][j] = random.nextDouble();
+			}
+		}
+		return matrix;
+	}
+}
@@ -0,0 +1,156 @@
+package ngsep.gwas.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import JSci.maths.statistics.FDistribution;
+import junit.framework.TestCase;
+import ngsep.gwas.LinearAssociationTest;
+import ngsep.math.FactorialAnova;
+
+public class LinearAssociationTestTest extends TestCase {
+	
+	private static final int NUM_SAMPLES = 30;
+	
+	public void testWithoutCovariates() {
+		Random random = new Random(7);
+		int [] classes = randomClasses(random, 3);
+		double [] phenotypes = new double[NUM_SAMPLES];
+		for(int i=0;i<NUM_SAMPLES;i++) phenotypes[i] = 10 + 0.8*classes[i] + random.nextGaussian();
+		double [] result = runTest(phenotypes, null, classes, 3);
+		assertLeastSquares(phenotypes, null, classes, 3, result);
+		//Without covariates the explained sum of squares is the treatment sum of squares of the factorial ANOVA
+		List<String> x = new ArrayList<>();
+		List<Double> y = new ArrayList<>();
+		double mean = 0;
+		for(int i=0;i<NUM_SAMPLES;i++) {
+			x.add(String.valueOf(classes[i]));
+			y.add(phenotypes[i]);
+			mean+=phenotypes[i]/NUM_SAMPLES;
+		}
+		double totalSS = 0;
+		for(int i=0;i<NUM_SAMPLES;i++) totalSS+=(phenotypes[i]-mean)*(phenotypes[i]-mean);
+		FactorialAnova anova = new FactorialAnova(x, y);
+		assertEquals(anova.getTreatmentSumSquares(), result[2]*totalSS, 1e-8);
+	}
+	
+	public void testWithCovariates() {
+		Random random = new Random(11);
+		int [] classes = randomClasses(random, 3);
+		double [][] covariates = new double[NUM_SAMPLES][2];
+		double [] phenotypes = new double[NUM_SAMPLES];
+		for(int i=0;i<NUM_SAMPLES;i++) {
+			covariates[i][0] = random.nextGaussian();
+			covariates[i][1] = classes[i] + random.nextGaussian();
+			phenotypes[i] = 5 + 2*covariates[i][0] - covariates[i][1] + 0.5*classes[i] + random.nextGaussian();
+		}
+		double [] result = runTest(phenotypes, covariates, classes, 3);
+		assertLeastSquares(phenotypes, covariates, classes, 3, result);
+		assertEquals(2.0, result[1]);
+	}
+	
+	public void testCovariateEqualToGenotypeClass() {
+		Random random = new Random(13);
+		int [] classes = randomClasses(random, 3);
+		double [][] covariates = new double[NUM_SAMPLES][1];
+		double [] phenotypes = new double[NUM_SAMPLES];
+		for(int i=0;i<NUM_SAMPLES;i++) {
+			covariates[i][0] = classes[i]==2?1:0;
+			phenotypes[i] = 3 + classes[i] + random.nextGaussian();
+		}
+		double [] result = runTest(phenotypes, covariates, classes, 3);
+		assertLeastSquares(phenotypes, covariates, classes, 3, result);
+		//The indicator of class 2 is explained by the covariate
+		assertEquals(1.0, result[1]);
+	}
+	
+	public void testMonomorphic() {
+		Random random = new Random(17);
+		int [] classes = new int[NUM_SAMPLES];
+		double [] phenotypes = new double[NUM_SAMPLES];
+		for(int i=0;i<NUM_SAMPLES;i++) phenotypes[i] = random.nextGaussian();
+		double [] result = runTest(phenotypes, null, classes, 3);
+		assertEquals(1.0, result[0]);
+		assertEquals(0.0, result[1]);
+		assertEquals(0.0, result[2]);
+	}
+	
+	private int [] randomClasses(Random random, int numClasses) {
+		int [] classes = new int[NUM_SAMPLES];
+		for(int i=0;i<NUM_SAMPLES;i++) classes[i] = i<numClasses?i:random.nextInt(numClasses);
+		return classes;
+	}
+	
+	private double [] runTest(double [] phenotypes, double [][] covariates, int [] classes, int numClasses) {
+		LinearAssociationTest test = new LinearAssociationTest(phenotypes, covariates);
+		double [] result = new double[3];
+		test.test(classes, numClasses, new FDistribution[numClasses+1], result);
+		return result;
+	}
+	
+	/**
+	 * Compares the result of the test with the F test of nested models calculated fitting directly both models by least squares
+	 */
+	private void assertLeastSquares(double [] phenotypes, double [][] covariates, int [] classes, int numClasses, double [] result) {
+		int numCovariates = covariates!=null?covariates[0].length:0;
+		double [][] reduced = new double[NUM_SAMPLES][numCovariates+1];
+		double [][] full = new double[NUM_SAMPLES][numCovariates+1+numClasses];
+		for(int i=0;i<NUM_SAMPLES;i++) {
+			reduced[i][0] = full[i][0] = 1;
+			for(int j=0;j<numCovariates;j++) reduced[i][j+1] = full[i][j+1] = covariates[i][j];
+			full[i][numCovariates+1+classes[i]] = 1;
+		}
+		double [] rssReduced = new double[1];
+		int rankReduced = fit(reduced, phenotypes, rssReduced);
+		double [] rssFull = new double[1];
+		int rankFull = fit(full, phenotypes, rssFull);
+		int df = rankFull - rankReduced;
+		int errorDF = NUM_SAMPLES - rankFull;
+		double f = ((rssReduced[0]-rssFull[0])/df)/(rssFull[0]/errorDF);
+		double pValue = 1 - new FDistribution(df, errorDF).cumulative(f);
+		assertEquals((double)df, result[1]);
+		assertEquals(pValue, result[0], 1e-8);
+		assertEquals((rssReduced[0]-rssFull[0])/rssReduced[0], result[2], 1e-10);
+	}
+	
+	/**
+	 * Solves the normal equations of the least squares fit of y on the columns of x with gaussian elimination
+	 * @param x Design matrix
+	 * @param y Response values
+	 * @param rss Array to store the residual sum of squares
+	 * @return int rank of the design matrix
+	 */
+	private int fit(double [][] x, double [] y, double [] rss) {
+		int n = x.length;
+		int p = x[0].length;
+		double [][] a = new double[p][p+1];
+		for(int j=0;j<p;j++) {
+			for(int k=0;k<p;k++) {
+				for(int i=0;i<n;i++) a[j][k]+=x[i][j]*x[i][k];
+			}
+			for(int i=0;i<n;i++) a[j][p]+=x[i][j]*y[i];
+		}
+		boolean [] pivot = new boolean[p];
+		int rank = 0;
+		for(int j=0;j<p;j++) {
+			if(Math.abs(a[j][j])<1e-9) continue;
+			pivot[j] = true;
+			rank++;
+			for(int r=0;r<p;r++) {
+				if(r==j || a[r][j]==0) continue;
+				double factor = a[r][j]/a[j][j];
+				for(int k=j;k<=p;k++) a[r][k]-=factor*a[j][k];
+			}
+		}
+		double [] coefficients = new double[p];
+		for(int j=0;j<p;j++) if(pivot[j]) coefficients[j] = a[j][p]/a[j][j];
+		rss[0] = 0;
+		for(int i=0;i<n;i++) {
+			double residual = y[i];
+			for(int j=0;j<p;j++) residual-=coefficients[j]*x[i][j];
+			rss[0]+=residual*residual;
+		}
+		return rank;
+	}
+}
@@ -0,0 +1,100 @@
+package ngsep.main.io.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import htsjdk.samtools.seekablestream.SeekableMemoryStream;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import junit.framework.TestCase;
+import ngsep.main.io.BGZFOutputStream;
+
+public class BGZFOutputStreamTest extends TestCase {
+	
+	public void testRoundTripSingleThread() throws IOException {
+		byte [] data = createData(3*BGZFOutputStream.BLOCK_SIZE+1234);
+		assertRoundTrip(data, 1);
+	}
+	
+	public void testRoundTripMultipleThreads() throws IOException {
+		byte [] data = createData(10*BGZFOutputStream.BLOCK_SIZE+77);
+		assertRoundTrip(data, 3);
+	}
+	
+	public void testRoundTripExactBlocks() throws IOException {
+		byte [] data = createData(2*BGZFOutputStream.BLOCK_SIZE);
+		assertRoundTrip(data, 1);
+		assertRoundTrip(data, 2);
+	}
+	
+	public void testEmptyStream() throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		BGZFOutputStream out = new BGZFOutputStream(compressed, 1);
+		out.close();
+		try (BlockCompressedInputStream in = new BlockCompressedInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+			assertEquals(-1, in.read());
+		}
+	}
+	
+	public void testVirtualFilePointers() throws IOException {
+		byte [] data = createData(5*BGZFOutputStream.BLOCK_SIZE+500);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		long [] positions = {0, 1, BGZFOutputStream.BLOCK_SIZE-1, BGZFOutputStream.BLOCK_SIZE, 3*BGZFOutputStream.BLOCK_SIZE+17, data.length-1};
+		long [] pointers = new long[positions.length];
+		BGZFOutputStream out = new BGZFOutputStream(compressed, 2);
+		out.write(data);
+		//Pointers of all positions are available after closing the stream
+		out.close();
+		for(int i=0;i<positions.length;i++) {
+			pointers[i] = out.getVirtualFilePointer(positions[i]);
+			assertTrue("Missing virtual pointer for position "+positions[i], pointers[i]>=0);
+		}
+		try (BlockCompressedInputStream in = new BlockCompressedInputStream(new SeekableMemoryStream(compressed.toByteArray(), "test"))) {
+			for(int i=0;i<positions.length;i++) {
+				in.seek(pointers[i]);
+				assertEquals("Wrong byte at position "+positions[i], data[(int)positions[i]], (byte)in.read());
+			}
+		}
+	}
+	
+	private void assertRoundTrip(byte [] data, int numThreads) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (BGZFOutputStream out = new BGZFOutputStream(compressed, numThreads)) {
+			//Mix single bytes and arrays of different lengths
+			int i = 0;
+			Random random = new Random(numThreads);
+			while(i<data.length) {
+				if(random.nextInt(10)==0) {
+					out.write(data[i]);
+					i++;
+				} else {
+					int len = Math.min(data.length-i, 1+random.nextInt(30000));
+					out.write(data, i, len);
+					i+=len;
+				}
+			}
+			assertEquals(data.length, out.getPosition());
+		}
+		byte [] bytes = compressed.toByteArray();
+		assertTrue(BlockCompressedInputStream.isValidFile(new ByteArrayInputStream(bytes)));
+		ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+		try (BlockCompressedInputStream in = new BlockCompressedInputStream(new ByteArrayInputStream(bytes))) {
+			byte [] buffer = new byte[8192];
+			int n;
+			while((n=in.read(buffer))>0) decompressed.write(buffer, 0, n);
+		}
+		byte [] answer = decompressed.toByteArray();
+		assertEquals(data.length, answer.length);
+		for(int i=0;i<data.length;i++) assertEquals("Wrong byte at position "+i, data[i], answer[i]);
+	}
+	
+	private byte [] createData(int length) {
+		//Text with some redundancy to make compression meaningful
+		Random random = new Random(length);
+		byte [] data = new byte[length];
+		String alphabet = "ACGT\t0123456789\n";
+		for(int i=0;i<length;i++) data[i] = (byte) alphabet.charAt(random.nextInt(alphabet.length()));
+		return data;
+	}
+}
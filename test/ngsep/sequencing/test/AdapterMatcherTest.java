@@ -0,0 +1,90 @@
+package ngsep.sequencing.test;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+import ngsep.sequences.DegenerateSequence;
+import ngsep.sequencing.AdapterMatcher;
+
+public class AdapterMatcherTest extends TestCase {
+	private static final String BASES = "ACGT";
+	
+	public void testExactMatchesAgainstIndexOf() {
+		Random random = new Random(17);
+		String [] adapters = {"AGATCGGAAGAGC", "AGATCG", "CTGTCTCTTATACACATCT", "A"};
+		for(String adapter:adapters) {
+			AdapterMatcher matcher = new AdapterMatcher(adapter);
+			for(int i=0;i<2000;i++) {
+				String read = createRead(random, adapter, 20+random.nextInt(130));
+				assertEquals("Wrong start of "+adapter+" in "+read, read.indexOf(adapter), matcher.findAdapterStart(read));
+			}
+		}
+	}
+	
+	public void testDegenerateMatchesAgainstRegex() {
+		Random random = new Random(23);
+		String [] adapters = {"AGATCGNNAGAGC", "CTGYCTCTTRTAC"};
+		for(String adapter:adapters) {
+			AdapterMatcher matcher = new AdapterMatcher(adapter);
+			Pattern pattern = Pattern.compile(DegenerateSequence.makeRegularExpression(adapter));
+			for(int i=0;i<2000;i++) {
+				String read = createRead(random, instantiate(random, adapter), 20+random.nextInt(130));
+				Matcher m = pattern.matcher(read);
+				int expected = m.find()?m.start():-1;
+				assertEquals("Wrong start of "+adapter+" in "+read, expected, matcher.findAdapterStart(read));
+			}
+		}
+	}
+	
+	public void testMismatches() {
+		String adapter = "AGATCGGAAGAGC";
+		AdapterMatcher exact = new AdapterMatcher(adapter);
+		AdapterMatcher matcher = new AdapterMatcher(adapter, 2, 0);
+		String read = "TTTTTTTTTT"+"AGTTCGGAAGTGC"+"CCCCCCC";
+		assertEquals(-1, exact.findAdapterStart(read));
+		assertEquals(10, matcher.findAdapterStart(read));
+		String read3 = "TTTTTTTTTT"+"AGTTCGCAAGTGC"+"CCCCCCC";
+		assertEquals(-1, matcher.findAdapterStart(read3));
+		//Ns in the read count as mismatches
+		assertEquals(5, matcher.findAdapterStart("GGGGG"+"AGATCGNAAGAGC"+"GGG"));
+	}
+	
+	public void testPartialMatches() {
+		String adapter = "AGATCGGAAGAGC";
+		AdapterMatcher matcher = new AdapterMatcher(adapter, 0, 5);
+		String prefix = "TTTTTTTTTTCCCCC";
+		assertEquals(prefix.length(), matcher.findAdapterStart(prefix+"AGATCGG"));
+		assertEquals(prefix.length(), matcher.findAdapterStart(prefix+"AGATC"));
+		//Overlap below the minimum
+		assertEquals(-1, matcher.findAdapterStart(prefix+"AGAT"));
+		//Complete occurrences are preferred
+		assertEquals(2, matcher.findAdapterStart("TT"+adapter+"TTTAGATCG"));
+		//Mismatches allowed in proportion to the overlap
+		AdapterMatcher matcherMM = new AdapterMatcher(adapter, 2, 5);
+		assertEquals(prefix.length(), matcherMM.findAdapterStart(prefix+"AGTTCGGAAG"));
+		assertEquals(-1, matcherMM.findAdapterStart(prefix+"AGTTC"));
+	}
+	
+	private String createRead(Random random, String adapter, int length) {
+		StringBuilder read = new StringBuilder();
+		for(int i=0;i<length;i++) read.append(BASES.charAt(random.nextInt(4)));
+		//Insert the adapter in half of the reads, sometimes truncated at the end
+		if(random.nextBoolean()) {
+			int start = random.nextInt(length);
+			int end = Math.min(length, start+adapter.length());
+			read.replace(start, end, adapter.substring(0, end-start));
+		}
+		return read.toString();
+	}
+	
+	private String instantiate(Random random, String degenerateSequence) {
+		StringBuilder answer = new StringBuilder();
+		for(int i=0;i<degenerateSequence.length();i++) {
+			String bases = DegenerateSequence.getExtendedBases(degenerateSequence.charAt(i));
+			answer.append(bases.charAt(random.nextInt(bases.length())));
+		}
+		return answer.toString();
+	}
+}
@@ -0,0 +1,102 @@
+package ngsep.sequencing.test;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import ngsep.sequencing.BarcodeMap;
+
+public class BarcodeMapTest extends TestCase {
+	
+	public void testExactMatches() throws IOException {
+		BarcodeMap map = new BarcodeMap();
+		map.addSingleBarcode("ACGT", "S1");
+		map.addSingleBarcode("ACGTTA", "S2");
+		map.addSingleBarcode("TTGCA", "S3");
+		assertSample(map, "ACGTGGGGGGGG", "S1", "ACGT");
+		//The longest barcode is selected
+		assertSample(map, "ACGTTAGGGGGG", "S2", "ACGTTA");
+		assertSample(map, "TTGCAAAAAAAA", "S3", "TTGCA");
+		assertNull(map.getSampleIdByRead("GGGGGGGGGGGG"));
+		//Reads shorter than the barcode
+		assertNull(map.getSampleIdByRead("ACG"));
+		//Mismatches are not allowed by default
+		assertNull(map.getSampleIdByRead("ACCTGGGGGGGG"));
+		//Ns do not match
+		assertNull(map.getSampleIdByRead("ACNTGGGGGGGG"));
+	}
+	
+	public void testMismatches() throws IOException {
+		BarcodeMap map = new BarcodeMap();
+		map.addSingleBarcode("AAAAAA", "S1");
+		map.addSingleBarcode("CCCCCC", "S2");
+		map.setMaxMismatches(1);
+		assertSample(map, "AAGAAATTTT", "S1", "AAAAAA");
+		assertSample(map, "CCCCCNTTTT", "S2", "CCCCCC");
+		//Exact matches are preferred
+		assertSample(map, "AAAAAATTTT", "S1", "AAAAAA");
+		//Too many mismatches
+		assertNull(map.getSampleIdByRead("AAGGAATTTT"));
+		map.setMaxMismatches(2);
+		assertSample(map, "AAGGAATTTT", "S1", "AAAAAA");
+	}
+	
+	public void testAmbiguousMismatches() throws IOException {
+		BarcodeMap map = new BarcodeMap();
+		map.addSingleBarcode("ACGTAC", "S1");
+		map.addSingleBarcode("ACGTTC", "S2");
+		map.setMaxMismatches(1);
+		//One mismatch with both barcodes
+		assertNull(map.getSampleIdByRead("ACGTGCAAAA"));
+		//The barcode with the smallest number of mismatches is selected
+		map.setMaxMismatches(2);
+		assertSample(map, "ACGTAGAAAA", "S1", "ACGTAC");
+		//Barcodes of different length with the same number of mismatches
+		BarcodeMap map2 = new BarcodeMap();
+		map2.addSingleBarcode("ACG", "S1");
+		map2.addSingleBarcode("ACGT", "S2");
+		map2.setMaxMismatches(1);
+		assertNull(map2.getSampleIdByRead("TCGTAAAA"));
+	}
+	
+	public void testDualBarcodes() throws IOException {
+		BarcodeMap map = new BarcodeMap();
+		map.addDualBarcode("AACC", "GGTT", "S1");
+		map.addDualBarcode("AACC", "TTGG", "S2");
+		map.addDualBarcode("CCAA", "GGTT", "S3");
+		String [] answer = map.getSampleIdByReadPair("AACCTTTT", "TTGGAAAA");
+		assertNotNull(answer);
+		assertEquals("S2", answer[0]);
+		assertEquals("AACC", answer[1]);
+		assertEquals("TTGG", answer[2]);
+		//Both barcodes exist but the pair is not registered
+		assertNull(map.getSampleIdByReadPair("CCAATTTT", "TTGGAAAA"));
+		map.setMaxMismatches(1);
+		answer = map.getSampleIdByReadPair("CCATTTTT", "GGTAAAAA");
+		assertNotNull(answer);
+		assertEquals("S3", answer[0]);
+	}
+	
+	public void testInvalidBarcodes() throws IOException {
+		BarcodeMap map = new BarcodeMap();
+		map.addSingleBarcode("ACGT", "S1");
+		try {
+			map.addSingleBarcode("ACGT", "S2");
+			fail("Barcode registered for two samples");
+		} catch (IOException e) {
+			//Expected
+		}
+		try {
+			map.addSingleBarcode("ACNT", "S3");
+			fail("Barcode with invalid characters");
+		} catch (IOException e) {
+			//Expected
+		}
+	}
+	
+	private void assertSample(BarcodeMap map, String read, String sampleId, String barcode) {
+		String [] answer = map.getSampleIdByRead(read);
+		assertNotNull("No sample found for read "+read, answer);
+		assertEquals(sampleId, answer[0]);
+		assertEquals(barcode, answer[1]);
+	}
+}
@@ -0,0 +1,168 @@
+package ngsep.vcf.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+import ngsep.genome.GenomicRegion;
+import ngsep.genome.GenomicRegionImpl;
+import ngsep.variants.CalledGenomicVariant;
+import ngsep.vcf.VCFBinaryFileWriter;
+import ngsep.vcf.VCFFileReader;
+import ngsep.vcf.VCFRecord;
+
+public class VCFBinaryFileTest extends TestCase {
+	
+	private static final String [] SAMPLES = {"S1","S2","S3"};
+	
+	private static final String [] RECORDS = {
+		"chr1\t100\tsnp1\tA\tC\t40\tPASS\t.\tGT:GQ:DP:BSDP\t0/1:35:20:10,12,0,0\t1/1:60:15:0,15,0,0\t./.:0:0:0,0,0,0",
+		"chr1\t150\t.\tAGT\tA\t30\tPASS\t.\tGT:GQ:DP:ADP\t0/0:50:30:30,0\t0/1:20:12:6,6\t1/1:40:8:0,8",
+		"chr1\t400\t.\tG\tT,C\t50\tPASS\t.\tGT:GQ:DP:BSDP\t1/2:45:18:0,10,8,0\t0|2:30:11:0,5,6,0\t0/0:70:25:0,0,25,0",
+		"chr1\t900\t.\tT\tG\t20\tPASS\t.\tGT:GQ:DP:BSDP\t1|0:25:9:0,4,0,5\t0/1:15:7:0,4,0,3\t0/0:55:21:0,0,0,21",
+		"chr2\t10\t.\tC\tA\t60\tPASS\t.\tGT:GQ:DP:BSDP\t1/1:80:30:30,0,0,0\t0/0:70:28:0,28,0,0\t0/1:33:14:7,7,0,0",
+		"chr2\t2000\t.\tG\tGTT\t35\tPASS\t.\tGT:GQ:DP:ADP\t0/1:28:16:9,7\t./.:0:0:0,0\t0/0:45:19:19,0",
+		"chr3\t5\t.\tA\tT\t45\tPASS\t.\tGT:GQ:DP:BSDP\t0/0:65:22:22,0,0,0\t1/1:75:26:0,0,0,26\t0/1:38:13:6,0,0,7",
+		"chr3\t700\t.\tC\tG,T\t52\tPASS\t.\tGT:GQ:DP:BSDP\t2/2:62:17:0,0,0,17\t1/2:41:15:0,0,8,7\t0/1:36:20:0,10,10,0"
+	};
+	
+	private File dir;
+	
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("vcfbinary", "");
+		dir.delete();
+		dir.mkdir();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		for(File f:dir.listFiles()) f.delete();
+		dir.delete();
+	}
+	
+	public void testRoundTripWithDepths() throws IOException {
+		File text = writeVCF();
+		File binary = writeBinary(text, true, VCFBinaryFileWriter.DEF_MAX_CHUNK_BYTES);
+		List<VCFRecord> expected = loadRecords(text);
+		CalledGenomicVariant firstCall = expected.get(0).getCalls().get(0);
+		assertEquals(20, firstCall.getTotalReadDepth());
+		assertEquals("[10, 12, 0, 0]", Arrays.toString(firstCall.getAllCounts()));
+		try (VCFFileReader reader = new VCFFileReader(binary)) {
+			assertEquals(Arrays.asList(SAMPLES), reader.getSampleIds());
+			assertRecords(expected, reader.iterator(), true);
+		}
+	}
+	
+	public void testRoundTripWithoutDepths() throws IOException {
+		File text = writeVCF();
+		File binary = writeBinary(text, false, VCFBinaryFileWriter.DEF_MAX_CHUNK_BYTES);
+		List<VCFRecord> expected = loadRecords(text);
+		try (VCFFileReader reader = new VCFFileReader(binary)) {
+			assertEquals(Arrays.asList(SAMPLES), reader.getSampleIds());
+			assertRecords(expected, reader.iterator(), false);
+		}
+	}
+	
+	public void testQueryBinary() throws IOException {
+		File text = writeVCF();
+		//Small chunks to query regions spanning several chunks
+		File binary = writeBinary(text, true, 16);
+		List<VCFRecord> all = loadRecords(text);
+		List<GenomicRegion> regions = new ArrayList<>();
+		regions.add(new GenomicRegionImpl("chr3", 600, 800));
+		regions.add(new GenomicRegionImpl("chr1", 140, 450));
+		regions.add(new GenomicRegionImpl("chr1", 400, 400));
+		regions.add(new GenomicRegionImpl("chr2", 3000, 4000));
+		List<VCFRecord> expected = new ArrayList<>();
+		for(VCFRecord record:all) {
+			for(GenomicRegion r:regions) {
+				if(record.getSequenceName().equals(r.getSequenceName()) && record.getFirst()<=r.getLast() && record.getLast()>=r.getFirst()) {
+					expected.add(record);
+					break;
+				}
+			}
+		}
+		assertEquals(3, expected.size());
+		try (VCFFileReader reader = new VCFFileReader(binary)) {
+			assertTrue(reader.isIndexed());
+			assertRecords(expected, reader.query(regions), true);
+			assertRecords(all.subList(4, 6), reader.query("chr2", 1, 5000), true);
+		}
+	}
+	
+	private File writeVCF() throws IOException {
+		File file = new File(dir, "test.vcf");
+		try (PrintStream out = new PrintStream(file)) {
+			out.println("##fileformat=VCFv4.2");
+			out.println("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+			StringBuilder header = new StringBuilder("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+			for(String sample:SAMPLES) header.append("\t"+sample);
+			out.println(header);
+			for(String record:RECORDS) out.println(record);
+		}
+		return file;
+	}
+	
+	private File writeBinary(File text, boolean storeDepths, int maxChunkBytes) throws IOException {
+		File binary = new File(dir, "test.vcfb");
+		try (VCFFileReader reader = new VCFFileReader(text);
+			 VCFBinaryFileWriter writer = new VCFBinaryFileWriter(binary.getPath(), reader.getHeader())) {
+			writer.setStoreDepths(storeDepths);
+			writer.setMaxChunkBytes(maxChunkBytes);
+			Iterator<VCFRecord> it = reader.iterator();
+			while(it.hasNext()) writer.addRecord(it.next());
+		}
+		return binary;
+	}
+	
+	private List<VCFRecord> loadRecords(File file) throws IOException {
+		List<VCFRecord> records = new ArrayList<>();
+		try (VCFFileReader reader = new VCFFileReader(file)) {
+			Iterator<VCFRecord> it = reader.iterator();
+			while(it.hasNext()) records.add(it.next());
+		}
+		return records;
+	}
+	
+	private void assertRecords(List<VCFRecord> expected, Iterator<VCFRecord> it, boolean depths) {
+		int n = 0;
+		while(it.hasNext()) {
+			VCFRecord actual = it.next();
+			assertTrue("Unexpected record at "+actual.getSequenceName()+":"+actual.getFirst(), n<expected.size());
+			VCFRecord record = expected.get(n);
+			String location = record.getSequenceName()+":"+record.getFirst();
+			assertEquals(location, record.getSequenceName(), actual.getSequenceName());
+			assertEquals(location, record.getFirst(), actual.getFirst());
+			assertEquals(location, record.getLast(), actual.getLast());
+			assertEquals(location, Arrays.asList(record.getVariant().getAlleles()), Arrays.asList(actual.getVariant().getAlleles()));
+			assertEquals(location, record.getVariant().getId(), actual.getVariant().getId());
+			List<CalledGenomicVariant> calls = record.getCalls();
+			List<CalledGenomicVariant> actualCalls = actual.getCalls();
+			assertEquals(location, calls.size(), actualCalls.size());
+			for(int i=0;i<calls.size();i++) {
+				CalledGenomicVariant call = calls.get(i);
+				CalledGenomicVariant actualCall = actualCalls.get(i);
+				String callLocation = location+" sample "+SAMPLES[i];
+				assertEquals(callLocation, SAMPLES[i], actualCall.getSampleId());
+				assertEquals(callLocation, Arrays.toString(call.getIndexesCalledAlleles()), Arrays.toString(actualCall.getIndexesCalledAlleles()));
+				assertEquals(callLocation, call.isPhased(), actualCall.isPhased());
+				if(call.isPhased()) assertEquals(callLocation, Arrays.toString(call.getIndexesPhasedAlleles()), Arrays.toString(actualCall.getIndexesPhasedAlleles()));
+				assertEquals(callLocation, call.getGenotypeQuality(), actualCall.getGenotypeQuality());
+				if(depths) {
+					assertEquals(callLocation, call.getTotalReadDepth(), actualCall.getTotalReadDepth());
+					assertEquals(callLocation, Arrays.toString(call.getAllCounts()), Arrays.toString(actualCall.getAllCounts()));
+				} else {
+					assertEquals(callLocation, 0, actualCall.getTotalReadDepth());
+				}
+			}
+			n++;
+		}
+		assertEquals(expected.size(), n);
+	}
+}
@@ -0,0 +1,153 @@
+package ngsep.vcf.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import junit.framework.TestCase;
+import ngsep.genome.GenomicRegion;
+import ngsep.genome.GenomicRegionImpl;
+import ngsep.vcf.VCFFileReader;
+import ngsep.vcf.VCFRecord;
+
+public class VCFFileReaderQueryTest extends TestCase {
+	
+	private static final String [] RECORDS = {
+		"chr1\t100\t.\tA\tC\t.\tPASS\t.\tGT\t0/1",
+		//Deletion spanning positions 200 to 300
+		"chr1\t200\t.\tAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCAGTCA\tA\t.\tPASS\t.\tGT\t1/1",
+		"chr1\t500\t.\tG\tT\t.\tPASS\t.\tGT\t0/0",
+		"chr1\t1000\t.\tC\tG\t.\tPASS\t.\tGT\t0/1",
+		"chr2\t50\t.\tT\tA\t.\tPASS\t.\tGT\t1/1",
+		"chr2\t5000\t.\tG\tC\t.\tPASS\t.\tGT\t0/1",
+		"chr3\t10\t.\tA\tG\t.\tPASS\t.\tGT\t0/1"
+	};
+	
+	private File dir;
+	
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("vcfquery", "");
+		dir.delete();
+		dir.mkdir();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		for(File f:dir.listFiles()) f.delete();
+		dir.delete();
+	}
+	
+	public void testCreateIndex() throws IOException {
+		File file = writeVCF("test.vcf.gz", new BlockCompressedOutputStream(new File(dir,"test.vcf.gz")));
+		try (VCFFileReader reader = new VCFFileReader(file)) {
+			assertFalse(reader.isIndexed());
+			reader.createIndex();
+			assertTrue(reader.isIndexed());
+		}
+		assertTrue(new File(file.getPath()+".tbi").exists());
+		//A new reader loads the saved index
+		try (VCFFileReader reader = new VCFFileReader(file)) {
+			assertTrue(reader.isIndexed());
+			assertPositions(reader.query("chr2", 1, 100), "chr2:50");
+			assertPositions(reader.query("chr1", 101, 199));
+			assertPositions(reader.query("chr4", 1, 100));
+		}
+	}
+	
+	public void testCreateIndexNotBGZF() throws IOException {
+		File text = writeVCF("test.vcf", new FileOutputStream(new File(dir,"test.vcf")));
+		File gzip = writeVCF("plain.vcf.gz", new GZIPOutputStream(new FileOutputStream(new File(dir,"plain.vcf.gz"))));
+		for(File file:new File[] {text, gzip}) {
+			try (VCFFileReader reader = new VCFFileReader(file)) {
+				reader.createIndex();
+				fail("Index created for a file not compressed in BGZF format: "+file.getName());
+			} catch (IOException e) {
+				//Expected
+			}
+			assertFalse(new File(file.getPath()+".tbi").exists());
+		}
+	}
+	
+	public void testQueryOverlappingRegions() throws IOException {
+		File file = createIndexedVCF();
+		List<GenomicRegion> regions = new ArrayList<>();
+		regions.add(new GenomicRegionImpl("chr1", 50, 150));
+		regions.add(new GenomicRegionImpl("chr1", 90, 510));
+		regions.add(new GenomicRegionImpl("chr1", 499, 501));
+		try (VCFFileReader reader = new VCFFileReader(file)) {
+			assertPositions(reader.query(regions), "chr1:100", "chr1:200", "chr1:500");
+		}
+	}
+	
+	public void testQueryUnsortedRegions() throws IOException {
+		File file = createIndexedVCF();
+		List<GenomicRegion> regions = new ArrayList<>();
+		regions.add(new GenomicRegionImpl("chr3", 1, 20));
+		regions.add(new GenomicRegionImpl("chr2", 4000, 6000));
+		regions.add(new GenomicRegionImpl("chr1", 900, 1100));
+		regions.add(new GenomicRegionImpl("chr2", 1, 60));
+		regions.add(new GenomicRegionImpl("chr1", 50, 150));
+		regions.add(new GenomicRegionImpl("chr3", 5, 15));
+		try (VCFFileReader reader = new VCFFileReader(file)) {
+			assertPositions(reader.query(regions), "chr1:100", "chr1:1000", "chr2:50", "chr2:5000", "chr3:10");
+		}
+	}
+	
+	public void testQueryRecordSpanningRegions() throws IOException {
+		File file = createIndexedVCF();
+		List<GenomicRegion> regions = new ArrayList<>();
+		//Both regions overlap the deletion at chr1:200-300 but not each other
+		regions.add(new GenomicRegionImpl("chr1", 280, 290));
+		regions.add(new GenomicRegionImpl("chr1", 210, 220));
+		regions.add(new GenomicRegionImpl("chr1", 295, 600));
+		try (VCFFileReader reader = new VCFFileReader(file)) {
+			assertPositions(reader.query(regions), "chr1:200", "chr1:500");
+		}
+	}
+	
+	public void testQueryPlainGzipWithIndex() throws IOException {
+		File file = createIndexedVCF();
+		//A plain gzip file with an index of other file can not be queried
+		File gzip = writeVCF("plain.vcf.gz", new GZIPOutputStream(new FileOutputStream(new File(dir,"plain.vcf.gz"))));
+		new File(file.getPath()+".tbi").renameTo(new File(gzip.getPath()+".tbi"));
+		try (VCFFileReader reader = new VCFFileReader(gzip)) {
+			assertFalse(reader.isIndexed());
+		}
+	}
+	
+	private File createIndexedVCF() throws IOException {
+		File file = writeVCF("test.vcf.gz", new BlockCompressedOutputStream(new File(dir,"test.vcf.gz")));
+		try (VCFFileReader reader = new VCFFileReader(file)) {
+			reader.createIndex();
+		}
+		return file;
+	}
+	
+	private File writeVCF(String name, OutputStream os) throws IOException {
+		try (PrintStream out = new PrintStream(os)) {
+			out.println("##fileformat=VCFv4.2");
+			out.println("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+			out.println("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1");
+			for(String record:RECORDS) out.println(record);
+		}
+		return new File(dir, name);
+	}
+	
+	private void assertPositions(Iterator<VCFRecord> it, String... expected) {
+		List<String> actual = new ArrayList<>();
+		while(it.hasNext()) {
+			VCFRecord record = it.next();
+			actual.add(record.getSequenceName()+":"+record.getFirst());
+		}
+		assertEquals(Arrays.asList(expected), actual);
+	}
+}
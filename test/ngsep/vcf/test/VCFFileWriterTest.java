@@ -0,0 +1,59 @@
+package ngsep.vcf.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ngsep.main.io.ParseUtils;
+import ngsep.variants.CalledGenomicVariant;
+import ngsep.variants.GenomicVariant;
+import ngsep.variants.GenomicVariantAnnotation;
+import ngsep.variants.GenomicVariantImpl;
+import ngsep.vcf.VCFFileWriter;
+import ngsep.vcf.VCFRecord;
+
+public class VCFFileWriterTest extends TestCase {
+	
+	public void testDecimalFormat() {
+		double [] values = {0, 1, -1, 0.5, 0.005, 0.015, 0.025, 0.125, 0.135, 1.005, 2.675, -2.675, 0.1+0.2, 1.0/3, -1.0/3, 12345.678, 999999999.994, 1e9, 1.5e12, -0.001, -0.0, 1e-10, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		for(double value:values) assertDecimal(value);
+		Random random = new Random(42);
+		for(int i=0;i<10000;i++) {
+			assertDecimal(random.nextInt(100000)/1000.0);
+			assertDecimal(-random.nextInt(100000)/1000.0);
+			assertDecimal((random.nextDouble()-0.5)*1000);
+		}
+	}
+	
+	public void testDecimalListFormat() {
+		GenomicVariant variant = new GenomicVariantImpl("chr1", 100, Arrays.asList(new String[] {"A","C"}));
+		List<Double> values = Arrays.asList(new Double[] {0.125, 3.0, -7.456});
+		String info = encodeInfo(variant, new GenomicVariantAnnotation(variant, "LIST", values));
+		String expected = "LIST="+ParseUtils.ENGLISHFMT.format(0.125)+","+ParseUtils.ENGLISHFMT.format(3.0)+","+ParseUtils.ENGLISHFMT.format(-7.456);
+		assertEquals(expected, info);
+	}
+	
+	private void assertDecimal(double value) {
+		GenomicVariant variant = new GenomicVariantImpl("chr1", 100, Arrays.asList(new String[] {"A","C"}));
+		String info = encodeInfo(variant, new GenomicVariantAnnotation(variant, "VAL", value));
+		//The writer encodes non ASCII characters, such as the infinity symbol, with the default charset
+		String expected = new String(("VAL="+ParseUtils.ENGLISHFMT.format(value)).getBytes());
+		assertEquals("Wrong format for "+value, expected, info);
+	}
+	
+	private String encodeInfo(GenomicVariant variant, GenomicVariantAnnotation annotation) {
+		List<GenomicVariantAnnotation> infoFields = new ArrayList<>();
+		infoFields.add(annotation);
+		VCFRecord record = new VCFRecord(variant, new ArrayList<String>(), infoFields, new int[0], new ArrayList<CalledGenomicVariant>(), null);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes);
+		new VCFFileWriter().printVCFRecord(record, out);
+		out.flush();
+		String [] columns = bytes.toString().trim().split("\t");
+		return columns[7];
+	}
+}